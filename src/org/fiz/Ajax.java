@@ -15,11 +15,311 @@
 
 package org.fiz;
 
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.servlet.*;
+import javax.servlet.http.*;
+import org.apache.log4j.*;
+
 /**
  * The Ajax class provides facilities for managing Ajax requests from
- * the browser.
+ * the browser.  It also handles batches of Ajax requests: when batching
+ * is enabled, the browser combines requests issued at about the same time
+ * into a single HTTP request (see Fiz.Ajax.Batch in Ajax.js), which the
+ * Dispatcher passes to {@code serviceBatch}.  Each request in the batch
+ * is dispatched as if it had arrived separately and the responses are
+ * returned together, in order.
  */
 public class Ajax {
+    /**
+     * A BatchRequest represents one of the requests in a batch.  It
+     * presents the URL, query values, and POST data for that request;
+     * other information, such as cookies and the session, comes from
+     * the HTTP request that carried the batch.
+     */
+    protected static class BatchRequest extends HttpServletRequestWrapper {
+        protected String url;          // URL for the request, as supplied
+                                       // by the browser.
+        protected String requestUri;   // Request URI after resolving
+                                       // {@code url}.
+        protected String pathInfo;     // Portion of the path after the
+                                       // servlet path (decoded).
+        protected String queryString;  // Query string from {@code url},
+                                       // or null.
+        protected String data;         // POST data for this request,
+                                       // in text/fiz format.
+        protected Hashtable<String,String[]> parameters =
+                new Hashtable<String,String[]>();
+                                       // Query values from {@code url}.
+        protected Hashtable<String,Object> attributes =
+                new Hashtable<String,Object>();
+                                       // Attributes set while processing
+                                       // this request; kept separate
+                                       // so that requests executing in
+                                       // parallel don't interfere.
+
+        /**
+         * Construct a BatchRequest.
+         * @param batch            The HTTP request containing the batch.
+         * @param url              URL for this request; if relative,
+         *                         it is interpreted relative to the URL
+         *                         of {@code batch}.
+         * @param data             POST data for this request (in the
+         *                         form {@code main.<dataset>}).
+         * @throws SyntaxError     {@code url} is malformed or doesn't
+         *                         refer to this servlet.
+         */
+        public BatchRequest(HttpServletRequest batch, String url,
+                String data) {
+            super(batch);
+            this.url = url;
+            this.data = data;
+            URI target;
+            try {
+                target = new URI(batch.getRequestURI()).resolve(url);
+            }
+            catch (URISyntaxException e) {
+                throw new SyntaxError("bad URL \"" + url +
+                        "\" in Fiz batch data: " + e.getMessage());
+            }
+            requestUri = target.getRawPath();
+            String prefix = batch.getContextPath() + batch.getServletPath();
+            String path = target.getPath();
+            if (!path.startsWith(prefix)) {
+                throw new SyntaxError("URL \"" + url + "\" in Fiz batch " +
+                        "data doesn't refer to this application");
+            }
+            pathInfo = path.substring(prefix.length());
+            queryString = target.getRawQuery();
+            if (queryString != null) {
+                for (String query : StringUtil.split(queryString, '&')) {
+                    int equals = query.indexOf('=');
+                    String name = (equals < 0) ? query
+                            : query.substring(0, equals);
+                    String value = (equals < 0) ? ""
+                            : query.substring(equals + 1);
+                    try {
+                        name = URLDecoder.decode(name, "UTF-8");
+                        value = URLDecoder.decode(value, "UTF-8");
+                    }
+                    catch (UnsupportedEncodingException e) {
+                        throw new InternalError("Ajax.BatchRequest " +
+                                "couldn't decode query: " + e.getMessage());
+                    }
+                    String[] old = parameters.get(name);
+                    String[] values;
+                    if (old == null) {
+                        values = new String[] {value};
+                    } else {
+                        values = Arrays.copyOf(old, old.length + 1);
+                        values[old.length] = value;
+                    }
+                    parameters.put(name, values);
+                }
+            }
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            Object result = attributes.get(name);
+            return (result != null) ? result : super.getAttribute(name);
+        }
+
+        @Override
+        public int getContentLength() {
+            return data.length();
+        }
+
+        @Override
+        public String getContentType() {
+            return "text/fiz; charset=utf-8";
+        }
+
+        @Override
+        public String getHeader(String name) {
+            // The batch's response will be compressed as a whole, so the
+            // individual responses shouldn't be.
+            if (name.equalsIgnoreCase("Accept-Encoding")) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            final ByteArrayInputStream in = new ByteArrayInputStream(
+                    data.getBytes("UTF-8"));
+            return new ServletInputStream() {
+                public int read() {
+                    return in.read();
+                }
+            };
+        }
+
+        @Override
+        public String getParameter(String name) {
+            String[] values = parameters.get(name);
+            return (values != null) ? values[0] : null;
+        }
+
+        @Override
+        public Map getParameterMap() {
+            return parameters;
+        }
+
+        @Override
+        public Enumeration getParameterNames() {
+            return parameters.keys();
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return parameters.get(name);
+        }
+
+        @Override
+        public String getPathInfo() {
+            return pathInfo;
+        }
+
+        @Override
+        public String getQueryString() {
+            return queryString;
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader(new StringReader(data));
+        }
+
+        @Override
+        public String getRequestURI() {
+            return requestUri;
+        }
+
+        @Override
+        public StringBuffer getRequestURL() {
+            StringBuffer result = super.getRequestURL();
+            String batchUri = super.getRequestURI();
+            int uriStart = result.lastIndexOf(batchUri);
+            if (uriStart >= 0) {
+                result.setLength(uriStart);
+            }
+            return result.append(requestUri);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+    }
+
+    /**
+     * A BatchResponse collects the response for one of the requests in a
+     * batch.  Headers and status codes are discarded: the HTTP response
+     * is shared by all of the requests in the batch.  Cookies are passed
+     * through to the HTTP response.
+     */
+    protected static class BatchResponse extends HttpServletResponseWrapper {
+        protected StringWriter text = new StringWriter();
+        protected PrintWriter writer = new PrintWriter(text);
+        protected ByteArrayOutputStream bytes = null;
+
+        /**
+         * Construct a BatchResponse.
+         * @param response         The HTTP response for the batch.
+         */
+        public BatchResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        /**
+         * Returns everything that has been output for this request.
+         * @return                 The response for this request.
+         */
+        public String getText() {
+            writer.flush();
+            if (bytes == null) {
+                return text.toString();
+            }
+            try {
+                return text.toString() + bytes.toString("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new InternalError("Ajax.BatchResponse couldn't " +
+                        "convert from UTF-8");
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (bytes == null) {
+                bytes = new ByteArrayOutputStream();
+            }
+            return new ServletOutputStream() {
+                public void write(int b) {
+                    bytes.write(b);
+                }
+            };
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return writer;
+        }
+
+        // The following methods are all no-ops.
+        @Override
+        public void addDateHeader(String name, long date) {}
+        @Override
+        public void addHeader(String name, String value) {}
+        @Override
+        public void addIntHeader(String name, int value) {}
+        @Override
+        public void flushBuffer() {}
+        @Override
+        public void sendError(int sc) {}
+        @Override
+        public void sendError(int sc, String msg) {}
+        @Override
+        public void setCharacterEncoding(String charset) {}
+        @Override
+        public void setContentLength(int len) {}
+        @Override
+        public void setContentType(String type) {}
+        @Override
+        public void setDateHeader(String name, long date) {}
+        @Override
+        public void setHeader(String name, String value) {}
+        @Override
+        public void setIntHeader(String name, int value) {}
+        @Override
+        public void setStatus(int sc) {}
+    }
+
+    // MIME type used by the browser for batches of requests.
+    public static final String BATCH_CONTENT_TYPE = "text/fiz-batch";
+
+    // If the following variable is true, pages that use Ajax tell the
+    // browser to batch requests.  This variable mirrors the "ajaxBatching"
+    // entry in the main configuration dataset.
+    public static boolean batching = false;
+
+    // If the following variable is non-null, the requests in a batch are
+    // processed in parallel using its threads; null means requests are
+    // processed one at a time by the thread that received the batch.
+    protected static ExecutorService batchExecutor = null;
+
+    // The following variable is used for log4j-based logging.
+    protected static Logger logger = Logger.getLogger("org.fiz.Ajax");
+
     /**
      * Generate Javascript code that will invoke an Ajax request.
      * @param cr                   Overall information about the client
@@ -104,4 +404,172 @@ public class Ajax {
         javascript.append("});");
         return javascript.toString();
     }
+
+    /**
+     * Returns true if an HTTP request contains a batch of Ajax requests.
+     * @param request              Information about the HTTP request.
+     * @return                     True means the request should be
+     *                             handled with {@code serviceBatch}.
+     */
+    public static boolean isBatch(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return (contentType != null)
+                && contentType.startsWith(BATCH_CONTENT_TYPE);
+    }
+
+    /**
+     * Parse the POST data for a batch of Ajax requests.  The data
+     * consists of one {@code url.<length>.<url>main.<dataset>} sequence
+     * for each request.
+     * @param request              The HTTP request containing the batch.
+     * @param postData             POST data from {@code request}.
+     * @return                     One BatchRequest for each request in
+     *                             the batch, in order.
+     * @throws SyntaxError         {@code postData} is not in the
+     *                             correct format.
+     */
+    protected static ArrayList<BatchRequest> parseBatch(
+            HttpServletRequest request, CharSequence postData) {
+        ArrayList<BatchRequest> requests = new ArrayList<BatchRequest>();
+        String text = postData.toString();
+        int current = 0;
+        while (current < text.length()) {
+            if (!text.startsWith("url.", current)) {
+                throw new SyntaxError("expected \"url.\" at position " +
+                        current + " in Fiz batch data");
+            }
+            current += 4;
+            int dot = text.indexOf('.', current);
+            int length;
+            try {
+                length = Integer.parseInt(text.substring(current,
+                        (dot < 0) ? text.length() : dot));
+            }
+            catch (NumberFormatException e) {
+                throw new SyntaxError("bad URL length at position " +
+                        current + " in Fiz batch data");
+            }
+            int urlEnd = dot + 1 + length;
+            if ((length < 0) || (urlEnd > text.length())) {
+                throw new SyntaxError("URL length at position " + current +
+                        " runs past end of Fiz batch data");
+            }
+            String url = text.substring(dot + 1, urlEnd);
+            if (!text.startsWith("main.", urlEnd)) {
+                throw new SyntaxError("expected \"main.\" at position " +
+                        urlEnd + " in Fiz batch data");
+            }
+            current = (new Dataset()).addSerializedData(text, urlEnd + 5);
+            requests.add(new BatchRequest(request, url,
+                    text.substring(urlEnd, current)));
+        }
+        return requests;
+    }
+
+    /**
+     * Handle an HTTP request containing a batch of Ajax requests.  Each
+     * request is dispatched in the normal fashion; the response consists
+     * of the responses for all of the requests, in order, each preceded
+     * by {@code <length>.}.
+     * @param dispatcher           Used to dispatch the requests in the
+     *                             batch.
+     * @param request              The HTTP request containing the batch.
+     * @param response             The HTTP response for the batch.
+     */
+    public static void serviceBatch(final Dispatcher dispatcher,
+            HttpServletRequest request, HttpServletResponse response) {
+        StringBuilder postData = new StringBuilder();
+        try {
+            BufferedReader reader = request.getReader();
+            char[] buffer = new char[4096];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                postData.append(buffer, 0, length);
+            }
+        }
+        catch (IOException e) {
+            throw new IOError("I/O error in Ajax.serviceBatch: " +
+                    e.getMessage());
+        }
+        final ArrayList<BatchRequest> requests = parseBatch(request,
+                postData);
+        final BatchResponse[] responses = new BatchResponse[requests.size()];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new BatchResponse(response);
+        }
+
+        ExecutorService executor = batchExecutor;
+        if ((executor == null) || (requests.size() < 2)) {
+            for (int i = 0; i < responses.length; i++) {
+                dispatcher.service(requests.get(i), responses[i]);
+            }
+        } else {
+            // Make sure the session exists before the requests start, so
+            // that parallel requests don't create separate sessions.
+            request.getSession(true);
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 1; i < responses.length; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        dispatcher.service(requests.get(index),
+                                responses[index]);
+                    }
+                }));
+            }
+            dispatcher.service(requests.get(0), responses[0]);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                }
+                catch (Exception e) {
+                    // Dispatcher.service handles its own errors, so this
+                    // shouldn't happen.
+                    logger.error("error in batched Ajax request for \"" +
+                            requests.get(i+1).url + "\": " + e);
+                }
+            }
+        }
+
+        StringBuilder javascript = new StringBuilder();
+        for (BatchResponse batchResponse : responses) {
+            String text = batchResponse.getText();
+            javascript.append(text.length());
+            javascript.append('.');
+            javascript.append(text);
+        }
+        ClientRequest cr = new ClientRequest(dispatcher, request, response);
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.evalJavascript(javascript);
+        cr.finish();
+    }
+
+    /**
+     * Specify whether the requests in a batch should be processed in
+     * parallel.  All of the requests in a batch come from the same page,
+     * so parallel processing is only safe if every Ajax handler in the
+     * application is prepared for concurrent access to the page's
+     * properties (many of Fiz's sections, such as TreeSection, are not).
+     * @param threads              Maximum number of threads to use for
+     *                             processing requests in parallel; 0 or
+     *                             1 means requests are processed one at a
+     *                             time.
+     */
+    public static synchronized void setBatchThreads(int threads) {
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+        if (threads > 1) {
+            batchExecutor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    // Don't let these threads keep the JVM alive.
+                    Thread thread = new Thread(runnable, "fiz-ajax-batch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,189 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.zip.*;
+import javax.crypto.*;
+import org.apache.log4j.*;
+
+/**
+ * ClientPageStateStore keeps page state in the browser instead of on the
+ * server.  It is selected by setting {@code pageStateStore} to
+ * {@code client} in the main configuration dataset.  At the end of any
+ * request that changes a page's properties, the state is serialized,
+ * compressed, signed with the session's Mac (see
+ * {@code ClientRequest.getMac}), and downloaded to the browser in the
+ * Javascript variable {@code Fiz.pageState}.  The browser returns it in
+ * the {@code fiz_pageState} value of each Ajax request and form post for
+ * the page, and this class verifies the signature and restores the state.
+ * As a result no page state is kept on the server, and any server that
+ * shares the session's Mac key can handle any request.
+ *
+ * Because the state travels with every request, this store is best
+ * suited for pages whose properties are small.  If concurrent requests
+ * for the same page each modify its properties, the state returned by
+ * the last response wins.
+ */
+public class ClientPageStateStore implements PageStateStore {
+    // Number of characters in the encoded form of a signature (the Mac
+    // produces 32 bytes).
+    protected static final int SIGNATURE_LENGTH =
+            StringUtil.lengthEncoded3to4(32);
+
+    protected static Logger logger =
+            Logger.getLogger("org.fiz.ClientPageStateStore");
+
+    /**
+     * Downloads the state for a page to the browser, if it has changed
+     * during this request.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param state                The page's state object.
+     */
+    public void flush(ClientRequest cr, String id, PageState state) {
+        if (state.isDirty()) {
+            cr.evalJavascript("Fiz.pageState = \"@1\";\n",
+                    encode(cr, id, state));
+        }
+    }
+
+    /**
+     * Recreates the state for a page from the {@code fiz_pageState}
+     * value in the main dataset for the request.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param create               True means create a new state object
+     *                             if the request didn't include one.
+     * @return                     Returns the page state object for the
+     *                             page, or null if the request didn't
+     *                             include valid state for the page and
+     *                             {@code create} is false.
+     */
+    public PageState get(ClientRequest cr, String id, boolean create) {
+        String encoded = cr.getMainDataset().checkString("fiz_pageState");
+        PageState state = null;
+        if ((encoded != null) && (encoded.length() > 0)) {
+            state = decode(cr, id, encoded);
+        }
+        if ((state == null) && create) {
+            state = new PageState();
+        }
+        return state;
+    }
+
+    /**
+     * Reverses the transformation performed by {@code encode}.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param encoded              Value returned by the browser, which
+     *                             should have been created by
+     *                             {@code encode}.
+     * @return                     The page's state, or null if
+     *                             {@code encoded} was not produced by
+     *                             {@code encode} for this page in this
+     *                             session (for example, the session has
+     *                             expired since the page was rendered, or
+     *                             the value was tampered with).
+     */
+    protected static PageState decode(ClientRequest cr, String id,
+            String encoded) {
+        if (encoded.length() < SIGNATURE_LENGTH) {
+            logger.warn("page state for page \"" + id + "\" is too short");
+            return null;
+        }
+        byte[] signature = StringUtil.decode4to3(encoded, 0,
+                SIGNATURE_LENGTH);
+        byte[] data = StringUtil.decode4to3(encoded, SIGNATURE_LENGTH,
+                encoded.length() - SIGNATURE_LENGTH);
+        // Compare in constant time, so the time taken doesn't reveal how
+        // much of a forged signature is correct.
+        if (!MessageDigest.isEqual(signature, sign(cr, id, data))) {
+            logger.warn("page state for page \"" + id + "\" has an " +
+                    "invalid signature");
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(data)));
+            return (PageState) in.readObject();
+        }
+        catch (Exception e) {
+            logger.warn("couldn't restore page state for page \"" + id +
+                    "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns a printable string containing the compressed, signed
+     * serialized form of the state for a page.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param state                The page's state.
+     * @return                     A string containing only printable ASCII
+     *                             characters, which can be passed to
+     *                             {@code decode} to recreate the state.
+     */
+    protected static String encode(ClientRequest cr, String id,
+            PageState state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new DeflaterOutputStream(bytes,
+                    new Deflater(Deflater.BEST_COMPRESSION)));
+            out.writeObject(state);
+            out.close();
+        }
+        catch (IOException e) {
+            throw new IOError("couldn't serialize page state: " +
+                    e.getMessage());
+        }
+        byte[] data = bytes.toByteArray();
+        StringBuilder result = new StringBuilder(SIGNATURE_LENGTH +
+                StringUtil.lengthEncoded3to4(data.length));
+        StringUtil.encode3to4(sign(cr, id, data), result);
+        StringUtil.encode3to4(data, result);
+        return result.toString();
+    }
+
+    /**
+     * Computes the signature for the state of a page.  The signature
+     * covers the page identifier as well as the data, so the state for
+     * one page can't be substituted for another's.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param data                 Compressed serialized state for the page.
+     * @return                     The signature.
+     */
+    protected static byte[] sign(ClientRequest cr, String id, byte[] data) {
+        Mac mac = cr.getMac();
+        try {
+            mac.update(id.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new InternalError("UTF-8 encoding not supported");
+        }
+        mac.update((byte) 0);
+        return mac.doFinal(data);
+    }
+}
@@ -18,6 +18,7 @@ package org.fiz;
 import org.fiz.section.FormSection;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.crypto.*;
 import javax.servlet.*;
@@ -164,9 +165,19 @@ public class ClientRequest {
     protected String fileName = null;
     protected InputStream fileSource = null;
 
+    // If returnBytes has been invoked, the following variables hold the
+    // response to be sent at the end of the request.
+    protected String bytesContentType = null;
+    protected byte[] bytes = null;
+
     // The following variable is used for log4j-based logging.
     protected static Logger logger = Logger.getLogger("org.fiz.ClientRequest");
 
+    // Actions to perform at the end of every request; see
+    // addEndOfRequestHook.
+    protected static CopyOnWriteArrayList<Runnable> endOfRequestHooks =
+            new CopyOnWriteArrayList<Runnable>();
+
     // If the following variable is nonzero, then all uploaded files larger
     // than this will be written temporarily to disk.  Used for testing.
     protected int testSizeThreshold = 0;
@@ -183,6 +194,10 @@ public class ClientRequest {
     // for this page.
     public String pageId = null;
 
+    // Channel for pushing updates to the current page, or null if
+    // getPushChannel hasn't been invoked during this request.
+    protected PushChannel pushChannel = null;
+
     // True means that we have already set Fiz.auth in the browser; no need
     // to set it again.
     public boolean authTokenSet = false;
@@ -253,6 +268,20 @@ public class ClientRequest {
         }
     }
 
+    /**
+     * Arrange for an action to be performed at the end of every request,
+     * just before the response is sent.  Hooks run in the thread that
+     * handled the request; they allow modules that aren't passed the
+     * ClientRequest (such as data managers) to finish work that they
+     * deferred during the request.  Exceptions thrown by a hook are
+     * logged and otherwise ignored.
+     * @param hook                 Action to perform; its {@code run}
+     *                             method is invoked once for each request.
+     */
+    public static void addEndOfRequestHook(Runnable hook) {
+        endOfRequestHooks.add(hook);
+    }
+
     /**
      * This method checks for the presence of an authentication token (a
      * "fiz_auth" entry in the main dataset with a session-specific value),
@@ -339,7 +368,23 @@ public class ClientRequest {
      * to complete the transmission of the response back to the client.
      */
     public void finish() {
-        if (pageState != null && getMainDataset().getBool(GOOGLE_APPENGINE)) {
+        // Give other modules a chance to complete work they deferred
+        // during the request (such as batched Datastore writes) before
+        // the response is sent.
+        for (Runnable hook : endOfRequestHooks) {
+            try {
+                hook.run();
+            } catch (Throwable e) {
+                logger.error("unhandled exception in end-of-request " +
+                        "hook: " + e);
+            }
+        }
+
+        // The session store only needs to be flushed in AppEngine (see
+        // SessionPageStateStore.flush); other stores always do.
+        if ((pageState != null) && (!(PageState.getStore()
+                instanceof SessionPageStateStore)
+                || getMainDataset().getBool(GOOGLE_APPENGINE))) {
             pageState.flushPageState(this);
         }
 
@@ -353,6 +398,12 @@ public class ClientRequest {
             }
         }
 
+        // Handle binary responses.
+        if (bytes != null) {
+            sendBytes();
+            return;
+        }
+
         // Handle file download requests.
         if (fileSource != null) {
             ServletOutputStream out;
@@ -409,9 +460,16 @@ public class ClientRequest {
 
         // If we get here, this is not a file download request.  First,
         // flush any accumulated Javascript in a fashion appropriate for
-        // the kind of request.
+        // the kind of request.  If the browser accepts compressed
+        // responses, collect the response in a buffer so we can compress
+        // it (see sendCompressible).
         PrintWriter writer = null;
-        if ((jsCode != null) || (html != null)) {
+        StringWriter buffer = null;
+        if (((jsCode != null) || (html != null))
+                && Compressor.acceptsGzip(servletRequest)) {
+            buffer = new StringWriter();
+            writer = new PrintWriter(buffer);
+        } else if ((jsCode != null) || (html != null)) {
             try {
                 writer = servletResponse.getWriter();
             }
@@ -439,6 +497,10 @@ public class ClientRequest {
             servletResponse.setContentType("text/html");
             html.print(writer);
         }
+        if (buffer != null) {
+            sendCompressible(buffer.toString());
+            return;
+        }
         if ((writer != null) && writer.checkError()) {
             logger.error("I/O error sending response in " +
                     "ClientRequest.finish");
@@ -464,6 +526,9 @@ public class ClientRequest {
         //   could be running concurrently, and both try to create the
         //   cached token, but they will both create exactly the same
         //   value so there is no race condition.
+        // * The token is specific to this session, so output that depends
+        //   on it must not be shared with other requests.
+        preventFragmentCaching();
 
         // First, check to see if we have a cached value.
         HttpSession session = servletRequest.getSession(true);
@@ -634,6 +699,7 @@ public class ClientRequest {
      *                             it; otherwise generate an errord.
      */
     public Object getPageProperty(String name) {
+        preventFragmentCaching();
         if (pageState == null) {
             pageState = PageState.getPageState(this, getPageId(), false);
             if (pageState == null) {
@@ -653,11 +719,13 @@ public class ClientRequest {
 
     /**
      * Set a page property on the current page, which can be retrieved later
-     * by calling getPageProperty.  The property is stored in the session,
-     * so it will be available in subsequent Ajax requests and form postings
-     * for this page.  Fiz retains properties for the most recently
-     * accessed pages in each session, removing old properties on an
-     * LRU basis.
+     * by calling getPageProperty.  The property is kept by the page state
+     * store (normally in the session; see PageState.getStore), so it will
+     * be available in subsequent Ajax requests and form postings for this
+     * page.  Fiz retains properties for the most recently accessed pages,
+     * removing old properties on an LRU basis.  If the value of an
+     * existing property is modified in place, this method must be invoked
+     * again for it; otherwise the modification may not be saved.
      * @param name                 Name of the desired property.
      * @param value                Value to remember for this property.
      */
@@ -667,12 +735,32 @@ public class ClientRequest {
                     "received non-serializable " +
                     value.getClass().getSimpleName() + " object");
         }
+        preventFragmentCaching();
         if (pageState == null) {
             pageState = PageState.getPageState(this, getPageId(), true);
         }
         pageState.setPageProperty(name, value);
     }
 
+    /**
+     * Returns a channel that can be used to update the current page at
+     * any time in the future, without waiting for the browser to make a
+     * request (see PushChannel).  The first time this method is invoked
+     * during a request, it also arranges for the browser to start
+     * listening on the channel; this only works when rendering a page
+     * (not during Ajax requests or form posts).
+     * @return                     The PushChannel for the current page.
+     */
+    public PushChannel getPushChannel() {
+        if (pushChannel == null) {
+            pushChannel = PushChannel.getInstance(this);
+            setAuthToken();
+            getHtml().includeJsFile("static/fiz/PushChannel.js");
+            evalJavascript("Fiz.PushChannel.start();\n");
+        }
+        return pushChannel;
+    }
+
     /**
      * Returns information about the servlet under which the ClientRequest is
      * being processed.
@@ -836,6 +924,26 @@ public class ClientRequest {
         this.fileSource = fileSource;
     }
 
+    /**
+     * Arrange for the response to this request to consist of an array of
+     * bytes, rather than HTML or Ajax actions.  This is typically used by
+     * Ajax requests that return data in a binary format.  The bytes will
+     * be compressed if the browser accepts gzip encoding.  Any other
+     * response information, such as HTML or Javascript, will be ignored
+     * once this method has been invoked.
+     *
+     * @param contentType           MIME type for the response, such as
+     *                              {@code application/octet-stream}.
+     * @param bytes                 Contents of the response.  Null means
+     *                              cancel any previous call to this method,
+     *                              restoring the normal HTML or Ajax
+     *                              response.
+     */
+    public void returnBytes(String contentType, byte[] bytes) {
+        this.bytesContentType = contentType;
+        this.bytes = bytes;
+    }
+
     /**
      * Arranged for an uploaded file (received with the current request)
      * to be saved in a given location on disk.  If any errors occur
@@ -882,6 +990,7 @@ public class ClientRequest {
      * requests and checked by the checkAuthToken method.
      */
     public void setAuthToken() {
+        preventFragmentCaching();
         if (authTokenSet) {
             return;
         }
@@ -963,12 +1072,20 @@ public class ClientRequest {
 
     /**
      * Generate HTML for one or more Sections, appending it to the response
-     * from this ClientRequest.
+     * from this ClientRequest.  Sections that return a key from
+     * {@code getCacheKey} are rendered through the shared FragmentCache,
+     * so their output may come from an earlier request.
      * @param sections             Contents of the page: any number of Sections.
      */
     public void showSections(Section ... sections) {
         for (Section section : sections) {
-            section.render(this);
+            String key = section.getCacheKey(this);
+            if (key == null) {
+                section.render(this);
+            } else {
+                FragmentCache.getInstance().render(this, section, key,
+                        section.getCacheTtl());
+            }
         }
     }
 
@@ -1016,6 +1133,19 @@ public class ClientRequest {
         }
     }
 
+    /**
+     * This method is invoked when a Section does something whose effect
+     * is specific to this request or page (such as using the
+     * authentication token or page properties).  If the Section's output
+     * is being recorded by a FragmentCache, the output will not be
+     * cached.
+     */
+    protected void preventFragmentCaching() {
+        if ((html != null) && (html.recording != null)) {
+            html.recording.uncacheable = true;
+        }
+    }
+
     /**
      * Returns a unique string identifying the "current page", which is
      * used to bind page properties with the page.  Fiz ensures that Ajax
@@ -1031,6 +1161,7 @@ public class ClientRequest {
      *                             for the page.
      */
     protected String getPageId() {
+        preventFragmentCaching();
         if (pageId != null) {
             // We've already computed the value; no need to do it again,
             // since it doesn't change during a given request.
@@ -1262,6 +1393,69 @@ public class ClientRequest {
         }
     }
 
+    /**
+     * This method is invoked by {@code finish} to transmit the response
+     * specified by {@code returnBytes}.  If the browser accepts gzip
+     * encoding and the response is long enough to benefit, it is
+     * compressed; otherwise it is sent as is.
+     */
+    protected void sendBytes() {
+        byte[] response = bytes;
+        servletResponse.setContentType(bytesContentType);
+        if ((bytes.length >= Compressor.minimumLength)
+                && Compressor.acceptsGzip(servletRequest)) {
+            response = Compressor.gzip(bytes, bytes.length);
+            servletResponse.setHeader("Content-Encoding", "gzip");
+            servletResponse.setHeader("Vary", "Accept-Encoding");
+        }
+        servletResponse.setContentLength(response.length);
+        try {
+            ServletOutputStream out = servletResponse.getOutputStream();
+            out.write(response);
+            out.flush();
+        }
+        catch (IOException e) {
+            logger.error("I/O error sending response in " +
+                    "ClientRequest.sendBytes: " +
+                    StringUtil.lcFirst(e.getMessage()));
+        }
+    }
+
+    /**
+     * This method is invoked by {@code finish} to transmit the response
+     * for a request whose browser accepts gzip encoding.  If the response
+     * is long enough to benefit, it is compressed; otherwise it is sent
+     * as is.
+     * @param response             The complete text of the response.
+     */
+    protected void sendCompressible(String response) {
+        try {
+            if (response.length() < Compressor.minimumLength) {
+                PrintWriter writer = servletResponse.getWriter();
+                writer.write(response);
+                if (writer.checkError()) {
+                    logger.error("I/O error sending response in " +
+                            "ClientRequest.sendCompressible");
+                }
+                return;
+            }
+            byte[] bytes = response.getBytes("UTF-8");
+            byte[] compressed = Compressor.gzip(bytes, bytes.length);
+            servletResponse.setCharacterEncoding("UTF-8");
+            servletResponse.setHeader("Content-Encoding", "gzip");
+            servletResponse.setHeader("Vary", "Accept-Encoding");
+            servletResponse.setContentLength(compressed.length);
+            ServletOutputStream out = servletResponse.getOutputStream();
+            out.write(compressed);
+            out.flush();
+        }
+        catch (IOException e) {
+            logger.error("I/O error sending response in " +
+                    "ClientRequest.sendCompressible: " +
+                    StringUtil.lcFirst(e.getMessage()));
+        }
+    }
+
     /**
      * Creates a unique (to the request) id given a base string. For example,
      * repeated calls will return foo0, foo1, etc.
@@ -1271,6 +1465,10 @@ public class ClientRequest {
     public String uniqueId(String base) {
         int lastVal;
 
+        // Replaying cached output wouldn't advance the counter, so later
+        // sections could generate the same id again.
+        preventFragmentCaching();
+
         if (idsMap.containsKey(base)) {
             lastVal = idsMap.get(base) + 1;
         } else {
@@ -33,11 +33,53 @@ import java.util.*;
  *   will appear in the CompoundDataset.
  * * CompoundDatasets are read-only.  Attempts to modify them generate
  *   InternalError exceptions.
+ * * A CompoundDataset can optionally be indexed (see {@code setIndexed}).
+ *   An indexed CompoundDataset keeps a merged table mapping each top-level
+ *   key to the first component containing it, so looking up a single
+ *   top-level value takes one hash probe instead of a search of every
+ *   component.  The table is rebuilt automatically if keys are added to
+ *   or removed from any component.  Components that are replaced with
+ *   {@code setComponent} (such as the per-row data in a TableSection)
+ *   are left out of the table and searched directly, so replacing them
+ *   doesn't require the table to be rebuilt.  Indexing pays off when many
+ *   values are looked up in a CompoundDataset whose components are
+ *   deeply nested or numerous.
  */
 public class CompoundDataset extends Dataset {
     // Of the component datasets that make up this compound dataset.
     protected Dataset[] components;
 
+    // True means FIRST_ONLY lookups of top-level keys are made using
+    // {@code keyIndex}.
+    protected boolean indexed = false;
+
+    // If {@code indexed} is true, this maps each top-level key to the
+    // first dataset containing it, among the components starting at
+    // {@code firstIndexed}.  Nested CompoundDatasets are flattened, so the
+    // values in this map are never CompoundDatasets.  Null means the
+    // index must be rebuilt before its next use.
+    protected HashMap<String,Dataset> keyIndex = null;
+
+    // Components before this position have been replaced by
+    // {@code setComponent} since indexing was enabled; they are searched
+    // directly rather than through {@code keyIndex}, since they are
+    // likely to be replaced again.
+    protected int firstIndexed = 0;
+
+    // The datasets whose keys were used to build {@code keyIndex}
+    // (including nested CompoundDatasets), and the value of each one's
+    // {@code keySetChanges} when the index was built; if any of them has
+    // changed since then, the index may be stale.
+    protected ArrayList<Dataset> indexedDatasets = new ArrayList<Dataset>();
+    protected int[] indexedChanges = null;
+
+    // False means {@code keyIndex} stopped at a component that can't be
+    // indexed, because its {@code lookup} method may find keys that don't
+    // appear in its {@code keySet} (e.g., a LazyDataset with a default
+    // DataSource).  Keys in the index are still found correctly, but
+    // lookups for other keys must search the components linearly.
+    protected boolean indexComplete = true;
+
     // The following variables are used by accumulateChildren to keep track
     // of all the child datasets found in all of the components.  The idea
     // here is to avoid allocation in the common case where children
@@ -295,6 +337,34 @@ public class CompoundDataset extends Dataset {
     public void setComponent(int index, Dataset dataset) {
         throwIfError();
         components[index] = dataset;
+
+        // If we are a component of another indexed CompoundDataset, its
+        // index may now be out of date.
+        keySetChanges++;
+        if (index >= firstIndexed) {
+            // From now on search this component directly, so it can be
+            // replaced again without rebuilding the index.
+            firstIndexed = index + 1;
+            keyIndex = null;
+        }
+    }
+
+    /**
+     * Enables or disables indexing for this dataset.  When indexing is
+     * enabled, the dataset builds (on the next lookup) a table mapping
+     * each top-level key to the first component containing it, and uses
+     * the table for lookups of single top-level values.  The table is
+     * kept up to date automatically as keys are added to or removed from
+     * the components.  Lookups of paths and of all the values for a key
+     * work the same whether or not indexing is enabled.
+     * @param indexed              True means enable indexing, false
+     *                             means disable it.
+     */
+    public void setIndexed(boolean indexed) {
+        throwIfError();
+        this.indexed = indexed;
+        keyIndex = null;
+        firstIndexed = 0;
     }
 
     /**
@@ -372,27 +442,146 @@ public class CompoundDataset extends Dataset {
     protected Object lookup(String keyOrPath, Quantity quantity) {
         throwIfError();
         Object result;
-        DSArrayList<Object> out = null;
-        if (quantity == Quantity.ALL) {
-            out = new DSArrayList<Object>();
+        if (indexed && (quantity == Quantity.FIRST_ONLY)
+                && (keyOrPath.indexOf('.') < 0)) {
+            for (int i = 0; i < firstIndexed; i++) {
+                Dataset component = components[i];
+                if (component != null) {
+                    result = component.lookup(keyOrPath, quantity);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+            Dataset holder = getIndex().get(keyOrPath);
+            if (holder != null) {
+                result = holder.lookup(keyOrPath, quantity);
+                if (result != null) {
+                    return result;
+                }
+
+                // The key exists but has a null value; fall through to
+                // search the remaining components.
+            } else if (indexComplete) {
+                return null;
+            }
         }
 
-        boolean foundAny = false;
+        // When all the values are requested, avoid allocating a new list
+        // unless more than one component contains values.
+        Object first = null;
+        DSArrayList<Object> out = null;
         for (Dataset component : components) {
             result = component.lookup(keyOrPath, quantity);
-            if (result != null) {
-                if (quantity == Quantity.FIRST_ONLY) {
-                    return result;
-                }
-                foundAny = true;
-                if (result instanceof DSArrayList) {
-                    out.addAll((DSArrayList<Object>) result);
-                } else {
-                    out.add(result);
-                }
+            if (result == null) {
+                continue;
+            }
+            if (quantity == Quantity.FIRST_ONLY) {
+                return result;
+            }
+            if (first == null) {
+                first = result;
+                continue;
             }
+            if (out == null) {
+                out = new DSArrayList<Object>();
+                addValues(out, first);
+            }
+            addValues(out, result);
+        }
+        if (out != null) {
+            return out;
         }
-        return (foundAny) ? out : null;
+        if ((first == null) || (first instanceof DSArrayList)) {
+            return first;
+        }
+        out = new DSArrayList<Object>();
+        out.add(first);
+        return out;
+    }
+
+    /**
+     * Adds the keys of a component to {@code keyIndex}, and records the
+     * component in {@code indexedDatasets} so that changes to its keys
+     * will be noticed.
+     * @param dataset              Component to add to the index; if it
+     *                             is a CompoundDataset then its components
+     *                             are added in order.  May be null.
+     */
+    protected void addToIndex(Dataset dataset) {
+        if ((dataset == null) || !indexComplete) {
+            return;
+        }
+        indexedDatasets.add(dataset);
+        if (dataset instanceof CompoundDataset) {
+            for (Dataset component : ((CompoundDataset) dataset).components) {
+                addToIndex(component);
+            }
+            return;
+        }
+        if (dataset instanceof LazyDataset) {
+            indexComplete = false;
+            return;
+        }
+        for (String key : dataset.keySet()) {
+            if (!keyIndex.containsKey(key)) {
+                keyIndex.put(key, dataset);
+            }
+        }
+    }
+
+    /**
+     * Appends one or more values returned by a component's {@code lookup}
+     * method to a list.
+     * @param out                  Values are appended here.
+     * @param values               Either a DSArrayList, all of whose
+     *                             elements are appended to {@code out},
+     *                             or a single value to append.
+     */
+    @SuppressWarnings("unchecked")
+    protected static void addValues(DSArrayList<Object> out, Object values) {
+        if (values instanceof DSArrayList) {
+            out.addAll((DSArrayList<Object>) values);
+        } else {
+            out.add(values);
+        }
+    }
+
+    /**
+     * Returns the index mapping top-level keys to components, rebuilding
+     * it first if it is missing or stale.
+     * @return                     The up-to-date value of
+     *                             {@code keyIndex}.
+     */
+    protected HashMap<String,Dataset> getIndex() {
+        if ((keyIndex != null) && !isIndexStale()) {
+            return keyIndex;
+        }
+        keyIndex = new HashMap<String,Dataset>();
+        indexComplete = true;
+        indexedDatasets.clear();
+        for (int i = firstIndexed; i < components.length; i++) {
+            addToIndex(components[i]);
+        }
+        indexedChanges = new int[indexedDatasets.size()];
+        for (int i = 0; i < indexedChanges.length; i++) {
+            indexedChanges[i] = indexedDatasets.get(i).keySetChanges;
+        }
+        return keyIndex;
+    }
+
+    /**
+     * Determine whether keys have been added to or removed from any of
+     * the datasets used to build {@code keyIndex}.
+     * @return                     True means the index must be rebuilt.
+     */
+    protected boolean isIndexStale() {
+        for (int i = 0; i < indexedChanges.length; i++) {
+            if (indexedDatasets.get(i).keySetChanges != indexedChanges[i]) {
+                return true;
+            }
+        }
+        return false;
     }
 
 }
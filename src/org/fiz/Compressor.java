@@ -0,0 +1,302 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import javax.servlet.http.*;
+
+/**
+ * The Compressor class provides gzip compression for HTTP responses.
+ * It is used by ClientRequest to compress dynamically generated
+ * responses and by StaticServlet to compress static files.  Compressor
+ * has the following features:
+ *   - It determines whether a browser accepts gzip-encoded responses,
+ *     using the request's {@code Accept-Encoding} header.
+ *   - Deflater objects are expensive to create (each one allocates a
+ *     substantial amount of native memory), so Compressor keeps a pool
+ *     of them and reuses them across requests.
+ *   - It can create compressed copies of all of the files in a directory
+ *     tree ahead of time (each file "x" gets a compressed copy "x.gz"),
+ *     so static files don't need to be compressed while serving requests.
+ *     This mechanism is available as a main program, which is invoked by
+ *     the "precompress" target in build.xml.
+ */
+
+public class Compressor {
+    // Responses containing fewer than this many bytes are not compressed:
+    // the savings are too small to be worth the CPU time.
+    public static int minimumLength = 1024;
+
+    // Maximum number of idle Deflaters retained in the pool.
+    public static int maxPooledDeflaters = 16;
+
+    // Idle Deflaters available for reuse.
+    protected static ArrayList<Deflater> deflaters = new ArrayList<Deflater>();
+
+    // Header for gzip data: magic number, "deflate" compression method,
+    // no flags, no modification time, no extra flags, unknown OS.
+    protected static final byte[] GZIP_HEADER = {(byte) 0x1f, (byte) 0x8b,
+            8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // Files with the following extensions are compressed by
+    // compressDirectory; other files (such as images) are typically
+    // already compressed.
+    protected static final String[] COMPRESSIBLE_EXTENSIONS = {".css",
+            ".htm", ".html", ".js", ".json", ".svg", ".txt", ".xml"};
+
+    /**
+     * Determine whether a browser accepts gzip-encoded responses.
+     * @param request              Incoming HTTP request.
+     * @return                     True means the request's
+     *                             {@code Accept-Encoding} header allows
+     *                             gzip encoding; false means the response
+     *                             must not be compressed.
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null) {
+            return false;
+        }
+        boolean result = false;
+        for (String element : header.split(",")) {
+            // Each element has the form "coding" or "coding;q=value".
+            String[] fields = element.split(";");
+            String coding = fields[0].trim().toLowerCase();
+            boolean acceptable = true;
+            for (int i = 1; i < fields.length; i++) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        acceptable = Double.parseDouble(
+                                param.substring(2).trim()) > 0.0;
+                    }
+                    catch (NumberFormatException e) {
+                        acceptable = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                // An explicit entry for gzip overrides "*".
+                return acceptable;
+            }
+            if (coding.equals("*")) {
+                result = acceptable;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a compressed copy of each of the compressible files in a
+     * directory tree.  The copy of file "x" is named "x.gz".  Copies that
+     * are already up to date are not regenerated, and no copy is created
+     * for a file if compression doesn't make it smaller.
+     * @param directory            Root of the directory tree.
+     * @return                     The number of compressed files created.
+     * @throws IOException         An error occurred reading or writing
+     *                             one of the files.
+     */
+    public static int compressDirectory(File directory) throws IOException {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += compressDirectory(file);
+                continue;
+            }
+            if (!hasCompressibleExtension(file.getName())) {
+                continue;
+            }
+            File compressed = new File(file.getPath() + ".gz");
+            if (compressed.exists() &&
+                    (compressed.lastModified() >= file.lastModified())) {
+                continue;
+            }
+            byte[] data = readFile(file);
+            byte[] gzipped = gzip(data, data.length);
+            if (gzipped.length >= data.length) {
+                compressed.delete();
+                continue;
+            }
+            OutputStream out = new FileOutputStream(compressed);
+            try {
+                out.write(gzipped);
+            }
+            finally {
+                out.close();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Compress a block of data in gzip format.
+     * @param data                 Data to compress.
+     * @param length               Number of bytes of {@code data} to
+     *                             compress (starting at index 0).
+     * @return                     The compressed data, including gzip
+     *                             header and trailer.
+     */
+    public static byte[] gzip(byte[] data, int length) {
+        Deflater deflater = getDeflater();
+        try {
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(length/4 + 64);
+            out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+
+            // The trailer contains the CRC and length of the uncompressed
+            // data, both in little-endian order.
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeInt(out, (int) crc.getValue());
+            writeInt(out, length);
+            return out.toByteArray();
+        }
+        finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * Determine whether a response is worth compressing.
+     * @param mimeType             MIME type for the response.
+     * @return                     True means the type is a text format such
+     *                             as HTML, CSS, or Javascript, which
+     *                             typically compresses well; false means
+     *                             the data is probably already compressed
+     *                             (e.g., an image).
+     */
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String lower = mimeType.toLowerCase();
+        return lower.startsWith("text/") || lower.contains("javascript")
+                || lower.contains("json") || lower.contains("xml");
+    }
+
+    /**
+     * This method is invoked by the "precompress" target in build.xml.
+     * It creates compressed copies of the files in one or more directory
+     * trees (see {@code compressDirectory}).
+     * @param args                 Each argument is the name of a directory
+     *                             to compress.
+     * @throws IOException         An error occurred reading or writing
+     *                             one of the files.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String name : args) {
+            int count = compressDirectory(new File(name));
+            System.out.println("Compressed " + count + " files in " + name);
+        }
+    }
+
+    /**
+     * Returns a Deflater from the pool, or creates a new one if the pool
+     * is empty.
+     * @return                     A Deflater ready to compress new data in
+     *                             raw "deflate" format.  The caller should
+     *                             return it with {@code releaseDeflater}
+     *                             when finished.
+     */
+    protected static synchronized Deflater getDeflater() {
+        int size = deflaters.size();
+        if (size > 0) {
+            return deflaters.remove(size - 1);
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Determine whether a file should be compressed by
+     * {@code compressDirectory}, based on its name.
+     * @param fileName             Name of the file.
+     * @return                     True means the file's extension indicates
+     *                             a text format that compresses well.
+     */
+    protected static boolean hasCompressibleExtension(String fileName) {
+        String lower = fileName.toLowerCase();
+        for (String extension : COMPRESSIBLE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the entire contents of a file.
+     * @param file                 File to read.
+     * @return                     The contents of {@code file}.
+     * @throws IOException         An error occurred reading the file.
+     */
+    protected static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) file.length());
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return a Deflater to the pool so that it can be reused.  If the
+     * pool is full the Deflater's native memory is released instead.
+     * @param deflater             Deflater previously returned by
+     *                             {@code getDeflater}.
+     */
+    protected static synchronized void releaseDeflater(Deflater deflater) {
+        if (deflaters.size() < maxPooledDeflaters) {
+            deflater.reset();
+            deflaters.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Append a 32-bit integer to a stream in little-endian order.
+     * @param out                  Stream to which the integer is written.
+     * @param value                Value to write.
+     */
+    protected static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
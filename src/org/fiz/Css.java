@@ -14,26 +14,168 @@
  */
 
 package org.fiz;
-import java.util.HashMap;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The Css class manages dynamically generated stylesheet files.  When a
  * .css file is requested, this class generates it by expanding a template.
  * It also caches the results to speed up future accesses.  The class is
  * designed for concurrent execution by multiple threads handling requests
- * in parallel while sharing a collection of stylesheet files.
+ * in parallel while sharing a collection of stylesheet files: cache hits
+ * don't lock, and each stylesheet is generated only once even if several
+ * threads request it at the same time.
+ *
+ * For each cached stylesheet, this class remembers the template file it
+ * came from and the values from the "css" configuration dataset that it
+ * used; {@code refresh} uses this information to discard only those
+ * stylesheets that are out of date.
+ *
+ * This class also combines stylesheets into bundles, which are served
+ * to browsers as external stylesheets (see Html.print and StaticServlet).
+ * The URL for a bundle contains a hash of its contents, so browsers can
+ * cache bundles indefinitely.
  */
 
 public class Css {
+    /**
+     * A Bundle holds the combined contents of one or more stylesheets,
+     * in the form in which they are sent to browsers.
+     */
+    public static class Bundle {
+        protected String hash;         // Hexadecimal MD5 hash of content.
+        protected byte[] content;      // Contents of the bundle in UTF-8.
+        protected byte[] compressed;   // Content in gzip format, or null
+                                       // if compression doesn't make the
+                                       // bundle smaller.
+
+        /**
+         * Construct a Bundle.  Normally Bundles are created by
+         * {@code Css.getBundle}, so that they are shared.
+         * @param css              Contents of the bundle.
+         */
+        public Bundle(String css) {
+            try {
+                content = css.getBytes("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new InternalError(
+                        "Css.Bundle couldn't convert to UTF-8");
+            }
+            hash = Util.md5Hex(content);
+            compressed = Compressor.gzip(content, content.length);
+            if (compressed.length >= content.length) {
+                compressed = null;
+            }
+        }
+
+        /**
+         * Returns the contents of the bundle in gzip format.
+         * @return                 The compressed contents, or null if
+         *                         compression doesn't make the bundle
+         *                         smaller.
+         */
+        public byte[] getCompressed() {
+            return compressed;
+        }
+
+        /**
+         * Returns the contents of the bundle.
+         * @return                 The bundle's CSS, in UTF-8.
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Returns the hash of the bundle's contents, which identifies
+         * the bundle.
+         * @return                 Hexadecimal MD5 hash of the bundle.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns the path for the bundle, relative to the context root
+         * for the application.
+         * @return                 The path name under which the bundle
+         *                         should be requested, such as
+         *                         {@code static/fiz-css/hash.css}.
+         */
+        public String getPath() {
+            return "static/" + PATH_PREFIX + hash + ".css";
+        }
+    }
+
+    // Bundle URLs have the form {@code static/PATH_PREFIX/hash.css}.
+    public static final String PATH_PREFIX = "fiz-css/";
+
+    // Each Entry holds one expanded stylesheet, along with the information
+    // needed to tell whether it is out of date.
+    protected static class Entry {
+        // Expanded contents of the stylesheet.
+        protected String css;
+
+        // The template file from which the stylesheet was generated, and
+        // its last-modified time at the time it was read.
+        protected File file;
+        protected long lastModified;
+
+        // Files that were checked before {@code file} in the search path
+        // but didn't exist; if any of them appears, the stylesheet must
+        // be regenerated.
+        protected ArrayList<File> missingFiles = new ArrayList<File>();
+
+        // Names referenced by the template, and the values they had in the
+        // "css" configuration dataset (null means the value didn't exist).
+        protected HashMap<String,Object> configValues =
+                new HashMap<String,Object>();
+    }
+
+    // The following class wraps the "css" configuration dataset during
+    // template expansion, so that we can record which values were used.
+    protected static class RecordingDataset extends Dataset {
+        protected Dataset config;
+        protected HashMap<String,Object> values;
+
+        public RecordingDataset(Dataset config,
+                HashMap<String,Object> values) {
+            this.config = config;
+            this.values = values;
+        }
+
+        @Override
+        public Object check(String keyOrPath) {
+            Object result = config.check(keyOrPath);
+            values.put(keyOrPath, result);
+            found = (result != null);
+            return result;
+        }
+    }
+
     // The following hash table maps from the string name of a .css file
-    // to a string containing the dynamically generated contents of the file.
-    protected static HashMap<String,String> cache
-            = new HashMap<String,String>();
+    // to a task that generates the contents of the file (the task has
+    // completed unless another thread is generating the stylesheet right
+    // now).
+    protected static ConcurrentHashMap<String,FutureTask<Entry>> cache
+            = new ConcurrentHashMap<String,FutureTask<Entry>>();
+
+    // The following hash table maps from a comma-separated list of
+    // stylesheet names to the bundle containing those stylesheets.
+    protected static ConcurrentHashMap<String,Bundle> bundles =
+            new ConcurrentHashMap<String,Bundle>();
+
+    // The following hash table maps from the hash for a bundle to the
+    // bundle.
+    protected static ConcurrentHashMap<String,Bundle> hashes =
+            new ConcurrentHashMap<String,Bundle>();
 
     // The array below gives the names of zero or more directories in which
     // to search for stylesheet templates.  See the init documentation
     // for more information.
-    protected static String[] path = new String[] {"."};
+    protected static volatile String[] path = new String[] {"."};
 
     /**
      * Reinitializes the stylesheet cache: deletes any information in the
@@ -44,8 +186,8 @@ public class Css {
      *                             in order, using the first template found.
      */
     public static synchronized void init(String... path) {
-        cache.clear();
         Css.path = path.clone();
+        clearCache();
     }
 
     /**
@@ -53,8 +195,59 @@ public class Css {
      * disk the next time is needed.  Typically invoked during debugging
      * sessions to flush caches on every request.
      */
-    public static synchronized void clearCache() {
+    public static void clearCache() {
         cache.clear();
+        bundles.clear();
+        hashes.clear();
+    }
+
+    /**
+     * Returns the bundle with a given hash, if it exists in the cache.
+     * @param hash                 Hash of the bundle's contents, as returned
+     *                             by {@code Bundle.getHash}.
+     * @return                     The bundle whose hash is {@code hash}, or
+     *                             null if there is no such bundle in the
+     *                             cache.
+     */
+    public static Bundle getBundle(String hash) {
+        return hashes.get(hash);
+    }
+
+    /**
+     * Returns a bundle containing a given collection of stylesheets,
+     * creating it if it doesn't already exist.
+     * @param names                Names of the stylesheets to include in
+     *                             the bundle, in order (each name is passed
+     *                             to {@code getStylesheet}).
+     * @return                     A Bundle containing all of the
+     *                             stylesheets, separated by blank lines.
+     */
+    public static Bundle getBundle(List<String> names) {
+        String key = StringUtil.join(names.toArray(new String[names.size()]),
+                ",");
+        Bundle bundle = bundles.get(key);
+        if (bundle != null) {
+            return bundle;
+        }
+
+        // Not cached.  If several threads get here at once they will
+        // generate identical bundles, so it doesn't matter which one ends
+        // up in the cache.
+        StringBuilder css = new StringBuilder();
+        for (String name : names) {
+            StringUtil.addBlankLine(css);
+            css.append(getStylesheet(name));
+        }
+        if ((css.length() > 0) && (css.charAt(css.length() - 1) != '\n')) {
+            css.append('\n');
+        }
+        bundle = new Bundle(css.toString());
+        Bundle existing = bundles.putIfAbsent(key, bundle);
+        if (existing != null) {
+            return existing;
+        }
+        hashes.put(bundle.hash, bundle);
+        return bundle;
     }
 
     /**
@@ -77,20 +270,97 @@ public class Css {
      * @return                     The expanded stylesheet corresponding to
      *                             <code>name</code>.
      */
-    public static synchronized String getStylesheet(String name) {
-        // See if the stylesheet is already in our cache.
-        String result = cache.get(name);
-        if (result != null) {
-            return result;
+    public static String getStylesheet(final String name) {
+        // See if the stylesheet is already in our cache (or being
+        // generated by another thread).  If not, make a task to generate
+        // it; the first thread to install its task runs it and the others
+        // wait for it to finish.
+        FutureTask<Entry> task = cache.get(name);
+        if (task == null) {
+            FutureTask<Entry> newTask = new FutureTask<Entry>(
+                    new Callable<Entry>() {
+                public Entry call() {
+                    return generate(name);
+                }
+            });
+            task = cache.putIfAbsent(name, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return task.get().css;
+        }
+        catch (ExecutionException e) {
+            // Don't cache the failure: the next request will try again.
+            cache.remove(name, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new InternalError("Css.getStylesheet couldn't generate " +
+                    "stylesheet \"" + name + "\": " + cause.getMessage());
         }
+        catch (InterruptedException e) {
+            throw new InternalError("Css.getStylesheet interrupted while " +
+                    "waiting for stylesheet \"" + name + "\"");
+        }
+    }
 
-        // Not cached; find the template and expand it.
-        StringBuilder template = Util.readFileFromPath(name, "CSS", path);
-        StringBuilder expandedCss = new StringBuilder(template.length());
-        Template.appendRaw(expandedCss, template, Config.getDataset("css"));
-        String css = expandedCss.toString();
-        cache.put(name, css);
-        return css;
+    /**
+     * Checks each cached stylesheet to see whether it is out of date,
+     * either because its template file has changed (or a template
+     * earlier in the search path has appeared) or because a value that
+     * it used from the "css" configuration dataset has changed.  Out of
+     * date stylesheets are discarded, along with any bundles containing
+     * them; other stylesheets are retained.  This method is typically
+     * invoked during debugging sessions, after {@code Config.clearCache},
+     * to pick up changes on every request.
+     */
+    public static void refresh() {
+        Dataset config = null;
+        ArrayList<String> stale = new ArrayList<String>();
+        for (Map.Entry<String,FutureTask<Entry>> mapEntry :
+                cache.entrySet()) {
+            FutureTask<Entry> task = mapEntry.getValue();
+            if (!task.isDone()) {
+                // Still being generated; it will be up to date.
+                continue;
+            }
+            Entry entry;
+            try {
+                entry = task.get();
+            }
+            catch (Exception e) {
+                // Failed generation; getStylesheet will remove it.
+                continue;
+            }
+            if ((config == null) && !entry.configValues.isEmpty()) {
+                config = Config.getDataset("css");
+            }
+            if (isStale(entry, config)) {
+                cache.remove(mapEntry.getKey(), task);
+                stale.add(mapEntry.getKey());
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        // Discard bundles containing out of date stylesheets.
+        for (Map.Entry<String,Bundle> mapEntry : bundles.entrySet()) {
+            for (String name : StringUtil.split(mapEntry.getKey(), ',')) {
+                if (stale.contains(name)) {
+                    bundles.remove(mapEntry.getKey());
+                    hashes.remove(mapEntry.getValue().hash);
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -101,4 +371,75 @@ public class Css {
     public static synchronized String[] getSearchPath() {
         return path.clone();
     }
+
+    /**
+     * Finds the template for a stylesheet and expands it, recording the
+     * information needed to detect later when the result is out of date.
+     * @param name                 Name of the stylesheet (see
+     *                             {@code getStylesheet}).
+     * @return                     An Entry describing the stylesheet.
+     * @throws FileNotFoundError   None of the directories in the search
+     *                             path contained a template for
+     *                             {@code name}.
+     */
+    protected static Entry generate(String name) {
+        Entry entry = new Entry();
+        String[] searchPath = path;
+        StringBuilder template = null;
+        for (String directory : searchPath) {
+            File file = new File(directory + "/" + name);
+            long lastModified = file.lastModified();
+            try {
+                template = Util.readFile(file.getPath());
+            }
+            catch (FileNotFoundException e) {
+                // No template in this directory; go on to the next.
+                entry.missingFiles.add(file);
+                continue;
+            }
+            entry.file = file;
+            entry.lastModified = lastModified;
+            break;
+        }
+        if (template == null) {
+            throw FileNotFoundError.newPathInstance(name, "CSS", searchPath);
+        }
+        StringBuilder expandedCss = new StringBuilder(template.length());
+        Template.appendRaw(expandedCss, template, new RecordingDataset(
+                Config.getDataset("css"), entry.configValues));
+        entry.css = expandedCss.toString();
+        return entry;
+    }
+
+    /**
+     * Determines whether a cached stylesheet is out of date.
+     * @param entry                Information about the stylesheet.
+     * @param config               The current "css" configuration
+     *                             dataset (may be null if
+     *                             {@code entry} didn't use any
+     *                             configuration values).
+     * @return                     True means the stylesheet must be
+     *                             regenerated.
+     */
+    protected static boolean isStale(Entry entry, Dataset config) {
+        if (entry.file.lastModified() != entry.lastModified) {
+            return true;
+        }
+        for (File file : entry.missingFiles) {
+            if (file.exists()) {
+                return true;
+            }
+        }
+        for (Map.Entry<String,Object> value : entry.configValues.entrySet()) {
+            // Compare string forms, since nested datasets don't
+            // implement equals.
+            Object current = config.check(value.getKey());
+            Object old = value.getValue();
+            if ((current == null) ? (old != null) : ((old == null)
+                    || !current.toString().equals(old.toString()))) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
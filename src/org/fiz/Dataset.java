@@ -239,6 +239,13 @@ public class Dataset implements Cloneable, Serializable {
     // been called.
     protected Dataset[] errorDatasets = null;
 
+    // Incremented whenever a key is added to or removed from the top level
+    // of this dataset (changes to the values of existing keys don't
+    // count).  Indexed CompoundDatasets record this value for each of
+    // their components when they build their index, and compare it later
+    // to find out whether the index is out of date.
+    protected transient int keySetChanges = 0;
+
     /**
      * Construct an empty dataset.
      */
@@ -408,6 +415,9 @@ public class Dataset implements Cloneable, Serializable {
         Object old = map.get(key);
         Object appended = appendValue(old, value);
         map.put(key, appended);
+        if (old == null) {
+            keySetChanges++;
+        }
     }
 
     /**
@@ -597,6 +607,9 @@ public class Dataset implements Cloneable, Serializable {
      */
     public void clear() {
         throwIfError();
+        if (!map.isEmpty()) {
+            keySetChanges++;
+        }
         map.clear();
     }
 
@@ -692,7 +705,9 @@ public class Dataset implements Cloneable, Serializable {
         throwIfError();
         Object old = map.remove(keyOrPath);
 
-        if (old == null) {
+        if (old != null) {
+            keySetChanges++;
+        } else {
             ParentInfo info = lookupParent(keyOrPath, false);
             if (info != null && info.parent != this) {
                 info.parent.delete(info.lastName);
@@ -1102,7 +1117,9 @@ public class Dataset implements Cloneable, Serializable {
      */
     public void set(String key, Object value) {
         throwIfError();
-        map.put(key, value);
+        if (map.put(key, value) == null) {
+            keySetChanges++;
+        }
     }
 
     /**
@@ -117,6 +117,10 @@ public class Dispatcher extends HttpServlet {
     // that cannot be mapped to an Interactor method.
     protected Timer unknownURLTimer = Timer.getNamedTimer("unknown URL");
 
+    // The following timer records the total time to process batches of
+    // Ajax requests (the individual requests are also timed separately).
+    protected Timer batchTimer = Timer.getNamedTimer("Ajax batch");
+
     // Overhead time (in dispatcher, before calling interactor):
     protected Timer dispatcherTimer = Timer.getNamedTimer("dispatcher");
 
@@ -182,6 +186,55 @@ public class Dispatcher extends HttpServlet {
         initMainConfigDataset(contextRoot);
         String debug = Config.getDataset("main").checkString("debug");
         clearCaches = (debug != null) && (debug.equals("1"));
+        String bundle = Config.getDataset("main").checkString(
+                "bundleJavascript");
+        Html.bundleJavascript = (bundle != null) && (bundle.equals("1"));
+        String externalCss = Config.getDataset("main").checkString(
+                "externalCss");
+        Html.externalCss = (externalCss != null) && (externalCss.equals("1"));
+        String ajaxBatching = Config.getDataset("main").checkString(
+                "ajaxBatching");
+        Ajax.batching = (ajaxBatching != null) && (ajaxBatching.equals("1"));
+        String maxWaiters = Config.getDataset("main").checkString(
+                "pushMaxWaiters");
+        if (maxWaiters != null) {
+            try {
+                PushChannel.maxWaiters = Integer.parseInt(maxWaiters);
+            }
+            catch (NumberFormatException e) {
+                throw new InternalError(String.format("pushMaxWaiters " +
+                        "element in main configuration dataset has " +
+                        "bad value \"%s\": must be an integer",
+                        maxWaiters));
+            }
+        }
+        String batchThreads = Config.getDataset("main").checkString(
+                "ajaxBatchThreads");
+        if (batchThreads != null) {
+            try {
+                Ajax.setBatchThreads(Integer.parseInt(batchThreads));
+            }
+            catch (NumberFormatException e) {
+                throw new InternalError(String.format("ajaxBatchThreads " +
+                        "element in main configuration dataset has " +
+                        "bad value \"%s\": must be an integer",
+                        batchThreads));
+            }
+        }
+        String prefetchThreads = Config.getDataset("main").checkString(
+                "prefetchThreads");
+        if (prefetchThreads != null) {
+            try {
+                LazyDataset.setPrefetchThreads(Integer.parseInt(
+                        prefetchThreads));
+            }
+            catch (NumberFormatException e) {
+                throw new InternalError(String.format("prefetchThreads " +
+                        "element in main configuration dataset has " +
+                        "bad value \"%s\": must be an integer",
+                        prefetchThreads));
+            }
+        }
 
         logger.info("main configuration dataset:\n    " +
                 Config.getDataset("main").toString().trim().replace(
@@ -214,10 +267,14 @@ public class Dispatcher extends HttpServlet {
      */
     public static void clearCaches() {
         Config.clearCache();
-        Css.clearCache();
+        Css.refresh();
+        FactoryCache.clearAll();
+        FragmentCache.getInstance().clear();
         Html.clearJsDependencyCache();
+        JsBundle.clearCache();
         TabSection.clearCache();
         Util.clearCache();
+        YamlDataset.clearCache();
     }
 
     /**
@@ -237,6 +294,8 @@ public class Dispatcher extends HttpServlet {
             interactor.destroy();
         }
         interactorMap.clear();
+        Ajax.setBatchThreads(0);
+        LazyDataset.setPrefetchThreads(0);
 
         // Clean up all of the other Fiz modules.
     }
@@ -259,6 +318,7 @@ public class Dispatcher extends HttpServlet {
         String methodName = null;
         ClientRequest cr = null;
         ClientRequest.Type requestType = ClientRequest.Type.NORMAL;
+        boolean batch = false;
         dispatchUrl: try {
             if (logger.isTraceEnabled()) {
                 logger.trace("incoming " + request.getMethod() +
@@ -266,8 +326,9 @@ public class Dispatcher extends HttpServlet {
             }
 
             // See if we are in a debugging mode where we should flush caches
-            // before every request.
-            if (clearCaches) {
+            // before every request (for batched Ajax requests this was
+            // done when the batch arrived).
+            if (clearCaches && !(request instanceof Ajax.BatchRequest)) {
                 clearCaches();
                 initMainConfigDataset(getServletContext().getRealPath(""));
             }
@@ -275,6 +336,15 @@ public class Dispatcher extends HttpServlet {
             // Use UTF-8 as the default encoding for all responses.
             response.setCharacterEncoding("UTF-8");
 
+            // A batch of Ajax requests: each request in the batch will
+            // come back through this method.
+            if (Ajax.isBatch(request)) {
+                requestType = ClientRequest.Type.AJAX;
+                batch = true;
+                Ajax.serviceBatch(this, request, response);
+                break dispatchUrl;
+            }
+
             // The "pathInfo" portion of the URL (the part that belongs to
             // us) must have the form /class/method/... Peel off the
             // "class/method" part and lookup the method.
@@ -431,6 +501,8 @@ public class Dispatcher extends HttpServlet {
                 timer = Timer.getNamedTimer(methodName);
                 method.timer = timer;
             }
+        } else if (batch) {
+            timer = batchTimer;
         } else {
             timer = unknownURLTimer;
         }
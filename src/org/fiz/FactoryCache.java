@@ -0,0 +1,305 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.util.*;
+
+/**
+ * A FactoryCache remembers the results of calls to a data factory method
+ * (a static method invoked with {@code Util.invokeStaticMethod}, such as
+ * the {@code dataFactory} for a TreeSection), so that repeated calls with
+ * the same arguments can be satisfied without invoking the method again.
+ * Each FactoryCache has the following properties:
+ *   - Results are discarded once they are older than a given lifetime.
+ *   - The cache holds a limited number of results; when it is full, the
+ *     least recently used result is discarded.
+ *   - If several threads request the same result concurrently, the
+ *     factory method is invoked only once and all of the threads share
+ *     the result.
+ *   - Each hit and miss is recorded in a named Timer (the names are
+ *     "FactoryCache hit: <factory>" and "FactoryCache miss: <factory>"),
+ *     so hit counts and the time saved can be viewed with
+ *     {@code Timer.getStatistics}.
+ * There is one shared FactoryCache for each distinct combination of
+ * factory method, lifetime, and size limit, so sections configured
+ * differently don't interfere with each other's caches.  The caches are
+ * shared by all requests; results that are Datasets are cloned before
+ * being returned, so callers may modify them freely.  Other results are
+ * shared by all callers, so they must not be modified.
+ */
+
+public class FactoryCache {
+    // One object of the following class exists for each result in
+    // the cache, including results that are still being computed.
+    protected static class Entry {
+        public Object value;           // Value returned by the factory.
+        public long expires;           // Time (in ms, as returned by
+                                       // System.currentTimeMillis) after
+                                       // which value is no longer valid.
+        public boolean ready = false;  // True means value has been
+                                       // computed; false means the factory
+                                       // method is still running.
+        public RuntimeException exception = null;
+                                       // If the factory method threw an
+                                       // exception, it is saved here so it
+                                       // can be rethrown in any threads
+                                       // waiting for the result.
+        public Error error = null;
+                                       // Same as exception, for Errors.
+    }
+
+    // The following hash table maps from a key describing a cache's
+    // configuration (see configKey) to the cache.
+    protected static HashMap<String,FactoryCache> caches =
+            new HashMap<String,FactoryCache>();
+
+    // Name of the factory method, in the form "class.method".
+    protected String factory;
+
+    // Number of milliseconds for which a result remains valid.
+    protected long lifetime;
+
+    // Maximum number of results retained in the cache.
+    protected int maxEntries;
+
+    // Keys are lists containing the arguments passed to the factory
+    // method; values are the corresponding results.  The map is kept in
+    // least-recently-used order.
+    protected LinkedHashMap<List<Object>,Entry> entries =
+            new LinkedHashMap<List<Object>,Entry>(16, 0.75f, true);
+
+    // Timers used to record cache hits and misses.
+    protected Timer hitTimer, missTimer;
+
+    /**
+     * Construct a FactoryCache.  Normally FactoryCaches are created with
+     * {@code getInstance}, so that they are shared.
+     * @param factory              Name of a static method, in the form
+     *                             {@code class.method}.
+     * @param lifetime             Results are valid for this many
+     *                             milliseconds.
+     * @param maxEntries           Maximum number of results to retain.
+     */
+    public FactoryCache(String factory, long lifetime, int maxEntries) {
+        this.factory = factory;
+        this.lifetime = lifetime;
+        this.maxEntries = maxEntries;
+        hitTimer = Timer.getNamedTimer("FactoryCache hit: " + factory);
+        missTimer = Timer.getNamedTimer("FactoryCache miss: " + factory);
+    }
+
+    /**
+     * Returns the shared cache for a given factory method and
+     * configuration, creating it if it doesn't already exist.  Callers
+     * with different lifetimes or size limits get different caches.
+     * @param factory              Name of a static method, in the form
+     *                             {@code class.method}.
+     * @param lifetime             Results are valid for this many
+     *                             milliseconds.
+     * @param maxEntries           Maximum number of results to retain.
+     * @return                     The FactoryCache for {@code factory}
+     *                             with the given configuration.
+     */
+    public static synchronized FactoryCache getInstance(String factory,
+            long lifetime, int maxEntries) {
+        String key = configKey(factory, lifetime, maxEntries);
+        FactoryCache cache = caches.get(key);
+        if (cache == null) {
+            cache = new FactoryCache(factory, lifetime, maxEntries);
+            caches.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Discards the contents of all of the shared caches.  Typically
+     * invoked during debugging sessions to flush caches on every request.
+     */
+    public static synchronized void clearAll() {
+        for (FactoryCache cache : caches.values()) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Invoke a factory method, using a shared cache if caching is
+     * enabled.  This is the method normally used by sections that have
+     * {@code cacheTtl} and {@code cacheSize} properties.
+     * @param factory              Name of a static method, in the form
+     *                             {@code class.method}.
+     * @param lifetime             Results are valid for this many
+     *                             milliseconds; 0 or less means caching
+     *                             is disabled, in which case the method
+     *                             is always invoked.
+     * @param maxEntries           Maximum number of results to retain
+     *                             in the cache for {@code factory}.
+     * @param args                 Arguments for the method.
+     * @return                     The result returned by the method (or a
+     *                             cached copy of it).
+     */
+    public static Object invoke(String factory, long lifetime,
+            int maxEntries, Object... args) {
+        if (lifetime <= 0) {
+            return Util.invokeStaticMethod(factory, args);
+        }
+        return getInstance(factory, lifetime, maxEntries).get(args);
+    }
+
+    /**
+     * Discard all of the results in the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the result of invoking the factory method with particular
+     * arguments.  If a valid result is already in the cache it is returned
+     * immediately; if another thread is already computing the result,
+     * this method waits for it to finish; otherwise the factory method
+     * is invoked.
+     * @param args                 Arguments for the factory method.
+     * @return                     The result of the factory method.  If
+     *                             the result is a Dataset, the caller gets
+     *                             its own copy; otherwise the caller must
+     *                             not modify the result.
+     */
+    public Object get(Object... args) {
+        long start = System.nanoTime();
+        List<Object> key = Arrays.asList(args);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if ((entry != null) && (!entry.ready
+                    || (System.currentTimeMillis() < entry.expires))) {
+                // Either the result is already in the cache or another
+                // thread is computing it.
+                try {
+                    while (!entry.ready) {
+                        if (entry.exception != null) {
+                            throw entry.exception;
+                        }
+                        if (entry.error != null) {
+                            throw entry.error;
+                        }
+                        wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw new InternalError("FactoryCache interrupted " +
+                            "while waiting for \"" + factory + "\"");
+                }
+                recordInterval(hitTimer, start);
+                return copy(entry.value);
+            }
+
+            // Create a new entry; other threads that request the same
+            // result will wait for us to fill it in.
+            entry = new Entry();
+            entries.put(key, entry);
+            Iterator<Entry> it = entries.values().iterator();
+            while ((entries.size() > maxEntries) && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        // Invoke the factory without holding the lock, so that requests
+        // for other results can proceed.
+        Object value;
+        try {
+            value = Util.invokeStaticMethod(factory, args);
+        }
+        catch (RuntimeException e) {
+            failed(key, entry, e, null);
+            throw e;
+        }
+        catch (Error e) {
+            failed(key, entry, null, e);
+            throw e;
+        }
+        synchronized (this) {
+            entry.value = value;
+            entry.expires = System.currentTimeMillis() + lifetime;
+            entry.ready = true;
+            notifyAll();
+        }
+        recordInterval(missTimer, start);
+        return copy(value);
+    }
+
+    /**
+     * Generates the key under which a shared cache is stored in
+     * {@code caches}.
+     * @param factory              Name of the factory method.
+     * @param lifetime             Lifetime of results, in milliseconds.
+     * @param maxEntries           Maximum number of results to retain.
+     * @return                     A string that is the same for all
+     *                             callers with this configuration.
+     */
+    protected static String configKey(String factory, long lifetime,
+            int maxEntries) {
+        return factory + " " + lifetime + " " + maxEntries;
+    }
+
+    /**
+     * Returns a value from the cache in a form that can safely be given
+     * to a caller.
+     * @param value                Value stored in the cache.
+     * @return                     A deep copy of {@code value} if it is a
+     *                             Dataset, otherwise {@code value}.
+     */
+    protected static Object copy(Object value) {
+        if (value instanceof Dataset) {
+            return ((Dataset) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * This method is invoked when the factory method throws an exception:
+     * it removes the entry from the cache (so the next request will try
+     * again) and passes the exception on to any waiting threads.
+     * @param key                  Key for the entry.
+     * @param entry                Entry for which the factory failed.
+     * @param exception            Exception thrown by the factory, or null.
+     * @param error                Error thrown by the factory, or null.
+     */
+    protected synchronized void failed(List<Object> key, Entry entry,
+            RuntimeException exception, Error error) {
+        entry.exception = exception;
+        entry.error = error;
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Record an interval in a timer that may be shared with other
+     * threads.
+     * @param timer                Timer in which to record the interval.
+     * @param start                Start time for the interval (in ns,
+     *                             as returned by System.nanoTime).
+     */
+    protected static void recordInterval(Timer timer, long start) {
+        long stop = System.nanoTime();
+        synchronized (timer) {
+            timer.start(start);
+            timer.stop(stop);
+        }
+    }
+}
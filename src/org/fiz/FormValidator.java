@@ -15,6 +15,9 @@
 
 package org.fiz;
 
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 
 /**
@@ -58,8 +61,73 @@ import java.util.regex.Pattern;
  * Validator methods may be placed anywhere. They can be referenced in the
  * {@code type} property of the validator dataset by their fully qualified name,
  * such as "MyValidator.validateTrue".
+ *
+ * Form elements don't invoke validators by name on each post.  Instead,
+ * each validator dataset is compiled once (see {@code compile}) into a
+ * CompiledValidator: the built-in validators parse their configuration
+ * properties (bounds, lists, regular expressions) at that time, and
+ * custom validators have their methods looked up at that time.
  */
 public class FormValidator {
+    /**
+     * A CompiledValidator performs one validation using configuration
+     * properties that were processed when it was created.
+     */
+    public interface CompiledValidator {
+        /**
+         * Validates the value of a form element.
+         * @param id                    id of the input element to validate
+         * @param formData              Data from all relevant form elements
+         *                              needed to perform this validation
+         * @return                      Error message if validation fails,
+         *                              null otherwise
+         */
+        public String validate(String id, Dataset formData);
+    }
+
+    // Compiled forms of the patterns used by regex validators, indexed
+    // by pattern string.
+    protected static ConcurrentHashMap<String,Pattern> patterns =
+            new ConcurrentHashMap<String,Pattern>();
+
+    /**
+     * Creates a CompiledValidator for a validator dataset.
+     * @param properties                Configuration properties for the
+     *                                  validator, including {@code type}:
+     *                                  either the name of a built-in
+     *                                  validator such as {@code range},
+     *                                  or class.method identifying a
+     *                                  custom validation method.
+     * @return                          An object that will perform the
+     *                                  validation described by
+     *                                  {@code properties}.
+     */
+    public static CompiledValidator compile(Dataset properties) {
+        String type = properties.getString("type");
+        if (type.equals("duplicate")) {
+            return new DuplicateValidator(properties);
+        } else if (type.equals("in")) {
+            return new InValidator(properties);
+        } else if (type.equals("integer")) {
+            return new IntegerValidator(properties);
+        } else if (type.equals("length")) {
+            return new LengthValidator(properties);
+        } else if (type.equals("numeric")) {
+            return new NumericValidator(properties);
+        } else if (type.equals("range")) {
+            return new RangeValidator(properties);
+        } else if (type.equals("regex")) {
+            return new RegexValidator(properties);
+        } else if (type.equals("required")) {
+            return new RequiredValidator(properties);
+        } else if (type.indexOf('.') == -1) {
+            // Not a built-in validator: look for a method validateType
+            // in a class named FormValidator in the search packages.
+            return new MethodValidator("FormValidator.validate"
+                    + StringUtil.ucFirst(type), properties);
+        }
+        return new MethodValidator(type, properties);
+    }
 
     /**
      * Generates an error message when validation fails.
@@ -108,18 +176,7 @@ public class FormValidator {
      */
     public static String validateDuplicate(String id, Dataset properties,
             Dataset formData) {
-        String[] fields = StringUtil.split(properties.getString("otherFields"), ',');
-        String inputValue = formData.checkString(id);
-        if (inputValue == null) {
-            inputValue = "";
-        }
-        for (String fieldId : fields) {
-            if (!inputValue.equals(formData.checkString(fieldId))) {
-                return errorMessage("@id does not match @" + fieldId,
-                        properties, formData);
-            }
-        }
-        return null;
+        return new DuplicateValidator(properties).validate(id, formData);
     }
 
     /**
@@ -139,25 +196,7 @@ public class FormValidator {
      */
     public static String validateIn(String id, Dataset properties,
             Dataset formData) {
-        String[] validValues = StringUtil.split(properties.getString("valid"), ',');
-        for (String value : validValues) {
-            if (formData.getString(id).equals(value)) {
-                return null;
-            }
-        }
-
-        StringBuilder error = new StringBuilder("Field must match " +
-                "one of the following: ");
-        for (int i = 0; i < 5 && i < validValues.length; i++) {
-            if (i > 0) {
-                error.append(", ");
-            }
-            error.append(validValues[i]);
-        }
-        if (validValues.length > 5) {
-            error.append(", etc.");
-        }
-        return errorMessage(error.toString(), properties, formData);
+        return new InValidator(properties).validate(id, formData);
     }
 
     /**
@@ -172,12 +211,7 @@ public class FormValidator {
      */
     public static String validateInteger(String id, Dataset properties,
             Dataset formData) {
-        try {
-            Integer.parseInt(formData.getString(id));
-            return null;
-        } catch (NumberFormatException e) {
-            return errorMessage("Must be an integer", properties, formData);
-        }
+        return new IntegerValidator(properties).validate(id, formData);
     }
 
     /**
@@ -200,34 +234,7 @@ public class FormValidator {
      */
     public static String validateLength(String id, Dataset properties,
             Dataset formData) {
-        int length = formData.getString(id).length();
-
-        String minString = properties.checkString("min");
-        int min = (minString == null ? 0 : Integer.parseInt(minString));
-
-        String maxString = properties.checkString("max");
-        int max = (maxString == null ?
-                Integer.MAX_VALUE : Integer.parseInt(maxString));
-
-        if (minString == null && length > max) {
-            return errorMessage("Must be at most @max characters long",
-                    properties, formData);
-        } else if (maxString == null && length < min) {
-            return errorMessage("Must be at least @min characters long",
-                    properties, formData);
-        } else {
-            if (length < min || length > max) {
-                if(min == max) {
-                    return errorMessage("Must be exactly @min characters long",
-                            properties, formData);
-                } else {
-                    return errorMessage("Must be between @min and @max " +
-                            "characters long", properties, formData);
-                }
-            }
-        }
-
-        return null;
+        return new LengthValidator(properties).validate(id, formData);
     }
 
     /**
@@ -242,12 +249,7 @@ public class FormValidator {
      */
     public static String validateNumeric(String id, Dataset properties,
             Dataset formData) {
-        try {
-            Double.parseDouble(formData.getString(id));
-            return null;
-        } catch (NumberFormatException e) {
-            return errorMessage("Must be a number", properties, formData);
-        }
+        return new NumericValidator(properties).validate(id, formData);
     }
 
     /**
@@ -272,52 +274,7 @@ public class FormValidator {
      */
     public static String validateRange(String id, Dataset properties,
             Dataset formData) {
-        double value;
-        try {
-            value = Double.parseDouble(formData.getString(id));
-        } catch (NumberFormatException e) {
-            return errorMessage("Must be a number", properties, formData);
-        }
-
-        boolean validationFailed = false;
-
-        // Setup the parameters for the lower bound on the range check
-        boolean includeMin = !("false".equals(properties.checkString("includeMin")));
-        String minString = properties.checkString("min");
-        if (minString != null) {
-            double min = Double.parseDouble(minString);
-            if (value < min || (!includeMin && (value == min))) {
-                validationFailed = true;
-            }
-        }
-
-        // Setup the parameters for the upper bound on the range check
-        boolean includeMax = !("false".equals(properties.checkString("includeMax")));
-        String maxString = properties.checkString("max");
-        if (maxString != null) {
-            double max = Double.parseDouble(maxString);
-            if (value > max || (!includeMax && (value == max))) {
-                validationFailed = true;
-            }
-        }
-
-        if (!validationFailed) {
-            return null;
-        } else {
-            // Generate the error message that will be returned if
-            // validation fails
-            StringBuilder errorMessage = new StringBuilder("Must be ");
-            if (minString != null) {
-                errorMessage.append(includeMin ? ">= @min" : "> @min");
-            }
-            if (minString != null && maxString != null) {
-                errorMessage.append(" and ");
-            }
-            if (maxString != null) {
-                errorMessage.append(includeMax ? "<= @max" : "< @max");
-            }
-            return errorMessage(errorMessage.toString(), properties, formData);
-        }
+        return new RangeValidator(properties).validate(id, formData);
     }
 
     /**
@@ -338,12 +295,7 @@ public class FormValidator {
      */
     public static String validateRegex(String id, Dataset properties,
             Dataset formData) {
-        if (Pattern.matches(properties.getString("pattern"), formData.getString(id))) {
-            return null;
-        } else {
-            return errorMessage("Field format incorrect",
-                    properties, formData);
-        }
+        return new RegexValidator(properties).validate(id, formData);
     }
 
     /**
@@ -359,10 +311,287 @@ public class FormValidator {
      */
     public static String validateRequired(String id, Dataset properties,
             Dataset formData) {
-        String inputValue = formData.getString(id);
-        if (inputValue == null || inputValue.length() == 0) {
-            return errorMessage("Required value", properties, formData);
+        return new RequiredValidator(properties).validate(id, formData);
+    }
+
+    // The classes below implement the built-in validators.  Each
+    // constructor parses the configuration properties, so that validate
+    // has nothing to do but check the form data.
+
+    protected static class DuplicateValidator implements CompiledValidator {
+        protected Dataset properties;
+        protected String[] fields;
+
+        public DuplicateValidator(Dataset properties) {
+            this.properties = properties;
+            fields = StringUtil.split(properties.getString("otherFields"), ',');
+        }
+
+        public String validate(String id, Dataset formData) {
+            String inputValue = formData.checkString(id);
+            if (inputValue == null) {
+                inputValue = "";
+            }
+            for (String fieldId : fields) {
+                if (!inputValue.equals(formData.checkString(fieldId))) {
+                    return errorMessage("@id does not match @" + fieldId,
+                            properties, formData);
+                }
+            }
+            return null;
+        }
+    }
+
+    protected static class InValidator implements CompiledValidator {
+        protected Dataset properties;
+        protected HashSet<String> validValues;
+
+        // Default template for the error message.
+        protected String error;
+
+        public InValidator(Dataset properties) {
+            this.properties = properties;
+            String[] values = StringUtil.split(properties.getString("valid"),
+                    ',');
+            validValues = new HashSet<String>(Arrays.asList(values));
+            StringBuilder error = new StringBuilder("Field must match " +
+                    "one of the following: ");
+            for (int i = 0; i < 5 && i < values.length; i++) {
+                if (i > 0) {
+                    error.append(", ");
+                }
+                error.append(values[i]);
+            }
+            if (values.length > 5) {
+                error.append(", etc.");
+            }
+            this.error = error.toString();
+        }
+
+        public String validate(String id, Dataset formData) {
+            if (validValues.contains(formData.getString(id))) {
+                return null;
+            }
+            return errorMessage(error, properties, formData);
+        }
+    }
+
+    protected static class IntegerValidator implements CompiledValidator {
+        protected Dataset properties;
+
+        public IntegerValidator(Dataset properties) {
+            this.properties = properties;
+        }
+
+        public String validate(String id, Dataset formData) {
+            try {
+                Integer.parseInt(formData.getString(id));
+                return null;
+            } catch (NumberFormatException e) {
+                return errorMessage("Must be an integer", properties,
+                        formData);
+            }
+        }
+    }
+
+    protected static class LengthValidator implements CompiledValidator {
+        protected Dataset properties;
+
+        // Limits on the length; hasMin and hasMax indicate whether the
+        // corresponding properties were specified.
+        protected boolean hasMin, hasMax;
+        protected int min, max;
+
+        public LengthValidator(Dataset properties) {
+            this.properties = properties;
+            String minString = properties.checkString("min");
+            hasMin = (minString != null);
+            min = (minString == null ? 0 : Integer.parseInt(minString));
+            String maxString = properties.checkString("max");
+            hasMax = (maxString != null);
+            max = (maxString == null ?
+                    Integer.MAX_VALUE : Integer.parseInt(maxString));
+        }
+
+        public String validate(String id, Dataset formData) {
+            int length = formData.getString(id).length();
+            if (!hasMin && length > max) {
+                return errorMessage("Must be at most @max characters long",
+                        properties, formData);
+            } else if (!hasMax && length < min) {
+                return errorMessage("Must be at least @min characters long",
+                        properties, formData);
+            } else {
+                if (length < min || length > max) {
+                    if(min == max) {
+                        return errorMessage("Must be exactly @min " +
+                                "characters long", properties, formData);
+                    } else {
+                        return errorMessage("Must be between @min and @max " +
+                                "characters long", properties, formData);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    protected static class NumericValidator implements CompiledValidator {
+        protected Dataset properties;
+
+        public NumericValidator(Dataset properties) {
+            this.properties = properties;
+        }
+
+        public String validate(String id, Dataset formData) {
+            try {
+                Double.parseDouble(formData.getString(id));
+                return null;
+            } catch (NumberFormatException e) {
+                return errorMessage("Must be a number", properties, formData);
+            }
+        }
+    }
+
+    protected static class RangeValidator implements CompiledValidator {
+        protected Dataset properties;
+
+        // Bounds on the value; hasMin and hasMax indicate whether the
+        // corresponding properties were specified.
+        protected boolean hasMin, hasMax;
+        protected double min, max;
+        protected boolean includeMin, includeMax;
+
+        // Default template for the error message.
+        protected String error;
+
+        public RangeValidator(Dataset properties) {
+            this.properties = properties;
+            includeMin = !("false".equals(
+                    properties.checkString("includeMin")));
+            String minString = properties.checkString("min");
+            if (minString != null) {
+                hasMin = true;
+                min = Double.parseDouble(minString);
+            }
+            includeMax = !("false".equals(
+                    properties.checkString("includeMax")));
+            String maxString = properties.checkString("max");
+            if (maxString != null) {
+                hasMax = true;
+                max = Double.parseDouble(maxString);
+            }
+
+            StringBuilder error = new StringBuilder("Must be ");
+            if (hasMin) {
+                error.append(includeMin ? ">= @min" : "> @min");
+            }
+            if (hasMin && hasMax) {
+                error.append(" and ");
+            }
+            if (hasMax) {
+                error.append(includeMax ? "<= @max" : "< @max");
+            }
+            this.error = error.toString();
+        }
+
+        public String validate(String id, Dataset formData) {
+            double value;
+            try {
+                value = Double.parseDouble(formData.getString(id));
+            } catch (NumberFormatException e) {
+                return errorMessage("Must be a number", properties, formData);
+            }
+            if ((hasMin && (value < min || (!includeMin && (value == min))))
+                    || (hasMax && (value > max ||
+                    (!includeMax && (value == max))))) {
+                return errorMessage(error, properties, formData);
+            }
+            return null;
+        }
+    }
+
+    protected static class RegexValidator implements CompiledValidator {
+        protected Dataset properties;
+        protected Pattern pattern;
+
+        public RegexValidator(Dataset properties) {
+            this.properties = properties;
+            String source = properties.getString("pattern");
+            pattern = patterns.get(source);
+            if (pattern == null) {
+                pattern = Pattern.compile(source);
+                patterns.put(source, pattern);
+            }
+        }
+
+        public String validate(String id, Dataset formData) {
+            if (pattern.matcher(formData.getString(id)).matches()) {
+                return null;
+            }
+            return errorMessage("Field format incorrect", properties,
+                    formData);
+        }
+    }
+
+    protected static class RequiredValidator implements CompiledValidator {
+        protected Dataset properties;
+
+        public RequiredValidator(Dataset properties) {
+            this.properties = properties;
+        }
+
+        public String validate(String id, Dataset formData) {
+            String inputValue = formData.getString(id);
+            if (inputValue == null || inputValue.length() == 0) {
+                return errorMessage("Required value", properties, formData);
+            }
+            return null;
+        }
+    }
+
+    // The following class invokes a custom validation method; the method
+    // is looked up once, when the validator is compiled.
+    protected static class MethodValidator implements CompiledValidator {
+        protected Dataset properties;
+        protected String classAndMethod;
+        protected Method method = null;
+
+        public MethodValidator(String classAndMethod, Dataset properties) {
+            this.properties = properties;
+            this.classAndMethod = classAndMethod;
+            int i = classAndMethod.lastIndexOf('.');
+            Class<?> cl = Util.findClass(classAndMethod.substring(0, i));
+            if (cl != null) {
+                try {
+                    method = cl.getMethod(classAndMethod.substring(i+1),
+                            String.class, Dataset.class, Dataset.class);
+                }
+                catch (NoSuchMethodException e) {
+                    // Leave method null; the error is reported below.
+                }
+            }
+            if ((method == null) ||
+                    ((method.getModifiers() & Modifier.STATIC) == 0)) {
+                throw new InternalError("can't find static validation " +
+                        "method \"" + classAndMethod + "\"");
+            }
+        }
+
+        public String validate(String id, Dataset formData) {
+            try {
+                return (String) method.invoke(null, id, properties,
+                        formData);
+            }
+            catch (Exception e) {
+                Throwable cause = e.getCause();
+                if (cause == null) {
+                    cause = e;
+                }
+                throw new InternalError("exception in validation method \"" +
+                        classAndMethod + "\": " +
+                        StringUtil.lcFirst(cause.getMessage()));
+            }
         }
-        return null;
     }
 }
@@ -0,0 +1,253 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A FragmentCache remembers the output of Sections that render the same
+ * HTML for the same inputs on every request (such as navigation bars and
+ * page headers), so that later requests can reuse the output without
+ * rendering the Section again.  A Section opts in by returning a cache
+ * key from {@code Section.getCacheKey} (by default, this happens when the
+ * Section has a {@code cacheKey} property); {@code ClientRequest.showSections}
+ * then renders the Section through the shared FragmentCache.  The cache
+ * has the following properties:
+ *   - The cached output for a Section consists of its HTML, the CSS and
+ *     Javascript files it included, any CSS it added with
+ *     {@code Html.includeCss}, and any Javascript it asked the browser to
+ *     evaluate.  Other side effects, such as page properties, are not
+ *     reproduced, so Sections that have them must not be cached.  As a
+ *     safeguard, output is not cached if the Section used the request's
+ *     authentication token, page identifier, or page properties while
+ *     it was being rendered.
+ *   - Entries are discarded once they are older than the lifetime
+ *     given by the Section.
+ *   - The cache holds a limited number of entries; when it is full, the
+ *     least recently used entry is discarded.
+ *   - Output is only cached during normal HTML requests; during Ajax
+ *     requests and form posts Sections are always rendered.
+ *   - Hits and misses are counted; see {@code getStatistics}.
+ */
+
+public class FragmentCache {
+    /**
+     * A Fragment holds the output recorded while rendering a Section.
+     * While a Fragment is being recorded, the Html object for the request
+     * adds every CSS and Javascript file that is included to it (even
+     * files that were already included by earlier Sections).
+     */
+    public static class Fragment {
+        // HTML generated by the Section.
+        protected String html;
+
+        // Names of the CSS and Javascript files included by the Section,
+        // in order.
+        protected ArrayList<String> cssFiles = new ArrayList<String>();
+        protected ArrayList<String> jsFiles = new ArrayList<String>();
+
+        // Each element is a piece of CSS passed to Html.includeCss.
+        protected ArrayList<String> css = new ArrayList<String>();
+
+        // Javascript for the browser to evaluate.
+        protected String javascript;
+
+        // Time (in ms, as returned by System.currentTimeMillis) after
+        // which the fragment is no longer valid.
+        protected long expires;
+
+        // True means the output depends on state specific to the request
+        // or page (see ClientRequest.preventFragmentCaching), so the
+        // fragment must not be cached.
+        protected boolean uncacheable = false;
+
+        /**
+         * Adds the output in this Fragment to a request, as if the Section
+         * that generated it had been rendered.
+         * @param cr               Request to which the output should be
+         *                         added.
+         */
+        public void replay(ClientRequest cr) {
+            Html html = cr.getHtml();
+            for (String fileName : cssFiles) {
+                html.includeCssFile(fileName);
+            }
+            for (String fileName : jsFiles) {
+                html.includeJsFile(fileName);
+            }
+            for (String styleInfo : css) {
+                html.includeCss(styleInfo);
+            }
+            html.getBody().append(this.html);
+            if (javascript.length() > 0) {
+                html.evalJavascript(javascript);
+            }
+        }
+    }
+
+    // The cache shared by all requests (see getInstance).
+    protected static FragmentCache instance = new FragmentCache(1000);
+
+    // Maximum number of fragments retained in the cache.
+    protected int maxEntries;
+
+    // Keys are the values returned by Section.getCacheKey; values are the
+    // corresponding fragments.  The map is kept in least-recently-used
+    // order.  Must be locked while it is being accessed.
+    protected LinkedHashMap<String,Fragment> entries =
+            new LinkedHashMap<String,Fragment>(16, 0.75f, true);
+
+    // Statistics:
+    protected AtomicLong hits = new AtomicLong();
+    protected AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a FragmentCache.  Normally the shared cache returned by
+     * {@code getInstance} is used.
+     * @param maxEntries           Maximum number of fragments to retain.
+     */
+    public FragmentCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cache shared by all requests.
+     * @return                     The shared FragmentCache.
+     */
+    public static FragmentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Discard all of the fragments in the cache and reset its statistics.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Returns information about how well the cache is working.
+     * @return                     A Dataset with the following values:
+     *                             {@code hits}, {@code misses},
+     *                             {@code hitRatio} (fraction of renders
+     *                             satisfied from the cache), and
+     *                             {@code entries} (number of fragments
+     *                             currently in the cache).
+     */
+    public Dataset getStatistics() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new Dataset("hits", Long.toString(hitCount),
+                "misses", Long.toString(misses.get()),
+                "hitRatio", String.format("%.3f",
+                (lookups == 0) ? 0.0 : ((double) hitCount)/lookups),
+                "entries", Integer.toString(size));
+    }
+
+    /**
+     * Renders a Section, reusing its cached output if possible.  If the
+     * cache contains a valid fragment for {@code key}, the fragment's
+     * output is added to the request; otherwise the Section is rendered
+     * and its output is recorded and added to the cache.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param section              Section to render.
+     * @param key                  Identifies the output of
+     *                             {@code section}: any Section rendered with
+     *                             the same key must generate exactly the
+     *                             same output.
+     * @param lifetime             If the Section is rendered, its output
+     *                             remains valid for this many milliseconds.
+     */
+    public void render(ClientRequest cr, Section section, String key,
+            long lifetime) {
+        if (cr.getClientRequestType() != ClientRequest.Type.NORMAL) {
+            section.render(cr);
+            return;
+        }
+        Fragment fragment;
+        synchronized (entries) {
+            fragment = entries.get(key);
+        }
+        if ((fragment != null)
+                && (System.currentTimeMillis() < fragment.expires)) {
+            hits.incrementAndGet();
+            fragment.replay(cr);
+            return;
+        }
+        misses.incrementAndGet();
+
+        // Render the section, recording its output.  If another fragment
+        // is already being recorded (a cached Section contains another
+        // one) then everything recorded here also belongs to the outer
+        // fragment.
+        Html html = cr.getHtml();
+        StringBuilder body = html.getBody();
+        int bodyStart = body.length();
+        int jsStart = html.jsCode.length();
+        Fragment outer = html.recording;
+        fragment = new Fragment();
+        html.recording = fragment;
+        try {
+            section.render(cr);
+        } finally {
+            html.recording = outer;
+            if (outer != null) {
+                outer.cssFiles.addAll(fragment.cssFiles);
+                outer.jsFiles.addAll(fragment.jsFiles);
+                outer.css.addAll(fragment.css);
+                outer.uncacheable |= fragment.uncacheable;
+            }
+        }
+        if (fragment.uncacheable) {
+            return;
+        }
+        fragment.html = body.substring(bodyStart);
+        fragment.javascript = html.jsCode.substring(jsStart);
+        fragment.expires = System.currentTimeMillis() + lifetime;
+        synchronized (entries) {
+            entries.put(key, fragment);
+            Iterator<Fragment> it = entries.values().iterator();
+            while ((entries.size() > maxEntries) && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum number of fragments in the cache.
+     * @param maxEntries           Maximum number of fragments to retain;
+     *                             if the cache currently holds more than
+     *                             this, the least recently used ones are
+     *                             discarded the next time a fragment is
+     *                             added.
+     */
+    public void setMaxEntries(int maxEntries) {
+        synchronized (entries) {
+            this.maxEntries = maxEntries;
+        }
+    }
+}
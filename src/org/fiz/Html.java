@@ -43,11 +43,23 @@ public class Html {
     // have already been included in the HTML document.
     protected HashSet<String> cssFiles = new HashSet<String>();
 
+    // The following field holds the same names as cssFiles, in the order
+    // they were included.
+    protected ArrayList<String> cssFileList = new ArrayList<String>();
+
     // The following field accumulates CSS information as the document
     // is being generated (includes everything requested via
-    // includeCss and includeCssFile).
+    // includeCss and, unless externalCss is set, includeCssFile).
     protected StringBuilder css = new StringBuilder();
 
+    // If the following variable is true, main.css and the files requested
+    // with includeCssFile are combined into a bundle (see Css.getBundle)
+    // that the document references as an external stylesheet, so that
+    // browsers can cache it; otherwise all CSS is included inline in each
+    // document.  This variable mirrors the "externalCss" entry in the main
+    // configuration dataset.
+    public static boolean externalCss = false;
+
     // Directory containing Javascript files, ending in "/".
     protected String jsDirectory;
 
@@ -67,14 +79,30 @@ public class Html {
     // the names passed to the includeJsFile method.
     protected HashSet<String> jsFiles = new HashSet<String>();
 
+    // The following field holds the same names as jsFiles, in the order
+    // the files must be loaded (each file appears after all of the files
+    // it depends on).
+    protected ArrayList<String> jsFileList = new ArrayList<String>();
+
     // The following field accumulates HTML that will read all of the files
     // in jsFiles.
     protected StringBuilder jsFileHtml = new StringBuilder();
 
+    // If the following variable is true, the Javascript files for each
+    // document are combined into a single minified file (see JsBundle)
+    // rather than being loaded individually.  This variable mirrors the
+    // "bundleJavascript" entry in the main configuration dataset.
+    public static boolean bundleJavascript = false;
+
     // The following field accumulates Javascript code that will be invoked
     // at the end of loading the page.
     protected StringBuilder jsCode = new StringBuilder();
 
+    // If the following variable is non-null, the output of a Section is
+    // being recorded for a FragmentCache: all CSS and Javascript files
+    // included and all CSS passed to includeCss get added to it.
+    protected FragmentCache.Fragment recording = null;
+
     /**
      * Constructs an empty Html document.
      * @param cr                      The ClientRequest for which HTML
@@ -105,8 +133,10 @@ public class Html {
         title = null;
         body.setLength(0);
         cssFiles.clear();
+        cssFileList.clear();
         css.setLength(0);
         jsFiles.clear();
+        jsFileList.clear();
         jsFileHtml.setLength(0);
         jsCode.setLength(0);
     }
@@ -259,6 +289,9 @@ public class Html {
      *                             came from.
      */
     public void includeCss(CharSequence styleInfo) {
+        if (recording != null) {
+            recording.css.add(styleInfo.toString());
+        }
         StringUtil.addBlankLine(css);
         css.append(styleInfo);
     }
@@ -274,12 +307,18 @@ public class Html {
      *                                managed by the Css class.
      */
     public void includeCssFile(String fileName) {
+        if (recording != null) {
+            recording.cssFiles.add(fileName);
+        }
         if (cssFiles.contains(fileName)) {
             return;
         }
         cssFiles.add(fileName);
-        StringUtil.addBlankLine(css);
-        css.append(Css.getStylesheet(fileName));
+        cssFileList.add(fileName);
+        if (!externalCss) {
+            StringUtil.addBlankLine(css);
+            css.append(Css.getStylesheet(fileName));
+        }
     }
 
     /**
@@ -325,6 +364,9 @@ public class Html {
      * @param fileName             Name of the Javascript file.
      */
     public void includeJsFile(String fileName) {
+        if (recording != null) {
+            recording.jsFiles.add(fileName);
+        }
         if (jsFiles.contains(fileName)) {
             return;
         }
@@ -335,6 +377,7 @@ public class Html {
         for (String dependency : getJsDependencies(jsDirectory + fileName)) {
             includeJsFile(dependency);
         }
+        jsFileList.add(fileName);
 
         // Generate an HTML <script> statement to include the current file.
         jsFileHtml.append("<script type=\"text/javascript\" src=\"");
@@ -372,7 +415,24 @@ public class Html {
 
             // Output CSS info (but skip if the document contains no text,
             // e.g. only Javascript).
-            if (body.length() > 0) {
+            if ((body.length() > 0) && externalCss) {
+                // Reference a bundle containing main.css and the included
+                // files; only the CSS from includeCss is output inline.
+                ArrayList<String> names = new ArrayList<String>();
+                names.add("main.css");
+                names.addAll(cssFileList);
+                writer.write("<link rel=\"stylesheet\" type=\"text/css\" " +
+                        "href=\"" + contextPath + "/" +
+                        Css.getBundle(names).getPath() + "\" />\n");
+                if (css.length() > 0) {
+                    writer.write("<style type=\"text/css\">\n");
+                    writer.write(css.toString());
+                    if (css.charAt(css.length()-1) != '\n') {
+                        writer.write('\n');
+                    }
+                    writer.write("</style>\n");
+                }
+            } else if (body.length() > 0) {
                 writer.write("<style type=\"text/css\">\n");
                 String mainCss = Css.getStylesheet("main.css");
                 writer.write(mainCss);
@@ -397,14 +457,29 @@ public class Html {
             writer.write("</head>\n<body>\n");
             writer.write(body.toString());
 
-            // Output Javascript.
-            writer.write(jsFileHtml.toString());
-            if (jsCode.length() > 0) {
+            // Output Javascript.  If there are several Javascript files,
+            // they may be combined into a single bundle.
+            if (bundleJavascript && (jsFileList.size() > 1)) {
+                JsBundle bundle = JsBundle.getInstance(jsDirectory,
+                        jsFileList);
+                writer.write("<script type=\"text/javascript\" src=\"" +
+                        contextPath + "/" + bundle.getPath() +
+                        "\"></script>\n");
+            } else {
+                writer.write(jsFileHtml.toString());
+            }
+            String batching = "";
+            if (Ajax.batching && jsFiles.contains("static/fiz/Ajax.js")) {
+                // Must come before any code that issues Ajax requests.
+                batching = "Fiz.Ajax.batching = true;\n";
+            }
+            if ((jsCode.length() > 0) || (batching.length() > 0)) {
                 // The CDATA construct below is needed to avoid validation
                 // errors under XHTML (without it, HTML entity characters such
                 // ads & and < in the Javascript code will cause problems).
                 writer.write("<script type=\"text/javascript\">\n");
                 writer.write("//<![CDATA[\n");
+                writer.write(batching);
                 writer.write(jsCode.toString());
                 writer.write("//]]>\n</script>\n");
             }
@@ -0,0 +1,435 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A JsBundle combines a collection of Javascript files into a single
+ * minified file, so that a page can load all of its Javascript with one
+ * request instead of one request per file.  JsBundles are used by
+ * Html.print when the "bundleJavascript" option is set in the main
+ * configuration dataset.  JsBundles have the following properties:
+ *   - The URL for a bundle contains a hash of its contents (for example,
+ *     {@code static/fiz-bundle/0c4a...e1.js}), so the bundle's contents
+ *     never change for a given URL; StaticServlet returns bundles with
+ *     headers that allow browsers to cache them indefinitely.
+ *   - Bundles are created the first time they are needed and cached,
+ *     one for each distinct list of files.
+ *   - Bundles are minified by removing comments and unnecessary
+ *     whitespace (see {@code minify}).
+ *   - Bundles can also be created ahead of time with the "bundle-js"
+ *     target in build.xml, which writes them into the
+ *     {@code static/fiz-bundle} directory.  StaticServlet will return
+ *     these files even if the bundle hasn't been created in the server.
+ */
+
+public class JsBundle {
+    // Bundle URLs have the form {@code static/PATH_PREFIX/hash.js}.
+    public static final String PATH_PREFIX = "fiz-bundle/";
+
+    // The following hash table maps from a key describing a list of files
+    // (see getInstance) to the bundle for those files.
+    protected static HashMap<String,JsBundle> bundles =
+            new HashMap<String,JsBundle>();
+
+    // The following hash table maps from the hash for a bundle to the
+    // bundle.
+    protected static HashMap<String,JsBundle> hashes =
+            new HashMap<String,JsBundle>();
+
+    // Hexadecimal MD5 hash of content.
+    protected String hash;
+
+    // Contents of the bundle in UTF-8.
+    protected byte[] content;
+
+    // Contents of the bundle in gzip format, or null if compression
+    // doesn't make the bundle smaller.
+    protected byte[] compressed;
+
+    /**
+     * Construct a JsBundle from Javascript code.  Normally JsBundles are
+     * created by {@code getInstance}, so that they are shared.
+     * @param javascript           Contents of the bundle (should already
+     *                             be minified).
+     */
+    public JsBundle(String javascript) {
+        try {
+            content = javascript.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new InternalError(
+                    "JsBundle couldn't convert to UTF-8");
+        }
+        hash = Util.md5Hex(content);
+        compressed = Compressor.gzip(content, content.length);
+        if (compressed.length >= content.length) {
+            compressed = null;
+        }
+    }
+
+    /**
+     * Discard all of the cached bundles.  This method is invoked when
+     * Javascript files may have changed (see Dispatcher.clearCaches).
+     */
+    public static synchronized void clearCache() {
+        bundles.clear();
+        hashes.clear();
+    }
+
+    /**
+     * Returns the bundle with a given hash, if it exists in the cache.
+     * @param hash                 Hash of the bundle's contents, as returned
+     *                             by {@code getHash}.
+     * @return                     The bundle whose hash is {@code hash}, or
+     *                             null if there is no such bundle in the
+     *                             cache.
+     */
+    public static synchronized JsBundle getBundle(String hash) {
+        return hashes.get(hash);
+    }
+
+    /**
+     * Returns the bundle for a given list of Javascript files, creating
+     * it if it doesn't already exist.
+     * @param directory            Directory containing the Javascript files
+     *                             (typically the context root for the
+     *                             application); must end with "/".
+     * @param files                Names of the Javascript files, relative
+     *                             to {@code directory}, in the order they
+     *                             should appear in the bundle.
+     * @return                     A JsBundle containing the minified
+     *                             contents of all of the files.
+     */
+    public static synchronized JsBundle getInstance(String directory,
+            List<String> files) {
+        String key = directory + ":" + StringUtil.join(
+                files.toArray(new String[files.size()]), ",");
+        JsBundle bundle = bundles.get(key);
+        if (bundle != null) {
+            return bundle;
+        }
+        StringBuilder javascript = new StringBuilder();
+        for (String file : files) {
+            String fileName = directory + file;
+            String contents;
+            try {
+                contents = minify(Util.readFile(fileName));
+            }
+            catch (FileNotFoundException e) {
+                throw new FileNotFoundError(fileName, "javascript",
+                        e.getMessage());
+            }
+            javascript.append(contents);
+
+            // Separate files with a semicolon in case a file's last
+            // statement isn't terminated.
+            if (!contents.endsWith(";")) {
+                javascript.append(';');
+            }
+            javascript.append('\n');
+        }
+        bundle = new JsBundle(javascript.toString());
+        bundles.put(key, bundle);
+        hashes.put(bundle.hash, bundle);
+        return bundle;
+    }
+
+    /**
+     * Returns the contents of the bundle in gzip format.
+     * @return                     The compressed contents of the bundle,
+     *                             or null if compression doesn't make the
+     *                             bundle smaller.
+     */
+    public byte[] getCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the contents of the bundle.
+     * @return                     The bundle's Javascript, in UTF-8.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the hash of the bundle's contents, which identifies the
+     * bundle.
+     * @return                     Hexadecimal MD5 hash of the bundle.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the path for the bundle, relative to the context root
+     * for the application.
+     * @return                     The path name under which the bundle
+     *                             should be requested, such as
+     *                             {@code static/fiz-bundle/hash.js}.
+     */
+    public String getPath() {
+        return "static/" + PATH_PREFIX + hash + ".js";
+    }
+
+    /**
+     * This method is invoked by the "bundle-js" target in build.xml.  It
+     * creates the bundle needed by a page that includes a given set of
+     * Javascript files (plus all of the files they depend on) and writes
+     * the bundle, along with a compressed copy, into the
+     * {@code static/fiz-bundle} directory.
+     * @param args                 The first argument is the root directory
+     *                             for the application (such as "web/");
+     *                             each additional argument is the name of
+     *                             a Javascript file relative to the root
+     *                             directory, as would be passed to
+     *                             Html.includeJsFile.
+     * @throws IOException         An error occurred writing the bundle.
+     */
+    public static void main(String[] args) throws IOException {
+        String directory = args[0];
+        if (!directory.endsWith("/")) {
+            directory += "/";
+        }
+        Html html = new Html(null);
+        html.jsDirectory = directory;
+        for (int i = 1; i < args.length; i++) {
+            html.includeJsFile(args[i]);
+        }
+        JsBundle bundle = getInstance(directory, html.jsFileList);
+        File file = new File(directory + bundle.getPath());
+        file.getParentFile().mkdirs();
+        writeFile(file, bundle.content);
+        if (bundle.compressed != null) {
+            writeFile(new File(file.getPath() + ".gz"), bundle.compressed);
+        }
+        System.out.println("Bundled " + html.jsFileList.size() +
+                " files in " + file.getPath());
+    }
+
+    /**
+     * Reduce the size of Javascript code by removing comments and
+     * unnecessary whitespace.  This method is conservative: it keeps line
+     * breaks (so that semicolon insertion is unaffected), it doesn't rename
+     * anything, and it keeps comments starting with "/*!" (typically
+     * copyright notices) or "/*@" (conditional compilation in IE).
+     * @param javascript           Javascript code to minify.
+     * @return                     Equivalent Javascript code, usually
+     *                             much smaller.
+     */
+    public static String minify(CharSequence javascript) {
+        String js = javascript.toString();
+        int length = js.length();
+        StringBuilder out = new StringBuilder(length);
+
+        // The following variables are set when we skip whitespace or
+        // comments, and determine what separator (if any) must be output
+        // before the next token.
+        boolean skipped = false;
+        boolean skippedNewline = false;
+
+        int i = 0;
+        while (i < length) {
+            char c = js.charAt(i);
+            char next = (i + 1 < length) ? js.charAt(i + 1) : 0;
+            if ((c == '/') && (next == '*')) {
+                int end = js.indexOf("*/", i + 2);
+                end = (end < 0) ? length : end + 2;
+                char type = (i + 2 < length) ? js.charAt(i + 2) : 0;
+                if ((type == '!') || (type == '@')) {
+                    appendSeparator(out, skipped, skippedNewline, c);
+                    skipped = skippedNewline = false;
+                    out.append(js, i, end);
+                } else {
+                    skipped = true;
+                    if (js.substring(i, end).indexOf('\n') >= 0) {
+                        skippedNewline = true;
+                    }
+                }
+                i = end;
+                continue;
+            }
+            if ((c == '/') && (next == '/')) {
+                while ((i < length) && (js.charAt(i) != '\n')) {
+                    i++;
+                }
+                skipped = true;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                skipped = true;
+                if ((c == '\n') || (c == '\r')) {
+                    skippedNewline = true;
+                }
+                i++;
+                continue;
+            }
+
+            // This character starts a token.
+            appendSeparator(out, skipped, skippedNewline, c);
+            skipped = skippedNewline = false;
+            if ((c == '"') || (c == '\'')) {
+                i = copyLiteral(js, i, c, out);
+            } else if ((c == '/') && regexAllowed(out)) {
+                i = copyLiteral(js, i, '/', out);
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * This method is invoked by {@code minify} when it reaches a token
+     * after skipping whitespace or comments; it outputs whatever separator
+     * is needed between the previous token and the new one.
+     * @param out                  Minified output so far.
+     * @param skipped              True means whitespace or comments were
+     *                             skipped before the new token.
+     * @param skippedNewline       True means the skipped text included a
+     *                             line break.
+     * @param c                    First character of the new token.
+     */
+    protected static void appendSeparator(StringBuilder out, boolean skipped,
+            boolean skippedNewline, char c) {
+        if (!skipped || (out.length() == 0)) {
+            return;
+        }
+        char prev = out.charAt(out.length() - 1);
+        if (skippedNewline) {
+            out.append('\n');
+        } else if ((isIdentifierChar(prev) && isIdentifierChar(c))
+                || ((prev == c) && ((c == '+') || (c == '-')))
+                || (Character.isDigit(prev) && (c == '.'))) {
+            out.append(' ');
+        }
+    }
+
+    /**
+     * Copy a string literal or regular expression literal from a
+     * Javascript program to minified output, without modification.
+     * @param js                   Javascript program.
+     * @param start                Index in {@code js} of the opening
+     *                             delimiter.
+     * @param delimiter            The character that ends the literal:
+     *                             a quote or "/".
+     * @param out                  The literal is appended here.
+     * @return                     Index in {@code js} of the first character
+     *                             after the literal.
+     */
+    protected static int copyLiteral(String js, int start, char delimiter,
+            StringBuilder out) {
+        int length = js.length();
+        boolean inClass = false;
+        int i = start + 1;
+        while (i < length) {
+            char c = js.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '\n') {
+                // Unterminated literal; just stop here.
+                break;
+            }
+            i++;
+            if (delimiter == '/') {
+                // Inside a character class in a regular expression, "/"
+                // doesn't end the expression.
+                if (c == '[') {
+                    inClass = true;
+                } else if (c == ']') {
+                    inClass = false;
+                }
+                if (inClass) {
+                    continue;
+                }
+            }
+            if (c == delimiter) {
+                break;
+            }
+        }
+        i = Math.min(i, length);
+        out.append(js, start, i);
+        return i;
+    }
+
+    /**
+     * Determine whether a character can be part of a Javascript identifier
+     * or number.
+     * @param c                    Character to check.
+     * @return                     True means two such characters must be
+     *                             separated by whitespace in minified
+     *                             output.
+     */
+    protected static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || (c == '_') || (c == '$')
+                || (c == '\\') || (c > 126);
+    }
+
+    /**
+     * Determine whether a "/" character at the end of minified output
+     * starts a regular expression (as opposed to a division operator).
+     * @param out                  Minified output so far, not including
+     *                             the "/".
+     * @return                     True means the "/" starts a regular
+     *                             expression literal.
+     */
+    protected static boolean regexAllowed(StringBuilder out) {
+        int i = out.length() - 1;
+        while ((i >= 0) && ((out.charAt(i) == ' ')
+                || (out.charAt(i) == '\n'))) {
+            i--;
+        }
+        if (i < 0) {
+            return true;
+        }
+        char prev = out.charAt(i);
+        if ("(,=:[!&|?{};+-*%<>~^".indexOf(prev) >= 0) {
+            return true;
+        }
+
+        // A regular expression can also follow a few keywords.
+        int end = i + 1;
+        while ((i >= 0) && isIdentifierChar(out.charAt(i))) {
+            i--;
+        }
+        String word = out.substring(i + 1, end);
+        return word.equals("return") || word.equals("typeof")
+                || word.equals("case") || word.equals("in");
+    }
+
+    /**
+     * Write a file, replacing any previous contents.
+     * @param file                 File to write.
+     * @param contents             New contents for the file.
+     * @throws IOException         An error occurred writing the file.
+     */
+    protected static void writeFile(File file, byte[] contents)
+            throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
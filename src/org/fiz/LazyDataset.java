@@ -16,6 +16,7 @@
 package org.fiz;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * A LazyDataset can contain values that are not computed until needed.
@@ -32,9 +33,42 @@ import java.util.*;
  * LazyDatasets also support a default DataSource, which is used for any keys
  * that do not exist in the Dataset, through {@code setDataSource}.
  *
+ * By default the value returned by a DataSource for a given key is
+ * remembered, so the DataSource is invoked only once per key no matter how
+ * many times the value is requested; {@code setCachePolicy} can be used to
+ * invoke DataSources on every request, or to remember values only for a
+ * limited time.  The {@code prefetch} method starts several DataSources
+ * running concurrently in background threads, so that slow operations such
+ * as backend queries can overlap; a later request for one of the values
+ * waits only for that value.
+ *
  * Otherwise, LazyDatasets act identically to regular Datasets.
  */
 public class LazyDataset extends Dataset {
+    /**
+     * The following values are passed to {@code setCachePolicy} to
+     * determine how long the values produced by DataSources are remembered.
+     */
+    public enum CachePolicy {
+        /**
+         * Values are not remembered: the DataSource is invoked every time
+         * the value is requested (except that a prefetched value is used
+         * for the first request).
+         */
+        NEVER,
+
+        /**
+         * Values are remembered for the lifetime of the dataset (normally
+         * a single request).
+         */
+        REQUEST,
+
+        /**
+         * Values are remembered until they reach a given age.
+         */
+        TTL
+    }
+
     /**
      * The DataSource interface should be implemented whenever lazy data is
      * needed. When a lookup is performed on a DataSource added through the
@@ -68,6 +102,11 @@ public class LazyDataset extends Dataset {
     protected static class DataSourceContainer {
         public DataSource dataSource;
 
+        // Values produced by (or being produced by) {@code dataSource},
+        // indexed by key.
+        public ConcurrentHashMap<String,Result> results =
+                new ConcurrentHashMap<String,Result>();
+
         /**
          * Constructs a new DataSourceContainer
          * @param dataSource  DataSource passed to a method such as
@@ -78,9 +117,37 @@ public class LazyDataset extends Dataset {
         }
     }
 
+    // An object of the following class holds the value that a DataSource
+    // produced for a particular key.
+    protected static class Result {
+        // Invokes the DataSource, and holds its value once it has been
+        // computed.
+        public FutureTask<Object> future;
+
+        // Time (as returned by System.currentTimeMillis) when this object
+        // was created.
+        public long created;
+
+        public Result(FutureTask<Object> future) {
+            this.future = future;
+            created = System.currentTimeMillis();
+        }
+    }
+
     // "Catch-all" data source for missing keys.
     protected DataSourceContainer defaultDataSourceContainer;
 
+    // Determines how long values produced by DataSources are remembered.
+    protected CachePolicy cachePolicy = CachePolicy.REQUEST;
+
+    // If cachePolicy is TTL, values are discarded once they are this many
+    // milliseconds old.
+    protected long ttl = 0;
+
+    // Threads used by {@code prefetch} to invoke DataSources; null means
+    // prefetching is disabled.  Shared by all LazyDatasets.
+    protected static ExecutorService prefetchExecutor = null;
+
     /**
      * Constructs an empty LazyDataset
      */
@@ -141,6 +208,28 @@ public class LazyDataset extends Dataset {
         }
     }
 
+    /**
+     * Discards all of the values that have been remembered from
+     * DataSources, so that DataSources will be invoked again when their
+     * values are next requested.
+     */
+    public void clearCache() {
+        for (Object value : map.values()) {
+            if (value instanceof DataSourceContainer) {
+                ((DataSourceContainer) value).results.clear();
+            } else if (value instanceof DSArrayList) {
+                for (Object elem : (DSArrayList<?>) value) {
+                    if (elem instanceof DataSourceContainer) {
+                        ((DataSourceContainer) elem).results.clear();
+                    }
+                }
+            }
+        }
+        if (defaultDataSourceContainer != null) {
+            defaultDataSourceContainer.results.clear();
+        }
+    }
+
     /**
      * Deletes the default DataSource, if it exists. Future requests for keys
      * that do not exist will return null or throw errors unless another default
@@ -170,21 +259,24 @@ public class LazyDataset extends Dataset {
         }
 
         if (quantity == Quantity.ALL) {
-            DSArrayList<Object> list = (DSArrayList<Object>)
-                ((DSArrayList<Object>) value).clone();
-            for (int i = 0; i < list.size(); i++) {
-                Object elem = list.get(i);
+            // The list may be part of the dataset, so it must be copied
+            // before substituting values for DataSources; don't copy it
+            // unless it contains DataSources.
+            DSArrayList<Object> values = (DSArrayList<Object>) value;
+            DSArrayList<Object> list = null;
+            for (int i = 0; i < values.size(); i++) {
+                Object elem = values.get(i);
                 if (elem instanceof DataSourceContainer) {
-                    DataSourceContainer dsc = (DataSourceContainer) elem;
-                    Object data = dsc.dataSource.getData(key, this);
-                    list.set(i, data);
+                    if (list == null) {
+                        list = (DSArrayList<Object>) values.clone();
+                    }
+                    list.set(i, getData((DataSourceContainer) elem, key));
                 }
             }
-            return list;
+            return (list != null) ? list : values;
         } else if (quantity == Quantity.FIRST_ONLY) {
             if (value instanceof DataSourceContainer) {
-                DataSourceContainer dsc = (DataSourceContainer) value;
-                return dsc.dataSource.getData(key, this);
+                return getData((DataSourceContainer) value, key);
             } else {
                 return value;
             }
@@ -193,4 +285,173 @@ public class LazyDataset extends Dataset {
                                     "quantity: " + quantity);
         }
     }
+
+    /**
+     * Start computing the values for one or more keys in background
+     * threads, so that the computations overlap with each other and with
+     * the caller.  A later request for one of the keys waits only for its
+     * own value.  DataSources invoked by this method run concurrently
+     * with the caller, so they must not modify the dataset.  This method
+     * does nothing if prefetching has not been enabled with
+     * {@code setPrefetchThreads}.
+     * @param keys             Names of values in the top level of the
+     *                         dataset.  Keys whose values don't come from
+     *                         DataSources are ignored.
+     */
+    public void prefetch(String... keys) {
+        ExecutorService executor = prefetchExecutor;
+        if (executor == null) {
+            return;
+        }
+        for (String key : keys) {
+            Object value = super.lookup(key, Quantity.ALL);
+            ArrayList<?> values = (ArrayList<?>) value;
+            if ((values.size() == 0) && (defaultDataSourceContainer != null)) {
+                values = new ArrayList<Object>(Arrays.asList(
+                        defaultDataSourceContainer));
+            }
+            for (Object elem : values) {
+                if (!(elem instanceof DataSourceContainer)) {
+                    continue;
+                }
+                DataSourceContainer container = (DataSourceContainer) elem;
+                Result existing = container.results.get(key);
+                if ((existing != null) && !isExpired(existing)) {
+                    continue;
+                }
+                Result result = newResult(container, key);
+                if (existing != null) {
+                    if (!container.results.replace(key, existing, result)) {
+                        continue;
+                    }
+                } else if (container.results.putIfAbsent(key, result)
+                        != null) {
+                    continue;
+                }
+                executor.execute(result.future);
+            }
+        }
+    }
+
+    /**
+     * Specify how long values produced by DataSources are remembered.
+     * @param policy           {@code NEVER}, {@code REQUEST}, or
+     *                         {@code TTL}.
+     * @param ttl              If {@code policy} is {@code TTL}, values
+     *                         are discarded once they are this many
+     *                         milliseconds old; otherwise this is ignored.
+     */
+    public void setCachePolicy(CachePolicy policy, long ttl) {
+        cachePolicy = policy;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Specify the number of threads to use for prefetching.
+     * @param threads          Maximum number of DataSources that can be
+     *                         prefetched concurrently; 0 disables
+     *                         prefetching.
+     */
+    public static synchronized void setPrefetchThreads(int threads) {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+            prefetchExecutor = null;
+        }
+        if (threads > 0) {
+            prefetchExecutor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    // Don't let these threads keep the JVM alive.
+                    Thread thread = new Thread(runnable,
+                            "fiz-lazy-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the value that a DataSource produces for a key, invoking
+     * the DataSource only if there isn't already a suitable value (or a
+     * computation in progress).
+     * @param container        Holds the DataSource.
+     * @param key              Key whose value is desired.
+     * @return                 The value produced by the DataSource.
+     */
+    protected Object getData(DataSourceContainer container, String key) {
+        Result result;
+        if (cachePolicy == CachePolicy.NEVER) {
+            // A prefetched value can be used once.
+            result = container.results.remove(key);
+        } else {
+            result = container.results.get(key);
+            if ((result != null) && isExpired(result)) {
+                container.results.remove(key, result);
+                result = null;
+            }
+        }
+        if (result == null) {
+            result = newResult(container, key);
+            if (cachePolicy != CachePolicy.NEVER) {
+                Result existing = container.results.putIfAbsent(key, result);
+                if (existing != null) {
+                    result = existing;
+                }
+            }
+        }
+
+        // If the computation hasn't started yet (for example, a prefetch
+        // is still waiting for a thread), do it here rather than waiting;
+        // if it is already running or complete this does nothing.
+        result.future.run();
+        try {
+            return result.future.get();
+        }
+        catch (ExecutionException e) {
+            // Don't remember failures: try again on the next request.
+            container.results.remove(key, result);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new InternalError("DataSource for \"" + key +
+                    "\" threw " + cause.getClass().getSimpleName() + ": " +
+                    cause.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalError("interrupted while waiting for " +
+                    "DataSource for \"" + key + "\"");
+        }
+    }
+
+    /**
+     * Returns true if a remembered value is too old to use.
+     * @param result           A value produced by a DataSource.
+     * @return                 True means {@code result} should be
+     *                         discarded.
+     */
+    protected boolean isExpired(Result result) {
+        return (cachePolicy == CachePolicy.TTL)
+                && ((System.currentTimeMillis() - result.created) > ttl);
+    }
+
+    /**
+     * Creates a Result object whose computation will invoke a DataSource.
+     * @param container        Holds the DataSource.
+     * @param key              Key whose value is desired.
+     * @return                 A Result whose computation hasn't started.
+     */
+    protected Result newResult(final DataSourceContainer container,
+            final String key) {
+        return new Result(new FutureTask<Object>(new Callable<Object>() {
+            public Object call() {
+                return container.dataSource.getData(key, LazyDataset.this);
+            }
+        }));
+    }
 }
@@ -0,0 +1,436 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.servlet.http.*;
+import org.apache.log4j.*;
+
+/**
+ * MemoryPageStateStore keeps page state in this server's memory rather
+ * than in the session, so sessions stay small and nothing needs to be
+ * serialized on each request.  It is selected by setting
+ * {@code pageStateStore} to {@code memory} in the main configuration
+ * dataset, and is only appropriate when all of the requests for a
+ * session are handled by the same server.
+ *
+ * The state for all pages in all sessions is kept in a fixed number of
+ * shards, each with its own lock, so concurrent requests rarely wait for
+ * each other.  Each shard holds a bounded number of pages and discards
+ * its least recently used page when it fills.  If a spill directory has
+ * been configured, discarded pages are serialized to files there instead
+ * of being lost, and are read back if they are needed again.  A page is
+ * serialized only when it is discarded from memory, and only if it has
+ * changed since it was last written.
+ */
+public class MemoryPageStateStore implements PageStateStore {
+    // Each shard is a LinkedHashMap that tracks LRU order and holds no
+    // more than a fixed number of pages.  Keys are of the form
+    // "sessionId/pageId".  A shard must be locked while it is being
+    // accessed.
+    protected static class Shard extends LinkedHashMap<String, PageState> {
+        // Maximum number of pages to keep in this shard.
+        protected int capacity;
+
+        // If the last call to put caused a page to be discarded, the
+        // following variables identify that page; otherwise they are null.
+        protected String evictedKey = null;
+        protected PageState evictedState = null;
+
+        public Shard(int capacity) {
+            super(16, (float) 0.75, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String,PageState>
+                eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            evictedKey = eldest.getKey();
+            evictedState = eldest.getValue();
+            return true;
+        }
+    }
+
+    // Number of shards in each store.
+    protected static final int NUM_SHARDS = 16;
+
+    // Spill files are checked for expiration after every this many
+    // pages have been spilled.
+    protected static final int PRUNE_INTERVAL = 100;
+
+    // The shards holding the pages in memory; a page is assigned to a
+    // shard using the hash code of its key.
+    protected Shard[] shards;
+
+    // Directory in which to write pages discarded from memory; null means
+    // discarded pages are lost.
+    protected File spillDirectory;
+
+    // Pages that have been discarded from memory but are still in the
+    // process of being written to their spill files.  Keys are the same
+    // as for shards.
+    protected ConcurrentHashMap<String,PageState> spilling =
+            new ConcurrentHashMap<String,PageState>();
+
+    // Number of pages written to spill files so far; used to decide when
+    // to prune old spill files.
+    protected AtomicInteger spillCount = new AtomicInteger();
+
+    // Spill files that haven't been read or written for this many
+    // milliseconds are deleted.
+    protected long spillLifetime = 24*60*60*1000;
+
+    protected static Logger logger =
+            Logger.getLogger("org.fiz.MemoryPageStateStore");
+
+    /**
+     * Construct a MemoryPageStateStore using configuration information.
+     * @param config               Dataset whose {@code pageStateCacheSize}
+     *                             value (if present) gives the maximum
+     *                             number of pages to keep in memory and
+     *                             whose {@code pageStateSpillDirectory}
+     *                             value (if present) names a directory
+     *                             for discarded pages.
+     */
+    public MemoryPageStateStore(Dataset config) {
+        this(getCacheSize(config),
+                config.checkString("pageStateSpillDirectory"));
+    }
+
+    /**
+     * Construct a MemoryPageStateStore.
+     * @param cacheSize            Maximum number of pages to keep in
+     *                             memory (across all sessions).
+     * @param spillDirectory       Name of a directory in which to save
+     *                             pages that are discarded from memory;
+     *                             null or an empty string means discarded
+     *                             pages are lost.  The directory is
+     *                             created if it doesn't already exist.
+     */
+    public MemoryPageStateStore(int cacheSize, String spillDirectory) {
+        shards = new Shard[NUM_SHARDS];
+        int shardCapacity = Math.max(1, (cacheSize + NUM_SHARDS - 1)
+                / NUM_SHARDS);
+        for (int i = 0; i < NUM_SHARDS; i++) {
+            shards[i] = new Shard(shardCapacity);
+        }
+        if ((spillDirectory != null) && (spillDirectory.length() > 0)) {
+            this.spillDirectory = new File(spillDirectory);
+            this.spillDirectory.mkdirs();
+        }
+    }
+
+    /**
+     * Discard all of the page state in this store, including any spill
+     * files.
+     */
+    public void clear() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.clear();
+            }
+        }
+        spilling.clear();
+        if (spillDirectory != null) {
+            File[] files = spillDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(".ser")) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure that the state for a page is present in memory (for
+     * example, it may have been discarded while the request was running).
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param state                The page's state object.
+     */
+    public void flush(ClientRequest cr, String id, PageState state) {
+        HttpSession session = cr.getServletRequest().getSession(true);
+        insert(getKey(session, id), state);
+    }
+
+    /**
+     * Find and return the state object for a page.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param create               True means create a new state object
+     *                             if one doesn't already exist.
+     * @return                     Returns the page state object for the
+     *                             page, or null if there is no state for
+     *                             the page and {@code create} is false.
+     */
+    public PageState get(ClientRequest cr, String id, boolean create) {
+        HttpSession session = cr.getServletRequest().getSession(create);
+        if (session == null) {
+            return null;
+        }
+        String key = getKey(session, id);
+        Shard shard = getShard(key);
+        PageState state;
+        synchronized (shard) {
+            state = shard.get(key);
+        }
+        if (state != null) {
+            return state;
+        }
+
+        // The page isn't in memory; see if it was spilled (or is in the
+        // process of being spilled).
+        state = spilling.get(key);
+        if (state == null) {
+            state = load(key);
+        }
+        if (state == null) {
+            if (!create) {
+                return null;
+            }
+            state = new PageState();
+        }
+        return insert(key, state);
+    }
+
+    /**
+     * Returns the number of pages currently held in memory.
+     * @return                     See above.
+     */
+    public int size() {
+        int result = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                result += shard.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the configured maximum number of pages to keep in memory.
+     * @param config               Dataset containing configuration
+     *                             information.
+     * @return                     The {@code pageStateCacheSize} value
+     *                             from {@code config}, or 10000 if there
+     *                             is no such value.
+     */
+    protected static int getCacheSize(Dataset config) {
+        String value = config.checkString("pageStateCacheSize");
+        if (value == null) {
+            return 10000;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            throw new InternalError("bad value \"" + value +
+                    "\" for pageStateCacheSize configuration option: " +
+                    "must be an integer");
+        }
+    }
+
+    /**
+     * Returns the key under which the state for a page is stored.
+     * @param session              The session the page belongs to.
+     * @param id                   Unique identifier for the page.
+     * @return                     A key that is unique across all sessions.
+     */
+    protected static String getKey(HttpSession session, String id) {
+        return session.getId() + "/" + id;
+    }
+
+    /**
+     * Returns the shard responsible for a given key.
+     * @param key                  Key for a page.
+     * @return                     The shard that holds the page if it is in
+     *                             memory.
+     */
+    protected Shard getShard(String key) {
+        return shards[(key.hashCode() & 0x7fffffff) % NUM_SHARDS];
+    }
+
+    /**
+     * Add a page to memory, unless it is already there; if this causes
+     * another page to be discarded, spill that page.
+     * @param key                  Key for the page.
+     * @param state                State for the page.
+     * @return                     The page's state in memory: this is
+     *                             {@code state} unless a different object
+     *                             for the page was already in memory.
+     */
+    protected PageState insert(String key, PageState state) {
+        Shard shard = getShard(key);
+        String evictedKey;
+        PageState evictedState;
+        synchronized (shard) {
+            PageState existing = shard.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            shard.put(key, state);
+            evictedKey = shard.evictedKey;
+            evictedState = shard.evictedState;
+            shard.evictedKey = null;
+            shard.evictedState = null;
+            if ((evictedKey == null) || (spillDirectory == null)) {
+                return state;
+            }
+
+            // Make the discarded page visible in {@code spilling} before
+            // releasing the lock, so there is no window during which it
+            // can't be found.
+            spilling.put(evictedKey, evictedState);
+        }
+        spill(evictedKey, evictedState);
+        spilling.remove(evictedKey, evictedState);
+        return state;
+    }
+
+    /**
+     * Read a page's state from its spill file.
+     * @param key                  Key for the page.
+     * @return                     The page's state, or null if there is
+     *                             no spill file for the page or it
+     *                             couldn't be read.
+     */
+    protected PageState load(String key) {
+        if (spillDirectory == null) {
+            return null;
+        }
+        File file = getSpillFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            PageState state = (PageState) in.readObject();
+            file.setLastModified(System.currentTimeMillis());
+            return state;
+        }
+        catch (Exception e) {
+            logger.warn("couldn't read page state from \"" +
+                    file.getPath() + "\": " + e.getMessage());
+            return null;
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the spill file for a page.
+     * @param key                  Key for the page.
+     * @return                     File in which to spill the page.
+     */
+    protected File getSpillFile(String key) {
+        try {
+            return new File(spillDirectory,
+                    Util.md5Hex(key.getBytes("UTF-8")) + ".ser");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new InternalError("UTF-8 encoding not supported");
+        }
+    }
+
+    /**
+     * Delete spill files that haven't been used within the last
+     * {@code spillLifetime} milliseconds.
+     */
+    protected void pruneSpillFiles() {
+        File[] files = spillDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - spillLifetime;
+        for (File file : files) {
+            if (file.getName().endsWith(".ser")
+                    && (file.lastModified() < cutoff)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Write a page that has been discarded from memory to its spill
+     * file.  Nothing is written if the page hasn't changed since it was
+     * last written.
+     * @param key                  Key for the page.
+     * @param state                State for the page.
+     */
+    protected void spill(String key, PageState state) {
+        File file = getSpillFile(key);
+        if (!state.isDirty() && file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+            return;
+        }
+
+        // Write to a temporary file and then rename it, so that a
+        // concurrent load never sees a partially written file.
+        File temp = new File(file.getPath() + "." +
+                Thread.currentThread().getId() + ".tmp");
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeObject(state);
+            out.close();
+            out = null;
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("couldn't rename \"" +
+                        temp.getPath() + "\"");
+            }
+        }
+        catch (IOException e) {
+            state.dirty = true;
+            logger.error("couldn't save page state in \"" +
+                    file.getPath() + "\": " + e.getMessage());
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    // Ignore.
+                }
+            }
+            temp.delete();
+        }
+        if ((spillCount.incrementAndGet() % PRUNE_INTERVAL) == 0) {
+            pruneSpillFiles();
+        }
+    }
+}
@@ -17,7 +17,6 @@ package org.fiz;
 
 import java.io.*;
 import java.util.*;
-import javax.servlet.http.*;
 
 /**
  * PageState is used internally by Fiz to maintain state information
@@ -29,12 +28,14 @@ import javax.servlet.http.*;
  * which are named entities accessible across all of the requests for
  * a given page.
  *
- * Page state is stored as part of the session. Unfortunately there is no
- * foolproof way to tell when the state for a page is no longer needed
- * (the user can use the "Back" button to return to pages
- * from the distant past). In order to keep page state to a manageable
- * size, this class automatically deletes old page state (only the most
- * recently accessed pages are retained).
+ * Page state is kept by a PageStateStore, which is selected by the
+ * {@code pageStateStore} value in the main configuration dataset; by
+ * default it is stored as part of the session (see SessionPageStateStore).
+ * Unfortunately there is no foolproof way to tell when the state for a
+ * page is no longer needed (the user can use the "Back" button to return
+ * to pages from the distant past). In order to keep page state to a
+ * manageable size, the stores automatically delete old page state (only
+ * the most recently accessed pages are retained).
  *
  * Each PageState object holds the properties for a particular page.
  */
@@ -45,6 +46,10 @@ public class PageState implements Serializable {
     // dataset.
     protected static int maxPageStates = -1;
 
+    // The store that holds all page state; null means it hasn't been
+    // created yet (see getStore).
+    protected static volatile PageStateStore store = null;
+
     // An object of the following class is stored in the session under
     // the key {@code fiz.PageState}; it holds all of the properties for
     // all of the known pages for this session.  This class is a subclass
@@ -53,6 +58,11 @@ public class PageState implements Serializable {
     // in that session.
     protected static class AllPageInfo
             extends LinkedHashMap<String, PageState> implements Serializable {
+        // True means the LRU order of the pages has changed since this
+        // object was read from the session, so it must be written back
+        // even if no page has changed.
+        protected transient boolean reordered = false;
+
         public AllPageInfo() {
             // Track LRU for objects in the map.
             super(10, (float) 0.75, true);
@@ -82,10 +92,21 @@ public class PageState implements Serializable {
     // The following object holds all of the properties for this page.
     // keys are string identifiers (by convention, these always start with
     // the name of the class on whose behalf the information is being stored),
-    // values are arbitrary objects.
-    public HashMap<String,Object> properties =
+    // values are arbitrary objects.  This is serialized by writeObject.
+    public transient HashMap<String,Object> properties =
             new HashMap<String,Object>();
 
+    // True means the properties have changed since this object was last
+    // serialized.  This is transient so that objects read back from a
+    // store start out clean.
+    protected transient boolean dirty = true;
+
+    // The serialized form of {@code properties} as of the last time this
+    // object was serialized or deserialized, or null if none.  As long as
+    // the object isn't dirty, these bytes are written as-is rather than
+    // serializing the properties again.
+    protected transient byte[] serializedProperties = null;
+
     /**
      * Find and return the state object for the current page.
      * @param cr                   Overall information about the client
@@ -98,47 +119,45 @@ public class PageState implements Serializable {
      *                             state for the current page and
      *                             {@code create} is false.
      */
-    public synchronized static PageState getPageState(ClientRequest cr,
+    public static PageState getPageState(ClientRequest cr,
             String id, boolean create) {
-        HttpSession session = cr.getServletRequest().getSession();
-        AllPageInfo info = (AllPageInfo) session.getAttribute("fiz.PageState");
-        if (info == null) {
-            if (create) {
-                info = new AllPageInfo();
-                session.setAttribute("fiz.PageState", info);
-            } else {
-                return null;
+        return getStore().get(cr, id, create);
+    }
+
+    /**
+     * Returns the store that holds page state, creating it if necessary.
+     * The {@code pageStateStore} value in the main configuration dataset
+     * selects the store: {@code session} (the default) means
+     * SessionPageStateStore, {@code memory} means MemoryPageStateStore,
+     * {@code client} means ClientPageStateStore, and anything else is the
+     * name of a class implementing PageStateStore with a no-argument
+     * constructor.  The store is created once, so
+     * changes to the configuration take effect only when the application
+     * restarts.
+     * @return                     The PageStateStore for this application.
+     */
+    public static PageStateStore getStore() {
+        PageStateStore result = store;
+        if (result == null) {
+            synchronized (PageState.class) {
+                if (store == null) {
+                    store = newStore(Config.getDataset("main"));
+                }
+                result = store;
             }
         }
-        PageState state = info.get(id);
-        if (state != null) {
-            return state;
-        }
-        if (create) {
-            state = new PageState();
-            info.put(id, state);
-        }
-        return state;
+        return result;
     }
 
     /**
-     * Rewrites the entire contents of this PageState, as well as all other
-     * PageState objects, into the session.  This is necessary to make
-     * PageProperties work in GoogleAppEngine, where the introspection into
-     * modified session-bound objects is not sufficient to detect all the nested
-     * changes occurring within PageState and any subsidiary objects it may
-     * contain.
-     * @param cr                   The ClientRequest containing the session to
-     *                             which all PageState will be rewritten.
+     * Make sure that any changes to this PageState have been recorded by
+     * the store; for the session store, this rewrites all of the page
+     * state for the session, which is necessary in Google AppEngine (see
+     * {@code SessionPageStateStore.flush}).
+     * @param cr                   The ClientRequest for the page.
      */
     public void flushPageState(ClientRequest cr) {
-        HttpSession session = cr.servletRequest.getSession(true);
-        AllPageInfo info = (AllPageInfo)session.getAttribute("fiz.PageState");
-        if (info == null) {
-            info = new AllPageInfo();
-        }
-        info.put(cr.getPageId(), this);
-        session.setAttribute("fiz.PageState", info);
+        getStore().flush(cr, cr.getPageId(), this);
     }
 
     /**
@@ -161,5 +180,89 @@ public class PageState implements Serializable {
      */
     public void setPageProperty(String name, Object value) {
         properties.put(name, value);
+        dirty = true;
+    }
+
+    /**
+     * Returns true if the properties for this page have changed since
+     * it was last serialized.
+     * @return                     See above.
+     */
+    public boolean isDirty() {
+        return dirty || (serializedProperties == null);
+    }
+
+    /**
+     * Replace the store that holds page state.  Any state in the old
+     * store is lost.
+     * @param newStore             The store to use from now on; null means
+     *                             create a new store from configuration
+     *                             information the next time one is needed.
+     */
+    public static synchronized void setStore(PageStateStore newStore) {
+        store = newStore;
+    }
+
+    /**
+     * Create a PageStateStore as specified by configuration information.
+     * @param config               The main configuration dataset.
+     * @return                     A new PageStateStore.
+     */
+    protected static PageStateStore newStore(Dataset config) {
+        String type = config.checkString("pageStateStore");
+        if ((type == null) || type.equals("session")) {
+            return new SessionPageStateStore();
+        }
+        if (type.equals("memory")) {
+            return new MemoryPageStateStore(config);
+        }
+        if (type.equals("client")) {
+            return new ClientPageStateStore();
+        }
+        return (PageStateStore) Util.newInstance(type,
+                "org.fiz.PageStateStore");
+    }
+
+    /**
+     * Called during deserialization to read back the information written
+     * by writeObject.
+     * @param in                   Stream containing a serialized PageState.
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        serializedProperties = new byte[in.readInt()];
+        in.readFully(serializedProperties);
+        ObjectInputStream propertiesIn = new ObjectInputStream(
+                new ByteArrayInputStream(serializedProperties));
+        properties = uncheckedCast(propertiesIn.readObject());
+    }
+
+    // Casts the result of deserializing {@code properties} to its type.
+    @SuppressWarnings("unchecked")
+    private static HashMap<String,Object> uncheckedCast(Object o) {
+        return (HashMap<String,Object>) o;
+    }
+
+    /**
+     * Called during serialization.  The properties are serialized into a
+     * separate byte array, which is saved and reused for later
+     * serializations until the properties change; this avoids
+     * re-serializing every page in a session when only one has changed.
+     * @param out                  Stream to which this PageState is being
+     *                             serialized.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (isDirty()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream propertiesOut = new ObjectOutputStream(bytes);
+            propertiesOut.writeObject(properties);
+            propertiesOut.close();
+            serializedProperties = bytes.toByteArray();
+            dirty = false;
+        }
+        out.defaultWriteObject();
+        out.writeInt(serializedProperties.length);
+        out.write(serializedProperties);
     }
 }
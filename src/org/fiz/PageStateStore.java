@@ -0,0 +1,51 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+/**
+ * A PageStateStore decides where the PageState objects for pages are
+ * kept between requests.  The store is selected with the
+ * {@code pageStateStore} value in the main configuration dataset (see
+ * {@code PageState.getStore}); Fiz provides SessionPageStateStore, which
+ * keeps page state in the session, and MemoryPageStateStore, which keeps
+ * it in this server's memory.  Stores are shared by all of the requests
+ * being serviced, so their methods must be thread-safe.
+ */
+public interface PageStateStore {
+    /**
+     * Find and return the state object for a page.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param create               True means create a new state object
+     *                             if one doesn't already exist.
+     * @return                     Returns the page state object for the
+     *                             page, or null if there is no state for
+     *                             the page and {@code create} is false.
+     */
+    public PageState get(ClientRequest cr, String id, boolean create);
+
+    /**
+     * This method is invoked at the end of a request that used page
+     * state; it makes sure that any changes to the state have been
+     * recorded in the store.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param state                The page's state object.
+     */
+    public void flush(ClientRequest cr, String id, PageState state);
+}
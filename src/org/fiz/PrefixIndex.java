@@ -0,0 +1,350 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.util.*;
+
+/**
+ * A PrefixIndex holds a collection of strings (such as the choices for an
+ * AutocompleteFormElement) in memory and finds the strings that contain a
+ * word starting with a given prefix.  PrefixIndexes have the following
+ * properties:
+ *   - Matching is case-insensitive, and a string matches a query if the
+ *     query is a prefix of the string or of any word in the string (for
+ *     example, "york" matches "New York").
+ *   - Each string has a score; when there are more matches than the
+ *     caller asked for, the matches with the highest scores are returned
+ *     (ties are broken alphabetically).
+ *   - Each match includes the offsets of the matching characters, so
+ *     that callers can highlight them.
+ *   - Strings can be added and removed individually at any time, so an
+ *     index can be kept up to date incrementally rather than rebuilt.
+ * An index can be loaded from any dataset with {@code record} children,
+ * such as the result of {@code SqlDataManager.findWithSql}; see
+ * {@code addAll}.  Named indexes can be shared by all requests using
+ * {@code getInstance}.  All of the methods are synchronized, so an index
+ * can be queried and updated concurrently.
+ */
+
+public class PrefixIndex {
+    /**
+     * Objects of this class are returned by {@code find}; each describes
+     * one string that matched the query.
+     */
+    public static class Match {
+        public String value;           // String that matched.
+        public double score;           // Score associated with value.
+        public int highlightStart;     // Index in value of the first
+                                       // character matching the query.
+        public int highlightEnd;       // Index in value of the character
+                                       // just after the last one matching
+                                       // the query.
+
+        public Match(String value, double score, int highlightStart,
+                int highlightEnd) {
+            this.value = value;
+            this.score = score;
+            this.highlightStart = highlightStart;
+            this.highlightEnd = highlightEnd;
+        }
+
+        public String toString() {
+            if (highlightStart == highlightEnd) {
+                return value;
+            }
+            return value.substring(0, highlightStart) + "[" +
+                    value.substring(highlightStart, highlightEnd) + "]" +
+                    value.substring(highlightEnd);
+        }
+    }
+
+    // One object of the following class exists for each string in
+    // the index.
+    protected static class Entry {
+        public String value;           // The string.
+        public double score;           // Score for the string; higher
+                                       // scores are returned first.
+        public ArrayList<String> keys = new ArrayList<String>();
+                                       // Keys in the words map that
+                                       // refer to this entry.
+
+        public Entry(String value, double score) {
+            this.value = value;
+            this.score = score;
+        }
+    }
+
+    // One object of the following class exists for each word in each
+    // string in the index.
+    protected static class Posting {
+        public Entry entry;            // String containing the word.
+        public int offset;             // Index of the word's first
+                                       // character in entry.value.
+
+        public Posting(Entry entry, int offset) {
+            this.entry = entry;
+            this.offset = offset;
+        }
+    }
+
+    // The following comparator orders entries with the best ones
+    // first: highest score, then alphabetical.
+    protected static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.score != b.score) {
+                return (a.score > b.score) ? -1 : 1;
+            }
+            return a.value.compareTo(b.value);
+        }
+    };
+
+    // Keys in the words map are truncated to this many characters, so
+    // that the space used by an index grows linearly with the length of
+    // its strings rather than quadratically.  Queries longer than this
+    // are checked against the full string.
+    protected static final int MAX_KEY_LENGTH = 20;
+
+    // The following hash table maps from names to shared indexes
+    // (see getInstance).
+    protected static HashMap<String,PrefixIndex> indexes =
+            new HashMap<String,PrefixIndex>();
+
+    // Keys are lower-case substrings of the indexed strings, each starting
+    // at the beginning of a word and extending to the end of the string
+    // or MAX_KEY_LENGTH characters, whichever is less; values identify
+    // the strings (and offsets) from which the keys came.  Because the
+    // map is sorted, all of the keys starting with a given prefix are
+    // adjacent.
+    protected TreeMap<String,ArrayList<Posting>> words =
+            new TreeMap<String,ArrayList<Posting>>();
+
+    // Maps from each string in the index to its Entry.
+    protected HashMap<String,Entry> entries = new HashMap<String,Entry>();
+
+    /**
+     * Returns the shared index with a given name, creating an empty index
+     * if none exists.  Applications typically fill in the index when they
+     * start up and update it as their data changes; AutocompleteFormElements
+     * can then refer to the index by name.
+     * @param name                 Name of the desired index.
+     * @return                     The PrefixIndex named {@code name}.
+     */
+    public static synchronized PrefixIndex getInstance(String name) {
+        PrefixIndex index = indexes.get(name);
+        if (index == null) {
+            index = new PrefixIndex();
+            indexes.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * Add a string to the index, or update its score if it is already
+     * in the index.
+     * @param value                String to add to the index.
+     * @param score                Score for the string: when there are more
+     *                             matches than requested, the ones with the
+     *                             highest scores are returned.
+     */
+    public synchronized void add(String value, double score) {
+        Entry entry = entries.get(value);
+        if (entry != null) {
+            entry.score = score;
+            return;
+        }
+        entry = new Entry(value, score);
+        entries.put(value, entry);
+        String lower = toLowerCase(value);
+        for (int i = 0; i < lower.length(); i++) {
+            if (!isWordStart(lower, i)) {
+                continue;
+            }
+            String key = lower.substring(i, Math.min(lower.length(),
+                    i + MAX_KEY_LENGTH));
+            ArrayList<Posting> postings = words.get(key);
+            if (postings == null) {
+                postings = new ArrayList<Posting>(1);
+                words.put(key, postings);
+            }
+            postings.add(new Posting(entry, i));
+            if (!entry.keys.contains(key)) {
+                entry.keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Add each of the records in a dataset to the index.
+     * @param data                 Dataset with one {@code record} child
+     *                             for each string to add (such as the
+     *                             result of an SQL query).
+     * @param valueName            Name of the field in each record that
+     *                             holds the string to add.
+     * @param scoreName            Name of the field in each record that
+     *                             holds the score for the string; records
+     *                             without this field get a score of 0.
+     *                             May be null.
+     */
+    public synchronized void addAll(Dataset data, String valueName,
+            String scoreName) {
+        for (Dataset record : data.getDatasetList("record")) {
+            String score = (scoreName == null) ? null
+                    : record.checkString(scoreName);
+            add(record.getString(valueName),
+                    (score == null) ? 0.0 : Double.parseDouble(score));
+        }
+    }
+
+    /**
+     * Remove all of the strings from the index.
+     */
+    public synchronized void clear() {
+        words.clear();
+        entries.clear();
+    }
+
+    /**
+     * Find the strings in the index that match a query.
+     * @param query                The strings returned will contain a word
+     *                             that starts with this string (ignoring
+     *                             case).
+     * @param limit                Maximum number of matches to return;
+     *                             0 or less means no matches are returned.
+     * @return                     The best matches for {@code query}, in
+     *                             decreasing order of score.  Each match
+     *                             indicates the characters that matched the
+     *                             query; if the query matches several words
+     *                             in a string, the first one is used.
+     */
+    public synchronized ArrayList<Match> find(String query, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<Match>();
+        }
+        String prefix = toLowerCase(query);
+        boolean truncated = prefix.length() > MAX_KEY_LENGTH;
+        String keyPrefix = truncated ? prefix.substring(0, MAX_KEY_LENGTH)
+                : prefix;
+        HashMap<Entry,Integer> offsets = new HashMap<Entry,Integer>();
+
+        // Scan all of the keys starting with prefix, keeping the best
+        // {@code limit} entries in a heap whose root is the worst of them.
+        PriorityQueue<Entry> best = new PriorityQueue<Entry>(limit + 1,
+                Collections.reverseOrder(ORDER));
+        for (Map.Entry<String,ArrayList<Posting>> word :
+                words.tailMap(keyPrefix).entrySet()) {
+            if (!word.getKey().startsWith(keyPrefix)) {
+                break;
+            }
+            for (Posting posting : word.getValue()) {
+                if (truncated && !toLowerCase(
+                        posting.entry.value).startsWith(prefix,
+                        posting.offset)) {
+                    // The key matched but the rest of the query didn't.
+                    continue;
+                }
+                Integer offset = offsets.get(posting.entry);
+                if (offset != null) {
+                    if (posting.offset < offset) {
+                        offsets.put(posting.entry, posting.offset);
+                    }
+                    continue;
+                }
+                offsets.put(posting.entry, posting.offset);
+                best.add(posting.entry);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+
+        Entry[] sorted = best.toArray(new Entry[best.size()]);
+        Arrays.sort(sorted, ORDER);
+        ArrayList<Match> result = new ArrayList<Match>(sorted.length);
+        for (Entry entry : sorted) {
+            int start = offsets.get(entry);
+            result.add(new Match(entry.value, entry.score, start,
+                    start + prefix.length()));
+        }
+        return result;
+    }
+
+    /**
+     * Remove a string from the index.
+     * @param value                String to remove.
+     * @return                     True means the string was removed; false
+     *                             means it wasn't in the index.
+     */
+    public synchronized boolean remove(String value) {
+        Entry entry = entries.remove(value);
+        if (entry == null) {
+            return false;
+        }
+        for (String key : entry.keys) {
+            ArrayList<Posting> postings = words.get(key);
+            Iterator<Posting> it = postings.iterator();
+            while (it.hasNext()) {
+                if (it.next().entry == entry) {
+                    it.remove();
+                }
+            }
+            if (postings.size() == 0) {
+                words.remove(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of strings in the index.
+     * @return                     The number of strings in the index.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Determine whether a word starts at a given position in a string.
+     * @param s                    String to check.
+     * @param i                    Index of a character in {@code s}.
+     * @return                     True means the character at {@code i}
+     *                             is a letter or digit and it is either the
+     *                             first character in {@code s} or it follows
+     *                             a character that is not a letter or digit.
+     */
+    protected static boolean isWordStart(String s, int i) {
+        if (i == 0) {
+            return true;
+        }
+        return Character.isLetterOrDigit(s.charAt(i))
+                && !Character.isLetterOrDigit(s.charAt(i-1));
+    }
+
+    /**
+     * Convert a string to lower case one character at a time, so that the
+     * result has the same length as the original (String.toLowerCase can
+     * change the length for some characters, which would make the
+     * highlight offsets wrong).
+     * @param s                    String to convert.
+     * @return                     Lower-case version of {@code s}.
+     */
+    protected static String toLowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+}
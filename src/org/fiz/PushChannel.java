@@ -0,0 +1,435 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.servlet.http.*;
+import org.apache.log4j.*;
+
+/**
+ * A PushChannel allows the server to update a page without waiting for
+ * the browser to make a request.  Each channel is associated with one
+ * page (using the page identifiers managed by ClientRequest); the server
+ * can queue Javascript for the page at any time, from any thread, and the
+ * browser (see PushChannel.js) retrieves it using either Server-Sent
+ * Events ({@code ajaxEvents}) or long polling ({@code ajaxPoll}).  A
+ * channel is typically created with {@code ClientRequest.getPushChannel}
+ * while rendering a page; interactors can hold on to the channel and
+ * use it to send updates later.
+ *
+ * Each waiting browser occupies a servlet thread, so the number of
+ * connections that may wait at once is limited by {@code maxWaiters};
+ * when the limit is reached, browsers are told to retry after a delay
+ * (which degrades to periodic polling).  Channels that haven't been
+ * contacted by their browser for {@code idleTimeout} milliseconds are
+ * discarded.
+ */
+public class PushChannel implements DirectAjax {
+    // Each Message holds Javascript queued for a page.
+    protected static class Message {
+        public long id;                // Sequence number, starting at 1.
+        public String javascript;      // Code to evaluate in the browser.
+
+        public Message(long id, String javascript) {
+            this.id = id;
+            this.javascript = javascript;
+        }
+    }
+
+    // The following table maps from keys of the form "sessionId/pageId"
+    // to the channel for that page.
+    protected static ConcurrentHashMap<String,PushChannel> channels =
+            new ConcurrentHashMap<String,PushChannel>();
+
+    // Number of browser requests currently waiting for messages.
+    protected static AtomicInteger waiters = new AtomicInteger();
+
+    // Maximum number of browser requests that may wait at once.  This
+    // variable mirrors the "pushMaxWaiters" entry in the main
+    // configuration dataset.
+    public static int maxWaiters = 100;
+
+    // How long (in ms) a long-poll request waits for messages before
+    // returning empty-handed.
+    protected static long pollTimeout = 25000;
+
+    // How long (in ms) an event stream stays open before the server ends
+    // it (the browser reconnects automatically), and how often a comment
+    // is sent to keep the stream alive.
+    protected static long streamDuration = 300000;
+    protected static long keepaliveInterval = 15000;
+
+    // How long (in ms) a browser should wait before trying again when
+    // too many requests are already waiting.
+    protected static long retryDelay = 5000;
+
+    // Channels that haven't been contacted by their browser for this
+    // long (in ms) are discarded.
+    protected static long idleTimeout = 300000;
+
+    // Maximum number of unacknowledged messages retained for a channel;
+    // if more are queued, the oldest ones are discarded.
+    protected static int maxMessages = 1000;
+
+    // The following variable is used for log4j-based logging.
+    protected static Logger logger = Logger.getLogger("org.fiz.PushChannel");
+
+    // Key for this channel in {@code channels}.
+    protected String key;
+
+    // Messages that have been queued but not yet acknowledged by the
+    // browser, in order of id.
+    protected LinkedList<Message> messages = new LinkedList<Message>();
+
+    // Id to use for the next message.
+    protected long nextId = 1;
+
+    // Time (from System.currentTimeMillis) when the browser last
+    // contacted this channel, or when the channel was created.
+    protected volatile long lastAccess;
+
+    // True means the channel has been closed: no more messages will be
+    // delivered and the browser should stop asking for them.
+    protected boolean closed = false;
+
+    /**
+     * Construct a PushChannel.  Normally channels are created by
+     * {@code getInstance}.
+     * @param key                  Key for the channel in {@code channels}.
+     */
+    protected PushChannel(String key) {
+        this.key = key;
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Discards all channels.  Used primarily for testing.
+     */
+    public static void clearCache() {
+        channels.clear();
+    }
+
+    /**
+     * Returns the channel for the page associated with a request,
+     * creating it if it doesn't already exist.  Applications normally
+     * use {@code ClientRequest.getPushChannel} instead, which also
+     * arranges for the browser to connect to the channel.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     The channel for {@code cr}'s page.
+     */
+    public static PushChannel getInstance(ClientRequest cr) {
+        long now = System.currentTimeMillis();
+        discardIdle(now);
+        String key = getKey(cr);
+        PushChannel channel = channels.get(key);
+        if (channel == null) {
+            PushChannel newChannel = new PushChannel(key);
+            channel = channels.putIfAbsent(key, newChannel);
+            if (channel == null) {
+                channel = newChannel;
+            }
+        }
+        channel.lastAccess = now;
+        return channel;
+    }
+
+    /**
+     * This method is invoked by the browser (via long polling) to retrieve
+     * messages for a page.  If no messages are available, the request
+     * waits for a while to see if one arrives.  The response evaluates
+     * the messages and tells the browser when to poll again.  The main
+     * dataset for the request may contain an {@code after} value, which
+     * is the id of the last message the browser received; these messages
+     * are discarded.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     */
+    public static void ajaxPoll(ClientRequest cr) {
+        PushChannel channel = channels.get(getKey(cr));
+        if (channel == null) {
+            cr.evalJavascript("Fiz.PushChannel.stop();\n");
+            return;
+        }
+        long after = parseId(cr.getMainDataset().checkString("after"));
+        long delay = 0;
+        ArrayList<Message> newMessages;
+        if (waiters.incrementAndGet() > maxWaiters) {
+            // Too many requests waiting already: return whatever is
+            // available now and have the browser back off.
+            waiters.decrementAndGet();
+            newMessages = channel.waitForMessages(after, 0);
+            delay = retryDelay;
+        } else {
+            try {
+                newMessages = channel.waitForMessages(after, pollTimeout);
+            }
+            finally {
+                waiters.decrementAndGet();
+            }
+        }
+        if (channel.isClosed() && newMessages.isEmpty()) {
+            cr.evalJavascript("Fiz.PushChannel.stop();\n");
+            return;
+        }
+
+        StringBuilder javascript = new StringBuilder();
+        javascript.append("Fiz.PushChannel.received(");
+        javascript.append((newMessages.isEmpty()) ? after
+                : newMessages.get(newMessages.size() - 1).id);
+        javascript.append(", ");
+        javascript.append(delay);
+        javascript.append(", [");
+        String separator = "";
+        for (Message message : newMessages) {
+            javascript.append(separator);
+            javascript.append('"');
+            Html.escapeStringChars(message.javascript, javascript);
+            javascript.append('"');
+            separator = ", ";
+        }
+        javascript.append("]);\n");
+        cr.evalJavascript(javascript);
+    }
+
+    /**
+     * This method is invoked by the browser (via EventSource) to receive
+     * messages for a page as a stream of Server-Sent Events.  The stream
+     * stays open until the channel is closed or {@code streamDuration}
+     * elapses; the browser then reconnects, passing the id of the last
+     * message it received in the {@code Last-Event-ID} header.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     */
+    public static void ajaxEvents(ClientRequest cr) {
+        HttpServletResponse response = cr.getServletResponse();
+        PushChannel channel = channels.get(getKey(cr));
+        if (channel == null) {
+            // Status 204 tells the browser not to reconnect.
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        String lastEventId = cr.getServletRequest().getHeader(
+                "Last-Event-ID");
+        long after = parseId((lastEventId != null) ? lastEventId
+                : cr.getMainDataset().checkString("after"));
+        response.setContentType("text/event-stream");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter writer;
+        try {
+            writer = response.getWriter();
+        }
+        catch (IOException e) {
+            logger.error("I/O error retrieving response writer in " +
+                    "PushChannel.ajaxEvents: " +
+                    StringUtil.lcFirst(e.getMessage()));
+            return;
+        }
+        writer.write("retry: " + retryDelay + "\n\n");
+        if (waiters.incrementAndGet() > maxWaiters) {
+            // Too many requests waiting already; end the stream now and
+            // let the browser reconnect after the retry delay.
+            waiters.decrementAndGet();
+            writer.flush();
+            return;
+        }
+        try {
+            long end = System.currentTimeMillis() + streamDuration;
+            while (true) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                ArrayList<Message> newMessages = channel.waitForMessages(
+                        after, Math.min(remaining, keepaliveInterval));
+                if (newMessages.isEmpty()) {
+                    if (channel.isClosed()) {
+                        writer.write("event: close\ndata: \n\n");
+                        writer.flush();
+                        break;
+                    }
+                    writer.write(": keepalive\n\n");
+                }
+                for (Message message : newMessages) {
+                    writer.write("id: " + message.id + "\n");
+                    for (String line : message.javascript.split("\n")) {
+                        writer.write("data: " + line + "\n");
+                    }
+                    writer.write("\n");
+                    after = message.id;
+                }
+                writer.flush();
+                if (writer.checkError()) {
+                    // The browser has gone away.
+                    break;
+                }
+            }
+        }
+        finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes the channel: messages already queued will be delivered, but
+     * then the browser will stop listening for more and the channel is
+     * discarded.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        channels.remove(key, this);
+    }
+
+    /**
+     * Queue Javascript code to be evaluated by the browser for this page.
+     * @param javascript           Javascript code for the browser to
+     *                             execute.  Must end with a semi-colon
+     *                             and a newline.
+     */
+    public synchronized void evalJavascript(CharSequence javascript) {
+        if (closed) {
+            return;
+        }
+        messages.add(new Message(nextId, javascript.toString()));
+        nextId++;
+        if (messages.size() > maxMessages) {
+            logger.warn("discarding message " + messages.getFirst().id +
+                    " for push channel \"" + key + "\": too many " +
+                    "unacknowledged messages");
+            messages.removeFirst();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queue Javascript code to be evaluated by the browser for this page.
+     * @param template             Javascript code to execute, in the same
+     *                             form as for
+     *                             {@code ClientRequest.evalJavascript}.
+     * @param indexedData          Values to substitute into
+     *                             {@code template}.
+     */
+    public void evalJavascript(String template, Object ... indexedData) {
+        StringBuilder javascript = new StringBuilder(template.length() + 20);
+        Template.appendJs(javascript, template, indexedData);
+        evalJavascript(javascript);
+    }
+
+    /**
+     * Returns true if the channel has been closed.
+     * @return                     True means {@code close} has been
+     *                             invoked.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Queue an update that replaces the innerHTML of an element in this
+     * page.
+     * @param id                   {@code id} attribute for an HTML element
+     *                             in the page.
+     * @param html                 New HTML for the element.
+     */
+    public void updateElement(String id, String html) {
+        evalJavascript("document.getElementById(\"@1\").innerHTML = \"@2\";\n",
+                id, html);
+    }
+
+    /**
+     * Discard channels whose browsers haven't contacted them recently.
+     * @param now                  Current time, in ms.
+     */
+    protected static void discardIdle(long now) {
+        for (PushChannel channel : channels.values()) {
+            if ((now - channel.lastAccess) > idleTimeout) {
+                channels.remove(channel.key, channel);
+            }
+        }
+    }
+
+    /**
+     * Returns the key in {@code channels} for the page associated with
+     * a request.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Key of the form "sessionId/pageId".
+     */
+    protected static String getKey(ClientRequest cr) {
+        HttpSession session = cr.getServletRequest().getSession(true);
+        return session.getId() + "/" + cr.getPageId();
+    }
+
+    /**
+     * Converts a message id received from the browser into a number.
+     * @param id                   String form of the id, or null.
+     * @return                     The numeric id, or 0 if {@code id}
+     *                             is null or invalid.
+     */
+    protected static long parseId(String id) {
+        if (id == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(id.trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Discard acknowledged messages and return those remaining, waiting
+     * for a while if there are none.
+     * @param after                The browser has received all messages
+     *                             with ids up to and including this one;
+     *                             they are discarded.
+     * @param timeout              Maximum time to wait, in ms.  0 means
+     *                             don't wait.
+     * @return                     Messages with ids greater than
+     *                             {@code after}, in order.  Empty if no
+     *                             messages arrived before the timeout or
+     *                             the channel was closed.
+     */
+    protected synchronized ArrayList<Message> waitForMessages(long after,
+            long timeout) {
+        lastAccess = System.currentTimeMillis();
+        while (!messages.isEmpty() && (messages.getFirst().id <= after)) {
+            messages.removeFirst();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        while (messages.isEmpty() && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+        lastAccess = System.currentTimeMillis();
+        return new ArrayList<Message>(messages);
+    }
+}
@@ -20,6 +20,20 @@ package org.fiz;
  * or more Sections.  For example, one Section might display a table and
  * another a form.  It is also possible for a Section to contain multiple
  * nested Sections.
+ *
+ * Sections that generate the same output for the same inputs on every
+ * request can have that output cached (see FragmentCache).  For most
+ * Sections this is controlled with the following properties:
+ *   cacheKey:       (optional) Template that is expanded with the main
+ *                   dataset to identify the section's output; Sections of
+ *                   the same class whose keys expand to the same value
+ *                   must generate identical output.  If this property is
+ *                   present, the section's output is cached when it is
+ *                   rendered with {@code ClientRequest.showSections}.
+ *   cacheTtl:       (optional) Number of seconds that cached output
+ *                   remains valid.  Defaults to 60.
+ * A Section that has side effects other than generating HTML, CSS, and
+ * Javascript (such as setting page properties) must not be cached.
  */
 
 public abstract class Section {
@@ -28,6 +42,10 @@ public abstract class Section {
     // be null.
     public Dataset properties = null;
 
+    // Lifetime of cached output, in milliseconds, if there is no
+    // {@code cacheTtl} property.
+    protected static final long DEFAULT_CACHE_TTL = 60000;
+
     /**
      * Return the {@code id} property for this section, or null if no
      * such property exists.
@@ -60,6 +78,52 @@ public abstract class Section {
                 " object has no id");
     }
 
+    /**
+     * Returns a key identifying the output this section will generate
+     * for the current request, which allows the output to be cached (see
+     * FragmentCache).  The default implementation uses the
+     * {@code cacheKey} property; subclasses may override this method.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Null means the section's output must
+     *                             not be cached.  Otherwise, any section
+     *                             that returns the same key must generate
+     *                             identical output.
+     */
+    public String getCacheKey(ClientRequest cr) {
+        if (properties == null) {
+            return null;
+        }
+        String template = properties.checkString("cacheKey");
+        if (template == null) {
+            return null;
+        }
+        return getClass().getName() + ":" + Template.expandRaw(template,
+                cr.getMainDataset());
+    }
+
+    /**
+     * Returns the number of milliseconds for which this section's cached
+     * output remains valid (see {@code getCacheKey}).  The default
+     * implementation uses the {@code cacheTtl} property, which is in
+     * seconds.
+     * @return                     Lifetime of cached output, in
+     *                             milliseconds.
+     */
+    public long getCacheTtl() {
+        String ttl = (properties == null) ? null
+                : properties.checkString("cacheTtl");
+        if (ttl == null) {
+            return DEFAULT_CACHE_TTL;
+        }
+        try {
+            return Long.parseLong(ttl.trim())*1000;
+        } catch (NumberFormatException e) {
+            throw new InternalError(getClass().getSimpleName() +
+                    " has bad cacheTtl value \"" + ttl + "\"");
+        }
+    }
+
     /**
      * This method is invoked to generate HTML for this section and append
      * it to the Html object associated with {@code request}.  It may also
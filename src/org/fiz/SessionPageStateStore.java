@@ -0,0 +1,144 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.Serializable;
+import javax.servlet.http.*;
+
+/**
+ * SessionPageStateStore keeps the state for each page in the session
+ * for the request, using a PageState.AllPageInfo object stored under
+ * the key {@code fiz.PageState}.  Only the most recently accessed
+ * pages in each session are retained (see the {@code maxPageStates}
+ * configuration option).  This is the default store; it is the right
+ * choice when sessions must be shared among several servers, such as
+ * on Google AppEngine.
+ */
+public class SessionPageStateStore implements PageStateStore {
+    // An object of the following class is stored in each session under
+    // the key {@code fiz.PageStateLock}; it is locked while the page
+    // state in the session is being accessed.  The HttpSession object
+    // itself can't be used for this, because servlet containers may
+    // return different objects for the same session in different
+    // requests.
+    protected static class Lock implements Serializable {}
+
+    /**
+     * Find and return the state object for a page.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param create               True means create a new state object
+     *                             if one doesn't already exist.
+     * @return                     Returns the page state object for the
+     *                             page, or null if there is no state for
+     *                             the page and {@code create} is false.
+     */
+    public PageState get(ClientRequest cr, String id, boolean create) {
+        HttpSession session = cr.getServletRequest().getSession();
+
+        // Requests for different sessions never share state, so it is
+        // sufficient to serialize the requests for each session.
+        synchronized (getLock(session)) {
+            PageState.AllPageInfo info = (PageState.AllPageInfo)
+                    session.getAttribute("fiz.PageState");
+            String lastId = null;
+            if (info == null) {
+                if (create) {
+                    info = new PageState.AllPageInfo();
+                    session.setAttribute("fiz.PageState", info);
+                } else {
+                    return null;
+                }
+            } else {
+                // Remember the most recently used page, so we can tell
+                // whether this access changes the LRU order.
+                for (String key : info.keySet()) {
+                    lastId = key;
+                }
+            }
+            PageState state = info.get(id);
+            if (state != null) {
+                if (!id.equals(lastId)) {
+                    info.reordered = true;
+                }
+                return state;
+            }
+            if (create) {
+                state = new PageState();
+                info.put(id, state);
+                info.reordered = true;
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Rewrites the page state for the session into the session.  This is
+     * necessary to make page properties work in GoogleAppEngine, where the
+     * introspection into modified session-bound objects is not sufficient
+     * to detect all the nested changes occurring within PageState and any
+     * subsidiary objects it may contain.  Nothing is written if neither
+     * the page's properties nor the LRU order of the pages has changed
+     * during this request, so read-only requests don't cause the session
+     * to be rewritten.  When the session is rewritten, pages other than
+     * this one reuse their previously serialized form (see
+     * {@code PageState.writeObject}).
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @param id                   Unique identifier for the page.
+     * @param state                The page's state object.
+     */
+    public void flush(ClientRequest cr, String id, PageState state) {
+        HttpSession session = cr.getServletRequest().getSession(true);
+        synchronized (getLock(session)) {
+            PageState.AllPageInfo info = (PageState.AllPageInfo)
+                    session.getAttribute("fiz.PageState");
+            if (info == null) {
+                info = new PageState.AllPageInfo();
+            } else if (!state.isDirty() && !info.reordered
+                    && (info.get(id) == state)) {
+                return;
+            }
+            info.put(id, state);
+            info.reordered = false;
+            session.setAttribute("fiz.PageState", info);
+        }
+    }
+
+    /**
+     * Returns the object used to serialize accesses to the page state in
+     * a session, creating it if it doesn't already exist.
+     * @param session              Session whose page state will be
+     *                             accessed.
+     * @return                     The object to lock.
+     */
+    protected static Object getLock(HttpSession session) {
+        Object lock = session.getAttribute("fiz.PageStateLock");
+        if (lock == null) {
+            // Creating the lock must itself be serialized, so that two
+            // requests for a new session don't create different locks.
+            synchronized (SessionPageStateStore.class) {
+                lock = session.getAttribute("fiz.PageStateLock");
+                if (lock == null) {
+                    lock = new Lock();
+                    session.setAttribute("fiz.PageStateLock", lock);
+                }
+            }
+        }
+        return lock;
+    }
+}
@@ -16,6 +16,7 @@
 package org.fiz;
 
 import java.io.*;
+import java.util.concurrent.*;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -27,13 +28,49 @@ import org.apache.log4j.*;
  * handle these, but unfortunately it doesn't serve them from the right
  * place (it ignores the "/static/" part of the URL). All this servlet
  * does is look up the file, compute the correct MIME type for it, and
- * return it.
+ * return it.  If the browser accepts gzip-encoded responses, text files
+ * are returned in compressed form: if a file "x" has an up-to-date
+ * compressed copy "x.gz" (see the "precompress" target in build.xml),
+ * the copy is returned; otherwise the file is compressed the first time
+ * it is requested and the compressed data is cached in memory.
  * TODO: set caching headers in response
  */
 public class StaticServlet extends HttpServlet {
     // File name prefix to prepend to each URL to select a file.
     protected String prefix;
 
+    // One object of the following class exists for each file in
+    // compressedFiles.
+    protected static class CompressedFile {
+        public long lastModified;      // Modification time of the original
+                                       // file when data was computed.
+        public byte[] data;            // Compressed contents of the file,
+                                       // or null if the file shouldn't be
+                                       // sent in compressed form (e.g., it
+                                       // is too small to benefit).
+
+        public CompressedFile(long lastModified, byte[] data) {
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    // Files larger than this many bytes are not compressed on the fly
+    // (unless they have precompressed copies), so that the cache
+    // doesn't consume too much memory.
+    public static int maxCompressLength = 1000000;
+
+    // The following hash table maps from file names to cached compressed
+    // data for those files.
+    protected static ConcurrentHashMap<String,CompressedFile> compressedFiles =
+            new ConcurrentHashMap<String,CompressedFile>();
+
+    // Value for the Cache-Control header in responses whose contents
+    // never change for a given URL (such as bundles, whose names include
+    // hashes of their contents).  It must only be used for successful
+    // responses: otherwise browsers and proxies would cache errors.
+    protected static final String CACHE_FOREVER = "public, max-age=31536000";
+
     // The following variable is used for log4j-based logging.
     protected static Logger logger = Logger.getLogger("org.fiz.Dispatcher");
 
@@ -77,8 +114,83 @@ public class StaticServlet extends HttpServlet {
         if (pathInfo == null) {
             pathInfo = "";
         }
+        if (pathInfo.startsWith("/" + JsBundle.PATH_PREFIX)) {
+            // This is a request for a Javascript bundle.  The name of a
+            // bundle includes a hash of its contents, so the contents for
+            // a given URL never change: browsers can cache it forever.
+            String name = pathInfo.substring(JsBundle.PATH_PREFIX.length()
+                    + 1);
+            if (name.endsWith(".js")) {
+                JsBundle bundle = JsBundle.getBundle(name.substring(0,
+                        name.length() - 3));
+                if (bundle != null) {
+                    response.setHeader("Cache-Control", CACHE_FOREVER);
+                    returnBundle("text/javascript", bundle.getContent(),
+                            bundle.getCompressed(), request, response);
+                    return;
+                }
+            }
+
+            // The bundle isn't in our cache (it may have been created by
+            // a different server); it may have been created ahead of time
+            // (see JsBundle.main), so look for a file.  If there is no
+            // file the response is an error, which must not be cached.
+            if (new File(prefix + pathInfo).isFile()) {
+                response.setHeader("Cache-Control", CACHE_FOREVER);
+            }
+        } else if (pathInfo.startsWith("/" + Css.PATH_PREFIX)) {
+            // This is a request for a stylesheet bundle; see the comments
+            // for Javascript bundles above.  Stylesheet bundles exist only
+            // in memory, so if this server doesn't have the bundle the
+            // response is an error (and must not be cached).
+            String name = pathInfo.substring(Css.PATH_PREFIX.length() + 1);
+            if (name.endsWith(".css")) {
+                Css.Bundle bundle = Css.getBundle(name.substring(0,
+                        name.length() - 4));
+                if (bundle != null) {
+                    response.setHeader("Cache-Control", CACHE_FOREVER);
+                    returnBundle("text/css", bundle.getContent(),
+                            bundle.getCompressed(), request, response);
+                    return;
+                }
+            }
+        }
         returnFile(prefix + pathInfo, getServletConfig().getServletContext(),
-                response);
+                request, response);
+    }
+
+    /**
+     * Return a Javascript or stylesheet bundle (see JsBundle and
+     * Css.Bundle) as the response to an HTTP request.  The bundle is
+     * compressed if the browser accepts gzip encoding.
+     * @param mimeType             MIME type for the response.
+     * @param content              Contents of the bundle.
+     * @param compressed           Contents of the bundle in gzip format,
+     *                             or null if there is no compressed form.
+     * @param request              Information about the HTTP request.
+     * @param response             Used to generate the response.
+     */
+    protected static void returnBundle(String mimeType, byte[] content,
+            byte[] compressed, HttpServletRequest request,
+            HttpServletResponse response) {
+        response.setContentType(mimeType);
+        byte[] data = content;
+        if ((compressed != null) && Compressor.acceptsGzip(request)) {
+            data = compressed;
+            response.setHeader("Content-Encoding", "gzip");
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        response.setContentLength(data.length);
+        try {
+            ServletOutputStream out = response.getOutputStream();
+            out.write(data);
+            out.flush();
+        }
+        catch (IOException e) {
+            logger.error("I/O error sending response in " +
+                    "StaticServlet.returnBundle: " +
+                    StringUtil.lcFirst(e.getMessage()), e);
+        }
     }
 
     /**
@@ -86,10 +198,14 @@ public class StaticServlet extends HttpServlet {
      * the response to an HTTP request.
      * @param fileName             Path name for the file to be returned.
      * @param context              Used to compute the MIME type for the file.
+     * @param request              Information about the HTTP request (used
+     *                             to determine whether the browser accepts
+     *                             compressed responses); null means
+     *                             always return the file uncompressed.
      * @param response             Used to generate the response.
      */
     protected static void returnFile(String fileName, ServletContext context,
-            HttpServletResponse response) {
+            HttpServletRequest request, HttpServletResponse response) {
         InputStream fileSource;
         try {
             fileSource = new FileInputStream(fileName);
@@ -114,14 +230,28 @@ public class StaticServlet extends HttpServlet {
             response.setHeader("Content-Disposition",
                     "filename=\"" + new File(fileName).getName() + "\"");
 
-            // Write the contents of fileSource into the servlet response
-            // stream.
+            // Send a compressed version of the file if the browser accepts
+            // one and one is available.
             message = "I/O error sending response in " +
                     "StaticServlet.returnFile: ";
-            int length;
-            byte[] buf = new byte[4096];
-            while ((length = fileSource.read(buf)) != -1) {
-                out.write(buf, 0, length);
+            byte[] compressed = null;
+            if ((request != null) && Compressor.isCompressible(mimeType)
+                    && Compressor.acceptsGzip(request)) {
+                compressed = getCompressed(fileName);
+            }
+            if (compressed != null) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.setHeader("Vary", "Accept-Encoding");
+                response.setContentLength(compressed.length);
+                out.write(compressed);
+            } else {
+                // Write the contents of fileSource into the servlet
+                // response stream.
+                int length;
+                byte[] buf = new byte[4096];
+                while ((length = fileSource.read(buf)) != -1) {
+                    out.write(buf, 0, length);
+                }
             }
         }
         catch (IOException e) {
@@ -149,6 +279,47 @@ public class StaticServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Returns the compressed form of a file, computing it if necessary.
+     * @param fileName             Path name for the file.
+     * @return                     The contents of {@code fileName} in gzip
+     *                             format, or null if the file should be
+     *                             sent uncompressed (e.g., it is too small
+     *                             to benefit from compression).
+     * @throws IOException         An error occurred while reading the file.
+     */
+    protected static byte[] getCompressed(String fileName) throws IOException {
+        File file = new File(fileName);
+        long lastModified = file.lastModified();
+        CompressedFile cached = compressedFiles.get(fileName);
+        if ((cached != null) && (cached.lastModified == lastModified)) {
+            return cached.data;
+        }
+
+        // Nothing useful in the cache; first, see if there is an up-to-date
+        // precompressed copy of the file.  If not, compress the file
+        // ourselves.  If two threads get here at the same time they will
+        // both compute the same result, which is harmless.
+        byte[] data = null;
+        File precompressed = new File(fileName + ".gz");
+        if (precompressed.exists() &&
+                (precompressed.lastModified() >= lastModified)) {
+            data = Compressor.readFile(precompressed);
+        } else {
+            long length = file.length();
+            if ((length >= Compressor.minimumLength)
+                    && (length <= maxCompressLength)) {
+                byte[] contents = Compressor.readFile(file);
+                data = Compressor.gzip(contents, contents.length);
+                if (data.length >= contents.length) {
+                    data = null;
+                }
+            }
+        }
+        compressedFiles.put(fileName, new CompressedFile(lastModified, data));
+        return data;
+    }
+
     /**
      * Return a "file not found" response to the HTTP request.
      * @param response             Information about the HTTP response,
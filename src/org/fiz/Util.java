@@ -16,6 +16,7 @@
 package org.fiz;
 import java.io.*;
 import java.lang.reflect.*;
+import java.security.*;
 import java.util.*;
 import javax.servlet.http.*;
 
@@ -306,6 +307,29 @@ public final class Util {
         }
     }
 
+    /**
+     * Compute a hash of a block of data, suitable for use in URLs that
+     * identify the data by its contents.
+     * @param data                 Data to hash.
+     * @return                     The MD5 hash of {@code data}, as 32
+     *                             hexadecimal digits.
+     */
+    public static String md5Hex(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new InternalError("Util.md5Hex couldn't find MD5 " +
+                    "algorithm");
+        }
+        StringBuilder hex = new StringBuilder(32);
+        for (byte b : digest.digest(data)) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
     /**
      * Given the name of a class and various other information, load the
      * class and construct an instance of it.
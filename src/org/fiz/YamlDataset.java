@@ -22,10 +22,58 @@ import org.ho.yaml.exception.YamlException;
 
 /**
  * YamlDataset allows YAML documents to be accessed using the standard
- * Dataset mechanisms.
+ * Dataset mechanisms.  Parsed YAML files are cached in main memory,
+ * so that repeated requests for the same unchanged file (e.g. from
+ * Config and FileDataManager) don't have to parse it again.
  */
 
 public class  YamlDataset extends Dataset {
+    // The following class holds information about one parsed file in
+    // {@code fileCache}.
+    protected static class CacheEntry {
+        public YamlDataset dataset;    // Parsed contents of the file.  This
+                                       // dataset is never modified and
+                                       // never returned to callers (they
+                                       // get copies instead).
+        public long lastModified;      // Modification time of the file
+                                       // when it was parsed.
+        public long length;            // Size of the file (in bytes)
+                                       // when it was parsed.
+
+        public CacheEntry(YamlDataset dataset, long lastModified,
+                long length) {
+            this.dataset = dataset;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    // The following hash table maps from the canonical name of a YAML
+    // file to the parsed contents of that file.  Entries are kept in
+    // least-recently-used order, so that the oldest entries can be
+    // discarded when the cache gets too large.  An entry is only valid
+    // if the file's modification time and size still match those in
+    // the entry.
+    protected static LinkedHashMap<String,CacheEntry> fileCache
+            = new LinkedHashMap<String,CacheEntry>(16, 0.75f, true);
+
+    // Total size (in bytes of YAML source) of all the files currently
+    // in {@code fileCache}.
+    protected static long cacheBytes = 0;
+
+    // Upper limit on {@code cacheBytes}; least recently used entries are
+    // discarded to stay within this limit.
+    protected static long maxCacheBytes = 16*1024*1024;
+
+    // A file is not cached if it was modified less than this many
+    // milliseconds before we started reading it: modification times
+    // have limited resolution, so a file that is still being written
+    // could change again without its modification time changing.
+    protected static final long RACY_INTERVAL = 2000;
+
+    // Counts the number of times newFileInstance found what it wanted
+    // in {@code fileCache}; used for testing and performance measurement.
+    protected static int cacheHits = 0;
 
     /**
      * This method is only for the use of the static constructors
@@ -57,10 +105,34 @@ public class  YamlDataset extends Dataset {
     }
 
     /**
-     * Create a dataset from information contained in a YAML file.
+     * Discards all of the parsed files in the file cache, so that they
+     * will be reread from disk the next time they are needed.
+     */
+    public static synchronized void clearCache() {
+        fileCache.clear();
+        cacheBytes = 0;
+    }
+
+    /**
+     * Sets the maximum amount of YAML source (measured by file size)
+     * whose parsed form will be retained in the file cache.
+     * @param maxBytes             Limit on the total size of cached files,
+     *                             in bytes; 0 disables caching.
+     */
+    public static synchronized void setCacheLimit(long maxBytes) {
+        maxCacheBytes = maxBytes;
+        trimCache();
+    }
+
+    /**
+     * Create a dataset from information contained in a YAML file.  If
+     * the file has been parsed recently and hasn't changed since then,
+     * the result is copied from a cached version of the file instead of
+     * parsing it again.
      * @param fileName             Name of a file in YAML format
      * @return                     New YamlDataset object containing contents
-     *                             of {@code fileName}
+     *                             of {@code fileName}; the caller may
+     *                             modify it freely.
      * @throws FileNotFoundError   The file doesn't exist or can't be read
      * @throws SyntaxError         The file does not contain well-formed YAML
      */
@@ -68,6 +140,28 @@ public class  YamlDataset extends Dataset {
             throws FileNotFoundError, SyntaxError {
         Object yamlInfo;
 
+        // See if we already have an up-to-date copy of the file.
+        File file = new File(fileName);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        String canonicalName = null;
+        if (lastModified != 0) {
+            try {
+                canonicalName = file.getCanonicalPath();
+            }
+            catch (IOException e) {
+                // Just skip the cache for this file.
+            }
+        }
+        if (canonicalName != null) {
+            YamlDataset cached = getCachedFile(canonicalName, lastModified,
+                    length);
+            if (cached != null) {
+                return copyOf(cached, fileName);
+            }
+        }
+        long startTime = System.currentTimeMillis();
+
         // Note: if we pass the file name to JYaml and let it open the
         // file, JYaml appears to leave the file open (as of 1/2008).
         // To avoid this problem, pass JYaml an open file, which we
@@ -93,7 +187,16 @@ public class  YamlDataset extends Dataset {
             catch (Exception e) { /* Ignore errors during the close */ }
         }
 
-        return checkAndConvert(yamlInfo, fileName);
+        YamlDataset result = checkAndConvert(yamlInfo, fileName);
+        if ((result != null) && (canonicalName != null)
+                && (lastModified < (startTime - RACY_INTERVAL))) {
+            // Cache the newly parsed dataset and give the caller a copy,
+            // so that the cached version can't be modified.
+            cacheFile(canonicalName, new CacheEntry(result, lastModified,
+                    length));
+            return copyOf(result, fileName);
+        }
+        return result;
     }
 
     /**
@@ -333,6 +436,111 @@ public class  YamlDataset extends Dataset {
         return out.toString();
     }
 
+    /**
+     * Look up a file in the file cache.
+     * @param canonicalName        Canonical name of the file.
+     * @param lastModified         Current modification time for the file.
+     * @param length               Current size of the file.
+     * @return                     The cached contents of the file, or null
+     *                             if the file isn't in the cache or has
+     *                             changed since it was cached.  The caller
+     *                             must not modify the result.
+     */
+    protected static synchronized YamlDataset getCachedFile(
+            String canonicalName, long lastModified, long length) {
+        CacheEntry entry = fileCache.get(canonicalName);
+        if (entry == null) {
+            return null;
+        }
+        if ((entry.lastModified != lastModified) || (entry.length != length)) {
+            // The file has changed; the cached information is useless.
+            fileCache.remove(canonicalName);
+            cacheBytes -= entry.length;
+            return null;
+        }
+        cacheHits++;
+        return entry.dataset;
+    }
+
+    /**
+     * Add information to the file cache, discarding older entries if
+     * needed to stay within the size limit.
+     * @param canonicalName        Canonical name of the file.
+     * @param entry                Parsed contents of the file, plus
+     *                             information used to detect modifications.
+     */
+    protected static synchronized void cacheFile(String canonicalName,
+            CacheEntry entry) {
+        CacheEntry old = fileCache.put(canonicalName, entry);
+        if (old != null) {
+            cacheBytes -= old.length;
+        }
+        cacheBytes += entry.length;
+        trimCache();
+    }
+
+    /**
+     * Discard the least recently used entries in the file cache until
+     * the total size of the cache is within its limit.  The caller must
+     * hold the class lock.
+     */
+    protected static void trimCache() {
+        Iterator<CacheEntry> it = fileCache.values().iterator();
+        while ((cacheBytes > maxCacheBytes) && it.hasNext()) {
+            cacheBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Makes a deep copy of a dataset created by {@code checkAndConvert},
+     * so that the copy can be modified without affecting the original.
+     * This is much faster than parsing the YAML source again.
+     * @param source               Dataset to copy.
+     * @param fileName             File name for the new dataset.
+     * @return                     A new dataset with the same contents
+     *                             as {@code source}.
+     */
+    @SuppressWarnings("unchecked")
+    protected static YamlDataset copyOf(Dataset source, String fileName) {
+        YamlDataset dest = new YamlDataset(new HashMap<String,Object>(
+                (source.map.size()*4)/3 + 1), fileName);
+        for (Map.Entry<String,Object> pair : source.map.entrySet()) {
+            Object value = pair.getValue();
+            if (value instanceof DSArrayList) {
+                DSArrayList<Object> sourceList = (DSArrayList<Object>) value;
+                DSArrayList<Object> destList =
+                        new DSArrayList<Object>(sourceList.size());
+                for (Object value2 : sourceList) {
+                    destList.add(copyValue(value2, fileName));
+                }
+                value = destList;
+            } else {
+                value = copyValue(value, fileName);
+            }
+            dest.map.put(pair.getKey(), value);
+        }
+        return dest;
+    }
+
+    /**
+     * Copy a single (non-list) value for {@code copyOf}.
+     * @param value                Value from a dataset created by
+     *                             {@code checkAndConvert}.
+     * @param fileName             File name for nested datasets.
+     * @return                     A copy of {@code value} if it is a
+     *                             dataset, otherwise {@code value} itself.
+     */
+    protected static Object copyValue(Object value, String fileName) {
+        if (value instanceof YamlDataset) {
+            return copyOf((Dataset) value, fileName);
+        }
+        if (value instanceof Dataset) {
+            return ((Dataset) value).clone();
+        }
+        return value;
+    }
+
     /**
      * This method is called to scan a YAML dataset immediately after
      * it is parsed.  The method handles 2 situations: HashMaps are turned
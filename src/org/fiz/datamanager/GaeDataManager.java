@@ -17,6 +17,7 @@ package org.fiz.datamanager;
 
 import org.fiz.*;
 import java.util.*;
+import java.util.concurrent.Future;
 import org.apache.log4j.Logger;
 import com.google.appengine.api.datastore.*;
 
@@ -61,12 +62,46 @@ import com.google.appengine.api.datastore.*;
  *                      Key as an ancestor.  Entities and their ancestors do
  *                      not necessarily have the same kind.
  *
+ * Queries normally return all of their results at once.  For large kinds,
+ * {@code findPageByQuery} returns one page of results at a time along with
+ * a cursor for fetching the next page, and {@code iterateByQuery} converts
+ * Entities to Datasets one at a time as the caller consumes them.  Both
+ * take a QueryOptions object, which can also restrict the properties that
+ * are copied into each record.
+ *
+ * Records that are read far more often than they are written can be
+ * cached by passing a GaeEntityCache to {@code setCache}; finds by Key
+ * outside of Transactions are then satisfied from the cache when
+ * possible.
+ *
+ * {@code insertAsync} and {@code deleteAsync} return immediately with a
+ * Future for the result.  Writes made this way outside of Transactions
+ * by any of the requests sharing a GaeDataManager are combined into
+ * batched Datastore calls (see GaeWriteCoalescer); writes under a
+ * Transaction are performed immediately, exactly as by {@code insert}
+ * and {@code delete}.
  */
 public class GaeDataManager {
 
     /* The Dataset key in which an Entity's Key is placed */
     public static final String KEY_PROPERTY = "_key_";
 
+    /* The Dataset key in which paged queries return the cursor for the
+     * next page. */
+    public static final String CURSOR_PROPERTY = "cursor";
+
+    /* Number of Entities retrieved from the Datastore in each batch when
+     * a query doesn't specify otherwise. */
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    /* Default number of milliseconds during which asynchronous writes are
+     * collected into a single batch. */
+    public static final long DEFAULT_WRITE_WINDOW = 10;
+
+    /* Maximum number of Entities or Keys in a batch of asynchronous
+     * writes (the Datastore's limit for a single call). */
+    public static final int MAX_WRITE_BATCH = 500;
+
     /* The following variable is used for log4j-based logging */
     protected static Logger logger = Logger.getLogger(
             "org.fiz.DatastoreDataManager");
@@ -108,6 +143,14 @@ public class GaeDataManager {
     /* The handle on the Datastore used by this DataManager. */
     protected DatastoreService datastore;
 
+    /* Cache of recently read Entities, or null if finds should always go
+     * to the Datastore. */
+    protected GaeEntityCache cache = null;
+
+    /* Collects asynchronous writes into batches. */
+    protected GaeWriteCoalescer writeCoalescer = new GaeWriteCoalescer(this,
+            DEFAULT_WRITE_WINDOW, MAX_WRITE_BATCH);
+
     /**
      * Constructs a new GaeDataManager, acquiring a connection to the
      * Datastore.
@@ -118,6 +161,57 @@ public class GaeDataManager {
         logger.info("DatastoreService instance successfully created.");
     }
 
+    /**
+     * Returns the cache used by this data manager.
+     *
+     * @return          The GaeEntityCache passed to the last call to
+     *                  {@code setCache}, or null if there is none.
+     */
+    public GaeEntityCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Arranges for {@code findByKey} and {@code findMappingByKey} to
+     * satisfy requests from a cache of recently read Entities when they
+     * are not invoked under a Transaction.  Entities inserted or deleted
+     * through this data manager are removed from the cache.
+     *
+     * @param cache     The cache to use, or null to read every Entity
+     *                  from the Datastore.
+     */
+    public void setCache(GaeEntityCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Issues any asynchronous writes that are waiting to be batched, and
+     * waits for them to complete.  Writes that no one waits for are
+     * flushed automatically at the end of the request that made them;
+     * requests must call this method themselves before beginning a
+     * Transaction, and for writes made by threads they create.
+     */
+    public void flushWrites() {
+        writeCoalescer.flush();
+    }
+
+    /**
+     * Changes how asynchronous writes are batched.
+     *
+     * @param window        Number of milliseconds during which writes are
+     *                      collected into a single batch; 0 means each
+     *                      write is issued as soon as its result is
+     *                      needed.
+     * @param maxBatch      A batch is closed once it contains this many
+     *                      Entities or Keys (no more than
+     *                      MAX_WRITE_BATCH).
+     */
+    public void setWriteBatching(long window, int maxBatch) {
+        flushWrites();
+        writeCoalescer = new GaeWriteCoalescer(this, window,
+                Math.min(maxBatch, MAX_WRITE_BATCH));
+    }
+
     /**
      * Returns a new Transaction on the Datastore.  That Transaction is
      * considered the current Transaction (and is used implicitly for all
@@ -334,6 +428,243 @@ public class GaeDataManager {
         }
     }
 
+    /**
+     * Controls how the results of a query are retrieved by
+     * {@code findPageByQuery} and {@code iterateByQuery}:
+     *
+     * - Limit:       the maximum number of records to return (for
+     * {@code findPageByQuery}, the size of a page).
+     * - Offset:      the number of matching records to skip before the
+     * first one returned.
+     * - Cursor:      a value returned by a previous call to
+     * {@code findPageByQuery}; the query continues where that call left off.
+     * Setting a cursor replaces any offset.
+     * - Chunk size:  the number of Entities the Datastore returns in each
+     * batch.  Larger chunks mean fewer round trips but more memory.
+     * - Properties:  if specified, only these properties (and the Entity Key)
+     * are copied into each record.
+     *
+     * All of the setters return the QueryOptions object, so they can be
+     * chained.
+     */
+    public static class QueryOptions {
+        /* Maximum number of records to return, or -1 for no limit. */
+        protected int limit = -1;
+        /* Number of matching records to skip. */
+        protected int offset = 0;
+        /* Number of Entities to fetch from the Datastore in each batch. */
+        protected int chunkSize = DEFAULT_CHUNK_SIZE;
+        /* Names of the properties to copy into records; null means copy
+         * all of them. */
+        protected String[] properties = null;
+
+        /**
+         * Constructs a QueryOptions object that returns all matching
+         * records, with all of their properties.
+         */
+        public QueryOptions() {
+        }
+
+        /**
+         * Sets the number of Entities the Datastore returns in each batch.
+         *
+         * @param chunkSize     Batch size; must be greater than zero.
+         * @return              This object.
+         */
+        public QueryOptions setChunkSize(int chunkSize) {
+            if (chunkSize <= 0) {
+                throw new InvalidQueryError("Chunk size (" + chunkSize +
+                        ") must be greater than zero.");
+            }
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Continues a query from the point where an earlier page of its
+         * results ended.
+         *
+         * @param cursor        The {@code CURSOR_PROPERTY} value from the
+         *                      result of an earlier call to
+         *                      {@code findPageByQuery} with the same
+         *                      query.  Null means start at the beginning.
+         * @return              This object.
+         */
+        public QueryOptions setCursor(String cursor) {
+            if (cursor == null) {
+                offset = 0;
+                return this;
+            }
+            // The Datastore version we build against doesn't provide
+            // cursors, so the cursor records the number of records
+            // returned so far.  Callers should treat it as opaque.
+            try {
+                offset = Integer.parseInt(cursor);
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0) {
+                throw new InvalidQueryError("Cursor (" + cursor +
+                        ") is not valid.");
+            }
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of records to return.
+         *
+         * @param limit         Maximum number of records; must be greater
+         *                      than zero (a limit of zero would return a
+         *                      cursor that never advances).
+         * @return              This object.
+         */
+        public QueryOptions setLimit(int limit) {
+            if (limit <= 0) {
+                throw new InvalidQueryError("Limit (" + limit +
+                        ") must be greater than zero.");
+            }
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Sets the number of matching records to skip.
+         *
+         * @param offset        Number of records to skip; must not be
+         *                      negative.
+         * @return              This object.
+         */
+        public QueryOptions setOffset(int offset) {
+            if (offset < 0) {
+                throw new InvalidQueryError("Offset (" + offset +
+                        ") must not be negative.");
+            }
+            this.offset = offset;
+            return this;
+        }
+
+        /**
+         * Restricts the properties that are copied into each record.
+         *
+         * @param properties    Names of the Entity properties to copy.  The
+         *                      Entity Key is always included.
+         * @return              This object.
+         */
+        public QueryOptions setProperties(String ... properties) {
+            this.properties = properties;
+            return this;
+        }
+
+        /**
+         * Returns the cursor to use for the page of results following one
+         * that returned a given number of records.
+         *
+         * @param count         Number of records in the current page.
+         * @return              A value for {@code setCursor}.
+         */
+        protected String getNextCursor(int count) {
+            return Integer.toString(offset + count);
+        }
+
+        /**
+         * Creates the FetchOptions that the Datastore should use for a
+         * query with these options.
+         *
+         * @param extra         Number of Entities to fetch beyond the limit
+         *                      (used to find out whether there are more
+         *                      results).
+         * @return              FetchOptions for the query.
+         */
+        protected FetchOptions toFetchOptions(int extra) {
+            FetchOptions result = FetchOptions.Builder.withChunkSize(
+                    chunkSize);
+            if (limit >= 0) {
+                result.limit(limit + extra);
+
+                // Retrieve small pages in a single round trip.
+                result.prefetchSize(Math.min(limit + extra, chunkSize));
+            }
+            if (offset > 0) {
+                result.offset(offset);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Iterates over the results of a query, converting each Entity to a
+     * Dataset only when it is requested.  If the Datastore reports an
+     * error, the iterator returns a single Dataset containing the error
+     * information and then stops.
+     */
+    protected static class QueryIterator implements Iterator<Dataset> {
+        /* Source of Entities; null means the iteration is over. */
+        protected Iterator<Entity> entities;
+        /* Properties to copy into each record, or null for all. */
+        protected String[] properties;
+        /* If non-null, an error to return from the next call to
+         * {@code next}, after which the iteration is over. */
+        protected Dataset error;
+
+        /**
+         * Constructs a QueryIterator.
+         *
+         * @param entities      Entities to convert; null if the query
+         *                      couldn't be executed.
+         * @param properties    Properties to copy into each record, or null
+         *                      to copy all of them.
+         * @param error         If non-null, the query failed and this
+         *                      Dataset (containing error information) is
+         *                      the only one returned.
+         */
+        public QueryIterator(Iterator<Entity> entities, String[] properties,
+                Dataset error) {
+            this.entities = entities;
+            this.properties = properties;
+            this.error = error;
+        }
+
+        public boolean hasNext() {
+            if (error != null) {
+                return true;
+            }
+            if (entities == null) {
+                return false;
+            }
+            try {
+                return entities.hasNext();
+            } catch (RuntimeException e) {
+                error = queryError(e);
+                return true;
+            }
+        }
+
+        public Dataset next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (error != null) {
+                Dataset result = error;
+                error = null;
+                entities = null;
+                return result;
+            }
+            try {
+                return entityToDataset(entities.next(), properties);
+            } catch (NoSuchElementException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                entities = null;
+                return queryError(e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "QueryIterator doesn't support remove");
+        }
+    }
+
 
     /* FIND BY KEY */
     /**
@@ -408,6 +739,9 @@ public class GaeDataManager {
         boolean nullTxn = (txn == null);
         Dataset result = null;
         try {
+            if ((cache != null) && !inTransaction(txn)) {
+                return findCachedKey(keyMapping, keys);
+            }
             if (keys.length == 1) { // If only one Key was specified.
                 Entity entity = nullTxn ?
                     datastore.get(keys[0]) :
@@ -442,6 +776,66 @@ public class GaeDataManager {
         }
     }
 
+    /**
+     * Performs a get operation outside of any Transaction, using the cache
+     * for as many of the Keys as possible and reading the rest from the
+     * Datastore (and adding them to the cache).  The result has the same
+     * form as that of {@code handleFindKey}.
+     *
+     * @param keyMapping    Whether or not the results should be mapped by
+     *                      String-ified Key.
+     * @param keys          The Keys of the records to find.
+     * @return              A Dataset containing the found records.
+     */
+    protected Dataset findCachedKey(boolean keyMapping, Key ... keys) {
+        Map<Key, Entity> entities = new LinkedHashMap<Key, Entity>();
+        ArrayList<Key> missing = null;
+        for (Key key : keys) {
+            Entity entity = cache.get(key);
+            if (entity != null) {
+                entities.put(key, entity);
+            } else {
+                if (missing == null) {
+                    missing = new ArrayList<Key>();
+                }
+                missing.add(key);
+            }
+        }
+
+        if (missing != null) {
+            long generation = cache.getGeneration();
+            long start = System.nanoTime();
+            Map<Key, Entity> loaded;
+            if (missing.size() == 1) {
+                loaded = new HashMap<Key, Entity>();
+                try {
+                    loaded.put(missing.get(0), datastore.get(missing.get(0)));
+                } catch (EntityNotFoundException e) {
+                    // Leave the record out of the result.
+                }
+            } else {
+                loaded = datastore.get(missing);
+            }
+            cache.recordLoad(missing.size(), System.nanoTime() - start);
+            for (Map.Entry<Key, Entity> entity : loaded.entrySet()) {
+                cache.put(entity.getKey(), entity.getValue(), generation);
+                entities.put(entity.getKey(), entity.getValue());
+            }
+        }
+
+        if (keys.length == 1) {
+            Entity entity = entities.get(keys[0]);
+            return (entity == null) ? new Dataset() : entityToDataset(entity);
+        }
+        Dataset result = new Dataset();
+        for (Map.Entry<Key, Entity> entity : entities.entrySet()) {
+            String key = keyMapping ? keyToString(entity.getKey()) :
+                "record";
+            result.add(key, entityToDataset(entity.getValue()));
+        }
+        return result;
+    }
+
 
     /* INSERT (single record) */
     /**
@@ -661,6 +1055,13 @@ public class GaeDataManager {
             return addErrorData(records, ErrType.TXN_INACTIVE, "", e);
         } catch (DatastoreFailureException e) {
             return addErrorData(records, ErrType.DS_FAILURE, "", e);
+        } finally {
+            // Invalidate after the write (even if it failed), so that a
+            // find that read the old value while the write was in
+            // progress can't leave it in the cache.
+            for (Entity entity : entities) {
+                invalidate(txn, entity.getKey());
+            }
         }
     }
 
@@ -711,11 +1112,178 @@ public class GaeDataManager {
             return addErrorData(null, ErrType.TXN_INACTIVE, "", e);
         } catch (DatastoreFailureException e) {
             return addErrorData(null, ErrType.DS_FAILURE, "", e);
+        } finally {
+            for (Key key : keys) {
+                invalidate(txn, key);
+            }
         }
 
         return null;
     }
 
+    /**
+     * Removes a record that has just been written from the cache (if
+     * there is one).  If the write was made under a Transaction, the
+     * record is also kept out of the cache until the Transaction
+     * completes, since until then finds outside the Transaction will
+     * still read the old value.
+     *
+     * @param txn           The Transaction under which the record was
+     *                      written, or null to use the current
+     *                      Transaction, if any.
+     * @param key           The Key of the record.
+     */
+    protected void invalidate(Transaction txn, Key key) {
+        if (cache == null) {
+            return;
+        }
+        if (txn == null) {
+            txn = datastore.getCurrentTransaction(null);
+        }
+        if (txn == null) {
+            cache.remove(key);
+        } else {
+            cache.removeInTransaction(key, txn);
+        }
+    }
+
+
+    /* ASYNCHRONOUS INSERT AND DELETE */
+    /**
+     * Inserts the specified Datasets into the Datastore, using the Datastore
+     * Key implicitly located in those Datasets, without waiting for the
+     * insert to complete.
+     *
+     * @param datasets      The Datasets to insert.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code insert} would have returned.
+     */
+    public Future<Dataset> insertAsync(Dataset ... datasets) {
+        return insertAsync((Transaction)null, datasets);
+    }
+
+    /**
+     * Inserts the specified Datasets into the Datastore, giving them the
+     * specified kind, without waiting for the insert to complete.
+     *
+     * @param kind          The kind (type) of the inserted records.
+     * @param datasets      The Datasets to insert.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code insert} would have returned.
+     */
+    public Future<Dataset> insertAsync(String kind, Dataset ... datasets) {
+        return insertAsync((Transaction)null, kind, datasets);
+    }
+
+    /**
+     * Inserts the specified Datasets into the Datastore, using the Datastore
+     * Key implicitly located in those Datasets.  If {@code txn} is null
+     * the insert is batched with other asynchronous writes; otherwise it
+     * is performed immediately under the Transaction.
+     *
+     * @param txn           The Transaction under which this insert will take
+     *                      place, or null.
+     * @param datasets      The Datasets to insert.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code insert} would have returned.
+     */
+    public Future<Dataset> insertAsync(Transaction txn, Dataset ... datasets) {
+        Entity entities[] = new Entity[datasets.length];
+        for (int i=0; i<datasets.length; i++) {
+            try {
+                entities[i] = datasetToEntity(datasets[i]);
+            } catch (GaeException e) {
+                return new GaeWriteCoalescer.WriteFuture(new Dataset(e));
+            }
+        }
+        return handleInsertAsync(txn, entities);
+    }
+
+    /**
+     * Inserts the specified Datasets into the Datastore, giving them the
+     * specified kind.  If {@code txn} is null the insert is batched with
+     * other asynchronous writes; otherwise it is performed immediately
+     * under the Transaction.
+     *
+     * @param txn           The Transaction under which this insert will take
+     *                      place, or null.
+     * @param kind          The kind (type) of the inserted records.
+     * @param datasets      The Datasets to insert.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code insert} would have returned.
+     */
+    public Future<Dataset> insertAsync(Transaction txn, String kind,
+            Dataset ... datasets) {
+        Entity entities[] = new Entity[datasets.length];
+        for (int i=0; i<datasets.length; i++) {
+            entities[i] = datasetToEntity(kind, datasets[i]);
+        }
+        return handleInsertAsync(txn, entities);
+    }
+
+    /**
+     * Deletes the records with the specified Keys without waiting for the
+     * delete to complete.
+     *
+     * @param keys          The Keys corresponding to the records to delete.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code delete} would have returned.
+     */
+    public Future<Dataset> deleteAsync(Key ... keys) {
+        return deleteAsync(null, keys);
+    }
+
+    /**
+     * Deletes the records with the specified Keys.  If {@code txn} is
+     * null the delete is batched with other asynchronous writes;
+     * otherwise it is performed immediately under the Transaction.
+     *
+     * @param txn           The Transaction under which this delete will take
+     *                      place, or null.
+     * @param keys          The Keys corresponding to the records to delete.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code delete} would have returned.
+     */
+    public Future<Dataset> deleteAsync(Transaction txn, Key ... keys) {
+        if (inTransaction(txn)) {
+            return new GaeWriteCoalescer.WriteFuture(handleDelete(txn, keys));
+        }
+        return writeCoalescer.delete(keys);
+    }
+
+    /**
+     * Starts an asynchronous insert.  Writes under a Transaction (either
+     * {@code txn} or the current Transaction) are performed immediately
+     * so that they remain part of the Transaction; all others are handed
+     * to the write coalescer.
+     *
+     * @param txn           The Transaction under which this insert will take
+     *                      place, or null.
+     * @param entities      The Entities to insert.
+     * @return              A Future whose value is the Dataset that
+     *                      {@code handleInsert} would have returned.
+     */
+    protected Future<Dataset> handleInsertAsync(Transaction txn,
+            Entity ... entities) {
+        if (inTransaction(txn)) {
+            return new GaeWriteCoalescer.WriteFuture(
+                    handleInsert(txn, entities));
+        }
+        return writeCoalescer.put(entities);
+    }
+
+    /**
+     * Returns true if a Datastore call made with a given Transaction
+     * argument would execute under a Transaction.
+     *
+     * @param txn           Transaction passed by the caller, or null.
+     * @return              True if {@code txn} is non-null or there is a
+     *                      current Transaction.
+     */
+    protected boolean inTransaction(Transaction txn) {
+        return (txn != null) || (datastore.getCurrentTransaction(null) != null);
+    }
+
 
     /* FIND BY QUERY */
     /**
@@ -872,11 +1440,131 @@ public class GaeDataManager {
     protected Dataset handleFindQuery(Transaction txn, Key ancestorKey,
             String kind, boolean keyMapping, boolean keysOnly,
             QueryAttribute ... attributes) {
+        return handleQuery(txn, keyMapping, keysOnly, newQuery(ancestorKey,
+                kind, attributes));
+    }
+
+    /* FIND PAGE BY QUERY */
+    /**
+     * Finds one page of the records based on their kind and a list of
+     * QueryAttributes.
+     *
+     * @param kind          The kind (type) of the records to search.
+     * @param options       Specifies the page size and the cursor or offset
+     *                      at which the page starts, and optionally the
+     *                      properties to return.
+     * @param attributes    A series of filters and sorts to govern the query.
+     * @return              A Dataset containing the records in the page,
+     *                      mapped by the attribute "record".  If there are
+     *                      more records after this page, the Dataset also
+     *                      contains a {@code CURSOR_PROPERTY} value to pass
+     *                      to {@code QueryOptions.setCursor} to get the
+     *                      next page.
+     */
+    public Dataset findPageByQuery(String kind, QueryOptions options,
+            QueryAttribute ... attributes) {
+        return findPageByQuery(null, null, kind, options, attributes);
+    }
+
+    /**
+     * Finds one page of the records based on their ancestor Key, their
+     * kind, and a list of QueryAttributes.
+     *
+     * @param txn           The Transaction under which this query will take
+     *                      place.
+     * @param ancestorKey   The ancestor Key of the records to search.
+     * @param kind          The kind (type) of the records to search.
+     * @param options       Specifies the page size and the cursor or offset
+     *                      at which the page starts, and optionally the
+     *                      properties to return.
+     * @param attributes    A series of filters and sorts to govern the query.
+     * @return              A Dataset containing the records in the page,
+     *                      mapped by the attribute "record".  If there are
+     *                      more records after this page, the Dataset also
+     *                      contains a {@code CURSOR_PROPERTY} value to pass
+     *                      to {@code QueryOptions.setCursor} to get the
+     *                      next page.
+     */
+    public Dataset findPageByQuery(Transaction txn, Key ancestorKey,
+            String kind, QueryOptions options, QueryAttribute ... attributes) {
+        return handleQuery(txn, false, false, newQuery(ancestorKey, kind,
+                attributes), options);
+    }
+
+    /* ITERATE BY QUERY */
+    /**
+     * Returns an Iterator over the records matching a query, based on their
+     * kind and a list of QueryAttributes.  Records are retrieved from the
+     * Datastore in batches and converted to Datasets as the caller consumes
+     * them, so the full result never needs to be in memory at once.
+     *
+     * @param kind          The kind (type) of the records to search.
+     * @param options       Specifies the batch size, limit, and offset
+     *                      for the query, and optionally the properties
+     *                      to return; null means use the defaults.
+     * @param attributes    A series of filters and sorts to govern the query.
+     * @return              An Iterator that returns one Dataset for each
+     *                      record.  If an error occurs, the last Dataset
+     *                      returned contains the error information.
+     */
+    public Iterator<Dataset> iterateByQuery(String kind, QueryOptions options,
+            QueryAttribute ... attributes) {
+        return iterateByQuery(null, null, kind, options, attributes);
+    }
+
+    /**
+     * Returns an Iterator over the records matching a query, based on their
+     * ancestor Key, their kind, and a list of QueryAttributes.  Records are
+     * retrieved from the Datastore in batches and converted to Datasets as
+     * the caller consumes them, so the full result never needs to be in
+     * memory at once.
+     *
+     * @param txn           The Transaction under which this query will take
+     *                      place.
+     * @param ancestorKey   The ancestor Key of the records to search.
+     * @param kind          The kind (type) of the records to search.
+     * @param options       Specifies the batch size, limit, and offset
+     *                      for the query, and optionally the properties
+     *                      to return; null means use the defaults.
+     * @param attributes    A series of filters and sorts to govern the query.
+     * @return              An Iterator that returns one Dataset for each
+     *                      record.  If an error occurs, the last Dataset
+     *                      returned contains the error information.
+     */
+    public Iterator<Dataset> iterateByQuery(Transaction txn, Key ancestorKey,
+            String kind, QueryOptions options, QueryAttribute ... attributes) {
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        Query query = newQuery(ancestorKey, kind, attributes);
+        try {
+            PreparedQuery pq = (txn == null) ?
+                datastore.prepare(query) :
+                datastore.prepare(txn, query);
+            return new QueryIterator(pq.asIterator(options.toFetchOptions(0)),
+                    options.properties, null);
+        } catch (RuntimeException e) {
+            return new QueryIterator(null, null, queryError(e));
+        }
+    }
+
+    /**
+     * Creates a Query for Entities of a given kind and ancestry, with a
+     * series of filters and sorts.
+     *
+     * @param ancestorKey   The ancestor Key of the records to search, or
+     *                      null.
+     * @param kind          The kind (type) of the records to search.
+     * @param attributes    A series of filters and sorts to govern the query.
+     * @return              The new Query.
+     */
+    protected static Query newQuery(Key ancestorKey, String kind,
+            QueryAttribute ... attributes) {
         Query query = new Query(kind, ancestorKey);
         for (QueryAttribute attr : attributes) {
             attr.addToQuery(query);
         }
-        return handleQuery(txn, keyMapping, keysOnly, query);
+        return query;
     }
 
 /* FIND BY ANCESTOR */
@@ -1000,24 +1688,56 @@ public class GaeDataManager {
      */
     protected Dataset handleQuery(Transaction txn, boolean keyMapping,
                   boolean keysOnly, Query query) {
+        return handleQuery(txn, keyMapping, keysOnly, query, null);
+    }
+
+    /**
+     * Executes a query operation on the Datastore, returning the records
+     * selected by a QueryOptions object.
+     * @param txn           The Transaction with which to execute this
+     *                      Query.
+     * @param keyMapping    Whether or not the request should store its
+     *                      results mapped by String-ified Key.
+     * @param keysOnly      Whether or not the request should retrieve only
+     *                      the Keys of the Entities matching the query.
+     * @param query         The Datastore Query to execture.
+     * @param options       Selects the records and properties to return;
+     *                      null means return all of them.  If the options
+     *                      specify a limit and there are more records,
+     *                      the result includes a {@code CURSOR_PROPERTY}
+     *                      value for the next page.
+     */
+    protected Dataset handleQuery(Transaction txn, boolean keyMapping,
+                  boolean keysOnly, Query query, QueryOptions options) {
         Dataset results = null;
         if (keysOnly) {
             query.setKeysOnly();
         }
+        if (options == null) {
+            options = new QueryOptions();
+        }
         try {
-            // Prepare and execute the query.
+            // Prepare and execute the query.  If there is a limit, fetch
+            // one extra Entity to find out whether there is another page.
             PreparedQuery pq = (txn == null) ?
                 datastore.prepare(query) :
                 datastore.prepare(txn, query);
             results = new Dataset();
-            for (Entity record : pq.asIterable()) {
+            int count = 0;
+            for (Entity record : pq.asIterable(options.toFetchOptions(1))) {
+                if (count == options.limit) {
+                    results.set(CURSOR_PROPERTY, options.getNextCursor(count));
+                    break;
+                }
                 Key key = record.getKey();
                 // For each record, store it in the Dataset:
                 // - mapped by either "record" or its String-ified Key.
                 // - as a Dataset (the entire Entity) or as just its Key.
                 String attrName = keyMapping ? keyToString(key) : "record";
-                Object attrVal = keysOnly ? key : entityToDataset(record);
+                Object attrVal = keysOnly ? key :
+                    entityToDataset(record, options.properties);
                 results.add(attrName, attrVal);
+                count++;
             }
             return results;
         } catch (IllegalStateException e) {
@@ -1039,23 +1759,34 @@ public class GaeDataManager {
      *                      Entity.
      */
     protected static Dataset entityToDataset(Entity entity) {
+        return entityToDataset(entity, null);
+    }
+
+    /**
+     * Converts an Entity to a Dataset, copying over selected Entity fields
+     * and storing the Entity Key as the Dataset's {@code KEY_PROPERTY}
+     * value.
+     *
+     * @param entity        The Entity to convert.
+     * @param properties    Names of the properties to copy; null means copy
+     *                      all of them.
+     * @return              A Dataset containing the Key and selected
+     *                      contents of the Entity.
+     */
+    protected static Dataset entityToDataset(Entity entity,
+            String[] properties) {
         Dataset result = new Dataset();
 
-        for (Map.Entry<String, Object> property :
-                entity.getProperties().entrySet()) {
-            String key = property.getKey();
-            Object value = property.getValue();
-            // Ensure that the resulting Dataset internally stores an Entity
-            // Collection<T> as a series of single T objects, instead of as a
-            // single Collection<T> object; all Entity collections are intended
-            // as multiple values with the same key, not a single Collection
-            // value.
-            if (value instanceof Collection) {
-                for (Object subVal : (Collection)value) {
-                    result.add(key, subVal);
+        if (properties == null) {
+            for (Map.Entry<String, Object> property :
+                    entity.getProperties().entrySet()) {
+                addProperty(result, property.getKey(), property.getValue());
+            }
+        } else {
+            for (String name : properties) {
+                if (entity.hasProperty(name)) {
+                    addProperty(result, name, entity.getProperty(name));
                 }
-            } else {
-                result.add(key, value);
             }
         }
 
@@ -1065,6 +1796,29 @@ public class GaeDataManager {
         return result;
     }
 
+    /**
+     * Copies the value of one Entity property into a Dataset.
+     *
+     * @param dataset       The value is added to this Dataset.
+     * @param key           The name of the property.
+     * @param value         The value of the property.
+     */
+    protected static void addProperty(Dataset dataset, String key,
+            Object value) {
+        // Ensure that the resulting Dataset internally stores an Entity
+        // Collection<T> as a series of single T objects, instead of as a
+        // single Collection<T> object; all Entity collections are intended
+        // as multiple values with the same key, not a single Collection
+        // value.
+        if (value instanceof Collection) {
+            for (Object subVal : (Collection)value) {
+                dataset.add(key, subVal);
+            }
+        } else {
+            dataset.add(key, value);
+        }
+    }
+
     /**
      * Converts a Dataset to an Entity with the specified parent key and kind.
      *
@@ -1212,4 +1966,24 @@ public class GaeDataManager {
 
         return data;
     }
+
+    /**
+     * Creates a Dataset describing an exception thrown by the Datastore
+     * while executing a query.
+     * @param e             The exception.  IllegalArgumentException,
+     *                      IllegalStateException and
+     *                      DatastoreFailureException are converted to
+     *                      error information; anything else is rethrown.
+     * @return              A Dataset containing the error information.
+     */
+    protected static Dataset queryError(RuntimeException e) {
+        if (e instanceof IllegalStateException) {
+            return addErrorData(null, ErrType.TXN_INACTIVE, "", e);
+        } else if (e instanceof IllegalArgumentException) {
+            return addErrorData(null, ErrType.BAD_ARG, "QueryArgument", e);
+        } else if (e instanceof DatastoreFailureException) {
+            return addErrorData(null, ErrType.DS_FAILURE, "", e);
+        }
+        throw e;
+    }
 }
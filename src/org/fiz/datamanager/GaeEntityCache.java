@@ -0,0 +1,408 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz.datamanager;
+
+import org.fiz.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.appengine.api.datastore.*;
+
+/**
+ * A GaeEntityCache holds recently read Entities so that GaeDataManager
+ * can satisfy {@code findByKey} and {@code findMappingByKey} without
+ * going to the Datastore.  It is enabled by passing one to
+ * {@code GaeDataManager.setCache}.  The cache has two tiers:
+ * - A local tier in this process, which holds a bounded number of
+ *   Entities and discards the least recently used one when it fills.
+ * - An optional shared tier (such as memcache), which is consulted when
+ *   the local tier misses and can be seen by every server.  Shared tiers
+ *   implement the SharedTier interface; LocalSharedTier is an in-memory
+ *   implementation for testing and for single-server deployments.
+ *
+ * Entries in both tiers expire a fixed time after they are loaded.  The
+ * data manager removes an Entity from both tiers whenever it is inserted
+ * or deleted, so this process never sees stale data from its own writes;
+ * writes made by other servers (or directly through the Datastore API)
+ * are visible no later than when the entry expires.  Reads under a
+ * Transaction never use the cache, and an Entity written under a
+ * Transaction is not cached again until that Transaction has been
+ * committed or rolled back (until then, a read outside the Transaction
+ * would load the old value).
+ */
+public class GaeEntityCache {
+    /**
+     * A SharedTier is a cache that can be seen by every server running
+     * the application.  Implementations must be thread-safe.
+     */
+    public static interface SharedTier {
+        /**
+         * Returns the Entity cached for a Key.
+         * @param key          Identifies the desired Entity.
+         * @return             The cached Entity, or null if there is none.
+         */
+        public Entity get(Key key);
+
+        /**
+         * Adds an Entity to the cache, replacing any Entity already cached
+         * for its Key.
+         * @param key          Key for {@code entity}.
+         * @param entity       Entity to cache.
+         * @param ttl          The entry should be discarded after this many
+         *                     milliseconds.
+         */
+        public void put(Key key, Entity entity, long ttl);
+
+        /**
+         * Discards the Entity cached for a Key, if there is one.
+         * @param key          Identifies the Entity to discard.
+         */
+        public void remove(Key key);
+    }
+
+    /**
+     * LocalSharedTier implements SharedTier with a hash table in this
+     * process.  It stands in for a real shared cache during tests and in
+     * deployments with a single server; it has no size limit.
+     */
+    public static class LocalSharedTier implements SharedTier {
+        /* Cached Entities, indexed by Key. */
+        protected ConcurrentHashMap<Key, CacheEntry> entries =
+                new ConcurrentHashMap<Key, CacheEntry>();
+
+        public Entity get(Key key) {
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires <= System.currentTimeMillis()) {
+                entries.remove(key, entry);
+                return null;
+            }
+            return entry.entity;
+        }
+
+        public void put(Key key, Entity entity, long ttl) {
+            entries.put(key, new CacheEntry(entity,
+                    System.currentTimeMillis() + ttl));
+        }
+
+        public void remove(Key key) {
+            entries.remove(key);
+        }
+    }
+
+    /* The following class holds a cached Entity along with its
+     * expiration time. */
+    protected static class CacheEntry {
+        /* The cached Entity. */
+        protected Entity entity;
+
+        /* System.currentTimeMillis() value at which the entry expires. */
+        protected long expires;
+
+        public CacheEntry(Entity entity, long expires) {
+            this.entity = entity;
+            this.expires = expires;
+        }
+    }
+
+    /* The local tier: a LinkedHashMap in access order, which discards its
+     * least recently used entry when it holds more than maxEntries.  Must
+     * be locked while it is being accessed. */
+    protected LinkedHashMap<Key, CacheEntry> local;
+
+    /* Maximum number of Entities in the local tier. */
+    protected int maxEntries;
+
+    /* Number of milliseconds an entry remains valid after it is loaded. */
+    protected long ttl;
+
+    /* The shared tier, or null if there is none. */
+    protected SharedTier shared;
+
+    /* Incremented by every call to remove.  A load that started before
+     * an invalidation may have read the old value from the Datastore, so
+     * the load's results are not cached (see getGeneration). */
+    protected AtomicLong generation = new AtomicLong();
+
+    /* For each Key written under a Transaction that may still be active,
+     * the Transactions that wrote it.  Entities with entries here are not
+     * cached.  Must be locked while it is being accessed. */
+    protected HashMap<Key, ArrayList<Transaction>> pendingWrites =
+            new HashMap<Key, ArrayList<Transaction>>();
+
+    /* Statistics: */
+    protected AtomicLong localHits = new AtomicLong();
+    protected AtomicLong sharedHits = new AtomicLong();
+    protected AtomicLong misses = new AtomicLong();
+    protected AtomicLong loadedEntities = new AtomicLong();
+    protected AtomicLong loadNanos = new AtomicLong();
+
+    /**
+     * Constructs a GaeEntityCache with only a local tier.
+     * @param maxEntries           Maximum number of Entities to keep in
+     *                             this process.
+     * @param ttl                  Number of milliseconds a cached Entity
+     *                             remains valid.
+     */
+    public GaeEntityCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, null);
+    }
+
+    /**
+     * Constructs a GaeEntityCache with both a local and a shared tier.
+     * @param maxEntries           Maximum number of Entities to keep in
+     *                             this process.
+     * @param ttl                  Number of milliseconds a cached Entity
+     *                             remains valid.
+     * @param shared               Shared tier to consult when the local
+     *                             tier misses; null means there is no
+     *                             shared tier.
+     */
+    public GaeEntityCache(final int maxEntries, long ttl, SharedTier shared) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.shared = shared;
+        local = new LinkedHashMap<Key, CacheEntry>(16, (float) 0.75, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry>
+                    eldest) {
+                return size() > GaeEntityCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Discards all of the Entities in the local tier and resets the
+     * statistics.  The shared tier is not affected.
+     */
+    public void clear() {
+        synchronized (local) {
+            generation.incrementAndGet();
+            local.clear();
+        }
+        synchronized (pendingWrites) {
+            pendingWrites.clear();
+        }
+        localHits.set(0);
+        sharedHits.set(0);
+        misses.set(0);
+        loadedEntities.set(0);
+        loadNanos.set(0);
+    }
+
+    /**
+     * Returns the cached Entity for a Key, checking the local tier first
+     * and then the shared tier.  An Entity found in the shared tier is
+     * added to the local tier.
+     * @param key                  Identifies the desired Entity.
+     * @return                     The cached Entity, or null if neither
+     *                             tier holds a valid entry for {@code key}.
+     */
+    public Entity get(Key key) {
+        long now = System.currentTimeMillis();
+        synchronized (local) {
+            CacheEntry entry = local.get(key);
+            if (entry != null) {
+                if (entry.expires > now) {
+                    localHits.incrementAndGet();
+                    return entry.entity;
+                }
+                local.remove(key);
+            }
+        }
+        if (shared != null) {
+            long startGeneration = generation.get();
+            Entity entity = shared.get(key);
+            if (entity != null) {
+                sharedHits.incrementAndGet();
+                synchronized (local) {
+                    // Don't copy an Entity into the local tier if it may
+                    // have been invalidated since it was fetched.
+                    if (startGeneration == generation.get()) {
+                        local.put(key, new CacheEntry(entity, now + ttl));
+                    }
+                }
+                return entity;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns a value to pass to {@code put} for Entities about to be
+     * read from the Datastore.  It allows {@code put} to detect that an
+     * Entity was invalidated while it was being read, in which case the
+     * value read may already be out of date.
+     * @return                     The current invalidation generation.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns information about how well the cache is working.
+     * @return                     A Dataset with the following values:
+     *                             {@code localHits} and {@code sharedHits}
+     *                             (number of lookups satisfied by each
+     *                             tier), {@code misses}, {@code hitRatio}
+     *                             (fraction of lookups that hit in either
+     *                             tier), {@code averageLoadTime} (average
+     *                             time to read an Entity from the
+     *                             Datastore, in microseconds), and
+     *                             {@code latencySaved} (hits times the
+     *                             average load time, in milliseconds).
+     */
+    public Dataset getStatistics() {
+        long hits = localHits.get() + sharedHits.get();
+        long lookups = hits + misses.get();
+        long loaded = loadedEntities.get();
+        double averageLoad = (loaded == 0) ? 0.0 :
+                ((double) loadNanos.get())/loaded;
+        return new Dataset("localHits", Long.toString(localHits.get()),
+                "sharedHits", Long.toString(sharedHits.get()),
+                "misses", Long.toString(misses.get()),
+                "hitRatio", String.format("%.3f",
+                (lookups == 0) ? 0.0 : ((double) hits)/lookups),
+                "averageLoadTime", String.format("%.1f", averageLoad/1000.0),
+                "latencySaved", String.format("%.1f",
+                hits*averageLoad/1000000.0));
+    }
+
+    /**
+     * Adds an Entity read from the Datastore to both tiers.
+     * @param key                  Key for {@code entity}.
+     * @param entity               Entity to cache.
+     * @param generation           Result of calling {@code getGeneration}
+     *                             before the Entity was read; if any Entity
+     *                             has been invalidated since then, the
+     *                             Entity is not cached.
+     */
+    public void put(Key key, Entity entity, long generation) {
+        // The check and both writes happen under the same lock that
+        // remove holds while invalidating, so an invalidation
+        // can't slip in between them and leave a stale Entity cached.
+        synchronized (local) {
+            if (isPending(key) || (generation != this.generation.get())) {
+                return;
+            }
+            local.put(key, new CacheEntry(entity,
+                    System.currentTimeMillis() + ttl));
+            if (shared != null) {
+                shared.put(key, entity, ttl);
+            }
+        }
+    }
+
+    /**
+     * Records the time spent reading Entities from the Datastore after
+     * cache misses; used to estimate the latency saved by hits.
+     * @param count                Number of Entities requested.
+     * @param nanos                Time spent in the Datastore, in
+     *                             nanoseconds.
+     */
+    public void recordLoad(int count, long nanos) {
+        loadedEntities.addAndGet(count);
+        loadNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Discards any cached Entity for a Key from both tiers.  This method
+     * is invoked whenever the Entity is modified or deleted.
+     * @param key                  Identifies the Entity to discard.
+     */
+    public void remove(Key key) {
+        synchronized (local) {
+            generation.incrementAndGet();
+            local.remove(key);
+            if (shared != null) {
+                shared.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Discards any cached Entity for a Key that has been modified or
+     * deleted under a Transaction, and keeps the Entity out of the cache
+     * until the Transaction completes.
+     * @param key                  Identifies the Entity to discard.
+     * @param txn                  Transaction under which the Entity was
+     *                             written.
+     */
+    public void removeInTransaction(Key key, Transaction txn) {
+        synchronized (pendingWrites) {
+            if (pendingWrites.size() >= maxEntries) {
+                // Don't let Keys that are never read again accumulate.
+                Iterator<Key> keys = pendingWrites.keySet().iterator();
+                while (keys.hasNext()) {
+                    if (!prunePending(keys.next())) {
+                        keys.remove();
+                    }
+                }
+            }
+            ArrayList<Transaction> txns = pendingWrites.get(key);
+            if (txns == null) {
+                txns = new ArrayList<Transaction>();
+                pendingWrites.put(key, txns);
+            }
+            txns.add(txn);
+        }
+        remove(key);
+    }
+
+    /**
+     * Returns true if a Key has been written under a Transaction that
+     * may not have completed yet, so its Entity must not be cached.
+     * @param key                  Identifies the Entity about to be
+     *                             cached.
+     * @return                     True means don't cache the Entity.
+     */
+    protected boolean isPending(Key key) {
+        synchronized (pendingWrites) {
+            if (!pendingWrites.containsKey(key)) {
+                return false;
+            }
+            if (!prunePending(key)) {
+                pendingWrites.remove(key);
+            }
+
+            // Even if all of the Transactions have now completed, the
+            // Entity may have been read before they committed.
+            return true;
+        }
+    }
+
+    /**
+     * Discards the Transactions recorded for a Key that have committed
+     * or rolled back.  Loads that began before then may have read the
+     * old value, so this also invalidates them.  The caller must hold the
+     * lock for {@code pendingWrites}.
+     * @param key                  A Key in {@code pendingWrites}.
+     * @return                     True if any of the Transactions that
+     *                             wrote {@code key} are still active.
+     */
+    protected boolean prunePending(Key key) {
+        Iterator<Transaction> txns = pendingWrites.get(key).iterator();
+        while (txns.hasNext()) {
+            if (!txns.next().isActive()) {
+                txns.remove();
+                generation.incrementAndGet();
+            }
+        }
+        return !pendingWrites.get(key).isEmpty();
+    }
+}
@@ -0,0 +1,542 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz.datamanager;
+
+import org.fiz.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.appengine.api.datastore.*;
+
+/**
+ * A GaeWriteCoalescer collects the puts and deletes issued by
+ * {@code GaeDataManager.insertAsync} and {@code deleteAsync}, possibly
+ * from many concurrent requests, and issues them to the Datastore in
+ * batches: all of the writes that arrive within a short window become a
+ * single batched put and a single batched delete.
+ *
+ * AppEngine doesn't allow applications to create threads, so there is no
+ * background thread to issue the batches.  Instead, a batch is issued by
+ * whichever request first needs it to be complete: a request that calls
+ * {@code get} on one of the batch's futures waits until the window has
+ * elapsed (or the batch is full) and then issues the batch on behalf of
+ * every request with writes in it.  A request that adds a write after
+ * the oldest batch has been closed (its window has elapsed, or it is
+ * full) issues that batch first.  Writes that no one waits for are
+ * issued at the end of the request that made them, via an end-of-request
+ * hook (see ClientRequest.addEndOfRequestHook); writes made by other
+ * threads that the request creates must be flushed explicitly.
+ *
+ * Batches are issued in the order they were created.  If a write names
+ * a Key that is already in the current batch, a new batch is started so
+ * that the two writes are applied in order.  If a batched call fails,
+ * each write in the batch is retried separately, so that one bad write
+ * doesn't cause the writes of other requests to fail.  Writes under a
+ * Transaction are never coalesced (see GaeDataManager).
+ */
+public class GaeWriteCoalescer {
+    /**
+     * A WriteFuture holds the result of one call to {@code insertAsync} or
+     * {@code deleteAsync}.  Its value is the Dataset that the corresponding
+     * synchronous method would have returned.
+     */
+    public static class WriteFuture implements Future<Dataset> {
+        /* The coalescer that will issue this write, or null if the write
+         * has already completed. */
+        protected GaeWriteCoalescer coalescer;
+
+        /* The batch containing this write, or null if the write has
+         * already completed. */
+        protected Batch batch;
+
+        /* Index of this write's first Entity or Key in the batch, and the
+         * number of Entities or Keys. */
+        protected int first, count;
+
+        /* The result of the write; valid once isDone returns true. */
+        protected Dataset result;
+
+        /**
+         * Constructs a WriteFuture for a write that has already completed.
+         * @param result           The result of the write.
+         */
+        public WriteFuture(Dataset result) {
+            this.result = result;
+        }
+
+        /**
+         * Constructs a WriteFuture for a write that is waiting in a batch.
+         * @param coalescer        Coalescer that will issue the batch.
+         * @param batch            Batch containing the write.
+         * @param first            Index of the write's first Entity or Key
+         *                         in the batch.
+         * @param count            Number of Entities or Keys in the write.
+         */
+        protected WriteFuture(GaeWriteCoalescer coalescer, Batch batch,
+                int first, int count) {
+            this.coalescer = coalescer;
+            this.batch = batch;
+            this.first = first;
+            this.count = count;
+        }
+
+        /**
+         * Writes can't be cancelled once they have been issued, so this
+         * method does nothing.
+         * @param mayInterruptIfRunning    Ignored.
+         * @return                         Always false.
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        /**
+         * Waits for the write to complete, issuing its batch if necessary.
+         * If the batch hasn't been issued yet, this method must not be
+         * invoked while the calling thread has a current Transaction.
+         * @return                 The result of the write: the same Dataset
+         *                         that {@code GaeDataManager.insert} or
+         *                         {@code GaeDataManager.delete} would
+         *                         have returned.
+         */
+        public Dataset get() {
+            if (batch != null) {
+                coalescer.complete(batch);
+            }
+            return result;
+        }
+
+        /**
+         * Waits for the write to complete.  The timeout is ignored: the
+         * wait is bounded by the coalescer's window plus the time for
+         * the Datastore calls.
+         * @param timeout          Ignored.
+         * @param unit             Ignored.
+         * @return                 The result of the write.
+         */
+        public Dataset get(long timeout, TimeUnit unit) {
+            return get();
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return (batch == null) || batch.done;
+        }
+    }
+
+    /* The following class holds the writes that will be issued together. */
+    protected static class Batch {
+        /* Entities to put, Keys to delete, and the futures for each. */
+        protected ArrayList<Entity> puts = new ArrayList<Entity>();
+        protected ArrayList<WriteFuture> putFutures =
+                new ArrayList<WriteFuture>();
+        protected ArrayList<Key> deletes = new ArrayList<Key>();
+        protected ArrayList<WriteFuture> deleteFutures =
+                new ArrayList<WriteFuture>();
+
+        /* Complete Keys named by any write in the batch. */
+        protected HashSet<Key> keys = new HashSet<Key>();
+
+        /* System.currentTimeMillis() value when the batch's window ends. */
+        protected long deadline;
+
+        /* True means the batch has been issued and its futures have their
+         * results. */
+        protected volatile boolean done = false;
+
+        public Batch(long deadline) {
+            this.deadline = deadline;
+        }
+
+        // Returns the number of Entities and Keys in the batch.
+        protected int size() {
+            return puts.size() + deletes.size();
+        }
+    }
+
+    /* The data manager that issues the Datastore calls. */
+    protected GaeDataManager manager;
+
+    /* Number of milliseconds during which writes are collected into a
+     * batch. */
+    protected long window;
+
+    /* A batch is closed to new writes (and may be issued immediately)
+     * once it contains this many Entities and Keys. */
+    protected int maxBatchSize;
+
+    /* Batches that have not yet been issued, oldest first.  New writes
+     * are added to the last batch, if it is still open (see openBatch).
+     * Must be locked while it is being accessed; waiters are notified
+     * when a batch is issued. */
+    protected LinkedList<Batch> pending = new LinkedList<Batch>();
+
+    /* Held while batches are being issued, so that batches are issued one
+     * at a time and in order. */
+    protected final Object issueLock = new Object();
+
+    /* Statistics: number of batches issued and the number of writes in
+     * them (each call to insertAsync or deleteAsync counts as one
+     * write). */
+    protected long batches = 0;
+    protected long writes = 0;
+
+    /* For each thread, the coalescers holding writes made by that thread
+     * that may not have been issued yet.  They are flushed at the end of
+     * the thread's request (see flushThread). */
+    protected static ThreadLocal<HashSet<GaeWriteCoalescer>> threadWrites =
+            new ThreadLocal<HashSet<GaeWriteCoalescer>>() {
+        protected HashSet<GaeWriteCoalescer> initialValue() {
+            return new HashSet<GaeWriteCoalescer>();
+        }
+    };
+
+    static {
+        ClientRequest.addEndOfRequestHook(new Runnable() {
+            public void run() {
+                flushThread();
+            }
+        });
+    }
+
+    /**
+     * Constructs a GaeWriteCoalescer.
+     * @param manager              Data manager that will issue the
+     *                             batched writes.
+     * @param window               Number of milliseconds during which
+     *                             writes are collected into a batch.
+     * @param maxBatchSize         A batch is issued once it holds this
+     *                             many Entities and Keys.
+     */
+    public GaeWriteCoalescer(GaeDataManager manager, long window,
+            int maxBatchSize) {
+        this.manager = manager;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Adds Keys to delete to the current batch.
+     * @param keys                 Keys of the Entities to delete.
+     * @return                     A future whose value is the result of
+     *                             the delete.
+     */
+    public WriteFuture delete(Key ... keys) {
+        issueOverdue();
+        synchronized (pending) {
+            Batch batch = openBatch(Arrays.asList(keys));
+            WriteFuture future = new WriteFuture(this, batch,
+                    batch.deletes.size(), keys.length);
+            batch.deletes.addAll(Arrays.asList(keys));
+            batch.deleteFutures.add(future);
+            if (batch.size() >= maxBatchSize) {
+                pending.notifyAll();
+            }
+            threadWrites.get().add(this);
+            return future;
+        }
+    }
+
+    /**
+     * Issues all of the writes collected so far and waits for them to
+     * complete.  Must not be invoked while the calling thread has a
+     * current Transaction.
+     */
+    public void flush() {
+        checkNoTransaction();
+        threadWrites.get().remove(this);
+        Batch last;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            last = pending.getLast();
+        }
+        issue(last);
+    }
+
+    /**
+     * Issues the writes made by the calling thread that haven't been
+     * issued yet (along with any other writes batched with them), and
+     * waits for them to complete.  This method is invoked automatically
+     * at the end of each request.  Must not be invoked while the calling
+     * thread has a current Transaction.
+     */
+    public static void flushThread() {
+        HashSet<GaeWriteCoalescer> coalescers = threadWrites.get();
+        if (coalescers.isEmpty()) {
+            return;
+        }
+        for (GaeWriteCoalescer coalescer :
+                new ArrayList<GaeWriteCoalescer>(coalescers)) {
+            coalescer.flush();
+        }
+    }
+
+    /**
+     * Returns information about the batches issued so far.
+     * @return                     A Dataset with values {@code batches}
+     *                             (number of batches issued),
+     *                             {@code writes} (number of asynchronous
+     *                             inserts and deletes in those batches),
+     *                             and {@code averageBatch} (writes per
+     *                             batch).
+     */
+    public Dataset getStatistics() {
+        synchronized (pending) {
+            return new Dataset("batches", Long.toString(batches),
+                    "writes", Long.toString(writes),
+                    "averageBatch", String.format("%.1f", (batches == 0) ?
+                    0.0 : ((double) writes)/batches));
+        }
+    }
+
+    /**
+     * Adds Entities to put to the current batch.
+     * @param entities             Entities to write.
+     * @return                     A future whose value is the result of
+     *                             the put.
+     */
+    public WriteFuture put(Entity ... entities) {
+        ArrayList<Key> keys = new ArrayList<Key>(entities.length);
+        for (Entity entity : entities) {
+            keys.add(entity.getKey());
+        }
+        issueOverdue();
+        synchronized (pending) {
+            Batch batch = openBatch(keys);
+            WriteFuture future = new WriteFuture(this, batch,
+                    batch.puts.size(), entities.length);
+            batch.puts.addAll(Arrays.asList(entities));
+            batch.putFutures.add(future);
+            if (batch.size() >= maxBatchSize) {
+                pending.notifyAll();
+            }
+            threadWrites.get().add(this);
+            return future;
+        }
+    }
+
+    /**
+     * Waits until a batch's window has elapsed (or the batch is full),
+     * then issues it (and any earlier batches) if another thread hasn't
+     * already done so.
+     * @param batch                The batch to complete.
+     */
+    protected void complete(Batch batch) {
+        if (batch.done) {
+            return;
+        }
+        checkNoTransaction();
+        synchronized (pending) {
+            while (!batch.done && (batch == pending.peekLast())) {
+                long remaining = batch.deadline - System.currentTimeMillis();
+                if ((remaining <= 0) || (batch.size() >= maxBatchSize)) {
+                    break;
+                }
+                try {
+                    pending.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        issue(batch);
+    }
+
+    /**
+     * Issues a batch and all of the batches before it, unless another
+     * thread has already done so.  Returns once the batch is done.
+     * @param batch                The batch to issue.
+     */
+    protected void issue(Batch batch) {
+        synchronized (issueLock) {
+            if (batch.done) {
+                return;
+            }
+            ArrayList<Batch> batches = new ArrayList<Batch>();
+            synchronized (pending) {
+                while (!pending.isEmpty()) {
+                    Batch next = pending.removeFirst();
+                    batches.add(next);
+                    if (next == batch) {
+                        break;
+                    }
+                }
+            }
+            for (Batch next : batches) {
+                try {
+                    execute(next);
+                } catch (RuntimeException e) {
+                    // Don't leave the batch's waiters hanging.
+                    fail(next, e);
+                }
+            }
+            synchronized (pending) {
+                for (Batch next : batches) {
+                    this.batches++;
+                    writes += next.putFutures.size() +
+                            next.deleteFutures.size();
+                    next.done = true;
+                }
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Makes the Datastore calls for a batch and fills in the results of
+     * its futures.  If a batched call fails and the batch holds more than
+     * one write, each write is retried separately so that only the bad
+     * ones fail.  Puts and deletes are idempotent, so retrying writes that
+     * the failed call may have applied is harmless.
+     * @param batch                The batch to execute.
+     */
+    protected void execute(Batch batch) {
+        if (batch.puts.size() > 0) {
+            Dataset records = manager.handleInsert(null,
+                    batch.puts.toArray(new Entity[batch.puts.size()]));
+            ArrayList<Object> keys = (records.getErrorData() == null) ?
+                    records.getList("record") : null;
+            for (WriteFuture future : batch.putFutures) {
+                if (keys != null) {
+                    future.result = new Dataset();
+                    for (int i = 0; i < future.count; i++) {
+                        future.result.add("record",
+                                keys.get(future.first + i));
+                    }
+                } else if (batch.putFutures.size() == 1) {
+                    future.result = records;
+                } else {
+                    future.result = manager.handleInsert(null,
+                            batch.puts.subList(future.first, future.first +
+                            future.count).toArray(new Entity[future.count]));
+                }
+            }
+        }
+        if (batch.deletes.size() > 0) {
+            Dataset result = manager.handleDelete(null,
+                    batch.deletes.toArray(new Key[batch.deletes.size()]));
+            for (WriteFuture future : batch.deleteFutures) {
+                if ((result == null) || (batch.deleteFutures.size() == 1)) {
+                    future.result = result;
+                } else {
+                    future.result = manager.handleDelete(null,
+                            batch.deletes.subList(future.first,
+                            future.first + future.count).toArray(
+                            new Key[future.count]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Batches are issued with the Datastore's non-transactional calls,
+     * which would silently join the calling thread's current Transaction
+     * if it had one.  This method makes sure that can't happen.
+     * @throws InternalError       The calling thread has a current
+     *                             Transaction.
+     */
+    protected void checkNoTransaction() {
+        if (manager.inTransaction(null)) {
+            throw new org.fiz.InternalError("can't issue batched writes " +
+                    "while a Transaction is active; flush them before " +
+                    "beginning the Transaction");
+        }
+    }
+
+    /**
+     * Sets the result of every write in a batch to describe an error.
+     * @param batch                The batch whose writes failed.
+     * @param e                    The exception that caused the failure.
+     */
+    protected void fail(Batch batch, RuntimeException e) {
+        Dataset result = new Dataset(e);
+        for (WriteFuture future : batch.putFutures) {
+            future.result = result;
+        }
+        for (WriteFuture future : batch.deleteFutures) {
+            future.result = result;
+        }
+    }
+
+    /**
+     * Returns the batch to which new writes should be added, creating a
+     * new one if the current batch's window has elapsed, if it is full,
+     * or if it already contains a write for one of {@code keys}.  The
+     * caller must hold the lock for {@code pending}.
+     * @param keys                 Keys that the new write will name.
+     * @return                     The batch in which to place the write.
+     */
+    protected Batch openBatch(Collection<Key> keys) {
+        Batch batch = pending.peekLast();
+        if ((batch != null) && ((batch.deadline <= System.currentTimeMillis())
+                || (batch.size() >= maxBatchSize))) {
+            batch = null;
+        }
+        if (batch != null) {
+            for (Key key : keys) {
+                if (isComplete(key) && batch.keys.contains(key)) {
+                    // Keep writes to the same Key in separate batches so
+                    // they are applied in order.
+                    batch = null;
+                    break;
+                }
+            }
+        }
+        if (batch == null) {
+            batch = new Batch(System.currentTimeMillis() + window);
+            pending.addLast(batch);
+        }
+        for (Key key : keys) {
+            if (isComplete(key)) {
+                batch.keys.add(key);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * If the oldest batch is closed to new writes (its window has elapsed
+     * or it is full), issues it.  This is how batches get issued when no
+     * one waits for their futures.
+     */
+    protected void issueOverdue() {
+        Batch first;
+        synchronized (pending) {
+            first = pending.peekFirst();
+            if ((first == null) || ((first == pending.peekLast()) &&
+                    (first.deadline > System.currentTimeMillis()) &&
+                    (first.size() < maxBatchSize))) {
+                return;
+            }
+        }
+        issue(first);
+    }
+
+    /**
+     * Returns true if a Key identifies a particular Entity (i.e., it has
+     * been assigned an id or a name).
+     * @param key                  The Key to check.
+     * @return                     True if {@code key} is complete.
+     */
+    protected static boolean isComplete(Key key) {
+        return (key.getId() != 0) || (key.getName() != null);
+    }
+}
@@ -176,6 +176,35 @@ public class SqlDataManager {
         }
     }
 
+    /**
+     * Retrieve one page of the results of an SQL query, sorted in a
+     * given order.  The sorting and paging are done by the database
+     * server, so only the requested rows are transferred.  This method
+     * is typically invoked by the {@code dataFactory} for a paged
+     * TableSection.
+     * @param sql                  SQL query that will return zero or more
+     *                             records; must not contain
+     *                             {@code ORDER BY} or {@code LIMIT} clauses.
+     * @param sortField            Name of the column by which to sort the
+     *                             results, or an empty string to return
+     *                             the results in the database's order.
+     *                             This value typically comes from the
+     *                             browser, so it is checked to make sure
+     *                             it is a plain column name.
+     * @param descending           True means sort in decreasing order.
+     * @param offset               Index of the first record to return.
+     * @param count                Maximum number of records to return.
+     * @return                     A dataset containing one child named
+     *                             {@code record} for each record returned
+     *                             by the query.
+     * @throws SqlError            The database server reported a problem.
+     */
+    public Dataset findPage(String sql, String sortField, boolean descending,
+            int offset, int count) {
+        return findWithSql(pageQuery(sql, sortField, descending, offset,
+                count));
+    }
+
     /**
      * Retrieve records from the database using a raw SQL string for
      * the query.
@@ -570,4 +599,44 @@ public class SqlDataManager {
         // which makes it easier to unwind the entire request.
         throw new SqlError(exception, context);
     }
+
+    /**
+     * Generate an SQL query that returns one sorted page of the results
+     * of another query; used by {@code findPage}.
+     * @param sql                  SQL query that will return zero or more
+     *                             records.
+     * @param sortField            Name of the column by which to sort the
+     *                             results, or an empty string for no
+     *                             sorting.
+     * @param descending           True means sort in decreasing order.
+     * @param offset               Index of the first record to return.
+     * @param count                Maximum number of records to return.
+     * @return                     The new SQL query.
+     */
+    protected static String pageQuery(String sql, String sortField,
+            boolean descending, int offset, int count) {
+        StringBuilder query = new StringBuilder(sql.trim());
+        if ((query.length() > 0) && (query.charAt(query.length()-1) == ';')) {
+            query.setLength(query.length()-1);
+        }
+        if (query.toString().trim().length() == 0) {
+            throw new org.fiz.InternalError("SqlDataManager.findPage " +
+                    "received empty SQL query");
+        }
+        if (sortField.length() > 0) {
+            if (!sortField.matches("[A-Za-z_][A-Za-z0-9_.]*")) {
+                throw new org.fiz.InternalError("SqlDataManager.findPage " +
+                        "received invalid sort field \"" + sortField + "\"");
+            }
+            query.append(" ORDER BY ");
+            query.append(sortField);
+            query.append(descending ? " DESC" : " ASC");
+        }
+        query.append(" LIMIT ");
+        query.append(count);
+        query.append(" OFFSET ");
+        query.append(offset);
+        query.append(";");
+        return query.toString();
+    }
 }
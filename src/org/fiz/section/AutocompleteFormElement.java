@@ -17,13 +17,30 @@ package org.fiz.section;
 
 import org.fiz.*;
 import java.io.Serializable;
+import java.util.*;
 
 /**
  * The AutocompleteFormElement helps users fill in a field by providing
  * suggestions or options for completing what the user has already typed. It
  * supports the following properties (additional properties applicable to all
  * form elements may be found in {@link FormElement}):
- *   dataFactory:       (required) Identifies a factory method that takes a
+ *   cacheSize:         (optional) Maximum number of results from
+ *                      {@code dataFactory} to retain when {@code cacheTtl}
+ *                      is specified.  Defaults to 100.
+ *   cacheTtl:          (optional) If specified, results from
+ *                      {@code dataFactory} are cached (see FactoryCache)
+ *                      and reused for this many seconds, so that repeated
+ *                      queries for the same input don't invoke the
+ *                      factory again.  Defaults to 0, which means no
+ *                      caching.
+ *   delay:             (optional) Number of milliseconds the browser waits
+ *                      after a keystroke before requesting choices; if
+ *                      another keystroke arrives during this time the
+ *                      wait starts over, so that fast typists don't
+ *                      generate a request for every keystroke.  Defaults
+ *                      to 150.
+ *   dataFactory:       (required unless {@code index} is specified)
+ *                      Identifies a factory method that takes a
  *                      single String argument and returns a dataset that
  *                      contains possible autocomplete choices.
  *                      Must have the form {@code class.method}, where
@@ -35,12 +52,21 @@ import java.io.Serializable;
  *   choiceName:        (optional) Identifies the field in each record returned
  *                      by the Ajax which contains the value to be used for
  *                      the autocompletion choice. Defaults to "choice."
+ *   index:             (optional) Name of a shared PrefixIndex (see
+ *                      {@code PrefixIndex.getInstance}) containing the
+ *                      autocomplete choices.  If this property is
+ *                      specified, choices are found by searching the index
+ *                      in memory and {@code dataFactory} is not used.
+ *   maxChoices:        (optional) Maximum number of choices to display
+ *                      when {@code index} is specified; the choices with
+ *                      the highest scores are displayed.  Defaults to 10.
  *
  * The dataset generated from {@code dataFactory} consists of one {@code record}
  * child for each autocomplete choice. Each autocomplete choice will be a
  * dataset containing one key-value pair where the key is specified by the
  * {@code choiceName} parameter and the value will be shown in the autocomplete
- * dropdown.
+ * dropdown.  The first occurrence of the user's input in each choice is
+ * highlighted.
  *
  * AutocompleteFormElement automatically sets the following {@code class}
  * attributes for use in CSS:
@@ -59,12 +85,48 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
         protected String id;
         protected String dataFactory;
         protected String choiceName;
+        protected String index;
+        protected int maxChoices = 10;
+
+        // Lifetime of cached dataFactory results, in milliseconds (0 means
+        // no caching), and maximum number of results to cache.
+        protected long cacheLifetime = 0;
+        protected int cacheSize = 100;
+
+        // Largest sequence number seen so far in an ajaxQuery request for
+        // this element; requests with smaller numbers are out of date.
+        protected int latestSequence = 0;
 
         public PageProperty(String id, String dataFactory, String choiceName) {
             this.id = id;
             this.dataFactory = dataFactory;
             this.choiceName = choiceName;
         }
+
+        /**
+         * Record the arrival of a new query request.
+         * @param sequence     Sequence number from the request.
+         * @return             True means this is the most recent request;
+         *                     false means a newer request has already been
+         *                     received, so this one should be ignored.
+         */
+        protected synchronized boolean startQuery(int sequence) {
+            if (sequence < latestSequence) {
+                return false;
+            }
+            latestSequence = sequence;
+            return true;
+        }
+
+        /**
+         * Determine whether a request has been superseded by a newer one.
+         * @param sequence     Sequence number from the request.
+         * @return             True means a request with a larger sequence
+         *                     number has been received.
+         */
+        protected synchronized boolean isSuperseded(int sequence) {
+            return sequence < latestSequence;
+        }
     }
 
     // Reference to the page state for this section, stored as a page
@@ -72,6 +134,10 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
     // is the id attribute for the section..
     protected PageProperty pageProperty;
 
+    // Value of the {@code delay} property, or -1 if the property wasn't
+    // specified (the browser then uses its default).
+    protected int delay = -1;
+
     /**
      * Construct an AutocompleteFormElement from a set of properties that define
      * its configuration.
@@ -87,7 +153,36 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
             choiceName = "choice";
         }
         pageProperty = new PageProperty(properties.getString("id"),
-                properties.getString("dataFactory"), choiceName);
+                properties.checkString("dataFactory"), choiceName);
+        pageProperty.index = properties.checkString("index");
+        if (pageProperty.index == null) {
+            // Generate an error if there is no dataFactory.
+            properties.getString("dataFactory");
+        }
+        String maxChoices = properties.checkString("maxChoices");
+        if (maxChoices != null) {
+            pageProperty.maxChoices = Integer.parseInt(maxChoices);
+        }
+        String cacheTtl = properties.checkString("cacheTtl");
+        if (cacheTtl != null) {
+            pageProperty.cacheLifetime = Long.parseLong(cacheTtl)*1000;
+        }
+        String cacheSize = properties.checkString("cacheSize");
+        if (cacheSize != null) {
+            pageProperty.cacheSize = Integer.parseInt(cacheSize);
+        }
+        String delayString = properties.checkString("delay");
+        if (delayString != null) {
+            try {
+                delay = Integer.parseInt(delayString.trim());
+            } catch (NumberFormatException e) {
+                delay = -1;
+            }
+            if (delay < 0) {
+                throw new org.fiz.InternalError("AutocompleteFormElement: " +
+                        "bad delay value \"" + delayString + "\"");
+            }
+        }
     }
 
     /**
@@ -99,7 +194,14 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
      *                              AutocompleteFormElement, and a
      *                              {@code userInput} value, which is the value
      *                              for which we are trying to autocomplete, in
-     *                              the main dataset.
+     *                              the main dataset.  If the main dataset
+     *                              also contains a {@code sequence} value,
+     *                              the response invokes the element's
+     *                              {@code setChoices} method, and nothing is
+     *                              returned if a request with a larger
+     *                              sequence number arrives first (the user
+     *                              has typed more, so the results would
+     *                              be out of date).
      */
     public static void ajaxQuery(ClientRequest cr) {
         Dataset main = cr.getMainDataset();
@@ -107,41 +209,84 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
                 cr.getPageProperty(main.getString("id"));
 
         String query = main.getString("userInput");
+        String sequenceString = main.checkString("sequence");
+        int sequence = 0;
+        if (sequenceString != null) {
+            sequence = Integer.parseInt(sequenceString);
+            if (!pageProperty.startQuery(sequence)) {
+                return;
+            }
 
-        Dataset data = (Dataset) Util.invokeStaticMethod(
-                pageProperty.dataFactory, query);
+            // latestSequence was modified in place, so the property must
+            // be set again for the store to save it.  The check below for
+            // superseded requests only sees newer requests that share
+            // this object, so it is a best-effort optimization; the
+            // browser discards out-of-order responses in any case.
+            cr.setPageProperty(pageProperty.id, pageProperty);
+        }
 
-        if (data.getDatasetList("record").size() > 0) {
-            StringBuilder html = new StringBuilder();
-            Template.appendHtml(html, "<ul id=\"@(1)_choices\">",
-                    pageProperty.id);
-            for(Dataset dataValue : data.getDatasetList("record")) {
-                String value = dataValue.getString(pageProperty.choiceName);
+        // Collect the choices along with the portion of each to highlight.
+        ArrayList<PrefixIndex.Match> matches;
+        if (pageProperty.index != null) {
+            matches = PrefixIndex.getInstance(pageProperty.index).find(
+                    query, pageProperty.maxChoices);
+        } else {
+            Dataset data = (Dataset) FactoryCache.invoke(
+                    pageProperty.dataFactory, pageProperty.cacheLifetime,
+                    pageProperty.cacheSize, query);
+            ArrayList<Dataset> records = data.getDatasetList("record");
+            matches = new ArrayList<PrefixIndex.Match>(records.size());
+            String lowerQuery = query.toLowerCase();
+            for (Dataset record : records) {
+                String value = record.getString(pageProperty.choiceName);
+                int queryIndex = value.toLowerCase().indexOf(lowerQuery);
+                if (queryIndex == -1) {
+                    matches.add(new PrefixIndex.Match(value, 0, 0, 0));
+                } else {
+                    matches.add(new PrefixIndex.Match(value, 0, queryIndex,
+                            queryIndex + query.length()));
+                }
+            }
+        }
 
-                // Extracts the position of the query to highlight it
-                int queryIndex = value.toLowerCase()
-                        .indexOf(query.toLowerCase());
-                String js1 = Template.expandJs(
-                        "Fiz.ids.@1.selectChoice(this, true)", pageProperty.id);
-                String js2 = Template.expandJs(
-                        "Fiz.ids.@1.highlightChoice(this)", pageProperty.id);
+        if ((sequenceString != null)
+                && pageProperty.isSuperseded(sequence)) {
+            // A newer request arrived while we were collecting choices;
+            // don't bother generating a response.
+            return;
+        }
 
-                if (queryIndex == -1) {
+        StringBuilder html = new StringBuilder();
+        if (matches.size() > 0) {
+            Template.appendHtml(html, "<ul id=\"@(1)_choices\">",
+                    pageProperty.id);
+            String js1 = Template.expandJs(
+                    "Fiz.ids.@1.selectChoice(this, true)", pageProperty.id);
+            String js2 = Template.expandJs(
+                    "Fiz.ids.@1.highlightChoice(this)", pageProperty.id);
+            for (PrefixIndex.Match match : matches) {
+                String value = match.value;
+                if (match.highlightStart == match.highlightEnd) {
                     Template.appendHtml(html, "<li onclick=\"@1\" " +
-                            "onmouseover=\"@2\">@3</li>", js1, js2,value
+                            "onmouseover=\"@2\">@3</li>", js1, js2, value
                     );
                 } else {
                     Template.appendHtml(html, "<li onclick=\"@1\" " +
                             "onmouseover=\"@2\">@3<strong>@4</strong>@5</li>",
                             js1, js2,
-                            value.substring(0, queryIndex),
-                            value.substring(queryIndex, query.length()),
-                            value.substring(queryIndex + query.length(),
-                                    value.length())
+                            value.substring(0, match.highlightStart),
+                            value.substring(match.highlightStart,
+                                    match.highlightEnd),
+                            value.substring(match.highlightEnd)
                     );
                 }
             }
             html.append("</ul>");
+        }
+        if (sequenceString != null) {
+            cr.evalJavascript("Fiz.ids.@1.setChoices(@2, \"@3\", \"@4\");\n",
+                    pageProperty.id, sequence, query, html);
+        } else if (matches.size() > 0) {
             cr.updateElement(pageProperty.id + "_dropdown", html.toString());
             cr.evalJavascript("Fiz.ids.@1.showDropdown();\n",
                     pageProperty.id);
@@ -150,7 +295,6 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
             cr.evalJavascript("Fiz.ids.@1.hideDropdown(true);\n",
                     pageProperty.id);
         }
-
     }
 
     /**
@@ -186,8 +330,8 @@ public class AutocompleteFormElement extends FormElement implements DirectAjax {
                 properties);
 
         // Generate a Javascript object containing information about the form.
-        cr.evalJavascript("Fiz.ids.@id = new Fiz.AutocompleteFormElement(" +
-                "\"@id\");\n", properties);
+        cr.evalJavascript("Fiz.ids.@1 = new Fiz.AutocompleteFormElement(" +
+                "\"@1\"{{, @2}});\n", id, (delay < 0) ? null : delay);
         cr.getHtml().includeCssFile("AutocompleteFormElement.css");
         cr.getHtml().includeJsFile("static/fiz/AutocompleteFormElement.js");
     }
@@ -17,6 +17,10 @@ package org.fiz.section;
 
 
 import org.fiz.*;
+import java.math.BigInteger;
+import java.nio.*;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
 import java.util.*;
 
 /**
@@ -35,6 +39,16 @@ import java.util.*;
  * legend:      (Optional) Dataset describing the properties for the legend
  * id:          (Optional) Used to name the Javascript object associated with
  *              the chart. If not given, it is automatically generated.
+ * transport:   (Optional) How the data gets to the browser: "inline" (the
+ *              default) includes it in the page as Javascript arrays;
+ *              "binary" keeps it out of the page and has the browser
+ *              fetch it from {@code ajaxData} in a compact binary form
+ *              (see {@code encodeSeries}), which is much faster to send
+ *              and decode for large series.  The encoded data is held
+ *              in this server's memory until the browser fetches it
+ *              (for at most a minute, and within per-session and total
+ *              size limits), so requests for a page must be handled by
+ *              the server that rendered it.
  *
  * If all plots use the bottom axis as the X axis and the left one as the
  * Y axis, the axis-specific properties should only be set on the xAxis and
@@ -165,9 +179,24 @@ import java.util.*;
  * Scatter Chart:
  *
  * shape:   Which type of shape to draw for the points
+ *
+ * Large series can be downsampled on the server so that the page only
+ * carries about as many points as the chart has pixels. The following
+ * properties may be set on a plot, or on the chart to apply to every plot:
+ *
+ * downsample:  (Optional) "lttb" (Largest-Triangle-Three-Buckets, which
+ *              preserves the visual shape of the series), "minmax" (keeps
+ *              the smallest and largest Y value in each bucket, so spikes
+ *              are never lost), or "none". Defaults to "none".
+ * maxPoints:   (Optional) Maximum number of points to keep in each series
+ *              of the plot. Defaults to the chart's width in pixels.
+ *
+ * All of the series in a plot are downsampled together (by the sum of their
+ * Y values), so stacked series continue to line up. X values that are not
+ * numbers are treated as evenly spaced.
  */
 
-public class ChartSection extends Section {
+public class ChartSection extends Section implements DirectAjax {
     protected Dataset properties;
 
     // Will contain the string "Fiz.ids.@1", where @1 is the id of the chart.
@@ -182,14 +211,78 @@ public class ChartSection extends Section {
 
     // Reserved keys are keys that are used in Java when creating a chart, but
     // aren't properties that should be set in Javascript.
-    protected String[] reserved = {"id", "xId", "yId",
-                                   "type", "plot", "series", "data"};
+    protected String[] reserved = {"id", "xId", "yId", "type", "plot",
+                                   "series", "data", "downsample",
+                                   "maxPoints", "transport"};
 
     // Properties can be set on several "objects", such as the chart, legend
     // and various axes. This is the list of all such prefixes
     protected String[] prefixes = {"legend", "xAxis", "yAxis", "bottomAxis",
                                    "leftAxis", "rightAxis", "topAxis"};
 
+    // If the chart's data is being sent in binary form, the following
+    // variables hold the datasets for each series (in order), the records
+    // to send for each series (null means all of them), and Javascript
+    // expressions for the Fiz.Chart.Series objects that will receive the
+    // data.  Null means the data is being sent inline.
+    protected ArrayList<Dataset> binarySeries = null;
+    protected ArrayList<int[]> binaryKeep = null;
+    protected ArrayList<String> binaryTargets = null;
+
+    // The following class holds the encoded data for one chart whose
+    // transport is "binary", until the browser fetches it.
+    protected static class PendingData {
+        // Id of the session for which the chart was rendered.
+        protected String session;
+
+        // Key for the entry in pendingData.
+        protected String key;
+
+        // The encoded data.
+        protected byte[] data;
+
+        // Time (in ms, as returned by System.currentTimeMillis) after
+        // which the data is discarded.
+        protected long expires;
+    }
+
+    // Limits on the data waiting in pendingData: the number of
+    // milliseconds that data is kept, the total number of bytes for any
+    // one session (once a session exceeds this, its oldest data is
+    // discarded), and the total number of bytes for all sessions (once
+    // this is exceeded, the oldest data of the session holding the most
+    // bytes is discarded, so light users don't lose their data because
+    // of heavy ones).  Not final, so tests can change them.
+    protected static long pendingLifetime = 60000;
+    protected static long maxSessionBytes = 16*1024*1024;
+    protected static long maxPendingBytes = 64*1024*1024;
+
+    // Encoded data for charts whose transport is "binary", waiting to be
+    // fetched by ajaxData, oldest first.  Keys have the form
+    // "session/key", where key is random and included in the URL for the
+    // fetch.  Must be locked while it is being accessed, along with
+    // pendingBytes and sessionBytes.
+    protected static LinkedHashMap<String,PendingData> pendingData =
+            new LinkedHashMap<String,PendingData>();
+
+    // Total size of the data in pendingData, overall and for each
+    // session id.
+    protected static long pendingBytes = 0;
+    protected static HashMap<String,Long> sessionBytes =
+            new HashMap<String,Long>();
+
+    // Used to generate the keys for pendingData.
+    protected static SecureRandom random = new SecureRandom();
+
+    // Codes used in the binary data format to describe a column of values
+    // (see encodeSeries).
+    protected static final int INT32 = 1;
+    protected static final int FLOAT64 = 2;
+    protected static final int TEXT = 3;
+
+    // Default width of the chart's canvas, in pixels.
+    protected static final int DEFAULT_WIDTH = 500;
+
     // Properties that can be set on a chart, as opposed to a plot or a
     // series.
     protected String[] chartVars = {"title", "borderWidth", "plotBorderWidth", "width",
@@ -211,6 +304,18 @@ public class ChartSection extends Section {
         this.properties = properties.clone();
     }
 
+    /**
+     * ChartSections are never cached: charts with binary transport save
+     * their data for a single fetch each time they are rendered.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Always null.
+     */
+    @Override
+    public String getCacheKey(ClientRequest cr) {
+        return null;
+    }
+
     @Override
     public void render(ClientRequest cr) {
         this.cr = cr;
@@ -226,12 +331,18 @@ public class ChartSection extends Section {
         String id = getId(properties, "chart");
         out.append("<div>\n");
         // Dimensions can be changed dynamically through properties
-        Template.appendRaw(out, "<canvas width=\"500\" height=\"400\" id=\"@1\">" +
+        Template.appendRaw(out, "<canvas width=\"@1\" height=\"400\" id=\"@2\">" +
                            "Your browser does not support the canvas element</canvas>\n",
-                        id);
+                        DEFAULT_WIDTH, id);
         out.append("</div>\n");
 
         chart = Template.expandRaw("Fiz.ids.@1", id);
+        String transport = properties.checkString("transport");
+        if ((transport != null) && transport.equals("binary")) {
+            binarySeries = new ArrayList<Dataset>();
+            binaryKeep = new ArrayList<int[]>();
+            binaryTargets = new ArrayList<String>();
+        }
         Template.appendRaw(js, "try {\n");
         Template.appendRaw(js, "@1 = {};\n", chart);
         Template.appendRaw(js, "@1.chart = new Fiz.Chart(\"@2\");\n",
@@ -249,7 +360,24 @@ public class ChartSection extends Section {
 
         setProperties(properties, "chart");
 
-        Template.appendRaw(js, "@1.chart.draw();\n", chart);
+        if (binarySeries != null) {
+            // The data will be fetched with a separate request; draw the
+            // chart once it arrives.
+            String key = new BigInteger(128, random).toString(36);
+            savePendingData(cr.getServletRequest().getSession(true).getId(),
+                    key, encodeSeries(binarySeries, binaryKeep));
+            cr.setAuthToken();
+            html.includeJsFile("static/fiz/Ajax.js");
+            Template.appendRaw(js, "Fiz.Chart.Series.load(\"@1\", [@2], " +
+                    "function() {@3.chart.draw();});\n",
+                    Template.expandUrl("/ChartSection/ajaxData?key=@1", key),
+                    StringUtil.join(binaryTargets, ", "), chart);
+            binarySeries = null;
+            binaryKeep = null;
+            binaryTargets = null;
+        } else {
+            Template.appendRaw(js, "@1.chart.draw();\n", chart);
+        }
         Template.appendJs(js, "} catch (e) {\nFiz.addBulletinMessage(" +
                            "\"<div class=\\\"bulletinError\\\">\" + e + \"</div>\");\n}\n");
 
@@ -270,10 +398,16 @@ public class ChartSection extends Section {
         // If there is a data property, then we are not using series. Otherwise,
         // we assume the data is in the series.
         if (data != null) { // no series
-            addData(plot);
+            ArrayList<Dataset> single = new ArrayList<Dataset>(1);
+            single.add(plot);
+            addData(plot, selectPoints(plot, single));
             Template.appendRaw(js, "@1.@(2) = " +
                             "new Fiz.Chart.@3(@1.@(2)_data);\n",
                             chart, plotId, getTypeOfPlot(plot));
+            if (binaryTargets != null) {
+                binaryTargets.add(Template.expandRaw("@1.@(2).series[0]",
+                        chart, plotId));
+            }
             setProperties(plot, plotId);
             Template.appendRaw(js, "@1.chart.addPlot(@1.@(2));\n",
                             chart, plotId);
@@ -282,11 +416,16 @@ public class ChartSection extends Section {
                             chart, plotId, getTypeOfPlot(plot));
             setProperties(plot, plotId);
             ArrayList<Dataset> series = plot.getDatasetList("series");
+            int[] keep = selectPoints(plot, series);
             for (Dataset serie : series) { // add each series in turn
                 String serieId = getId(serie, "series");
-                addData(serie);
+                addData(serie, keep);
                 Template.appendRaw(js, "@1.@2 = new Fiz.Chart.Series(@1.@(2)_data);\n",
                                 chart, serieId);
+                if (binaryTargets != null) {
+                    binaryTargets.add(Template.expandRaw("@1.@2", chart,
+                            serieId));
+                }
                 setProperties(serie, serieId);
                 Template.appendRaw(js, "@1.@(2).addSeries(@1.@(3));\n",
                                 chart, plotId, getId(serie, "series"));
@@ -321,27 +460,593 @@ public class ChartSection extends Section {
      *                        the id, data, xId, and yId properties.
      */
     protected void addData(Dataset properties) {
+        addData(properties, null);
+    }
+
+    /**
+     * Same as {@code addData(properties)}, except that only selected
+     * records are included in the array.
+     *
+     * @param properties      Dataset describing the plot or series. Used for
+     *                        the id, data, xId, and yId properties.
+     * @param keep            Indexes of the records to include, in
+     *                        increasing order (such as the result of
+     *                        {@code selectPoints}). Indexes beyond the end
+     *                        of the data are ignored. Null means include
+     *                        every record.
+     */
+    protected void addData(Dataset properties, int[] keep) {
         Dataset data = properties.getDataset("data");
 
         Template.appendRaw(js, "@1.@(2)_data = [", chart, properties.getString("id"));
+        if (binarySeries != null) {
+            // The data will be sent separately; start with an empty array.
+            binarySeries.add(properties);
+            binaryKeep.add(keep);
+            js.append("];\n");
+            return;
+        }
         ArrayList<Dataset> rows = data.getDatasetList("record");
 
         if (rows.size() != 0) {
             String xIdVal = properties.getString("xId");
             String yIdVal = properties.getString("yId");
-            for (int i = 0; i < rows.size(); i++) {
-                Dataset row = rows.get(i);
+            int count = (keep == null) ? rows.size() : keep.length;
+            String separator = "";
+            for (int i = 0; i < count; i++) {
+                int index = (keep == null) ? i : keep[i];
+                if (index >= rows.size()) {
+                    break;
+                }
+                Dataset row = rows.get(index);
+                js.append(separator);
                 Template.appendJs(js, "[\"@1\", @2]", row.getString(xIdVal),
                                           row.getString(yIdVal));
-                if (i != rows.size() - 1) {
-                    js.append(", ");
-                }
+                separator = ", ";
             }
         }
 
         js.append("];\n");
     }
 
+    /**
+     * Decides which records of a plot's data will be sent to the browser,
+     * based on the plot's {@code downsample} and {@code maxPoints}
+     * properties (see the class description).
+     *
+     * @param plot       Dataset describing the plot.
+     * @param series     Datasets for each of the plot's series (or just
+     *                   {@code plot} itself, if it has no series). Each
+     *                   must have data, xId, and yId properties.
+     * @return           Indexes of the records to keep, in increasing
+     *                   order, or null if every record should be kept.
+     */
+    protected int[] selectPoints(Dataset plot, ArrayList<Dataset> series) {
+        String method = plot.checkString("downsample");
+        if (method == null) {
+            method = properties.checkString("downsample");
+        }
+        if ((method == null) || method.equals("none") || (series.size() == 0)) {
+            return null;
+        }
+        String maxString = plot.checkString("maxPoints");
+        if (maxString == null) {
+            maxString = properties.checkString("maxPoints");
+        }
+        if (maxString == null) {
+            maxString = properties.checkString("width");
+        }
+        int maxPoints = DEFAULT_WIDTH;
+        if (maxString != null) {
+            try {
+                maxPoints = Integer.parseInt(maxString.trim());
+            } catch (NumberFormatException e) {
+                throw new org.fiz.InternalError("ChartSection: bad maxPoints " +
+                        "value \"" + maxString + "\"");
+            }
+        }
+
+        // Collect X values from the first series and Y values summed across
+        // all of the series (the Javascript plots line up stacked series by
+        // position, so we do the same).
+        Dataset first = series.get(0);
+        ArrayList<Dataset> rows = first.getDataset("data")
+                .getDatasetList("record");
+        int count = rows.size();
+        if (count <= maxPoints) {
+            return null;
+        }
+        double[] x = new double[count];
+        String xId = first.getString("xId");
+        for (int i = 0; i < count; i++) {
+            x[i] = parseDouble(rows.get(i).getString(xId), Double.NaN);
+            if (Double.isNaN(x[i])) {
+                // Non-numeric X values (such as category labels): space the
+                // points evenly.
+                for (i = 0; i < count; i++) {
+                    x[i] = i;
+                }
+                break;
+            }
+        }
+        double[] y = new double[count];
+        for (Dataset serie : series) {
+            ArrayList<Dataset> serieRows = serie.getDataset("data")
+                    .getDatasetList("record");
+            String yId = serie.getString("yId");
+            int limit = Math.min(count, serieRows.size());
+            for (int i = 0; i < limit; i++) {
+                y[i] += parseDouble(serieRows.get(i).getString(yId), 0.0);
+            }
+        }
+
+        if (method.equals("lttb")) {
+            return downsampleLttb(x, y, maxPoints);
+        }
+        if (method.equals("minmax")) {
+            return downsampleMinMax(y, maxPoints);
+        }
+        throw new org.fiz.InternalError("ChartSection: unknown downsample " +
+                "method \"" + method + "\"");
+    }
+
+    /**
+     * Selects points from a series using the Largest-Triangle-Three-Buckets
+     * algorithm: the first and last points are always kept, the others are
+     * divided into equal-size buckets, and from each bucket the point that
+     * forms the largest triangle with the previously selected point and the
+     * average of the next bucket is kept.
+     *
+     * @param x          X value of each point, in increasing order.
+     * @param y          Y value of each point.
+     * @param threshold  Maximum number of points to select.
+     * @return           Indexes of the selected points, in increasing
+     *                   order.
+     */
+    public static int[] downsampleLttb(double[] x, double[] y, int threshold) {
+        int count = x.length;
+        if ((threshold >= count) || (threshold < 3)) {
+            return allIndexes(count);
+        }
+        int[] result = new int[threshold];
+        int selected = 0;
+        result[selected++] = 0;
+
+        // Size of each bucket, not counting the first and last points.
+        double every = ((double) (count - 2))/(threshold - 2);
+        int a = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the following bucket (or the last point).
+            int avgStart = (int) Math.floor((bucket + 1)*every) + 1;
+            int avgEnd = Math.min((int) Math.floor((bucket + 2)*every) + 1,
+                    count);
+            double avgX = 0.0, avgY = 0.0;
+            for (int i = avgStart; i < avgEnd; i++) {
+                avgX += x[i];
+                avgY += y[i];
+            }
+            int avgCount = avgEnd - avgStart;
+            if (avgCount > 0) {
+                avgX /= avgCount;
+                avgY /= avgCount;
+            } else {
+                avgX = x[count - 1];
+                avgY = y[count - 1];
+            }
+
+            // Pick the point in this bucket with the largest triangle.
+            int start = (int) Math.floor(bucket*every) + 1;
+            int end = (int) Math.floor((bucket + 1)*every) + 1;
+            double maxArea = -1.0;
+            int maxIndex = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((x[a] - avgX)*(y[i] - y[a])
+                        - (x[a] - x[i])*(avgY - y[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxIndex = i;
+                }
+            }
+            result[selected++] = maxIndex;
+            a = maxIndex;
+        }
+        result[selected] = count - 1;
+        return result;
+    }
+
+    /**
+     * Selects points from a series by min/max bucketing: the first and last
+     * points are always kept, the others are divided into equal-size
+     * buckets, and from each bucket the points with the smallest and
+     * largest Y values are kept.  Unlike LTTB this never drops an extreme
+     * value, which matters for series where outliers are the interesting
+     * part.
+     *
+     * @param y          Y value of each point.
+     * @param threshold  Maximum number of points to select.
+     * @return           Indexes of the selected points, in increasing
+     *                   order.
+     */
+    public static int[] downsampleMinMax(double[] y, int threshold) {
+        int count = y.length;
+        if ((threshold >= count) || (threshold < 4)) {
+            return allIndexes(count);
+        }
+        int buckets = (threshold - 2)/2;
+        int[] result = new int[2*buckets + 2];
+        int selected = 0;
+        result[selected++] = 0;
+        double every = ((double) (count - 2))/buckets;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            int start = (int) Math.floor(bucket*every) + 1;
+            int end = Math.min((int) Math.floor((bucket + 1)*every) + 1,
+                    count - 1);
+            if (start >= end) {
+                continue;
+            }
+            int min = start, max = start;
+            for (int i = start + 1; i < end; i++) {
+                if (y[i] < y[min]) {
+                    min = i;
+                }
+                if (y[i] > y[max]) {
+                    max = i;
+                }
+            }
+            result[selected++] = Math.min(min, max);
+            if (min != max) {
+                result[selected++] = Math.max(min, max);
+            }
+        }
+        result[selected++] = count - 1;
+        return (selected == result.length) ? result
+                : Arrays.copyOf(result, selected);
+    }
+
+    /**
+     * Returns an array containing 0, 1, ... {@code count}-1.
+     *
+     * @param count      Number of elements in the result.
+     * @return           Array of indexes.
+     */
+    protected static int[] allIndexes(int count) {
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+
+    /**
+     * Converts a string to a double, returning a default value if the
+     * string isn't a valid number.
+     *
+     * @param value          String to convert.
+     * @param defaultValue   Value to return if {@code value} is not a
+     *                       number.
+     * @return               The numeric value of {@code value}.
+     */
+    protected static double parseDouble(String value, double defaultValue) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * This method is an Ajax entry point, invoked by charts whose
+     * {@code transport} property is {@code binary} to fetch their data.
+     * The response is the data for all of the chart's series, in the
+     * format described by {@code encodeSeries}.  The data can only be
+     * fetched once, by the session that rendered the chart, and only
+     * for a limited time (see {@code pendingLifetime}).
+     * @param cr                   Overall information about the client
+     *                             request being serviced;  the main dataset
+     *                             must contain a {@code key} value (the
+     *                             key under which the chart's data was
+     *                             saved in {@code pendingData}).
+     */
+    public static void ajaxData(ClientRequest cr) {
+        byte[] data = takePendingData(
+                cr.getServletRequest().getSession(true).getId(),
+                cr.getMainDataset().getString("key"));
+        if (data == null) {
+            throw new UserError("the data for this chart is no longer " +
+                    "available; reload the page to see the chart");
+        }
+        cr.returnBytes("application/octet-stream", data);
+    }
+
+    /**
+     * Saves the encoded data for a chart until the browser fetches it,
+     * discarding data as needed to stay within the limits on
+     * {@code pendingData}.
+     * @param session              Id of the current session.
+     * @param key                  Random key identifying the chart.
+     * @param data                 The chart's encoded data.
+     */
+    protected static void savePendingData(String session, String key,
+            byte[] data) {
+        session = String.valueOf(session);
+        PendingData pending = new PendingData();
+        pending.session = session;
+        pending.key = session + "/" + key;
+        pending.data = data;
+        synchronized (pendingData) {
+            long now = System.currentTimeMillis();
+            pending.expires = now + pendingLifetime;
+
+            // Entries are in order of expiration, so expired ones are
+            // at the front.
+            Iterator<PendingData> it = pendingData.values().iterator();
+            while (it.hasNext()) {
+                PendingData old = it.next();
+                if (old.expires > now) {
+                    break;
+                }
+                it.remove();
+                removeBytes(old);
+            }
+
+            pendingData.put(pending.key, pending);
+            pendingBytes += data.length;
+            Long bytes = sessionBytes.get(session);
+            sessionBytes.put(session,
+                    ((bytes == null) ? 0 : bytes) + data.length);
+            while (sessionBytes.containsKey(session)
+                    && (sessionBytes.get(session) > maxSessionBytes)) {
+                discardOldest(session);
+            }
+            while (pendingBytes > maxPendingBytes) {
+                String largest = null;
+                for (Map.Entry<String,Long> entry : sessionBytes.entrySet()) {
+                    if ((largest == null) || (entry.getValue()
+                            > sessionBytes.get(largest))) {
+                        largest = entry.getKey();
+                    }
+                }
+                discardOldest(largest);
+            }
+        }
+    }
+
+    /**
+     * Removes a chart's data from {@code pendingData} and returns it.
+     * @param session              Id of the current session.
+     * @param key                  Key that was passed to
+     *                             {@code savePendingData}.
+     * @return                     The chart's encoded data, or null if
+     *                             there is none for this session (or it
+     *                             has expired).
+     */
+    protected static byte[] takePendingData(String session, String key) {
+        session = String.valueOf(session);
+        synchronized (pendingData) {
+            PendingData pending = pendingData.remove(session + "/" + key);
+            if (pending == null) {
+                return null;
+            }
+            removeBytes(pending);
+            if (pending.expires <= System.currentTimeMillis()) {
+                return null;
+            }
+            return pending.data;
+        }
+    }
+
+    /**
+     * Discards the oldest data in {@code pendingData} for a session.
+     * The caller must hold the lock for {@code pendingData}.
+     * @param session              Id of a session that has data in
+     *                             {@code pendingData}.
+     */
+    protected static void discardOldest(String session) {
+        Iterator<PendingData> it = pendingData.values().iterator();
+        while (it.hasNext()) {
+            PendingData pending = it.next();
+            if (pending.session.equals(session)) {
+                it.remove();
+                removeBytes(pending);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Updates the byte counts for {@code pendingData} after an entry has
+     * been removed from it.  The caller must hold the lock for
+     * {@code pendingData}.
+     * @param pending              The entry that was removed.
+     */
+    protected static void removeBytes(PendingData pending) {
+        pendingBytes -= pending.data.length;
+        long bytes = sessionBytes.get(pending.session) - pending.data.length;
+        if (bytes == 0) {
+            sessionBytes.remove(pending.session);
+        } else {
+            sessionBytes.put(pending.session, bytes);
+        }
+    }
+
+    /**
+     * Encodes the data for one or more series in a compact binary form,
+     * which the browser decodes with {@code Fiz.Chart.Series.load}.  All
+     * numbers are little-endian, and every column starts on an 8-byte
+     * boundary so the browser can use typed arrays on it directly.  The
+     * format is:
+     *   Int32 number of series, Int32 0
+     * followed by, for each series:
+     *   Int32 number of points, Int32 type of the X column, Int32 type of
+     *   the Y column, Int32 length of the X column in bytes
+     *   X column, padded with zeroes to a multiple of 8 bytes
+     *   Y column, padded with zeroes to a multiple of 8 bytes
+     * Column types are {@code INT32} (an Int32 for each point),
+     * {@code FLOAT64} (a Float64 for each point; values that aren't
+     * numbers are sent as NaN), or {@code TEXT} (the UTF-8 values,
+     * separated by newlines; backslashes and newlines within a value are
+     * escaped as "\\" and "\n"). Integer columns are sent as INT32 and other
+     * numeric Y columns as FLOAT64; X columns are TEXT unless they are
+     * integers, since they are used as labels and must look the same as
+     * in the original data.
+     *
+     * @param series     Datasets describing each series.  Used for the
+     *                   data, xId, and yId properties.
+     * @param keep       For each series, the indexes of the records to
+     *                   send (see {@code addData}); a null element means
+     *                   send all of the records.
+     * @return           The encoded data.
+     */
+    protected static byte[] encodeSeries(ArrayList<Dataset> series,
+            ArrayList<int[]> keep) {
+        ArrayList<String[]> xColumns = new ArrayList<String[]>();
+        ArrayList<String[]> yColumns = new ArrayList<String[]>();
+        ArrayList<byte[]> labels = new ArrayList<byte[]>();
+        ArrayList<Integer> yTypes = new ArrayList<Integer>();
+        int length = 8;
+        for (int i = 0; i < series.size(); i++) {
+            Dataset properties = series.get(i);
+            ArrayList<Dataset> rows = properties.getDataset("data")
+                    .getDatasetList("record");
+            int[] indexes = keep.get(i);
+            if (indexes == null) {
+                indexes = allIndexes(rows.size());
+            }
+            String xId = properties.getString("xId");
+            String yId = properties.getString("yId");
+            ArrayList<String> x = new ArrayList<String>(indexes.length);
+            ArrayList<String> y = new ArrayList<String>(indexes.length);
+            for (int index : indexes) {
+                if (index >= rows.size()) {
+                    break;
+                }
+                Dataset row = rows.get(index);
+                x.add(row.getString(xId));
+                y.add(row.getString(yId));
+            }
+            String[] xValues = x.toArray(new String[x.size()]);
+            String[] yValues = y.toArray(new String[y.size()]);
+            xColumns.add(xValues);
+            yColumns.add(yValues);
+            byte[] text = null;
+            if (columnType(xValues, false) == TEXT) {
+                text = joinLabels(xValues).getBytes(
+                        Charset.forName("UTF-8"));
+            }
+            labels.add(text);
+            int yType = columnType(yValues, true);
+            yTypes.add(yType);
+            length += 16 + padded((text != null) ? text.length
+                    : 4*xValues.length) + padded(((yType == INT32) ? 4 : 8)
+                    *yValues.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(series.size()).putInt(0);
+        for (int i = 0; i < xColumns.size(); i++) {
+            String[] xValues = xColumns.get(i);
+            String[] yValues = yColumns.get(i);
+            byte[] text = labels.get(i);
+            int xType = (text != null) ? TEXT : INT32;
+            int yType = yTypes.get(i);
+            int xLength = (text != null) ? text.length : 4*xValues.length;
+            buffer.putInt(xValues.length).putInt(xType).putInt(yType)
+                    .putInt(xLength);
+            if (text != null) {
+                buffer.put(text);
+            } else {
+                putColumn(buffer, xValues, INT32);
+            }
+            buffer.position(padded(buffer.position()));
+            putColumn(buffer, yValues, yType);
+            buffer.position(padded(buffer.position()));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Generates the text for a TEXT column in the binary data format:
+     * the values are separated by newlines, with any backslashes and
+     * newlines in the values escaped so they can be split apart again.
+     *
+     * @param values        The values in the column.
+     * @return              The column's text.
+     */
+    protected static String joinLabels(String[] values) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            String value = values[i];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\') {
+                    result.append("\\\\");
+                } else if (c == '\n') {
+                    result.append("\\n");
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Decides how a column of values should be represented in the binary
+     * data format.
+     *
+     * @param values        The values in the column.
+     * @param allowFloat    True means FLOAT64 may be returned.
+     * @return              INT32 if every value is an integer (written in
+     *                      canonical form); otherwise FLOAT64 if
+     *                      {@code allowFloat} is true, otherwise TEXT.
+     */
+    protected static int columnType(String[] values, boolean allowFloat) {
+        for (String value : values) {
+            try {
+                if (Integer.toString(Integer.parseInt(value)).equals(value)) {
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Not an integer; fall through.
+            }
+            return allowFloat ? FLOAT64 : TEXT;
+        }
+        return INT32;
+    }
+
+    /**
+     * Appends a column of numeric values to a buffer.
+     *
+     * @param buffer        Buffer in which to store the values.
+     * @param values        The values to store.
+     * @param type          INT32 or FLOAT64.
+     */
+    protected static void putColumn(ByteBuffer buffer,
+            String[] values, int type) {
+        for (String value : values) {
+            if (type == INT32) {
+                buffer.putInt(Integer.parseInt(value));
+            } else {
+                buffer.putDouble(parseDouble(value, Double.NaN));
+            }
+        }
+    }
+
+    /**
+     * Rounds a length up to the next multiple of 8.
+     *
+     * @param length        Number of bytes.
+     * @return              The smallest multiple of 8 that is at least
+     *                      {@code length}.
+     */
+    protected static int padded(int length) {
+        return (length + 7) & ~7;
+    }
+
     /**
      * Sets the properties for a plot, chart, or series. This is complicated due
      * to possible collapse of datasets for brevity, so it is not immediately
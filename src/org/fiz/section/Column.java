@@ -16,6 +16,7 @@
 package org.fiz.section;
 
 import org.fiz.*;
+import java.io.Serializable;
 
 /**
  * A Column object represents one column in a TableSection.  This class
@@ -23,16 +24,23 @@ import org.fiz.*;
  * forms.  A Column implements the Section interface, which knows how to
  * generate HTML for a particular column in a particular row, given a
  * dataset containing data for the row.  In addition, a Column object can
- * generate HTML for the column header.
- *
+ * generate HTML for the column header.  Columns are serializable, so that
+ * paged TableSections can save them in the page state; a Column that
+ * displays its values with a Section is serializable only if that
+ * Section is.
  */
-public class Column extends Section {
+public class Column extends Section implements Serializable {
     // The following variables hold copies of constructor arguments;
     // see the constructors for details.
     protected String label;
     protected String template = null;
     protected Section section = null;
 
+    // Name of the field in each row's data by which the table can be
+    // sorted using this column, or null if the column can't be used
+    // for sorting.
+    protected String sortField = null;
+
     /**
      * Construct a Column that expands a template and displays the
      * result.
@@ -60,6 +68,29 @@ public class Column extends Section {
         this.section = section;
     }
 
+    /**
+     * Returns the field used to sort the table by this column.
+     * @return                     The field most recently specified with
+     *                             {@code setSortField}, or null if none.
+     */
+    public String getSortField() {
+        return sortField;
+    }
+
+    /**
+     * Allow this column to be used for sorting paged TableSections:
+     * clicking on the column's header will sort the table by a given
+     * field.
+     * @param sortField            Name of the field in each row by which
+     *                             to sort.
+     * @return                     This Column (for convenience when
+     *                             creating TableSections).
+     */
+    public Column setSortField(String sortField) {
+        this.sortField = sortField;
+        return this;
+    }
+
     /**
      * Generate HTML for this column in a particular row (everything that
      * goes inside the {@code <td>} element).
@@ -69,6 +69,13 @@ public abstract class FormElement extends Section implements DirectAjax {
         protected String id;
         protected List<Dataset> validators;
 
+        // Compiled forms of {@code validators}, created the first time
+        // they are needed, and the list they were compiled from.  These
+        // are not serialized: they are recreated if this object is
+        // restored from a page property.
+        protected transient FormValidator.CompiledValidator[] compiled;
+        protected transient List<Dataset> compiledFrom;
+
         // Constructs a new object for holding various pieces of information
         // needed for a form to validate itself. It also provides information to
         // render error messages if any errors occur.
@@ -76,6 +83,23 @@ public abstract class FormElement extends Section implements DirectAjax {
             this.id = id;
             this.validators = new ArrayList<Dataset>();
         }
+
+        // Returns compiled forms of the validators, compiling them if
+        // {@code validators} has changed since they were last compiled.
+        protected FormValidator.CompiledValidator[] getCompiled() {
+            FormValidator.CompiledValidator[] result = compiled;
+            if ((result == null) || (compiledFrom != validators)
+                    || (result.length != validators.size())) {
+                result = new FormValidator.CompiledValidator[
+                        validators.size()];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = FormValidator.compile(validators.get(i));
+                }
+                compiledFrom = validators;
+                compiled = result;
+            }
+            return result;
+        }
     }
 
     // Value of the {@code id} constructor property.
@@ -372,20 +396,11 @@ public abstract class FormElement extends Section implements DirectAjax {
     public static void validate(ValidatorData validatorData,
             Dataset in) throws FormDataException {
         FormSection.FormDataException e = null;
-        for (Dataset validator : validatorData.validators) {
-            String method = validator.getString("type");
-
-            // If there is no period in the validator type, we assume the
-            // developer is specifying a built-in validator type
-            if (method.indexOf('.') == -1) {
-                method = "FormValidator.validate"
-                    + StringUtil.ucFirst(method);
-            }
-
+        for (FormValidator.CompiledValidator validator :
+                validatorData.getCompiled()) {
             // Gets either the error message if the validation fails or null
             // representing the validation succeeded
-            String result = (String) Util.invokeStaticMethod(
-                    method, validatorData.id, validator, in);
+            String result = validator.validate(validatorData.id, in);
 
             if (result != null) {
                 if (e == null) {
@@ -376,6 +376,19 @@ public class FormSection extends Section {
                 checkElementErrorStyle(), errorData);
     }
 
+    /**
+     * Forms are never cached: their output includes the session's
+     * authentication token, and rendering a form records page properties
+     * for the post.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Always null.
+     */
+    @Override
+    public String getCacheKey(ClientRequest cr) {
+        return null;
+    }
+
     @Override
     public void render(ClientRequest cr) {
         Html html = cr.getHtml();
@@ -422,6 +435,8 @@ public class FormSection extends Section {
         // * Create a second hidden form element that will hold the page
         //   id for this page (the actual id value is filled in from
         //   Javascript).
+        // * If page state is kept in the browser, create a third hidden
+        //   form element to return it (also filled in from Javascript).
         Template.appendHtml(out, "\n<!-- Start FormSection @id -->\n" +
                 "<div id=\"@(id)_target\" style=\"display:none;\"></div>\n" +
                 "<form id=\"@id\" " +
@@ -434,6 +449,11 @@ public class FormSection extends Section {
                 "  <input id=\"@(id)_fizPageId\" type=\"hidden\" " +
                 "name=\"fiz_pageId\" />\n",
                 properties, cr.getAuthToken());
+        if (PageState.getStore() instanceof ClientPageStateStore) {
+            Template.appendHtml(out, "  <input id=\"@(id)_fizPageState\" " +
+                    "type=\"hidden\" name=\"fiz_pageState\" />\n",
+                    properties);
+        }
         renderInner(cr, data, out);
         Template.appendHtml(out, "</form>\n" +
                 "<!-- End FormSection @id -->\n",
@@ -166,6 +166,19 @@ public class RatingSection extends Section implements DirectAjax {
         cr.evalJavascript("Fiz.ids.@1.readOnly = @2;", id, "" + readOnly);
     }
 
+    /**
+     * RatingSections are never cached: their output sets the session's
+     * authentication token in the browser for the Ajax requests that
+     * record new ratings.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Always null.
+     */
+    @Override
+    public String getCacheKey(ClientRequest cr) {
+        return null;
+    }
+
     @Override
     public void render(ClientRequest cr) {
         Html html = cr.getHtml();
@@ -17,6 +17,8 @@ package org.fiz.section;
 
 import org.fiz.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * A TableLayout allows a layout to be specified using an ASCII picture of a
@@ -117,19 +119,47 @@ public class TableLayout extends Layout {
     // separator.
     protected final static char I = '+';
 
-    // Maintains a cache of parsed layout descriptions. This cache lasts for
-    // the lifetime of the application.
-    // The cache is implemented as a mapping of layout strings to parsed
-    // intermediate representations of the layout which can later be efficiently
-    // expanded.
-    // Note: In the current implementation, entries in the cache are never
-    // removed once they are inserted.
-    protected static final HashMap<String, ArrayList<HtmlFragment>>
-            layoutCache = new HashMap<String, ArrayList<HtmlFragment>>();
+    /**
+     * A CompiledLayout is the form of a layout description used for
+     * rendering: all of the HTML between two cells has been combined into
+     * a single string, so rendering consists of alternately appending a
+     * string and rendering the contents of a cell.
+     */
+    protected static class CompiledLayout {
+        /**
+         * Template for the {@code <table>} element; it is expanded with
+         * the layout's properties.
+         */
+        String header;
+
+        /**
+         * HTML to output before the contents of each cell: {@code html[i]}
+         * precedes the cell {@code ids[i]}, and the last element (there
+         * is one more than the number of cells) follows the last cell.
+         */
+        String[] html;
+
+        /**
+         * Names of the cells, in the order they are rendered.
+         */
+        String[] ids;
+    }
+
+    // Maintains a cache of compiled layout descriptions, shared by all
+    // requests. The cache is implemented as a mapping of layout strings to
+    // compiled layouts. It holds at most maxCachedLayouts entries; when it
+    // is full an arbitrary entry is discarded to make room for a new one
+    // (applications normally have far fewer layouts than this, so the
+    // limit only matters if layouts are generated dynamically).
+    protected static final ConcurrentHashMap<String, CompiledLayout>
+            layoutCache = new ConcurrentHashMap<String, CompiledLayout>();
+
+    // Maximum number of entries in layoutCache.
+    protected static int maxCachedLayouts = 500;
 
     // Records the number of times a cached layout description was used. This
     // is used only for testing the caching functionality.
-    protected static int cacheUseCount = 0;
+    protected static AtomicInteger cacheUseCount = new AtomicInteger();
 
     /**
      * Construct a TableLayout.
@@ -156,9 +186,7 @@ public class TableLayout extends Layout {
      * request.
      */
     public static void clearCache() {
-        synchronized (layoutCache) {
-            layoutCache.clear();
-        }
+        layoutCache.clear();
     }
 
     /**
@@ -171,39 +199,75 @@ public class TableLayout extends Layout {
     public void render(ClientRequest cr) {
         String format = findFormat(cr);
 
-        // Check if the format has already been parsed.
-        // Note: The layoutCache is shared application-wide, so access to it
-        // must be synchronized.
-        ArrayList<HtmlFragment> parsedLayout;
-        synchronized (layoutCache) {
-            parsedLayout = layoutCache.get(format);
-            if (parsedLayout == null) {
-                // Create a new instance of a TableLayout object
-                // and cache it for later use.
-                parsedLayout = parse(format);
-                layoutCache.put(format, parsedLayout);
-            } else {
-                // Record the fact that a cached value is being used.
-                cacheUseCount++;
+        // Check if the format has already been compiled. If several
+        // requests miss on the same format at once, each of them compiles
+        // it (compilation has no side effects) and the first to finish
+        // adds it to the cache.
+        CompiledLayout layout = layoutCache.get(format);
+        if (layout == null) {
+            layout = compile(format);
+            if (layoutCache.size() >= maxCachedLayouts) {
+                Iterator<String> victims = layoutCache.keySet().iterator();
+                if (victims.hasNext()) {
+                    layoutCache.remove(victims.next());
+                }
+            }
+            CompiledLayout existing = layoutCache.putIfAbsent(format, layout);
+            if (existing != null) {
+                layout = existing;
             }
+        } else {
+            // Record the fact that a cached value is being used.
+            cacheUseCount.incrementAndGet();
         }
 
-        // Expand the parsed layout description.
+        // Expand the compiled layout.
         StringBuilder out = cr.getHtml().getBody();
         Dataset data = getData(cr);
-        for (HtmlFragment fragment : parsedLayout) {
+        Template.appendHtml(out, layout.header, properties);
+        String[] ids = layout.ids;
+        for (int i = 0; i < ids.length; i++) {
+            out.append(layout.html[i]);
+            cr.renderVariable(data.get(ids[i]));
+        }
+        out.append(layout.html[ids.length]);
+    }
+
+    /**
+     * Parses a layout description and converts it to the form used for
+     * rendering.
+     *
+     * @param layout        A multi-line string describing the layout.
+     * @return              The compiled form of {@code layout}.
+     * @throws ParseError   Thrown in case of any parse errors.
+     */
+    protected static CompiledLayout compile(CharSequence layout)
+            throws ParseError {
+        CompiledLayout result = new CompiledLayout();
+        ArrayList<String> html = new ArrayList<String>();
+        ArrayList<String> ids = new ArrayList<String>();
+        StringBuilder pending = new StringBuilder();
+        for (HtmlFragment fragment : parse(layout)) {
             switch (fragment.type) {
                 case TemplateHtml:
-                    Template.appendHtml(out, fragment.value, properties);
+                    // The only template is the <table> element, which
+                    // comes first.
+                    result.header = fragment.value;
                     break;
                 case Id:
-                    cr.renderVariable(data.get(fragment.value));
+                    html.add(pending.toString());
+                    pending.setLength(0);
+                    ids.add(fragment.value);
                     break;
                 case PlainHtml:
-                    out.append(fragment.value);
+                    pending.append(fragment.value);
                     break;
             }
         }
+        html.add(pending.toString());
+        result.html = html.toArray(new String[html.size()]);
+        result.ids = ids.toArray(new String[ids.size()]);
+        return result;
     }
 
     /**
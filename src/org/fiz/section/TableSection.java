@@ -16,6 +16,7 @@
 package org.fiz.section;
 
 import org.fiz.*;
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -23,6 +24,24 @@ import java.util.*;
  * columns.  TableSections support the following constructor properties:
  *   class:          (optional) Used as the {@code class} attribute for
  *                   the HTML table that displays the TableSection.
+ *   dataFactory:    (required for paged tables, see {@code pageSize})
+ *                   Used instead of {@code data} for paged tables:
+ *                   identifies a static method that returns one page of
+ *                   rows.  Must have the
+ *                   form {@code class.method}; the method takes
+ *                   {@code Integer offset}, {@code Integer count},
+ *                   {@code String sortField}, and {@code Boolean descending}
+ *                   arguments and returns a dataset with one {@code record}
+ *                   child for each of the (at most) {@code count} rows
+ *                   starting at index {@code offset}, after sorting the
+ *                   rows by {@code sortField} (an empty string means the
+ *                   rows are unsorted).  The dataset may also contain a
+ *                   {@code totalRows} value giving the total number of rows
+ *                   in the table.  For tables stored in SQL databases, the
+ *                   method can call {@code SqlDataManager.findPage} so that
+ *                   the sorting and paging are done by the database; for
+ *                   data already in memory it can call
+ *                   {@code TableSection.pageData}.
  *   emptyTemplate:  (optional) If the table is empty ({@code data} is an
  *                   empty dataset), this template will be expanded (using
  *                   the main dataset) and displayed in a single row in the
@@ -46,11 +65,30 @@ import java.util.*;
  *                   if some of the columns offer header information.
  *                   Regardless of this property, the header row will be
  *                   omitted if none of the columns generate header info.
- *   data:           (required) Supplies data for the table; The dataset
+ *   data:           (required unless the table is paged)
+ *                   Supplies data for the table; The dataset
  *                   must contain one {@code record} child
  *                   for each row of the table; when rendering a row, the
  *                   child dataset for that row will be passed to each of the
  *                   Column objects.
+ *   pageSize:       (optional) If this property is specified then the table
+ *                   is paged: only the first {@code pageSize} rows are
+ *                   rendered with the page, inside a scrollable
+ *                   {@code <div>}, and additional rows are fetched with
+ *                   Ajax requests as the user scrolls.  Only the rows near
+ *                   the visible region are kept in the browser's document.
+ *                   Clicking on the header of a column that has a sort
+ *                   field (see {@code Column.setSortField}) re-sorts the
+ *                   table.  Paged tables must have an {@code id} and a
+ *                   {@code dataFactory}.  The table's columns are saved in
+ *                   the page state so that later rows can be rendered, so
+ *                   they must be serializable (a Column is serializable as
+ *                   long as any Section passed to its constructor is).
+ *   prefetch:       (optional) For paged tables, the number of rows beyond
+ *                   the visible region that are kept in the document;
+ *                   more rows are requested when the user scrolls to
+ *                   within this distance of the last row received.
+ *                   Defaults to {@code pageSize}.
  *
  * TableSection automatically sets the following {@code class} attributes
  * for use in CSS (some elements may have more than one class):
@@ -68,12 +106,55 @@ import java.util.*;
  *   empty:          If there is no data for the table then the first row
  *                   of the table (which displays {@code emptyTemplate})
  *                   will have this class.
+ *   sortable:       The header {@code <td>} for each column that can be
+ *                   used to sort a paged table.
+ *   TableSectionScroll:
+ *                   The {@code <div>} containing a paged table.
  */
-public class TableSection extends Section {
+public class TableSection extends Section implements DirectAjax {
+    // One object of the following class is stored as a page property
+    // for each paged TableSection in a page: it holds the information
+    // needed to fetch and render additional rows in later Ajax requests.
+    // The rows themselves are not saved; they are fetched again from
+    // the data factory.
+    protected static class PageProperty implements Serializable {
+        // The following variables are copies of configuration properties
+        // and constructor arguments for the section.
+        protected String id;
+        protected String dataFactory;
+        protected int pageSize;
+        protected Section[] columns;
+
+        // Fields by which the browser may ask for the table to be
+        // sorted (see {@code Column.setSortField}).
+        protected HashSet<String> sortFields = new HashSet<String>();
+
+        public PageProperty(String id, String dataFactory, int pageSize,
+                Section[] columns) {
+            this.id = id;
+            this.dataFactory = dataFactory;
+            this.pageSize = pageSize;
+            this.columns = columns;
+            for (Section column : columns) {
+                if ((column instanceof Column)
+                        && (((Column) column).getSortField() != null)) {
+                    sortFields.add(((Column) column).getSortField());
+                }
+            }
+        }
+    }
+
     // The following variables are copies of constructor arguments.  See
     // the constructor documentation for details.
     protected Section[] columns;
 
+    // Number of rows in each page for paged tables, or 0 if the table
+    // isn't paged.
+    protected int pageSize = 0;
+
+    // Value of the {@code prefetch} property for paged tables.
+    protected int prefetch = 0;
+
     /**
      * Construct a TableSection.
      * @param properties           Contains configuration information
@@ -96,12 +177,127 @@ public class TableSection extends Section {
     public TableSection(Dataset properties, Section ... columns) {
         this.properties = properties;
         this.columns = columns;
+        String pageSize = properties.checkString("pageSize");
+        if (pageSize != null) {
+            this.pageSize = Integer.parseInt(pageSize);
+            String prefetch = properties.checkString("prefetch");
+            this.prefetch = (prefetch != null) ? Integer.parseInt(prefetch)
+                    : this.pageSize;
+            if (!properties.containsKey("id")) {
+                throw new org.fiz.InternalError("TableSection constructor " +
+                        "invoked with a \"pageSize\" property but no " +
+                        "\"id\" property");
+            }
+            if (!properties.containsKey("dataFactory")) {
+                throw new org.fiz.InternalError("TableSection constructor " +
+                        "invoked with a \"pageSize\" property but no " +
+                        "\"dataFactory\" property");
+            }
+            for (Section column : columns) {
+                if (!(column instanceof Serializable)) {
+                    throw new org.fiz.InternalError("paged TableSection " +
+                            "has non-serializable " +
+                            column.getClass().getSimpleName() + " column");
+                }
+            }
+            return;
+        }
         if (!properties.containsKey("data")) {
             throw new org.fiz.InternalError("TableSection constructor invoked " +
                     "without a \"data\" property");
         }
     }
 
+    /**
+     * This method is an Ajax entry point, invoked by paged tables to
+     * fetch additional rows, either because the user has scrolled near
+     * the end of the rows already received or because the table is being
+     * re-sorted.  The response invokes the {@code addRows} method of the
+     * table's Javascript object.
+     * @param cr                   Overall information about the client
+     *                             request being serviced;  the main dataset
+     *                             must contain {@code id} (id attribute for
+     *                             the table), {@code offset} (index of the
+     *                             first row to return), {@code count}
+     *                             (number of rows to return; no more than
+     *                             the table's page size are returned),
+     *                             {@code sortField} (field by which to sort
+     *                             the rows; empty means unsorted), and
+     *                             {@code descending} ("true" means sort in
+     *                             decreasing order) values.
+     */
+    public static void ajaxRows(ClientRequest cr) {
+        Dataset main = cr.getMainDataset();
+        String id = main.getString("id");
+        PageProperty pageProperty = (PageProperty) cr.getPageProperty(id);
+        TableSection table = new TableSection(new Dataset("id", id,
+                "dataFactory", pageProperty.dataFactory,
+                "pageSize", Integer.toString(pageProperty.pageSize)),
+                pageProperty.columns);
+        int offset = main.getInt("offset");
+        if (offset < 0) {
+            throw new org.fiz.InternalError("TableSection.ajaxRows " +
+                    "received negative offset " + offset);
+        }
+
+        // The count comes from the browser; don't let it undo the paging.
+        int count = Math.min(main.getInt("count"), pageProperty.pageSize);
+        if (count < 0) {
+            throw new org.fiz.InternalError("TableSection.ajaxRows " +
+                    "received negative count " + count);
+        }
+        String sortField = main.getString("sortField");
+        if ((sortField.length() > 0)
+                && !pageProperty.sortFields.contains(sortField)) {
+            throw new org.fiz.InternalError("TableSection.ajaxRows " +
+                    "received unknown sort field \"" + sortField + "\"");
+        }
+        boolean descending = main.getBool("descending");
+        Dataset data = table.getRows(offset, count, sortField, descending);
+        if (data.getErrorData() != null) {
+            cr.addErrorsToBulletin(data.getErrorData());
+            return;
+        }
+        ArrayList<Dataset> rows = data.getDatasetList("record");
+        int totalRows = getTotalRows(data, offset, count);
+
+        // Generate the HTML for the rows in the Html object for the
+        // request (that's where the columns render themselves), then
+        // move it to the Javascript response.
+        StringBuilder out = cr.getHtml().getBody();
+        int start = out.length();
+        StringBuilder javascript = new StringBuilder();
+        Template.appendJs(javascript, "Fiz.ids.@1.addRows(@2, @3, [", id,
+                offset, totalRows);
+        CompoundDataset dataForRow = new CompoundDataset(null, main);
+        dataForRow.setIndexed(true);
+        for (int i = 0; i < rows.size(); i++) {
+            dataForRow.setComponent(0, rows.get(i));
+            table.renderRow(cr, dataForRow, offset + i,
+                    (offset + i) == (totalRows - 1));
+            if (i != 0) {
+                javascript.append(", ");
+            }
+            Template.appendJs(javascript, "\"@1\"", out.substring(start));
+            out.setLength(start);
+        }
+        Template.appendJs(javascript, "], \"@1\", @2);\n", sortField,
+                descending);
+        cr.evalJavascript(javascript);
+    }
+
+    /**
+     * TableSections are never cached, since paged tables save a page
+     * property that later Ajax requests use to fetch more rows.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Always null.
+     */
+    @Override
+    public String getCacheKey(ClientRequest cr) {
+        return null;
+    }
+
     @Override
     public void render(ClientRequest cr) {
         Html html = cr.getHtml();
@@ -109,14 +305,23 @@ public class TableSection extends Section {
         Dataset mainDataset = cr.getMainDataset();
 
         // The following dataset will eventually include the data from
-        // the current row plus the main dataset.
+        // the current row plus the main dataset.  It is indexed, since
+        // every column looks up values in it for every row.
         CompoundDataset dataForRow = new CompoundDataset(null, mainDataset);
+        dataForRow.setIndexed(true);
 
         // Start.
         if (!properties.containsKey("class")) {
             html.includeCssFile("TableSection.css");
         }
-        Template.appendHtml(out, "\n<!-- Start TableSection {{@id}} -->\n" +
+        Template.appendHtml(out, "\n<!-- Start TableSection {{@id}} -->\n",
+                properties);
+        if (pageSize > 0) {
+            Template.appendHtml(out, "<div id=\"@(id)_scroll\" " +
+                    "class=\"TableSectionScroll\" " +
+                    "onscroll=\"Fiz.ids.@id.scrolled();\">\n", properties);
+        }
+        Template.appendHtml(out,
                 "<table {{id=\"@id\"}} class=\"@class?{TableSection}\" " +
                 "cellspacing=\"0\">\n",
                 properties);
@@ -132,7 +337,7 @@ public class TableSection extends Section {
             // produce actual headers (if not, we will omit the entire
             // header row).
             for (int col = 0; col < columns.length; col++) {
-                printTd(col, out);
+                printHeaderTd(col, out);
                 int headerStart = out.length();
                 Section f = columns[col];
                 if (f instanceof Column) {
@@ -153,7 +358,16 @@ public class TableSection extends Section {
         }
 
         // Body rows.
-        Dataset data = properties.getDataset("data");
+        Dataset data;
+        int totalRows = -1;
+        if (pageSize > 0) {
+            data = getRows(0, pageSize, "", false);
+            if (data.getErrorData() == null) {
+                totalRows = getTotalRows(data, 0, pageSize);
+            }
+        } else {
+            data = properties.getDataset("data");
+        }
         if (data.getErrorData() != null) {
             // The request generated an error.  Display information about
             // the error in a single row.
@@ -179,35 +393,216 @@ public class TableSection extends Section {
                 }
                 Template.appendHtml(out, template, mainDataset);
                 out.append("</td>\n  </tr>\n");
-            } else {
-                // Normal case: there are records to display.
-                for (int i = 0; i < rows.size(); i++) {
-                    dataForRow.setComponent(0, rows.get(i));
-                    out.append("  <tr class=\"");
-                    if (i == (rows.size()-1)) {
-                        out.append("last ");
-                    }
-                    if ((i & 1) != 0) {
-                        out.append("odd\">\n");
-                    } else {
-                        out.append("even\">\n");
-                    }
-                    for (int col = 0; col < columns.length; col++) {
-                        printTd(col, out);
-                        columns[col].render(cr, dataForRow);
-                        out.append("</td>\n");
-                    }
-                    out.append("  </tr>\n");
-                }
+            }
+
+            // For paged tables the rows are bracketed by "spacer" rows,
+            // whose heights are adjusted in the browser to stand in for
+            // the rows that aren't currently in the document.
+            if (pageSize > 0) {
+                Template.appendHtml(out, "  <tr id=\"@(1)_above\" " +
+                        "class=\"spacer\"><td colspan=\"@2\"></td></tr>\n",
+                        properties.getString("id"), columns.length);
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                dataForRow.setComponent(0, rows.get(i));
+                renderRow(cr, dataForRow, i, (pageSize > 0)
+                        ? (i == (totalRows - 1))
+                        : (i == (rows.size()-1)));
+            }
+            if (pageSize > 0) {
+                Template.appendHtml(out, "  <tr id=\"@(1)_below\" " +
+                        "class=\"spacer\"><td colspan=\"@2\"></td></tr>\n",
+                        properties.getString("id"), columns.length);
+                cr.setPageProperty(properties.getString("id"),
+                        new PageProperty(properties.getString("id"),
+                        properties.getString("dataFactory"), pageSize,
+                        columns));
+                html.includeJsFile("static/fiz/TableSection.js");
+                cr.evalJavascript("Fiz.ids.@1 = new Fiz.TableSection(" +
+                        "\"@1\", @2, @3, @4);\n",
+                        properties.getString("id"), pageSize, prefetch,
+                        totalRows);
             }
         }
 
         // End.
-        Template.appendHtml(out,
-                "</table>\n<!-- End TableSection {{@id}} -->\n",
+        out.append("</table>\n");
+        if (pageSize > 0) {
+            out.append("</div>\n");
+        }
+        Template.appendHtml(out, "<!-- End TableSection {{@id}} -->\n",
                 properties);
     }
 
+    /**
+     * Returns a range of the rows in a dataset, after sorting.  This
+     * method is intended for use by the {@code dataFactory} methods of
+     * paged tables whose data is already in memory.  If every row has a
+     * numeric value for {@code sortField} the rows are sorted
+     * numerically; otherwise they are sorted as strings.
+     * @param data                 Dataset with one {@code record} child
+     *                             for each row in the table.  The rows in
+     *                             {@code data} are not reordered.
+     * @param offset               Index of the first row desired.
+     * @param count                Maximum number of rows to return.
+     * @param sortField            Name of the field in each row by which
+     *                             the rows are sorted; an empty string
+     *                             means the rows are not sorted.
+     * @param descending           True means rows are sorted in decreasing
+     *                             order of {@code sortField}.
+     * @return                     A dataset with one {@code record} child
+     *                             for each row in the range, and a
+     *                             {@code totalRows} value.  If {@code data}
+     *                             contains an error, it is returned.
+     */
+    public static Dataset pageData(Dataset data, int offset, int count,
+            String sortField, boolean descending) {
+        if (data.getErrorData() != null) {
+            return data;
+        }
+        ArrayList<Dataset> rows = data.getDatasetList("record");
+        if (sortField.length() > 0) {
+            DatasetComparator.Type type = DatasetComparator.Type.FLOAT;
+            for (Dataset row : rows) {
+                String value = row.checkString(sortField);
+                if ((value == null) || !isNumber(value)) {
+                    type = DatasetComparator.Type.STRING;
+                    break;
+                }
+            }
+            Collections.sort(rows, new DatasetComparator(sortField, type,
+                    descending ? DatasetComparator.Order.DECREASING
+                    : DatasetComparator.Order.INCREASING));
+        }
+        Dataset result = new Dataset("totalRows",
+                Integer.toString(rows.size()));
+        for (int i = offset; (i < rows.size()) && (i < (offset + count));
+                i++) {
+            result.add("record", rows.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a range of the rows in a paged table, after sorting.
+     * @param offset               Index of the first row desired.
+     * @param count                Maximum number of rows to return.
+     * @param sortField            Name of the field in each row by which
+     *                             the rows are sorted; an empty string
+     *                             means the rows are not sorted.
+     * @param descending           True means rows are sorted in decreasing
+     *                             order of {@code sortField}.
+     * @return                     The result of the table's
+     *                             {@code dataFactory} method: a dataset with
+     *                             one {@code record} child for each row in
+     *                             the range, and possibly a
+     *                             {@code totalRows} value.
+     */
+    protected Dataset getRows(int offset, int count, String sortField,
+            boolean descending) {
+        return (Dataset) Util.invokeStaticMethod(
+                properties.getString("dataFactory"), offset, count,
+                sortField, descending);
+    }
+
+    /**
+     * Determine the total number of rows in a paged table, if possible.
+     * @param data                 Result from {@code getRows}.
+     * @param offset               Index of the first row in {@code data}.
+     * @param count                Number of rows requested from
+     *                             {@code getRows}.
+     * @return                     The total number of rows in the table,
+     *                             or -1 if it isn't known yet.
+     */
+    protected static int getTotalRows(Dataset data, int offset, int count) {
+        String total = data.checkString("totalRows");
+        if (total != null) {
+            return Integer.parseInt(total);
+        }
+        int size = data.getDatasetList("record").size();
+        if (size < count) {
+            // We have reached the end of the table.
+            return offset + size;
+        }
+        return -1;
+    }
+
+    /**
+     * Determine whether a string is a valid floating-point number.
+     * @param value                String to check.
+     * @return                     True means {@code value} can be parsed
+     *                             by {@code Double.parseDouble}.
+     */
+    protected static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Generate the {@code <td>} for a column in the table's header row.
+     * In paged tables, the header for a column with a sort field can be
+     * clicked to sort the table.
+     * @param column               Index of this column (0 refers to the
+     *                             leftmost column).
+     * @param out                  HTML is appended here.
+     */
+    protected void printHeaderTd(int column, StringBuilder out) {
+        String sortField = null;
+        if ((pageSize > 0) && (columns[column] instanceof Column)) {
+            sortField = ((Column) columns[column]).getSortField();
+        }
+        if (sortField == null) {
+            printTd(column, out);
+            return;
+        }
+        Template.appendHtml(out, "    <td id=\"@(1)_header@2\" " +
+                "class=\"@3sortable\" onclick=\"@4\">",
+                properties.getString("id"), column,
+                (column == 0) ? "left "
+                : ((column == (columns.length-1)) ? "right " : ""),
+                Template.expandJs("Fiz.ids.@1.sort(@2, \"@3\");",
+                properties.getString("id"), column, sortField));
+    }
+
+    /**
+     * Generate the HTML for one row of the table (other than the header
+     * row).
+     * @param cr                   Overall information about the client
+     *                             request being serviced; HTML is
+     *                             appended to the body of its Html object.
+     * @param dataForRow           Data for the row; passed to each of the
+     *                             columns.
+     * @param index                Index of the row within the table (0
+     *                             refers to the first row after the
+     *                             header).
+     * @param last                 True means this is the last row in the
+     *                             table.
+     */
+    protected void renderRow(ClientRequest cr, Dataset dataForRow, int index,
+            boolean last) {
+        StringBuilder out = cr.getHtml().getBody();
+        out.append("  <tr class=\"");
+        if (last) {
+            out.append("last ");
+        }
+        if ((index & 1) != 0) {
+            out.append("odd\">\n");
+        } else {
+            out.append("even\">\n");
+        }
+        for (int col = 0; col < columns.length; col++) {
+            printTd(col, out);
+            columns[col].render(cr, dataForRow);
+            out.append("</td>\n");
+        }
+        out.append("  </tr>\n");
+    }
+
     /**
      * Generates the {@code <td>} for a table element, with a "left" or
      * "right" class to mark the elements on the ends of the row
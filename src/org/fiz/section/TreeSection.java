@@ -24,6 +24,15 @@ import java.util.*;
  * can be expanded or unexpanded by the user, and indentation and
  * graphics are used to show the nesting structure.  TreeSections
  * support the following constructor properties:
+ *   cacheSize:      (optional) Maximum number of results from
+ *                   {@code dataFactory} to retain when {@code cacheTtl}
+ *                   is specified.  Defaults to 100.
+ *   cacheTtl:       (optional) If specified, results from
+ *                   {@code dataFactory} are cached (see FactoryCache) and
+ *                   reused for this many seconds, rather than invoking
+ *                   the factory every time the section is rendered or a
+ *                   node is expanded.  Defaults to 0, which means no
+ *                   caching.
  *   class:          (optional) Used as the {@code class} attribute for
  *                   the HTML element that contains the TreeSection.  Defaults
  *                   to {@code TreeSection}.
@@ -63,7 +72,19 @@ import java.util.*;
  *                   whose contents are desired (the {@code name} value from
  *                   the record for that node):
  *                   empty string refers to root of the tree, and
- *                   is used to fetch the top-level nodes.
+ *                   is used to fetch the top-level nodes.  If
+ *                   {@code pageSize} is specified then the method must
+ *                   take 3 arguments (String, Integer, Integer): the
+ *                   node name, the index of the first child to return,
+ *                   and the maximum number of children to return.
+ *   pageSize:       (optional) If specified, no more than this many
+ *                   children of any node are displayed at once; if a node
+ *                   has additional children, a "more" row is displayed
+ *                   after the last child, and clicking on it fetches the
+ *                   next batch of children.  This keeps the cost of
+ *                   expanding a node bounded even if the node has a
+ *                   very large number of children.  Defaults to 0,
+ *                   which means all children are displayed at once.
  *   rootName:       (optional) Name of the root node of the tree; passed
  *                   to requestFactory to fetch the top-level nodes. Defaults
  *                   to an empty string.
@@ -82,7 +103,8 @@ import java.util.*;
  *                   this node.  See below for more information on styles.
  *
  * Additional elements besides these may be used to display the node, as
- * determined by the style.
+ * determined by the style.  The "more" row (see {@code pageSize}) is
+ * displayed using the {@code TreeSection.more} style.
  *
  * Styles are used to customize the display of tree elements in a multi-step
  * process.  The style to use for a given tree element is determined by the
@@ -125,10 +147,21 @@ public class TreeSection extends Section implements DirectAjax {
         protected String nodeStyle;
         protected String dataFactory;
 
+        // Maximum number of children to display for a node at once;
+        // 0 means no limit.
+        protected int pageSize = 0;
+
+        // Lifetime of cached dataFactory results, in milliseconds (0 means
+        // no caching), and maximum number of results to cache.
+        protected long cacheLifetime = 0;
+        protected int cacheSize = 100;
+
         // For each expandable node that has been displayed in the table
         // so far, there is one entry in the following structure, which maps
         // from the node's id to the node's name, which is used to get
-        // information about the node's children.
+        // information about the node's children.  If pageSize is nonzero,
+        // there is also an entry mapping from the section's id to the name
+        // of the root node.
         protected HashMap<String,String> names = new HashMap<String,String>();
 
         public PageProperty(String className, String edgeFamily, String id,
@@ -167,11 +200,25 @@ public class TreeSection extends Section implements DirectAjax {
         if (pageProperty.nodeStyle == null) {
             pageProperty.nodeStyle = "TreeSection.node";
         }
+        String pageSize = properties.checkString("pageSize");
+        if (pageSize != null) {
+            pageProperty.pageSize = Integer.parseInt(pageSize);
+        }
+        String cacheTtl = properties.checkString("cacheTtl");
+        if (cacheTtl != null) {
+            pageProperty.cacheLifetime = Long.parseLong(cacheTtl)*1000;
+        }
+        String cacheSize = properties.checkString("cacheSize");
+        if (cacheSize != null) {
+            pageProperty.cacheSize = Integer.parseInt(cacheSize);
+        }
     }
 
     /**
      * This method is an Ajax entry point, invoked to expand an element
-     * in a TreeSection.
+     * in a TreeSection.  Rather than returning HTML for the children, it
+     * returns a compact description of them (see {@code appendRowInfo}),
+     * which is turned into HTML by Javascript in the browser.
      * @param cr                   Overall information about the client
      *                             request being serviced;  there must
      *                             be {@code sectionId} and {@code nodeId}
@@ -185,26 +232,63 @@ public class TreeSection extends Section implements DirectAjax {
         PageProperty pageProperty = (PageProperty)
                 cr.getPageProperty(main.getString("sectionId"));
 
-        // Fetch information about the children of the element being expanded,
-        // then generate a <table> that will display the children.
+        // Fetch information about the children of the element being
+        // expanded, then generate a Javascript method call that will
+        // display them.
         String id = main.getString("nodeId");
-        Dataset data = (Dataset) Util.invokeStaticMethod(
-                pageProperty.dataFactory, pageProperty.names.get(id));
+        ArrayList<Dataset> children = getChildren(pageProperty,
+                pageProperty.names.get(id), 0);
+        StringBuilder javascript = new StringBuilder();
+        Template.appendJs(javascript, "Fiz.ids[\"@1\"].expandRows(", id);
+        appendRowInfo(pageProperty, children, id, 0, javascript);
+        javascript.append(");\n");
+        cr.evalJavascript(javascript);
 
-        StringBuilder html = new StringBuilder();
-        Template.appendHtml(html, "<table cellspacing=\"0\" " +
-                "class=\"@1?{TreeSection}\" " +
-                "id=\"@2\">\n", pageProperty.className, id);
-        renderChildren(cr, pageProperty,
-                data.getDatasetList("record"),
-                id, html);
-        html.append("</table>\n");
+        // appendRowInfo recorded the names of the new rows in the page
+        // property; store it again so the change gets saved.
+        cr.setPageProperty(pageProperty.id, pageProperty);
+    }
 
-        // Generate a Javascript method call to instantiate the HTML.
-        StringBuilder javascript = new StringBuilder(html.length() + 50);
-        Template.appendJs(javascript,
-                "Fiz.ids[\"@1\"].expand(\"@2\");\n", id, html);
+    /**
+     * This method is an Ajax entry point, invoked when the user clicks
+     * on the "more" row at the end of a partially displayed list of
+     * children; it displays the next batch of children.
+     * @param cr                   Overall information about the client
+     *                             request being serviced;  there must
+     *                             be {@code sectionId}, {@code nodeId},
+     *                             and {@code offset} values in the main
+     *                             dataset, which give the id attributes
+     *                             for the TreeSection and for the node
+     *                             whose children are being displayed
+     *                             (the section id refers to the root), and
+     *                             the index of the first child to display.
+     */
+    public static void ajaxMore(ClientRequest cr) {
+        Dataset main = cr.getMainDataset();
+        PageProperty pageProperty = (PageProperty)
+                cr.getPageProperty(main.getString("sectionId"));
+        String id = main.getString("nodeId");
+        int offset = main.getInt("offset");
+        ArrayList<Dataset> children = getChildren(pageProperty,
+                pageProperty.names.get(id), offset);
+        StringBuilder javascript = new StringBuilder();
+        javascript.append("Fiz.TreeRow.addRows(");
+        appendRowInfo(pageProperty, children, id, offset, javascript);
+        javascript.append(");\n");
         cr.evalJavascript(javascript);
+        cr.setPageProperty(pageProperty.id, pageProperty);
+    }
+
+    /**
+     * TreeSections are never cached: the state needed to expand nodes is
+     * kept in a page property.
+     * @param cr                   Overall information about the client
+     *                             request being serviced.
+     * @return                     Always null.
+     */
+    @Override
+    public String getCacheKey(ClientRequest cr) {
+        return null;
     }
 
     @Override
@@ -227,19 +311,127 @@ public class TreeSection extends Section implements DirectAjax {
         if (rootName == null) {
             rootName = "";
         }
-        Dataset data = (Dataset) Util.invokeStaticMethod(pageProperty.dataFactory, rootName);
+        if (pageProperty.pageSize > 0) {
+            pageProperty.names.put(pageProperty.id, rootName);
+        }
         renderChildren(cr, pageProperty,
-                data.getDatasetList("record"),
-                pageProperty.id, out);
+                getChildren(pageProperty, rootName, 0),
+                pageProperty.id, 0, out);
         Template.appendHtml(out, "</table>\n" +
                 "<!-- End TreeSection @1 -->\n", pageProperty.id);
     }
 
     /**
-     * This method generates rows for an HTML table that will display all
-     * of the children of a particular node.  It is invoked both from the
-     * {@code html} method and from {@code ajaxExpand}, which is a static
-     * method.
+     * Invoke the data factory for a section to retrieve the children of
+     * a node (or use a cached result, if the section has a cache).
+     * @param pageProperty         State for the section.
+     * @param name                 Name of the node whose children are
+     *                             desired.
+     * @param offset               Index of the first child desired; ignored
+     *                             unless the section has a page size.
+     * @return                     One dataset for each child.  If the
+     *                             section has a page size, at most one more
+     *                             than a page's worth of children is
+     *                             returned; the extra child (if present)
+     *                             indicates that there are more children
+     *                             than can be displayed at once.
+     */
+    protected static ArrayList<Dataset> getChildren(PageProperty pageProperty,
+            String name, int offset) {
+        Dataset data;
+        if (pageProperty.pageSize > 0) {
+            data = (Dataset) FactoryCache.invoke(pageProperty.dataFactory,
+                    pageProperty.cacheLifetime, pageProperty.cacheSize,
+                    name, offset, pageProperty.pageSize + 1);
+        } else {
+            data = (Dataset) FactoryCache.invoke(pageProperty.dataFactory,
+                    pageProperty.cacheLifetime, pageProperty.cacheSize,
+                    name);
+        }
+        return data.getDatasetList("record");
+    }
+
+    /**
+     * Generates a Javascript Object literal that describes a collection of
+     * children of a node compactly; the literal is passed to methods
+     * in TreeRow.js, which generate the HTML for the children.  The
+     * Object has the following properties:
+     *   sectionId:                Id of the TreeSection.
+     *   baseId:                   Ids for the rows are generated by
+     *                             appending "_N" to this value, where N
+     *                             is the index of the child.
+     *   first:                    Index of the first child in {@code rows}.
+     *   className:                Class for the section's tables.
+     *   edgeFamily:               Family of images for the left edge.
+     *   rows:                     Array with one Object for each child,
+     *                             with an {@code html} property containing
+     *                             HTML for the right side of the row and,
+     *                             if the child is expandable, an
+     *                             {@code expanded} property containing HTML
+     *                             to use when the child is expanded.
+     *   more:                     If present, there are more children
+     *                             beyond those in {@code rows}; this
+     *                             property contains HTML for the right side
+     *                             of the "more" row.
+     * @param pageProperty         State for this section.
+     * @param children             Information about the children, as
+     *                             returned by {@code getChildren}.
+     * @param baseId               Used to generate ids for the rows.
+     * @param first                Index of the first element of
+     *                             {@code children}.
+     * @param out                  Javascript is appended here.
+     */
+    protected static void appendRowInfo(PageProperty pageProperty,
+            ArrayList<Dataset> children, String baseId, int first,
+            StringBuilder out) {
+        int count = children.size();
+        boolean more = false;
+        if ((pageProperty.pageSize > 0) && (count > pageProperty.pageSize)) {
+            count = pageProperty.pageSize;
+            more = true;
+        }
+        Template.appendJs(out, "{sectionId: \"@1\", baseId: \"@2\", " +
+                "first: @3, className: \"@4?{TreeSection}\", " +
+                "edgeFamily: \"@5\", rows: [", pageProperty.id, baseId,
+                first, pageProperty.className, pageProperty.edgeFamily);
+        Dataset styles = Config.getDataset("styles");
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            Dataset child = children.get(i);
+            String style = getStyle(pageProperty, child);
+            html.setLength(0);
+            Template.appendHtml(html, styles.getString(style), child);
+            if (i != 0) {
+                out.append(", ");
+            }
+            Template.appendJs(out, "{html: \"@1\"", html);
+            if (isExpandable(child)) {
+                pageProperty.names.put(baseId + "_" + (first + i),
+                        child.getString("name"));
+                html.setLength(0);
+                Template.appendHtml(html, styles.getString(
+                        style + "-expanded"), child);
+                Template.appendJs(out, ", expanded: \"@1\"", html);
+            }
+            out.append("}");
+        }
+        out.append("]");
+        if (more) {
+            html.setLength(0);
+            Template.appendHtml(html, styles.getString("TreeSection.more"),
+                    new Dataset("offset", Integer.toString(first + count)));
+            Template.appendJs(out, ", more: \"@1\"", html);
+        }
+        out.append("}");
+    }
+
+    /**
+     * This method generates rows for an HTML table that will display
+     * the children of a particular node.  If the section has a page size,
+     * at most a page's worth of children is displayed, followed by a
+     * "more" row if there are additional children.  This method is
+     * invoked when a section is first rendered; Ajax requests use
+     * {@code appendRowInfo} instead.
      * @param cr                   Overall information about the client
      *                             request being serviced; HTML will be
      *                             appended to {@code cr.getHtml()}.
@@ -250,7 +442,10 @@ public class TreeSection extends Section implements DirectAjax {
      *                             displayed.
      * @param baseId               Used to generate ids for the rows of
      *                             the table; rows will have ids
-     *                             {@code baseId.0}, {@code baseId.1}, etc.
+     *                             {@code baseId_0}, {@code baseId_1}, etc.
+     * @param first                Index of the first element of
+     *                             {@code children} (used to generate
+     *                             row ids).
      * @param out                  Generated HTML is appended here.  Only
      *                             {@code <tr>} elements are generated here;
      *                             the {@code <table>} and {@code </table>}
@@ -258,31 +453,25 @@ public class TreeSection extends Section implements DirectAjax {
      */
     protected static void renderChildren(ClientRequest cr,
             PageProperty pageProperty, ArrayList<Dataset> children,
-            String baseId, StringBuilder out) {
+            String baseId, int first, StringBuilder out) {
         // The following variable is used to generate an alternate (expanded)
         // style for each row.  It is declared here so that it can be reused
         // for each of the rows (minimize garbage collection).
         StringBuilder expandedRow = new StringBuilder();
 
         Dataset styles = Config.getDataset("styles");
-        for (int i = 0; i < children.size(); i++) {
+        int count = children.size();
+        boolean more = false;
+        if ((pageProperty.pageSize > 0) && (count > pageProperty.pageSize)) {
+            count = pageProperty.pageSize;
+            more = true;
+        }
+        for (int i = 0; i < count; i++) {
             Dataset child = children.get(i);
-            Boolean lastElement = (i == (children.size()-1));
-            String rowId = baseId + "_" + i;
-
-            // Is this child a node (expandable) or a leaf?
-            Boolean expandable = false;
-            String value = child.checkString("expandable");
-            if ((value != null) && (value.equals("1"))) {
-                expandable = true;
-            }
-
-            // Compute the style to use for this child.
-            String style = child.checkString("style");
-            if (style == null) {
-                style = (expandable ? pageProperty.nodeStyle :
-                        pageProperty.leafStyle);
-            }
+            Boolean lastElement = (i == (count-1)) && !more;
+            String rowId = baseId + "_" + (first + i);
+            Boolean expandable = isExpandable(child);
+            String style = getStyle(pageProperty, child);
 
             // Each child is drawn as a table row with two cells.  The
             // left cell contains lines connecting all of the children
@@ -391,5 +580,54 @@ public class TreeSection extends Section implements DirectAjax {
                 out.append("  </tr>\n");
             }
         }
+
+        if (more) {
+            // Add one additional row, which the user can click on to
+            // display the next batch of children.
+            Template.appendHtml(out, "  <tr id=\"@(1)_more\">\n" +
+                    "    <td class=\"left\" style=\"background-image: " +
+                    "url(/static/fiz/images/@2); background-repeat: " +
+                    "no-repeat;\"><img src=\"/static/fiz/images/@3\"></td>\n" +
+                    "    <td class=\"right\" onclick=\"@4\">", baseId,
+                    StringUtil.addSuffix(pageProperty.edgeFamily, "-line"),
+                    StringUtil.addSuffix(pageProperty.edgeFamily, "-leaf"),
+                    Ajax.invoke(cr, "/TreeSection/ajaxMore?sectionId=@1&" +
+                    "nodeId=@2&offset=@3", pageProperty.id, baseId,
+                    first + count));
+            Template.appendHtml(out, styles.getString("TreeSection.more"),
+                    new Dataset("offset", Integer.toString(first + count)));
+            out.append("</td>\n  </tr>\n");
+        }
+    }
+
+    /**
+     * Determine whether a child can be expanded.
+     * @param child                Record describing the child, as returned
+     *                             by the data factory.
+     * @return                     True if the child has an
+     *                             {@code expandable} value of 1.
+     */
+    protected static boolean isExpandable(Dataset child) {
+        String value = child.checkString("expandable");
+        return (value != null) && (value.equals("1"));
+    }
+
+    /**
+     * Compute the style to use for displaying a child.
+     * @param pageProperty         State for this section.
+     * @param child                Record describing the child, as returned
+     *                             by the data factory.
+     * @return                     The child's {@code style} value, if it
+     *                             has one, otherwise the section's node or
+     *                             leaf style.
+     */
+    protected static String getStyle(PageProperty pageProperty,
+            Dataset child) {
+        String style = child.checkString("style");
+        if (style == null) {
+            style = (isExpandable(child) ? pageProperty.nodeStyle :
+                    pageProperty.leafStyle);
+        }
+        return style;
     }
 }
@@ -68,6 +68,11 @@ public class ServletRequestFixture implements HttpServletRequest {
     // Used to simulate parameter data via setParameters().
     public Hashtable<String,String> parameterMap = null;
 
+    // Tests can add entries to the following table to provide values
+    // for specific headers; other headers return "header: name".
+    public Hashtable<String,String> headerMap =
+            new Hashtable<String,String>();
+
     // The following variables provide return values for some of the methods;
     // tests can modify these variables to test different scenarios.
     public String servletPath = "/servlet/spath";
@@ -121,7 +126,10 @@ public class ServletRequestFixture implements HttpServletRequest {
     public String getContextPath() {return "contextPath";}
     public Cookie[] getCookies() {return new Cookie[2];}
     public long getDateHeader(String name) {return Integer.parseInt(name);}
-    public String getHeader(String name) {return "header: " + name;}
+    public String getHeader(String name) {
+        String value = headerMap.get(name);
+        return (value != null) ? value : "header: " + name;
+    }
     public java.util.Enumeration getHeaderNames() {
         Vector<String> v = new Vector<String>();
         v.addElement("name1");
@@ -31,6 +31,11 @@ Fiz.addBulletinMessage = function(message) {
 }
 window.XMLHttpRequest = true;
 
+AjaxTest.tearDown = function() {
+    Fiz.Ajax.batching = false;
+    Fiz.Ajax.pending = [];
+};
+
 AjaxTest.test_constructor_sendRequest_urlParameterOnly = function() {
     new Fiz.Ajax("/a/b");
     assertEqual("open(method: POST, url: /a/b, async: undefined)\n" +
@@ -83,6 +88,18 @@ AjaxTest.test_constructor_setClearBulletin = function() {
     assertEqual(true, Fiz.clearOldBulletin, "Fiz.clearOldBulletin");
 };
 
+AjaxTest.test_abort = function() {
+    var ajax = new Fiz.Ajax("/a/b");
+    var xmlhttp = ajax.xmlhttp;
+    jsunit.log = "";
+    ajax.abort();
+    assertEqual("abort()\n", jsunit.log, "jsunit.log");
+    assertEqual(null, ajax.xmlhttp, "xmlhttp");
+    xmlhttp.onreadystatechange();
+    ajax.abort();
+    assertEqual("abort()\n", jsunit.log, "second abort does nothing");
+};
+
 AjaxTest.test_stateChange_requestNotComplete = function() {
     var ajax = new Fiz.Ajax({url: "/a/b"}, {name: "Alice", age: 28});
     jsunit.log = "";
@@ -186,6 +203,115 @@ AjaxTest.test_error = function() {
             jsunit.log, "jsunit.log");
 };
 
+AjaxTest.test_constructor_batching = function() {
+    Fiz.Ajax.batching = true;
+    var ajax1 = new Fiz.Ajax("/a/b");
+    var ajax2 = new Fiz.Ajax("/a/c");
+    assertEqual("setTimeout(" + Fiz.Ajax.flush.toString() + ", 0)\n",
+            jsunit.log, "request deferred");
+    assertEqual(2, Fiz.Ajax.pending.length, "number of pending requests");
+    assertEqual(null, ajax1.xmlhttp, "request not sent");
+};
+
+AjaxTest.test_abort_pendingRequest = function() {
+    Fiz.Ajax.batching = true;
+    var ajax1 = new Fiz.Ajax("/a/b");
+    var ajax2 = new Fiz.Ajax("/a/c");
+    ajax1.abort();
+    assertEqual(1, Fiz.Ajax.pending.length, "number of pending requests");
+    assertEqual(ajax2, Fiz.Ajax.pending[0], "remaining request");
+};
+
+AjaxTest.test_abort_batchedRequest = function() {
+    Fiz.Ajax.batching = true;
+    var ajax1 = new Fiz.Ajax("/a/b");
+    var ajax2 = new Fiz.Ajax("/a/c");
+    Fiz.Ajax.flush();
+    jsunit.log = "";
+    ajax2.abort();
+    ajax1.batch.xmlhttp.responseText = "13.alert('one');13.alert('two');";
+    ajax1.batch.stateChange();
+    assertEqual("alert(message: one)\n", jsunit.log,
+            "response for aborted request ignored");
+};
+
+AjaxTest.test_flush_singleRequest = function() {
+    Fiz.Ajax.batching = true;
+    new Fiz.Ajax("/a/b");
+    jsunit.log = "";
+    Fiz.Ajax.flush();
+    assertEqual("open(method: POST, url: /a/b, async: undefined)\n" +
+            "setRequestHeader(name: Content-type, value: text/fiz; " +
+            "charset=utf-8)\n" +
+            "send(message: main.())\n",
+            jsunit.log, "jsunit.log");
+    assertEqual(0, Fiz.Ajax.pending.length, "pending requests");
+};
+AjaxTest.test_flush_batch = function() {
+    Fiz.Ajax.batching = true;
+    new Fiz.Ajax("/a/b");
+    new Fiz.Ajax({url: "ajaxC?x=1", data: {name: "Alice"}});
+    jsunit.log = "";
+    Fiz.Ajax.flush();
+    assertEqual("open(method: POST, url: /a/b, async: undefined)\n" +
+            "setRequestHeader(name: Content-type, value: text/fiz-batch; " +
+            "charset=utf-8)\n" +
+            "send(message: url.4./a/bmain.()" +
+            "url.9.ajaxC?x=1main.(4.name5.Alice))\n",
+            jsunit.log, "jsunit.log");
+};
+
+AjaxTest.test_Batch_stateChange_httpError = function() {
+    var batch = new Fiz.Ajax.Batch([{url: "/a/b"}, {url: "/c/d"}]);
+    jsunit.log = "";
+    batch.xmlhttp.status = 500;
+    batch.stateChange();
+    assertEqual("clearBulletin();addBulletinMessage(" +
+            "\"<div class=\"bulletinError\">" +
+            "Error in Ajax request for /a/b, /c/d: HTTP error 500: " +
+            "sample status message</div>\");",
+            jsunit.log, "jsunit.log");
+};
+AjaxTest.test_Batch_stateChange_evalResponses = function() {
+    Fiz.Ajax.batching = true;
+    var ajax1 = new Fiz.Ajax("/a/b");
+    var ajax2 = new Fiz.Ajax("/a/c");
+    var ajax3 = new Fiz.Ajax("/a/d");
+    Fiz.Ajax.flush();
+    jsunit.log = "";
+    ajax1.batch.xmlhttp.responseText = "13.alert('a.b');0.3.x(;";
+    ajax1.batch.stateChange();
+    assertEqual("alert(message: a.b)\n" +
+            "clearBulletin();addBulletinMessage(" +
+            "\"<div class=\"bulletinError\">" +
+            "Error in Ajax request for /a/d: error in Javascript " +
+            "response (web/static/fiz/Ajax.js(eval):1): SyntaxError: " +
+            "syntax error</div>\");",
+            jsunit.log.replace(/\.js#\d*\(/, ".js("), "jsunit.log");
+};
+AjaxTest.test_Batch_stateChange_unframedResponse = function() {
+    Fiz.Ajax.batching = true;
+    var ajax1 = new Fiz.Ajax("/a/b");
+    var ajax2 = new Fiz.Ajax("/a/c");
+    Fiz.Ajax.flush();
+    jsunit.log = "";
+    ajax1.batch.xmlhttp.responseText = "alert('batch error');";
+    ajax1.batch.stateChange();
+    assertEqual("alert(message: batch error)\n", jsunit.log, "jsunit.log");
+};
+AjaxTest.test_Batch_stateChange_malformedResponse = function() {
+    var batch = new Fiz.Ajax.Batch([{url: "/a/b"}, {url: "/c/d"}]);
+    jsunit.log = "";
+    batch.requests[0].evalResponse = function() {};
+    batch.xmlhttp.responseText = "0.";
+    batch.stateChange();
+    assertEqual("clearBulletin();addBulletinMessage(" +
+            "\"<div class=\"bulletinError\">" +
+            "Error in Ajax request for /a/b, /c/d: malformed response " +
+            "for batched requests</div>\");",
+            jsunit.log, "jsunit.log");
+};
+
 AjaxTest.test_serialize = function() {
     var result = Fiz.Ajax.serialize({a: 14, b: "test string",
             object: {name: "Alice", age: 44},
@@ -215,3 +341,13 @@ AjaxTest.test_serialize_authAndPageId = function() {
     Fiz.auth = null;
     Fiz.pageId = null;
 };
+AjaxTest.test_serialize_pageState = function() {
+    Fiz.pageId = "4";
+    Fiz.pageState = "abc.(d)";
+    var result = Fiz.Ajax.serialize({name: "Alice"});
+    assertEqual("(4.name5.Alice\n" +
+            "10.fiz_pageId1.4\n" +
+            "13.fiz_pageState7.abc.(d))", result);
+    Fiz.pageId = null;
+    Fiz.pageState = null;
+};
@@ -25,6 +25,7 @@ Fiz.Ajax = function(properties) {
     jsunit.log += "Fiz.Ajax url: " + properties.url + ", data:\n" +
             printDataset(properties.data, "    ");
 };
+Fiz.Ajax.prototype.abort = logFunction("abort");
 
 AutocompleteFormElementTest.setUp = function() {
     this.dropdown = document.addElementWithId("auto_dropdown");
@@ -45,6 +46,16 @@ AutocompleteFormElementTest.test_constructor = function() {
     assertEqual("test", formElem.lastInputValue, "lastInputValue");
     assertEqual("off", formElem.input.autocomplete, "autocomplete");
     assertEqual("auto_dropdown", formElem.dropdown.id, "dropdown");
+    assertEqual(150, formElem.delay, "delay");
+    assertEqual(null, formElem.timer, "timer");
+    assertEqual(null, formElem.request, "request");
+    assertEqual(0, formElem.sequence, "sequence");
+    assertEqual(0, formElem.cacheSize, "cacheSize");
+}
+
+AutocompleteFormElementTest.test_constructor_delay = function() {
+    var formElem = new Fiz.AutocompleteFormElement("auto", 40);
+    assertEqual(40, formElem.delay, "delay");
 }
 
 AutocompleteFormElementTest.test_captureKeydown_openUp = function() {
@@ -334,6 +345,19 @@ AutocompleteFormElementTest.test_refreshMenu_emptyInput = function() {
     assertEqual("focus()\n", jsunit.log, "Ajax invoked?");
 }
 
+AutocompleteFormElementTest.test_refreshMenu_emptyInputCancels = function() {
+    this.input.value = "";
+    this.input.focus = function() {};
+
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.timer = 17;
+
+    jsunit.log = "";
+    formElem.refreshMenu();
+
+    assertEqual("clearTimeout(17)\n", jsunit.log, "timer canceled");
+}
+
 AutocompleteFormElementTest.test_refreshMenu_validNewInput = function() {
     this.input.value = "test";
 
@@ -342,13 +366,65 @@ AutocompleteFormElementTest.test_refreshMenu_validNewInput = function() {
 
     jsunit.log = "";
     formElem.refreshMenu();
+    assertEqual("setTimeout", jsunit.log.substr(0, 10), "request delayed");
+    assertEqual(", 150)\n", jsunit.log.substr(jsunit.log.length - 7),
+            "delay");
 
+    jsunit.log = "";
+    jsunit.setTimeoutArg();
     assertEqual("Fiz.Ajax url: /AutocompleteFormElement/ajaxQuery, data:\n" +
             "    id:        auto\n" +
+            "    sequence:  1\n" +
             "    userInput: test\n",
             jsunit.log, "Ajax invoked?");
 }
 
+AutocompleteFormElementTest.test_refreshMenu_cancelPendingRequest =
+        function() {
+    this.input.value = "test";
+
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.lastInputValue = "tes";
+    formElem.timer = 17;
+    formElem.request = new Fiz.Ajax({url: "/x", data: {}});
+
+    jsunit.log = "";
+    formElem.refreshMenu();
+
+    assertEqual("clearTimeout(17)\nabort()\nsetTimeout", jsunit.log.substr(
+            0, 35), "pending request canceled");
+}
+
+AutocompleteFormElementTest.test_refreshMenu_cached = function() {
+    this.input.value = "test";
+
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.lastInputValue = "tes";
+    formElem.cache["test"] = "<ul>cached</ul>";
+
+    jsunit.log = "";
+    formElem.refreshMenu();
+
+    assertEqual("", jsunit.log, "no request");
+    assertEqual("<ul>cached</ul>", formElem.dropdown.innerHTML,
+            "dropdown contents");
+    assertEqual(true, formElem.isOpen, "Open?");
+}
+
+AutocompleteFormElementTest.test_refreshMenu_inputMatchesObjectProperty =
+        function() {
+    this.input.value = "constructor";
+
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.lastInputValue = "constructo";
+
+    jsunit.log = "";
+    formElem.refreshMenu();
+
+    assertEqual("setTimeout", jsunit.log.substr(0, 10),
+            "request scheduled");
+}
+
 AutocompleteFormElementTest.test_refreshMenu_oldInput = function() {
     this.input.value = "test";
 
@@ -360,3 +436,89 @@ AutocompleteFormElementTest.test_refreshMenu_oldInput = function() {
 
     assertEqual("", jsunit.log, "Ajax invoked?");
 }
+
+AutocompleteFormElementTest.test_cancelRequest = function() {
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    jsunit.log = "";
+    formElem.cancelRequest();
+    assertEqual("", jsunit.log, "nothing to cancel");
+
+    formElem.timer = 17;
+    formElem.request = new Fiz.Ajax({url: "/x", data: {}});
+    jsunit.log = "";
+    formElem.cancelRequest();
+    assertEqual("clearTimeout(17)\nabort()\n", jsunit.log, "jsunit.log");
+    assertEqual(null, formElem.timer, "timer");
+    assertEqual(null, formElem.request, "request");
+}
+
+AutocompleteFormElementTest.test_sendRequest = function() {
+    this.input.value = "abc";
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.sequence = 6;
+    jsunit.log = "";
+    formElem.sendRequest();
+    assertEqual("Fiz.Ajax url: /AutocompleteFormElement/ajaxQuery, data:\n" +
+            "    id:        auto\n" +
+            "    sequence:  7\n" +
+            "    userInput: abc\n",
+            jsunit.log, "Ajax request");
+    assertEqual(7, formElem.sequence, "sequence");
+    assertEqual(true, formElem.request != null, "request saved");
+}
+
+AutocompleteFormElementTest.test_setChoices_current = function() {
+    this.input.value = "abc";
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.sequence = 3;
+    formElem.request = {};
+    formElem.setChoices(3, "abc", "<ul>x</ul>");
+    assertEqual("<ul>x</ul>", formElem.cache["abc"], "cached value");
+    assertEqual(1, formElem.cacheSize, "cacheSize");
+    assertEqual(null, formElem.request, "request");
+    assertEqual("<ul>x</ul>", formElem.dropdown.innerHTML,
+            "dropdown contents");
+}
+
+AutocompleteFormElementTest.test_setChoices_outOfDate = function() {
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.sequence = 4;
+    formElem.dropdown.innerHTML = "old";
+    formElem.setChoices(3, "ab", "<ul>x</ul>");
+    assertEqual("<ul>x</ul>", formElem.cache["ab"], "cached value");
+    assertEqual("old", formElem.dropdown.innerHTML, "dropdown unchanged");
+}
+
+AutocompleteFormElementTest.test_setChoices_inputMatchesObjectProperty =
+        function() {
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.setChoices(0, "toString", "<ul>x</ul>");
+    assertEqual(1, formElem.cacheSize, "cacheSize");
+    assertEqual("<ul>x</ul>", formElem.cache["toString"], "cached value");
+}
+
+AutocompleteFormElementTest.test_setChoices_flushCache = function() {
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    var oldMax = Fiz.AutocompleteFormElement.maxCacheSize;
+    Fiz.AutocompleteFormElement.maxCacheSize = 2;
+    formElem.setChoices(0, "a", "1");
+    formElem.setChoices(0, "a", "2");
+    assertEqual(1, formElem.cacheSize, "replace existing entry");
+    formElem.setChoices(0, "b", "3");
+    formElem.setChoices(0, "c", "4");
+    Fiz.AutocompleteFormElement.maxCacheSize = oldMax;
+    assertEqual(1, formElem.cacheSize, "cacheSize after flush");
+    assertEqual(undefined, formElem.cache["a"], "flushed entry");
+    assertEqual("4", formElem.cache["c"], "new entry");
+}
+
+AutocompleteFormElementTest.test_showChoices = function() {
+    this.input.value = "abc";
+    this.input.focus = function() {};
+    var formElem = new Fiz.AutocompleteFormElement("auto");
+    formElem.showChoices("<ul>x</ul>");
+    assertEqual("<ul>x</ul>", formElem.dropdown.innerHTML, "innerHTML");
+    assertEqual(true, formElem.isOpen, "shown");
+    formElem.showChoices("");
+    assertEqual(false, formElem.isOpen, "hidden");
+}
@@ -40,3 +40,26 @@ ChartSeriesTest.test_get = function () {
     series.config.foo = "baz";
     assertEqual("baz", series.get("foo"), "foo-baz");
 };
+
+ChartSeriesTest.test_setColumns = function () {
+    var series = new Fiz.Chart.Series([]);
+    series.setColumns([1, 2, 3], [4.5, 5, 6]);
+    assertEqual("1,2,3", series.x.join(","), "x column");
+    assertEqual("4.5,5,6", series.y.join(","), "y column");
+    assertEqual(3, series.data.length, "number of points");
+    assertEqual("string", typeof series.data[0][0], "x becomes a string");
+    assertEqual("2", series.data[1][0], "x value");
+    assertEqual(5, series.data[1][1], "y value");
+};
+
+ChartSeriesTest.test_splitLabels = function () {
+    assertEqual(0, Fiz.Chart.Series.splitLabels("", 0).length,
+            "empty column");
+    assertEqual("a|b", Fiz.Chart.Series.splitLabels("a\nb", 2).join("|"),
+            "no escapes");
+    var labels = Fiz.Chart.Series.splitLabels("x\\ny\nc\\\\d\n", 3);
+    assertEqual(3, labels.length, "escaped newline doesn't split");
+    assertEqual("x\ny", labels[0], "newline");
+    assertEqual("c\\d", labels[1], "backslash");
+    assertEqual("", labels[2], "empty label");
+};
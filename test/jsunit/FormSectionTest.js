@@ -145,6 +145,20 @@ FormSectionTest.test_submit_setPageId = function() {
     assertEqual("page44", pageId.value, "page identifier");
 };
 
+FormSectionTest.test_submit_setPageState = function() {
+    document = new Document();
+    var form1 = document.addElementWithId("form1", {target: "undefined"});
+    var target1 = document.addElementWithId("form1_target", {innerHTML: "xxx"});
+    var form = new Fiz.FormSection("form1");
+    var pageState = document.addElementWithId("form1_fizPageState",
+            {value: "undefined"});
+    Fiz.pageState = "state&1";
+
+    assertEqual(true, form.submit(), "return value");
+    assertEqual("state&1", pageState.value, "page state");
+    Fiz.pageState = null;
+};
+
 FormSectionTest.test_submit_nonexistentPageIdElement = function() {
     document = new Document();
     var form1 = document.addElementWithId("form1", {target: "undefined"});
@@ -0,0 +1,155 @@
+/* PushChannelTest.js --
+ *
+ * Jsunit tests for PushChannel.js, organized in the standard fashion.
+ *
+ * Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+include("static/fiz/Fiz.js");
+include("static/fiz/Ajax.js");
+include("static/fiz/PushChannel.js");
+include("XmlHttpFixture.js");
+
+PushChannelTest = {};
+
+// The following class is a stand-in for the browser's EventSource class.
+function EventSourceFixture(url) {
+    jsunit.log += "new EventSource(" + url + ")\n";
+    this.listeners = {};
+}
+EventSourceFixture.prototype.addEventListener = function(name, handler) {
+    this.listeners[name] = handler;
+}
+EventSourceFixture.prototype.close = function() {
+    jsunit.log += "EventSource.close()\n";
+}
+
+PushChannelTest.setUp = function() {
+    window.XMLHttpRequest = true;
+    window.EventSource = undefined;
+    Fiz.auth = "auth&1";
+    Fiz.pageId = "4";
+    Fiz.PushChannel.running = false;
+    Fiz.PushChannel.lastId = 0;
+    Fiz.PushChannel.source = null;
+    Fiz.PushChannel.request = null;
+    Fiz.PushChannel.failures = 0;
+    Fiz.addBulletinMessage = function(message) {
+        jsunit.log += "addBulletinMessage(\"" + message + "\");";
+    }
+};
+
+PushChannelTest.tearDown = function() {
+    Fiz.auth = null;
+    Fiz.pageId = null;
+};
+
+PushChannelTest.test_start_polling = function() {
+    Fiz.PushChannel.start();
+    assertEqual("open(method: POST, url: /PushChannel/ajaxPoll, " +
+            "async: undefined)\n" +
+            "setRequestHeader(name: Content-type, value: text/fiz; " +
+            "charset=utf-8)\n" +
+            "send(message: main.(5.after1.0\n" +
+            "8.fiz_auth6.auth&1\n" +
+            "10.fiz_pageId1.4))\n",
+            jsunit.log, "jsunit.log");
+    jsunit.log = "";
+    Fiz.PushChannel.start();
+    assertEqual("", jsunit.log, "second start does nothing");
+};
+PushChannelTest.test_start_pollingNotBatched = function() {
+    Fiz.Ajax.batching = true;
+    Fiz.PushChannel.start();
+    Fiz.Ajax.batching = false;
+    assertEqual(0, Fiz.Ajax.pending.length, "pending requests");
+    assertEqual("open", jsunit.log.substr(0, 4), "request sent immediately");
+};
+PushChannelTest.test_start_eventSource = function() {
+    window.EventSource = EventSourceFixture;
+    Fiz.PushChannel.start();
+    assertEqual("new EventSource(/PushChannel/ajaxEvents?" +
+            "fiz_auth=auth%261&fiz_pageId=4)\n",
+            jsunit.log, "jsunit.log");
+    jsunit.log = "";
+    Fiz.PushChannel.source.onmessage({lastEventId: "12",
+            data: "alert('pushed');"});
+    assertEqual("alert(message: pushed)\n", jsunit.log, "message evaluated");
+    assertEqual("12", Fiz.PushChannel.lastId, "lastId");
+    jsunit.log = "";
+    Fiz.PushChannel.source.listeners.close();
+    assertEqual("EventSource.close()\n", jsunit.log, "close event");
+    assertEqual(false, Fiz.PushChannel.running, "running");
+};
+
+PushChannelTest.test_stop = function() {
+    Fiz.PushChannel.start();
+    jsunit.log = "";
+    Fiz.PushChannel.stop();
+    assertEqual("abort()\n", jsunit.log, "jsunit.log");
+    assertEqual(null, Fiz.PushChannel.request, "request");
+    jsunit.log = "";
+    Fiz.PushChannel.poll();
+    assertEqual("", jsunit.log, "no polling after stop");
+};
+
+PushChannelTest.test_evaluate_error = function() {
+    Fiz.PushChannel.evaluate("throw 'test exception';");
+    assertEqual("addBulletinMessage(\"<div class=\"bulletinError\">" +
+            "Error in pushed update: test exception</div>\");",
+            jsunit.log, "jsunit.log");
+};
+
+PushChannelTest.test_failed_retry = function() {
+    Fiz.PushChannel.start();
+    jsunit.log = "";
+    Fiz.PushChannel.request.error("HTTP error 500");
+    assertEqual(1, Fiz.PushChannel.failures, "failures");
+    assertEqual("setTimeout", jsunit.log.substr(0, 10), "retry scheduled");
+    assertEqual(", 2000)\n", jsunit.log.substr(jsunit.log.length - 8),
+            "retry delay");
+};
+PushChannelTest.test_failed_giveUp = function() {
+    Fiz.PushChannel.start();
+    Fiz.PushChannel.failures = Fiz.PushChannel.maxFailures - 1;
+    jsunit.log = "";
+    Fiz.PushChannel.failed("HTTP error 500");
+    assertEqual("addBulletinMessage(\"<div class=\"bulletinError\">" +
+            "Lost connection to server for updates: HTTP error 500" +
+            "</div>\");",
+            jsunit.log, "jsunit.log");
+    assertEqual(false, Fiz.PushChannel.running, "running");
+};
+
+PushChannelTest.test_received = function() {
+    Fiz.PushChannel.running = true;
+    Fiz.PushChannel.failures = 2;
+    Fiz.PushChannel.received(6, 0, ["alert('a');", "alert('b');"]);
+    var expected = "alert(message: a)\n" +
+            "alert(message: b)\n" +
+            "open(method: POST, url: /PushChannel/ajaxPoll, " +
+            "async: undefined)\n";
+    assertEqual(expected, jsunit.log.substr(0, expected.length),
+            "jsunit.log");
+    assertEqual(6, Fiz.PushChannel.lastId, "lastId");
+    assertEqual(0, Fiz.PushChannel.failures, "failures");
+};
+PushChannelTest.test_received_delay = function() {
+    Fiz.PushChannel.running = true;
+    Fiz.PushChannel.received(3, 5000, []);
+    assertEqual("setTimeout", jsunit.log.substr(0, 10), "poll delayed");
+    assertEqual(", 5000)\n", jsunit.log.substr(jsunit.log.length - 8),
+            "delay");
+};
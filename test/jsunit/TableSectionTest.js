@@ -0,0 +1,246 @@
+/* TableSectionTest.js --
+ *
+ * Jsunit tests for TableSection.js, organized in the standard fashion.
+ *
+ * Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+include("static/fiz/Fiz.js");
+include("static/fiz/TableSection.js");
+
+TableSectionTest = {};
+
+Fiz.Ajax = function(properties) {
+    jsunit.log += "Fiz.Ajax url: " + properties.url + ", data:\n" +
+            printDataset(properties.data, "    ");
+};
+Fiz.Ajax.prototype.abort = logFunction("abort");
+
+// The following function creates the document elements for a paged
+// table with a given number of rows, each 10 pixels high, in a scrolling
+// region 30 pixels high.
+TableSectionTest.createTable = function(numRows) {
+    document = new Document();
+    var body = new Element({tagName: "tbody"});
+    this.scroll = document.addElementWithId("t_scroll",
+            {scrollTop: 0, clientHeight: 30});
+    this.above = document.addElementWithId("t_above", {nodeName: "TR"});
+    this.above.firstChild = new Element();
+    this.below = document.addElementWithId("t_below", {nodeName: "TR"});
+    this.below.firstChild = new Element();
+    body.appendChild(this.above);
+    for (var i = 0; i < numRows; i++) {
+        body.appendChild(new Element({nodeName: "TR", id: "row" + i,
+                offsetHeight: 10}));
+    }
+    body.appendChild(this.below);
+    this.body = body;
+}
+
+// Returns a string containing the ids of the rows currently in the table.
+TableSectionTest.rowIds = function() {
+    var ids = [];
+    for (var row = this.above.nextSibling; row != this.below;
+            row = row.nextSibling) {
+        ids.push(row.id);
+    }
+    return ids.join(", ");
+}
+
+TableSectionTest.test_constructor = function() {
+    this.createTable(10);
+    jsunit.log = "";
+    var table = new Fiz.TableSection("t", 10, 2, -1);
+    assertEqual(10, table.rows.length, "rows collected");
+    assertEqual("row3", table.rows[3].id, "rows[3]");
+    assertEqual(10, table.rowHeight, "rowHeight");
+    assertEqual(0, table.first, "first");
+    assertEqual(5, table.last, "last");
+    assertEqual("", table.sortField, "sortField");
+    assertEqual("", jsunit.log, "no request needed yet");
+};
+
+TableSectionTest.test_constructor_fetchImmediately = function() {
+    this.createTable(2);
+    jsunit.log = "";
+    var table = new Fiz.TableSection("t", 2, 2, -1);
+    assertEqual("Fiz.Ajax url: /TableSection/ajaxRows, data:\n" +
+            "    count:      2\n" +
+            "    descending: false\n" +
+            "    id:         t\n" +
+            "    offset:     2\n" +
+            "    sortField:  \"\"\n",
+            jsunit.log, "Ajax request");
+};
+
+TableSectionTest.test_addRows_staleSort = function() {
+    this.createTable(4);
+    var table = new Fiz.TableSection("t", 4, 1, 4);
+    table.request = "request";
+    table.sortField = "name";
+    table.addRows(4, 8, ["<tr></tr>"], "age", false);
+    assertEqual("request", table.request, "request unchanged");
+    assertEqual(4, table.rows.length, "no rows added");
+};
+
+TableSectionTest.test_addRows_wrongOffset = function() {
+    this.createTable(4);
+    var table = new Fiz.TableSection("t", 4, 1, 4);
+    table.request = "request";
+    table.addRows(2, 8, ["<tr></tr>"], "", false);
+    assertEqual(null, table.request, "request cleared");
+    assertEqual(4, table.rows.length, "no rows added");
+};
+
+TableSectionTest.test_addRows = function() {
+    this.createTable(4);
+    var table = new Fiz.TableSection("t", 4, 1, -1);
+    var savedCreateRows = Fiz.TableSection.createRows;
+    Fiz.TableSection.createRows = function(html) {
+        jsunit.log += "createRows(" + html + ")\n";
+        return [new Element({nodeName: "TR", id: "row4"}),
+                new Element({nodeName: "TR", id: "row5"})];
+    }
+    jsunit.log = "";
+    table.scroll = function() {};
+    table.scroller.scrollTop = 20;
+    table.addRows(4, 6, ["<tr>4</tr>", "<tr>5</tr>"], "", false);
+    Fiz.TableSection.createRows = savedCreateRows;
+    assertEqual("createRows(<tr>4</tr><tr>5</tr>)\n", jsunit.log,
+            "jsunit.log");
+    assertEqual(6, table.rows.length, "rows.length");
+    assertEqual(6, table.totalRows, "totalRows");
+    assertEqual("row1, row2, row3, row4, row5", this.rowIds(),
+            "rows in document");
+};
+
+TableSectionTest.test_fetch = function() {
+    this.createTable(0);
+    var table = new Fiz.TableSection("t", 10, 5, 0);
+    table.sortField = "name";
+    table.descending = true;
+    jsunit.log = "";
+    table.fetch(30);
+    assertEqual("Fiz.Ajax url: /TableSection/ajaxRows, data:\n" +
+            "    count:      10\n" +
+            "    descending: true\n" +
+            "    id:         t\n" +
+            "    offset:     30\n" +
+            "    sortField:  name\n",
+            jsunit.log, "Ajax request");
+    jsunit.log = "";
+    table.fetch(40);
+    assertEqual("", jsunit.log, "request already in progress");
+};
+
+TableSectionTest.test_scrolled_noRows = function() {
+    this.createTable(0);
+    var table = new Fiz.TableSection("t", 10, 5, 0);
+    jsunit.log = "";
+    table.scrolled();
+    assertEqual(0, table.rowHeight, "rowHeight not measured");
+    assertEqual("", jsunit.log, "no request: table is empty");
+};
+
+TableSectionTest.test_scrolled_window = function() {
+    this.createTable(20);
+    var table = new Fiz.TableSection("t", 20, 2, 20);
+    this.scroll.scrollTop = 85;
+    table.scrolled();
+    assertEqual(6, table.first, "first");
+    assertEqual(13, table.last, "last");
+    assertEqual("row6, row7, row8, row9, row10, row11, row12",
+            this.rowIds(), "rows in document");
+};
+
+TableSectionTest.test_scrolled_fetchMore = function() {
+    this.createTable(10);
+    var table = new Fiz.TableSection("t", 10, 3, -1);
+    this.scroll.scrollTop = 40;
+    jsunit.log = "";
+    table.scrolled();
+    assertEqual("Fiz.Ajax url: /TableSection/ajaxRows, data:\n" +
+            "    count:      10\n" +
+            "    descending: false\n" +
+            "    id:         t\n" +
+            "    offset:     10\n" +
+            "    sortField:  \"\"\n",
+            jsunit.log, "Ajax request");
+};
+
+TableSectionTest.test_fetchIfNeeded = function() {
+    this.createTable(10);
+    var table = new Fiz.TableSection("t", 10, 1, 10);
+    table.fetch = function(offset) {
+        jsunit.log += "fetch(" + offset + ")\n";
+    }
+    jsunit.log = "";
+    table.fetchIfNeeded(9);
+    assertEqual("", jsunit.log, "enough rows");
+    table.fetchIfNeeded(10);
+    assertEqual("", jsunit.log, "no more rows in table");
+    table.totalRows = -1;
+    table.fetchIfNeeded(10);
+    assertEqual("fetch(10)\n", jsunit.log, "total unknown");
+};
+
+TableSectionTest.test_showRows = function() {
+    this.createTable(8);
+    var table = new Fiz.TableSection("t", 8, 8, 12);
+    table.showRows(2, 5);
+    assertEqual("row2, row3, row4", this.rowIds(), "rows in document");
+    assertEqual("20px", this.above.firstChild.style.height, "above height");
+    assertEqual("70px", this.below.firstChild.style.height, "below height");
+    table.showRows(0, 1);
+    assertEqual("row0", this.rowIds(), "rows in document, second call");
+};
+
+TableSectionTest.test_sort = function() {
+    this.createTable(4);
+    var header0 = document.addElementWithId("t_header0",
+            {className: "left sortable"});
+    var header1 = document.addElementWithId("t_header1",
+            {className: "sortable"});
+    var table = new Fiz.TableSection("t", 4, 4, -1);
+    table.request = new Fiz.Ajax({url: "x", data: {}});
+    this.scroll.scrollTop = 17;
+    jsunit.log = "";
+    table.sort(1, "age");
+    assertEqual("abort()\n" +
+            "Fiz.Ajax url: /TableSection/ajaxRows, data:\n" +
+            "    count:      4\n" +
+            "    descending: false\n" +
+            "    id:         t\n" +
+            "    offset:     0\n" +
+            "    sortField:  age\n",
+            jsunit.log, "jsunit.log");
+    assertEqual("", this.rowIds(), "rows in document");
+    assertEqual(0, table.rows.length, "rows");
+    assertEqual(0, this.scroll.scrollTop, "scrollTop");
+    assertEqual("sortable sortedUp", header1.className, "header1 class");
+
+    table.request = null;
+    table.sort(1, "age");
+    assertEqual(true, table.descending, "descending after second click");
+    assertEqual("sortable sortedDown", header1.className,
+            "header1 class after second click");
+
+    table.request = null;
+    table.sort(0, "name");
+    assertEqual(false, table.descending, "descending for new column");
+    assertEqual("sortable", header1.className, "header1 class cleared");
+    assertEqual("left sortable sortedUp", header0.className,
+            "header0 class");
+};
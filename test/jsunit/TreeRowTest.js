@@ -97,3 +97,133 @@ TreeRowTest.test_replace = function() {
     assertEqual("sample HTML",
             parent.firstChild.innerHTML, "new contents of table row");
 };
+
+TreeRowTest.test_expandRows = function() {
+    var treeRow = new Fiz.TreeRow("tree_44", "html #1", "html #2");
+    // Stub out the "expand" function.
+    treeRow.expand = function(html) {
+        jsunit.log += "TreeRow_expand(\"" + html + "\")\n";
+    }
+    treeRow.expandRows({sectionId: "tree", baseId: "tree_44", first: 0,
+            className: "class22", edgeFamily: "x.gif",
+            rows: [{html: "leaf"}]});
+    assertEqual("TreeRow_expand(\"<table cellspacing=\"0\" class=\"class22\" " +
+            "id=\"tree_44\">\n" +
+            "  <tr id=\"tree_44_0\">\n" +
+            "    <td class=\"left\" style=\"background-image: " +
+            "url(/static/fiz/images/x-line.gif); background-repeat: " +
+            "no-repeat;\"><img src=\"/static/fiz/images/x-leaf.gif\"></td>\n" +
+            "    <td class=\"right\">leaf</td>\n" +
+            "  </tr>\n" +
+            "</table>\n\")\n", jsunit.log, "jsunit log");
+};
+
+TreeRowTest.test_addRows = function() {
+    document = new Document();
+    var body = new Element({nodeName: "TBODY"});
+    var first = new Element({nodeName: "TR", id: "first"});
+    var moreRow = document.addElementWithId("tree_4_more",
+            {nodeName: "TR"});
+    body.appendChild(first);
+    body.appendChild(moreRow);
+
+    // Pre-create a paragraph with a nested table of the form that
+    // will be created by the browser.
+    var paragraph = new Element({nodeName: "P"});
+    var table =  new Element({nodeName: "TABLE"});
+    var newBody =  new Element({nodeName: "TBODY"});
+    paragraph.appendChild(new Element({nodeName: "#text"}));
+    paragraph.appendChild(table);
+    table.appendChild(newBody);
+    newBody.appendChild(new Element({nodeName: "TR", id: "new1"}));
+    newBody.appendChild(new Element({nodeName: "#text"}));
+    newBody.appendChild(new Element({nodeName: "TR", id: "new2"}));
+    document.newElements = [paragraph];
+
+    Fiz.TreeRow.addRows({sectionId: "tree", baseId: "tree_4", first: 3,
+            className: "TreeSection", edgeFamily: "x.gif",
+            rows: [{html: "a"}, {html: "b"}]});
+    var ids = [];
+    for (var row = body.firstChild; row != null; row = row.nextSibling) {
+        ids.push(row.id);
+    }
+    assertEqual("first, new1, new2", ids.join(", "), "rows in table");
+    assertEqual("new2", body.lastChild.id, "last row in table");
+    assertEqual(true, document.createdElements[0].innerHTML.indexOf(
+            "<tr id=\"tree_4_4\">") > 0, "HTML for new rows");
+};
+
+TreeRowTest.test_renderRows_expandableRow = function() {
+    Fiz.ids = {};
+    var html = Fiz.TreeRow.renderRows({sectionId: "tree", baseId: "tree_4",
+            first: 2, className: "TreeSection", edgeFamily: "x.gif",
+            rows: [{html: "node", expanded: "open node"}]});
+    var unexpanded = "  <tr id=\"tree_4_2\">\n" +
+            "    <td class=\"left\" style=\"background-image: " +
+            "url(/static/fiz/images/x-line.gif); background-repeat: " +
+            "no-repeat;\" onclick=\"void new Fiz.Ajax({url: &quot;" +
+            "/TreeSection/ajaxExpand?sectionId=tree&amp;nodeId=tree_4_2" +
+            "&quot;});\" onmouseover=\"Fiz.changeImage('tree_4_2_plus', " +
+            "'x-plus-active.gif');\" onmouseout=\"Fiz.changeImage(" +
+            "'tree_4_2_plus', 'x-plus.gif');\"><img id=\"tree_4_2_plus\" " +
+            "src=\"/static/fiz/images/x-plus.gif\"></td>\n" +
+            "    <td class=\"right\">node</td>\n" +
+            "  </tr>\n";
+    assertEqual(unexpanded +
+            "  <tr id=\"tree_4_2_childRow\" style=\"display:none\">\n" +
+            "    <td></td>\n" +
+            "    <td><div class=\"nested\" id=\"tree_4_2_childDiv\">" +
+            "</div></td>\n" +
+            "  </tr>\n", html, "generated HTML");
+    assertEqual(unexpanded, Fiz.ids.tree_4_2.unexpandedHtml,
+            "unexpanded HTML in TreeRow");
+    assertEqual("  <tr id=\"tree_4_2\">\n" +
+            "    <td class=\"left\" style=\"background-image: " +
+            "url(/static/fiz/images/x-line.gif); background-repeat: " +
+            "no-repeat;\" onclick=\"Fiz.ids['tree_4_2'].unexpand();\" " +
+            "onmouseover=\"Fiz.changeImage('tree_4_2_minus', " +
+            "'x-minus-active.gif');\" onmouseout=\"Fiz.changeImage(" +
+            "'tree_4_2_minus', 'x-minus.gif');\"><img id=\"tree_4_2_minus\" " +
+            "src=\"/static/fiz/images/x-minus.gif\"></td>\n" +
+            "    <td class=\"right\">open node</td>\n" +
+            "  </tr>\n", Fiz.ids.tree_4_2.expandedHtml,
+            "expanded HTML in TreeRow");
+};
+
+TreeRowTest.test_renderRows_moreRow = function() {
+    var html = Fiz.TreeRow.renderRows({sectionId: "tree", baseId: "tree_4",
+            first: 2, className: "TreeSection", edgeFamily: "x.gif",
+            rows: [{html: "leaf"}], more: "more..."});
+    assertEqual("  <tr id=\"tree_4_2\">\n" +
+            "    <td class=\"left\" style=\"background-image: " +
+            "url(/static/fiz/images/x-line.gif); background-repeat: " +
+            "repeat-y;\"><img src=\"/static/fiz/images/x-leaf.gif\"></td>\n" +
+            "    <td class=\"right\">leaf</td>\n" +
+            "  </tr>\n" +
+            "  <tr id=\"tree_4_more\">\n" +
+            "    <td class=\"left\" style=\"background-image: " +
+            "url(/static/fiz/images/x-line.gif); background-repeat: " +
+            "no-repeat;\"><img src=\"/static/fiz/images/x-leaf.gif\"></td>\n" +
+            "    <td class=\"right\" onclick=\"void new Fiz.Ajax({url: " +
+            "&quot;/TreeSection/ajaxMore?sectionId=tree&amp;" +
+            "nodeId=tree_4&amp;offset=3&quot;});\">more...</td>\n" +
+            "  </tr>\n", html, "generated HTML");
+};
+
+TreeRowTest.test_ajaxHandler = function() {
+    assertEqual("void new Fiz.Ajax({url: &quot;/TreeSection/ajaxExpand?" +
+            "sectionId=a%20b&amp;nodeId=c&quot;});",
+            Fiz.TreeRow.ajaxHandler("ajaxExpand", "a b", "c"),
+            "no offset");
+    assertEqual("void new Fiz.Ajax({url: &quot;/TreeSection/ajaxMore?" +
+            "sectionId=a&amp;nodeId=c&amp;offset=20&quot;});",
+            Fiz.TreeRow.ajaxHandler("ajaxMore", "a", "c", 20),
+            "with offset");
+};
+
+TreeRowTest.test_addSuffix = function() {
+    assertEqual("treeSolid-line.gif",
+            Fiz.TreeRow.addSuffix("treeSolid.gif", "-line"), "extension");
+    assertEqual("tree-line", Fiz.TreeRow.addSuffix("tree", "-line"),
+            "no extension");
+};
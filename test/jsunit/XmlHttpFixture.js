@@ -38,4 +38,7 @@ XMLHttpRequest.prototype.send = function(message) {
 }
 XMLHttpRequest.prototype.setRequestHeader = function(name, value) {
     jsunit.log += "setRequestHeader(name: " + name + ", value: " + value + ")\n";
-}
\ No newline at end of file
+}
+XMLHttpRequest.prototype.abort = function() {
+    jsunit.log += "abort()\n";
+}
@@ -415,6 +415,16 @@ function setTimeout(firstArg, interval) {
     jsunit.setTimeoutArg = firstArg;
 }
 
+/**
+ * This method is a stand-in for the browser method of the same name.
+ * It just logs information about the call to {@code jsunit.log}.
+ * @param id                       Argument to clearTimeout: identifier
+ *                                 returned by setTimeout.
+ */
+function clearTimeout(id) {
+    jsunit.log += "clearTimeout(" + id + ")\n";
+}
+
 /**
  * This method is a stand-in for the browser method of the same name.
  * It just logs information about the call to {@code jsunit.log}.
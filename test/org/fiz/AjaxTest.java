@@ -15,6 +15,8 @@
 
 package org.fiz;
 
+import java.util.*;
+
 import org.fiz.test.*;
 
 /**
@@ -22,6 +24,12 @@ import org.fiz.test.*;
  */
 
 public class AjaxTest extends junit.framework.TestCase {
+    protected ServletRequestFixture request;
+
+    public void setUp() {
+        request = new ServletRequestFixture();
+        request.uri = "contextPath/servlet/spath/a/ajaxB";
+    }
 
     public void test_invoke_withStringBuilder() {
         ClientRequest cr = new ClientRequestFixture();
@@ -70,4 +78,123 @@ public class AjaxTest extends junit.framework.TestCase {
                 "name=%3cabcd%3e&weight=120\"});",
                 out);
     }
+
+    public void test_BatchRequest_relativeUrl() {
+        Ajax.BatchRequest batch = new Ajax.BatchRequest(request,
+                "../c/ajaxD?x=1&y=%20z&x=2&w", "main.()");
+        assertEquals("request URI", "contextPath/servlet/spath/c/ajaxD",
+                batch.getRequestURI());
+        assertEquals("path info", "/c/ajaxD", batch.getPathInfo());
+        assertEquals("query string", "x=1&y=%20z&x=2&w",
+                batch.getQueryString());
+        assertEquals("parameter", " z", batch.getParameter("y"));
+        assertEquals("parameter with multiple values", "1, 2",
+                StringUtil.join(batch.getParameterValues("x"), ", "));
+        assertEquals("parameter without value", "", batch.getParameter("w"));
+        assertEquals("nonexistent parameter", null, batch.getParameter("p1"));
+    }
+    public void test_BatchRequest_sameDirectory() {
+        Ajax.BatchRequest batch = new Ajax.BatchRequest(request,
+                "ajaxY", "main.()");
+        assertEquals("path info", "/a/ajaxY", batch.getPathInfo());
+        assertEquals("no query string", null, batch.getQueryString());
+        assertEquals("no parameters", false,
+                batch.getParameterNames().hasMoreElements());
+    }
+    public void test_BatchRequest_urlNotInApplication() {
+        boolean gotException = false;
+        try {
+            new Ajax.BatchRequest(request, "/other/ajaxY", "main.()");
+        }
+        catch (SyntaxError e) {
+            assertEquals("exception message",
+                    "URL \"/other/ajaxY\" in Fiz batch data doesn't refer " +
+                    "to this application", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_BatchRequest_contents() throws Exception {
+        request.headerMap.put("Accept-Encoding", "gzip");
+        request.headerMap.put("X-Test", "value");
+        Ajax.BatchRequest batch = new Ajax.BatchRequest(request,
+                "ajaxD", "main.(4.name5.Alice)");
+        assertEquals("content type", "text/fiz; charset=utf-8",
+                batch.getContentType());
+        assertEquals("POST data", "main.(4.name5.Alice)",
+                batch.getReader().readLine());
+        assertEquals("Accept-Encoding header hidden", null,
+                batch.getHeader("Accept-Encoding"));
+        assertEquals("other headers passed through", "value",
+                batch.getHeader("X-Test"));
+        batch.setAttribute("attr", "xyz");
+        assertEquals("attribute", "xyz", batch.getAttribute("attr"));
+        assertEquals("attribute not set in batch request", null,
+                request.getAttribute("attr"));
+    }
+
+    public void test_BatchResponse() throws Exception {
+        ServletResponseFixture response = new ServletResponseFixture();
+        Ajax.BatchResponse batch = new Ajax.BatchResponse(response);
+        batch.setContentType("text/html");
+        batch.setHeader("Content-Encoding", "gzip");
+        batch.getWriter().write("abc");
+        batch.getOutputStream().write("\u00e9".getBytes("UTF-8"));
+        assertEquals("collected text", "abc\u00e9", batch.getText());
+        assertEquals("HTTP response untouched", "", response.getLog());
+    }
+
+    public void test_isBatch() {
+        request.contentType = null;
+        assertEquals("no content type", false, Ajax.isBatch(request));
+        request.contentType = "text/fiz; charset=utf-8";
+        assertEquals("normal Ajax request", false, Ajax.isBatch(request));
+        request.contentType = "text/fiz-batch; charset=utf-8";
+        assertEquals("batch", true, Ajax.isBatch(request));
+    }
+
+    public void test_parseBatch() {
+        ArrayList<Ajax.BatchRequest> requests = Ajax.parseBatch(request,
+                "url.5.ajaxDmain.(4.name5.Alice)" +
+                "url.11.../e/ajaxF?main.()");
+        assertEquals("number of requests", 2, requests.size());
+        assertEquals("first path", "/a/ajaxD", requests.get(0).getPathInfo());
+        assertEquals("first data", "main.(4.name5.Alice)",
+                requests.get(0).data);
+        assertEquals("second path", "/e/ajaxF",
+                requests.get(1).getPathInfo());
+        assertEquals("second data", "main.()", requests.get(1).data);
+    }
+    public void test_parseBatch_errors() {
+        String[] inputs = new String[] {
+            "xyz.5.ajaxDmain.()",
+            "url.x.ajaxDmain.()",
+            "url.50.ajaxDmain.()",
+            "url.5.ajaxDfoo.()"
+        };
+        String[] messages = new String[] {
+            "expected \"url.\" at position 0 in Fiz batch data",
+            "bad URL length at position 4 in Fiz batch data",
+            "URL length at position 4 runs past end of Fiz batch data",
+            "expected \"main.\" at position 11 in Fiz batch data"
+        };
+        for (int i = 0; i < inputs.length; i++) {
+            String message = null;
+            try {
+                Ajax.parseBatch(request, inputs[i]);
+            }
+            catch (SyntaxError e) {
+                message = e.getMessage();
+            }
+            assertEquals("error message for " + inputs[i], messages[i],
+                    message);
+        }
+    }
+
+    public void test_setBatchThreads() {
+        Ajax.setBatchThreads(3);
+        assertEquals("executor created", true, Ajax.batchExecutor != null);
+        Ajax.setBatchThreads(1);
+        assertEquals("executor deleted", null, Ajax.batchExecutor);
+    }
 }
@@ -0,0 +1,133 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the ClientPageStateStore class.
+ */
+
+public class ClientPageStateStoreTest extends junit.framework.TestCase {
+    protected ClientRequestFixture cr;
+    protected ClientPageStateStore store = new ClientPageStateStore();
+
+    public void setUp() {
+        cr = new ClientRequestFixture();
+        ServletRequestFixture.session = null;
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+    }
+
+    // Returns a PageState with a single property.
+    protected PageState newState(String value) {
+        PageState state = new PageState();
+        state.setPageProperty("prop", value);
+        return state;
+    }
+
+    public void test_flush_dirty() {
+        PageState state = newState("value1");
+        store.flush(cr, "12", state);
+        String js = cr.getJsCode(false);
+        TestUtil.assertSubstring("Javascript", "Fiz.pageState = \"", js);
+        assertEquals("state no longer dirty", false, state.isDirty());
+    }
+    public void test_flush_notDirty() {
+        PageState state = newState("value1");
+        ClientPageStateStore.encode(cr, "12", state);
+        store.flush(cr, "12", state);
+        assertEquals("Javascript", "", cr.getJsCode(false));
+    }
+
+    public void test_get_noState() {
+        assertEquals("create false", null, store.get(cr, "12", false));
+        PageState state = store.get(cr, "12", true);
+        assertEquals("create true", 0, state.properties.size());
+    }
+    public void test_get_emptyState() {
+        cr.getMainDataset().set("fiz_pageState", "");
+        assertEquals("no state", null, store.get(cr, "12", false));
+    }
+    public void test_get_restoreState() {
+        cr.getMainDataset().set("fiz_pageState",
+                ClientPageStateStore.encode(cr, "12", newState("value1")));
+        PageState state = store.get(cr, "12", false);
+        assertEquals("property value", "value1",
+                state.getPageProperty("prop"));
+        assertEquals("restored state is clean", false, state.isDirty());
+    }
+    public void test_get_invalidStateCreate() {
+        cr.getMainDataset().set("fiz_pageState", "bogus");
+        PageState state = store.get(cr, "12", true);
+        assertEquals("new state", 0, state.properties.size());
+    }
+
+    public void test_decode_tooShort() {
+        assertEquals("result", null,
+                ClientPageStateStore.decode(cr, "12", "abc"));
+    }
+    public void test_decode_wrongPage() {
+        String encoded = ClientPageStateStore.encode(cr, "12",
+                newState("value1"));
+        assertEquals("state for another page", null,
+                ClientPageStateStore.decode(cr, "13", encoded));
+    }
+    public void test_decode_tampered() {
+        String encoded = ClientPageStateStore.encode(cr, "12",
+                newState("value1"));
+        char last = encoded.charAt(encoded.length() - 1);
+        String tampered = encoded.substring(0, encoded.length() - 1) +
+                ((last == 'A') ? 'B' : 'A');
+        assertEquals("tampered state", null,
+                ClientPageStateStore.decode(cr, "12", tampered));
+    }
+    public void test_decode_differentSession() {
+        String encoded = ClientPageStateStore.encode(cr, "12",
+                newState("value1"));
+        ServletRequestFixture.session = null;
+        assertEquals("state from another session", null,
+                ClientPageStateStore.decode(cr, "12", encoded));
+    }
+    public void test_decode_corruptData() {
+        byte[] data = {1, 2, 3, 4, 5};
+        StringBuilder encoded = new StringBuilder();
+        StringUtil.encode3to4(ClientPageStateStore.sign(cr, "12", data),
+                encoded);
+        StringUtil.encode3to4(data, encoded);
+        assertEquals("corrupt data", null,
+                ClientPageStateStore.decode(cr, "12", encoded.toString()));
+    }
+
+    public void test_encode_printable() {
+        String encoded = ClientPageStateStore.encode(cr, "12",
+                newState("value1"));
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            assertEquals("character " + i + " printable", true,
+                    (c >= 0x20) && (c < 0x7f));
+        }
+    }
+    public void test_encode_compressed() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append("repetitive text ");
+        }
+        String encoded = ClientPageStateStore.encode(cr, "12",
+                newState(value.toString()));
+        assertEquals("encoded state smaller than property", true,
+                encoded.length() < value.length()/10);
+    }
+}
@@ -219,6 +219,30 @@ public class ClientRequestTest extends junit.framework.TestCase {
                 cr.jsCode.toString());
     }
 
+    public void test_finish_endOfRequestHooks() {
+        final StringBuilder log = new StringBuilder();
+        Runnable hook = new Runnable() {
+            public void run() {
+                log.append("hook ran; ");
+                throw new RuntimeException("hook failed");
+            }
+        };
+        StringAppender appender = new StringAppender();
+        ClientRequest.logger = Logger.getRootLogger();
+        ClientRequest.logger.removeAllAppenders();
+        ClientRequest.logger.addAppender(appender);
+        ClientRequest.addEndOfRequestHook(hook);
+        ClientRequest.addEndOfRequestHook(hook);
+        cr.finish();
+        ClientRequest.endOfRequestHooks.clear();
+        assertEquals("hooks invoked", "hook ran; hook ran; ", log.toString());
+        assertEquals("log output", "unhandled exception in end-of-request " +
+                "hook: java.lang.RuntimeException: hook failed\n" +
+                "unhandled exception in end-of-request " +
+                "hook: java.lang.RuntimeException: hook failed",
+                appender.log.toString());
+    }
+
     public void test_finish_flushPageState() {
         ServletRequestFixture.session = null;
         cr.getMainDataset().set(ClientRequest.GOOGLE_APPENGINE, true);
@@ -232,6 +256,18 @@ public class ClientRequestTest extends junit.framework.TestCase {
                     instanceof PageState.AllPageInfo);
     }
 
+    public void test_finish_flushClientPageState() {
+        PageState.setStore(new ClientPageStateStore());
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.getMainDataset().set(ClientRequest.GOOGLE_APPENGINE, false);
+        cr.setPageProperty("prop", "value");
+        cr.finish();
+        PageState.setStore(null);
+        TestUtil.assertSubstring("page state downloaded to browser",
+                "Fiz.pageState = \"",
+                cr.getServletResponse().toString());
+    }
+
     public void test_finish_deleteFileItems() {
         cr.uploads = new HashMap<String, FileUpload>();
         cr.uploads.put("upload", new FileUploadFixture(true, ""));
@@ -302,6 +338,16 @@ public class ClientRequestTest extends junit.framework.TestCase {
                 ((ServletResponseFixture)cr.getServletResponse());
         assertEquals("response", "lorem ipsum", response.toString());
     }
+    public void test_finish_returnBytes() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.evalJavascript("x = 33;");
+        byte b[] = {1, 2, -128, 0, -1, -2};
+        cr.returnBytes("application/octet-stream", b);
+        cr.finish();
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        assertTrue("response", Arrays.equals(b, response.getBytes()));
+    }
     public void test_finish_exceptionGettingPrintWriter() {
         StringAppender appender = new StringAppender();
         ClientRequest.logger = Logger.getRootLogger();
@@ -366,6 +412,32 @@ public class ClientRequestTest extends junit.framework.TestCase {
                 "</html>",
                 response.toString());
     }
+    public void test_finish_compressHtml() throws IOException {
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        servletRequest.headerMap.put("Accept-Encoding", "gzip, deflate");
+        for (int i = 0; i < 200; i++) {
+            cr.getHtml().getBody().append(" page body");
+        }
+        cr.finish();
+        assertEquals("Content-Encoding header", "gzip Accept-Encoding",
+                response.headers);
+        TestUtil.assertSubstring("response",
+                "page body page body</body>\n" +
+                "</html>",
+                CompressorTest.gunzip(response.getBytes()));
+    }
+    public void test_finish_compressAjax() throws IOException {
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        servletRequest.headerMap.put("Accept-Encoding", "gzip");
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.evalJavascript("x = 33;");
+        cr.finish();
+        assertEquals("response too short to compress", "x = 33;",
+                response.toString());
+        assertEquals("headers", null, response.headers);
+    }
 
     public void test_getAuthToken_useExistingToken() {
         HttpSession session = cr.getServletRequest().getSession(true);
@@ -534,6 +606,25 @@ public class ClientRequestTest extends junit.framework.TestCase {
                 cr.getPageProperty("prop2").toString());
     }
 
+    public void test_getPushChannel() {
+        PushChannel.clearCache();
+        ServletRequestFixture.session = null;
+        cr.testMode = true;
+        cr.pageId = "44";
+        PushChannel channel = cr.getPushChannel();
+        assertEquals("same channel returned", true,
+                channel == cr.getPushChannel());
+        assertEquals("channel registered", true,
+                channel == PushChannel.getInstance(cr));
+        TestUtil.assertSubstring("Javascript file included",
+                "static/fiz/PushChannel.js",
+                cr.getHtml().jsFileHtml.toString());
+        assertEquals("Javascript code", "Fiz.auth = \"JHB9AM69@$6=TAF*J " +
+                "\";\nFiz.PushChannel.start();\n",
+                cr.getJsCode(true));
+        PushChannel.clearCache();
+    }
+
     public void test_getServletRequest() {
         ServletRequestFixture newRequest = new ServletRequestFixture();
         cr.servletRequest = newRequest;
@@ -596,6 +687,14 @@ public class ClientRequestTest extends junit.framework.TestCase {
         assertEquals("fileSource", is, cr.fileSource);
     }
 
+    public void test_returnBytes() {
+        byte b[] = {1, 2, 3};
+        cr.returnBytes("application/octet-stream", b);
+        assertEquals("content type", "application/octet-stream",
+                cr.bytesContentType);
+        assertSame("bytes", b, cr.bytes);
+    }
+
     public void test_isAjax() {
         assertEquals("initially false", false, cr.isAjax());
         cr.setClientRequestType(ClientRequest.Type.AJAX);
@@ -846,6 +945,25 @@ public class ClientRequestTest extends junit.framework.TestCase {
                 cr.getHtml().getBody().toString());
     }
 
+    public void test_showSections_cached() {
+        FragmentCache.getInstance().clear();
+        Dataset properties = new Dataset("template", "name: @name\n",
+                "cacheKey", "@name");
+        cr.getMainDataset().set("name", "Alice");
+        cr.showSections(new TemplateSection(properties));
+        cr.getMainDataset().set("name", "Bob");
+        cr.showSections(new TemplateSection(properties));
+        cr.showSections(new TemplateSection(properties));
+        assertEquals("generated HTML", "name: Alice\n" +
+                "name: Bob\n" +
+                "name: Bob\n",
+                cr.getHtml().getBody().toString());
+        Dataset stats = FragmentCache.getInstance().getStatistics();
+        assertEquals("cache hits", "1", stats.get("hits"));
+        assertEquals("cache entries", "2", stats.get("entries"));
+        FragmentCache.getInstance().clear();
+    }
+
     public void test_updateElement() {
         cr.updateElement("table\"41\"", "<p>\"<Quoted>\"</p>");
         assertEquals("generated javascript",
@@ -1326,6 +1444,96 @@ public class ClientRequestTest extends junit.framework.TestCase {
                 cr.getMainDataset().toString());
     }
 
+    public void test_sendBytes_shortResponse() {
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        servletRequest.headerMap.put("Accept-Encoding", "gzip");
+        byte b[] = {1, 2, 3};
+        cr.returnBytes("application/octet-stream", b);
+        cr.sendBytes();
+        assertEquals("response log",
+                "setContentType(\"application/octet-stream\"); " +
+                "setContentLength(3); getOutputStream",
+                response.getLog());
+        assertTrue("response", Arrays.equals(b, response.getBytes()));
+    }
+    public void test_sendBytes_compress() throws IOException {
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        servletRequest.headerMap.put("Accept-Encoding", "gzip");
+        byte b[] = new byte[4000];
+        cr.returnBytes("application/octet-stream", b);
+        cr.sendBytes();
+        assertEquals("response log",
+                "setContentType(\"application/octet-stream\"); " +
+                "setHeader(\"Content-Encoding\", \"gzip\"); " +
+                "setHeader(\"Vary\", \"Accept-Encoding\"); " +
+                "setContentLength(" + response.getBytes().length + "); " +
+                "getOutputStream",
+                response.getLog());
+        assertEquals("uncompressed response", new String(b, "UTF-8"),
+                CompressorTest.gunzip(response.getBytes()));
+    }
+    public void test_sendBytes_ioException() {
+        StringAppender appender = new StringAppender();
+        ClientRequest.logger = Logger.getRootLogger();
+        ClientRequest.logger.removeAllAppenders();
+        ClientRequest.logger.addAppender(appender);
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        response.getOutputStreamException = true;
+        cr.returnBytes("application/octet-stream", new byte[10]);
+        cr.sendBytes();
+        assertEquals("log output", "I/O error sending response in " +
+                "ClientRequest.sendBytes: getOutputStream failed",
+                appender.log.toString());
+    }
+
+    public void test_sendCompressible_shortResponse() {
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        cr.sendCompressible("short response");
+        assertEquals("response log", "getWriter", response.getLog());
+        assertEquals("response", "short response", response.toString());
+    }
+    public void test_sendCompressible_compress() throws IOException {
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("line " + i + " \u00e9\n");
+        }
+        cr.sendCompressible(text.toString());
+        assertEquals("response log",
+                "setCharacterEncoding(\"UTF-8\"); " +
+                "setHeader(\"Content-Encoding\", \"gzip\"); " +
+                "setHeader(\"Vary\", \"Accept-Encoding\"); " +
+                "setContentLength(" + response.getBytes().length + "); " +
+                "getOutputStream",
+                response.getLog());
+        assertEquals("compressed data is smaller", true,
+                response.getBytes().length < text.length());
+        assertEquals("uncompressed response", text.toString(),
+                CompressorTest.gunzip(response.getBytes()));
+    }
+    public void test_sendCompressible_ioException() {
+        StringAppender appender = new StringAppender();
+        ClientRequest.logger = Logger.getRootLogger();
+        ClientRequest.logger.removeAllAppenders();
+        ClientRequest.logger.addAppender(appender);
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        response.getOutputStreamException = true;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("line " + i + "\n");
+        }
+        cr.sendCompressible(text.toString());
+        assertEquals("log output", "I/O error sending response in " +
+                "ClientRequest.sendCompressible: getOutputStream failed",
+                appender.log.toString());
+    }
+
     public void test_uniqueId() {
         assertEquals("First Id", cr.uniqueId("foo"), "foo0");
         assertEquals("Second Id", cr.uniqueId("foo"), "foo1");
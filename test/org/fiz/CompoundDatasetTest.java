@@ -115,6 +115,38 @@ public class CompoundDatasetTest extends junit.framework.TestCase {
         assertEquals("exception happened", true, gotException);
     }
 
+    public void test_addToIndex() {
+        Dataset extra = new Dataset("a", "extra_a", "extra", "1");
+        CompoundDataset outer = new CompoundDataset(compound, null, extra);
+        outer.keyIndex = new HashMap<String,Dataset>();
+        outer.addToIndex(outer);
+        assertEquals("nested compound recorded", true,
+                outer.indexedDatasets.contains(compound));
+        assertEquals("component of nested compound recorded", true,
+                outer.indexedDatasets.contains(d2));
+        assertEquals("value from nested component", true,
+                outer.keyIndex.get("b") == d2);
+        assertEquals("first component wins", true,
+                outer.keyIndex.get("a") == d1);
+        assertEquals("value from last component", true,
+                outer.keyIndex.get("extra") == extra);
+        assertEquals("index complete", true, outer.indexComplete);
+    }
+    public void test_addToIndex_unindexable() {
+        Dataset extra = new Dataset("extra", "1");
+        CompoundDataset outer = new CompoundDataset(d2, new LazyDataset(),
+                extra);
+        outer.keyIndex = new HashMap<String,Dataset>();
+        outer.addToIndex(outer);
+        assertEquals("index complete", false, outer.indexComplete);
+        assertEquals("value before unindexable component", true,
+                outer.keyIndex.get("b") == d2);
+        assertEquals("value after unindexable component", null,
+                outer.keyIndex.get("extra"));
+        assertEquals("component after unindexable not recorded", false,
+                outer.indexedDatasets.contains(extra));
+    }
+
     public void test_clear() {
         boolean gotException = false;
         try {
@@ -241,6 +273,130 @@ public class CompoundDatasetTest extends junit.framework.TestCase {
         assertEquals("return value null", null, compound.lookup("bogus",
                 Dataset.Quantity.FIRST_ONLY));
     }
+    public void test_lookup_returnAllFromOneComponent() {
+        Object out = compound.lookup("c", Dataset.Quantity.ALL);
+        assertEquals("result class", "DSArrayList",
+                out.getClass().getSimpleName());
+        assertEquals("result value", "444",
+                StringUtil.join((ArrayList) out, ", "));
+    }
+    public void test_lookup_indexed() {
+        compound.setIndexed(true);
+        assertEquals("value in first component", 111, compound.lookup("a",
+                Dataset.Quantity.FIRST_ONLY));
+        assertEquals("value in later component", 444, compound.lookup("c",
+                Dataset.Quantity.FIRST_ONLY));
+        assertEquals("nonexistent value", null, compound.lookup("bogus",
+                Dataset.Quantity.FIRST_ONLY));
+        assertEquals("path", "x_value", compound.lookup("nested.x",
+                Dataset.Quantity.FIRST_ONLY));
+        assertEquals("dataset holding key", true,
+                compound.keyIndex.get("c") == d4);
+    }
+    public void test_lookup_indexedComponentChanged() {
+        compound.setIndexed(true);
+        assertEquals("value before change", null, compound.lookup("new",
+                Dataset.Quantity.FIRST_ONLY));
+        d3.set("new", "d3_value");
+        assertEquals("key added", "d3_value", compound.lookup("new",
+                Dataset.Quantity.FIRST_ONLY));
+        d1.set("new", "d1_value");
+        assertEquals("key added to earlier component", "d1_value",
+                compound.lookup("new", Dataset.Quantity.FIRST_ONLY));
+        d1.delete("new");
+        assertEquals("key deleted", "d3_value", compound.lookup("new",
+                Dataset.Quantity.FIRST_ONLY));
+    }
+
+    public void test_lookup_indexedOtherDatasetChanged() {
+        compound.setIndexed(true);
+        compound.lookup("a", Dataset.Quantity.FIRST_ONLY);
+        HashMap<String,Dataset> index = compound.keyIndex;
+        new Dataset("x", "1").set("y", "2");
+        compound.lookup("a", Dataset.Quantity.FIRST_ONLY);
+        assertEquals("index not rebuilt", true, index == compound.keyIndex);
+    }
+
+    public void test_lookup_indexedNullValue() {
+        d1.set("b", null);
+        compound.setIndexed(true);
+        assertEquals("value from later component", "222",
+                compound.lookup("b", Dataset.Quantity.FIRST_ONLY));
+    }
+    public void test_lookup_indexedUnindexableComponent() {
+        LazyDataset lazy = new LazyDataset("b", "lazy_b");
+        lazy.setDataSource(null, new LazyDataset.DataSource() {
+            public Object getData(String key, LazyDataset dataset) {
+                return "default";
+            }
+        });
+        compound.setComponent(2, lazy);
+        compound.setIndexed(true);
+        assertEquals("value before unindexable component", "222",
+                compound.lookup("b", Dataset.Quantity.FIRST_ONLY));
+        assertEquals("value after unindexable component", "default",
+                compound.lookup("c", Dataset.Quantity.FIRST_ONLY));
+        assertEquals("index incomplete", false, compound.indexComplete);
+    }
+
+    public void test_setComponent_inIndex() {
+        CompoundDataset outer = new CompoundDataset(compound);
+        outer.setIndexed(true);
+        assertEquals("value before change", 111, outer.lookup("a",
+                Dataset.Quantity.FIRST_ONLY));
+        compound.setComponent(0, new Dataset("a", "new_a"));
+        assertEquals("value after change", "new_a", outer.lookup("a",
+                Dataset.Quantity.FIRST_ONLY));
+    }
+
+    public void test_setComponent_countsChange() {
+        int changes = compound.keySetChanges;
+        compound.setComponent(0, new Dataset("a", "new_a"));
+        assertEquals("change counted", changes + 1, compound.keySetChanges);
+    }
+
+    public void test_setComponent_searchedDirectly() {
+        CompoundDataset c = new CompoundDataset(null,
+                new Dataset("name", "Bob", "height", "72"),
+                new Dataset("age", "50", "weight", "150"));
+        c.setIndexed(true);
+        c.setComponent(0, new Dataset("name", "Alice", "age", "30"));
+        assertEquals("value from replaced component", "Alice",
+                c.lookup("name", Dataset.Quantity.FIRST_ONLY));
+        assertEquals("value from indexed component", "72",
+                c.lookup("height", Dataset.Quantity.FIRST_ONLY));
+        assertEquals("first indexed component", 1, c.firstIndexed);
+        assertEquals("replaced component not in index", "Bob",
+                c.keyIndex.get("name").get("name"));
+        HashMap<String,Dataset> index = c.keyIndex;
+        c.setComponent(0, new Dataset("height", "60"));
+        assertEquals("height", "60", c.lookup("height",
+                Dataset.Quantity.FIRST_ONLY));
+        assertEquals("name", "Bob", c.lookup("name",
+                Dataset.Quantity.FIRST_ONLY));
+        assertEquals("index not rebuilt", true, index == c.keyIndex);
+        c.setComponent(0, null);
+        assertEquals("value after removing component", "50",
+                c.lookup("age", Dataset.Quantity.FIRST_ONLY));
+    }
+    public void test_setComponent_indexedComponent() {
+        compound.setIndexed(true);
+        compound.lookup("a", Dataset.Quantity.FIRST_ONLY);
+        compound.setComponent(2, new Dataset("c", "new_c"));
+        assertEquals("index discarded", null, compound.keyIndex);
+        assertEquals("first indexed component", 3, compound.firstIndexed);
+        assertEquals("value from new component", "new_c",
+                compound.lookup("c", Dataset.Quantity.FIRST_ONLY));
+    }
+
+    public void test_setIndexed() {
+        compound.setIndexed(true);
+        compound.lookup("a", Dataset.Quantity.FIRST_ONLY);
+        compound.setIndexed(false);
+        assertEquals("index discarded", null, compound.keyIndex);
+        compound.lookup("a", Dataset.Quantity.FIRST_ONLY);
+        assertEquals("index not rebuilt", null, compound.keyIndex);
+    }
 
     public void test_serialize_withStringBuilder() {
         boolean gotException = false;
@@ -0,0 +1,156 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the Compressor class.
+ */
+
+public class CompressorTest extends junit.framework.TestCase {
+    /**
+     * Uncompress gzip data; used by tests here and in other classes.
+     * @param data                 Data in gzip format.
+     * @return                     The uncompressed data, converted from
+     *                             UTF-8 to a string.
+     * @throws IOException         The data isn't in valid gzip format.
+     */
+    public static String gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    public void setUp() {
+        Compressor.deflaters.clear();
+    }
+
+    public void test_acceptsGzip_gzipNotMentioned() {
+        ServletRequestFixture request = new ServletRequestFixture();
+        request.headerMap.put("Accept-Encoding", "deflate");
+        assertEquals("gzip not mentioned", false,
+                Compressor.acceptsGzip(request));
+    }
+    public void test_acceptsGzip_gzipAccepted() {
+        ServletRequestFixture request = new ServletRequestFixture();
+        request.headerMap.put("Accept-Encoding", "deflate, GZIP ,sdch");
+        assertEquals("gzip in list", true, Compressor.acceptsGzip(request));
+        request.headerMap.put("Accept-Encoding", "x-gzip");
+        assertEquals("x-gzip", true, Compressor.acceptsGzip(request));
+    }
+    public void test_acceptsGzip_qValues() {
+        ServletRequestFixture request = new ServletRequestFixture();
+        request.headerMap.put("Accept-Encoding", "gzip;q=0.5");
+        assertEquals("nonzero q value", true,
+                Compressor.acceptsGzip(request));
+        request.headerMap.put("Accept-Encoding", "gzip; q=0, deflate");
+        assertEquals("zero q value", false, Compressor.acceptsGzip(request));
+        request.headerMap.put("Accept-Encoding", "gzip;q=bogus");
+        assertEquals("bad q value", false, Compressor.acceptsGzip(request));
+    }
+    public void test_acceptsGzip_wildcard() {
+        ServletRequestFixture request = new ServletRequestFixture();
+        request.headerMap.put("Accept-Encoding", "*");
+        assertEquals("wildcard", true, Compressor.acceptsGzip(request));
+        request.headerMap.put("Accept-Encoding", "*, gzip;q=0");
+        assertEquals("gzip overrides wildcard", false,
+                Compressor.acceptsGzip(request));
+    }
+
+    public void test_compressDirectory() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("Line " + i + "\n");
+        }
+        (new File("_test_/sub")).mkdirs();
+        TestUtil.writeFile("_test_/a.js", text.toString());
+        TestUtil.writeFile("_test_/sub/b.css", text.toString());
+        TestUtil.writeFile("_test_/c.png", text.toString());
+        TestUtil.writeFile("_test_/d.txt", "x");
+        int count = Compressor.compressDirectory(new File("_test_"));
+        int count2 = Compressor.compressDirectory(new File("_test_"));
+        String a = gunzip(Compressor.readFile(new File("_test_/a.js.gz")));
+        boolean bExists = (new File("_test_/sub/b.css.gz")).exists();
+        boolean cExists = (new File("_test_/c.png.gz")).exists();
+        boolean dExists = (new File("_test_/d.txt.gz")).exists();
+        TestUtil.deleteTree("_test_");
+        assertEquals("files compressed", 2, count);
+        assertEquals("files compressed second time", 0, count2);
+        assertEquals("contents of a.js.gz", text.toString(), a);
+        assertEquals("compressed file in subdirectory", true, bExists);
+        assertEquals("image file not compressed", false, cExists);
+        assertEquals("short file not compressed", false, dExists);
+    }
+    public void test_compressDirectory_nonexistentDirectory()
+            throws IOException {
+        assertEquals("files compressed", 0,
+                Compressor.compressDirectory(new File("_bogus_")));
+    }
+
+    public void test_gzip() throws IOException {
+        byte[] data = "abcabcabcabc\u00e9xyz".getBytes("UTF-8");
+        byte[] compressed = Compressor.gzip(data, data.length - 3);
+        assertEquals("uncompressed data", "abcabcabcabc\u00e9",
+                gunzip(compressed));
+    }
+    public void test_gzip_reuseDeflater() throws IOException {
+        byte[] data = "first block of data".getBytes("UTF-8");
+        Compressor.gzip(data, data.length);
+        assertEquals("pool size", 1, Compressor.deflaters.size());
+        data = "second".getBytes("UTF-8");
+        byte[] compressed = Compressor.gzip(data, data.length);
+        assertEquals("pool size", 1, Compressor.deflaters.size());
+        assertEquals("uncompressed data", "second", gunzip(compressed));
+    }
+
+    public void test_isCompressible() {
+        assertEquals("null", false, Compressor.isCompressible(null));
+        assertEquals("text/html", true,
+                Compressor.isCompressible("text/html"));
+        assertEquals("Javascript", true,
+                Compressor.isCompressible("application/x-javascript"));
+        assertEquals("svg", true, Compressor.isCompressible("image/svg+xml"));
+        assertEquals("png", false, Compressor.isCompressible("image/png"));
+    }
+
+    public void test_hasCompressibleExtension() {
+        assertEquals("Javascript", true,
+                Compressor.hasCompressibleExtension("Chart.JS"));
+        assertEquals("compressed Javascript", false,
+                Compressor.hasCompressibleExtension("Chart.js.gz"));
+        assertEquals("image", false,
+                Compressor.hasCompressibleExtension("logo.gif"));
+    }
+
+    public void test_releaseDeflater_poolFull() {
+        int oldMax = Compressor.maxPooledDeflaters;
+        Compressor.maxPooledDeflaters = 1;
+        Compressor.releaseDeflater(Compressor.getDeflater());
+        Compressor.releaseDeflater(new java.util.zip.Deflater());
+        Compressor.maxPooledDeflaters = oldMax;
+        assertEquals("pool size", 1, Compressor.deflaters.size());
+    }
+}
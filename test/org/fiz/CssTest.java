@@ -15,6 +15,7 @@
 
 package org.fiz;
 import java.io.*;
+import java.util.*;
 
 import org.fiz.test.*;
 
@@ -59,6 +60,41 @@ public class CssTest extends junit.framework.TestCase {
                 0, Css.cache.size());
     }
 
+    public void test_bundle_getPath() {
+        Css.Bundle bundle = new Css.Bundle("h1 {color: red}\n");
+        assertEquals("path", "static/fiz-css/" + bundle.getHash() + ".css",
+                bundle.getPath());
+        assertEquals("short bundle not compressed", null,
+                bundle.getCompressed());
+    }
+
+    public void test_clearCache_bundles() {
+        Css.Bundle bundle = Css.getBundle(Arrays.asList("test.css"));
+        Css.clearCache();
+        assertEquals("bundle no longer in cache", null,
+                Css.getBundle(bundle.getHash()));
+    }
+
+    public void test_getBundle_hash() {
+        Css.Bundle bundle = Css.getBundle(Arrays.asList("test.css"));
+        assertEquals("bundle found", true,
+                bundle == Css.getBundle(bundle.getHash()));
+        assertEquals("nonexistent bundle", null, Css.getBundle("bogus"));
+    }
+
+    public void test_getBundle_names() throws IOException {
+        TestUtil.writeFile("_csstest_/second.css", "Second\n");
+        Css.Bundle bundle = Css.getBundle(Arrays.asList("test.css",
+                "second.css"));
+        assertEquals("bundle contents", "Sample: 99234\n\nSecond\n",
+                new String(bundle.getContent(), "UTF-8"));
+        assertEquals("same bundle returned", true,
+                bundle == Css.getBundle(Arrays.asList("test.css",
+                "second.css")));
+        assertEquals("different bundle for different files", false,
+                bundle == Css.getBundle(Arrays.asList("test.css")));
+    }
+
     public void test_getPath() {
         Css.init("a/b", "c/d", "e/f");
         String[] path = Css.getPath();
@@ -73,6 +109,120 @@ public class CssTest extends junit.framework.TestCase {
         assertEquals("use caches for second call", "Sample: 99234", css);
     }
 
+    public void test_getStylesheet_concurrentRequests() throws Exception {
+        // All of the threads should get the same generated string.
+        final String[] results = new String[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    results[index] = Css.getStylesheet("test.css");
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (String result : results) {
+            assertEquals("same stylesheet object", true, result == results[0]);
+        }
+    }
+    public void test_getStylesheet_recordDependencies() throws Exception {
+        TestUtil.writeFile("_csstest_/css.yaml", "value: 99234\n" +
+                "other: 44\n");
+        Config.clearCache();
+        Css.getStylesheet("test.css");
+        Css.Entry entry = Css.cache.get("test.css").get();
+        assertEquals("template file", "_csstest_/test.css",
+                entry.file.getPath());
+        assertEquals("configuration values", "{value=99234}",
+                entry.configValues.toString());
+    }
+    public void test_getStylesheet_missingFilesInPath() throws Exception {
+        (new File("_csstest_/child")).mkdir();
+        Css.init("_csstest_/child", "_csstest_");
+        Css.getStylesheet("test.css");
+        Css.Entry entry = Css.cache.get("test.css").get();
+        assertEquals("missing files", "[_csstest_/child/test.css]",
+                entry.missingFiles.toString());
+    }
+    public void test_getStylesheet_errorNotCached() {
+        boolean gotException = false;
+        try {
+            Css.getStylesheet("bogus.css");
+        }
+        catch (FileNotFoundError e) {
+            assertEquals("exception message",
+                    "couldn't find CSS file \"bogus.css\" in path " +
+                    "(\"_csstest_\")", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+        assertEquals("failure not cached", null, Css.cache.get("bogus.css"));
+    }
+
+    public void test_refresh_nothingChanged() {
+        Css.getStylesheet("test.css");
+        Css.Bundle bundle = Css.getBundle(Arrays.asList("test.css"));
+        Config.clearCache();
+        Css.refresh();
+        assertEquals("stylesheet still cached", 1, Css.cache.size());
+        assertEquals("bundle still cached", true,
+                bundle == Css.getBundle(bundle.getHash()));
+    }
+    public void test_refresh_configValueChanged() {
+        TestUtil.writeFile("_csstest_/other.css", "No substitutions");
+        Css.getStylesheet("test.css");
+        Css.getStylesheet("other.css");
+        Css.Bundle bundle = Css.getBundle(Arrays.asList("other.css",
+                "test.css"));
+        Css.Bundle otherBundle = Css.getBundle(Arrays.asList("other.css"));
+        TestUtil.writeFile("_csstest_/css.yaml", "value: 1234\n");
+        Config.clearCache();
+        Css.refresh();
+        assertEquals("unaffected stylesheet still cached", true,
+                Css.cache.get("other.css") != null);
+        assertEquals("stale stylesheet discarded", null,
+                Css.cache.get("test.css"));
+        assertEquals("stale bundle discarded", null,
+                Css.getBundle(bundle.getHash()));
+        assertEquals("unaffected bundle still cached", true,
+                otherBundle == Css.getBundle(otherBundle.getHash()));
+        assertEquals("regenerated stylesheet", "Sample: 1234",
+                Css.getStylesheet("test.css"));
+    }
+    public void test_refresh_configValueAppears() {
+        TestUtil.writeFile("_csstest_/other.css", "Sample: @extra?{none}");
+        assertEquals("original stylesheet", "Sample: none",
+                Css.getStylesheet("other.css"));
+        TestUtil.writeFile("_csstest_/css.yaml", "value: 99234\n" +
+                "extra: 16\n");
+        Config.clearCache();
+        Css.refresh();
+        assertEquals("regenerated stylesheet", "Sample: 16",
+                Css.getStylesheet("other.css"));
+    }
+    public void test_refresh_fileModified() {
+        Css.getStylesheet("test.css");
+        File file = new File("_csstest_/test.css");
+        file.setLastModified(file.lastModified() - 10000);
+        Css.refresh();
+        assertEquals("stale stylesheet discarded", 0, Css.cache.size());
+    }
+    public void test_refresh_fileAppearsEarlierInPath() {
+        (new File("_csstest_/child")).mkdir();
+        Css.init("_csstest_/child", "_csstest_");
+        Css.getStylesheet("test.css");
+        Css.refresh();
+        assertEquals("nothing changed", 1, Css.cache.size());
+        TestUtil.writeFile("_csstest_/child/test.css", "Child");
+        Css.refresh();
+        assertEquals("regenerated stylesheet", "Child",
+                Css.getStylesheet("test.css"));
+    }
+
     public void test_getSearchPath() {
         Css.init("a/b", "y/z");
         String[] path = Css.getSearchPath();
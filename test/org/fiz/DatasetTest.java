@@ -896,6 +896,31 @@ public class DatasetTest extends junit.framework.TestCase {
         assertEquals(2, d.getInt("a"));
     }
 
+    public void test_set_countKeySetChanges() {
+        Dataset d = new Dataset("a", "1", "b", "2");
+        int changes = d.keySetChanges;
+        d.set("a", "3");
+        d.add("a", "4");
+        d.setPath("a", "5");
+        d.delete("bogus");
+        assertEquals("no keys added or removed", changes,
+                d.keySetChanges);
+        d.set("c", "6");
+        assertEquals("set new key", changes + 1,
+                d.keySetChanges);
+        d.add("d", "7");
+        assertEquals("add new key", changes + 2,
+                d.keySetChanges);
+        d.delete("c");
+        assertEquals("delete key", changes + 3,
+                d.keySetChanges);
+        d.clear();
+        assertEquals("clear", changes + 4, d.keySetChanges);
+        d.clear();
+        assertEquals("clear empty dataset", changes + 4,
+                d.keySetChanges);
+    }
+
     public void test_setPath() {
         d.setPath("a.b", "x");
         d.setPath("a.b", "y");
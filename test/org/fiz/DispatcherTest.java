@@ -297,6 +297,56 @@ public class DispatcherTest extends junit.framework.TestCase {
                 "DispatcherTest2Interactor\");\n",
                 response.toString());
     }
+    public void test_service_ajaxBatch() {
+        DispatcherTest1Interactor.count = 0;
+        ServletRequestFixture request = new ServletRequestFixture(
+                "/dispatcherTest1/ajaxIncCount");
+        request.uri = "contextPath/servlet/spath/dispatcherTest1/ajaxIncCount";
+        request.contentType = "text/fiz-batch; charset=utf-8";
+        request.setInput("url.12.ajaxIncCountmain.()" +
+                "url.13.ajaxUserErrormain.()" +
+                "url.12.ajaxIncCountmain.()");
+        ServletResponseFixture response = new ServletResponseFixture();
+        dispatcher.service(request, response);
+        assertEquals("interactor method invoked", 2,
+                DispatcherTest1Interactor.count);
+        assertEquals("batch response", "0." +
+                "54.Fiz.addBulletinMessage(\"userError: ajax user error\");\n" +
+                "0.",
+                response.toString());
+    }
+    public void test_service_ajaxBatchInParallel() {
+        ServletRequestFixture request = new ServletRequestFixture(
+                "/dispatcherTest1/ajaxUserError");
+        request.uri = "contextPath/servlet/spath/dispatcherTest1/ajaxUserError";
+        request.contentType = "text/fiz-batch; charset=utf-8";
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            input.append("url.21.ajaxUserError?index=" + i + "main.()");
+            expected.append("54.Fiz.addBulletinMessage(\"userError: ajax " +
+                    "user error\");\n");
+        }
+        request.setInput(input.toString());
+        ServletResponseFixture response = new ServletResponseFixture();
+        Ajax.setBatchThreads(4);
+        dispatcher.service(request, response);
+        Ajax.setBatchThreads(0);
+        assertEquals("batch response", expected.toString(),
+                response.toString());
+    }
+    public void test_service_ajaxBatchSyntaxError() {
+        ServletRequestFixture request = new ServletRequestFixture(
+                "/dispatcherTest1/ajaxIncCount");
+        request.contentType = "text/fiz-batch; charset=utf-8";
+        request.setInput("bogus");
+        ServletResponseFixture response = new ServletResponseFixture();
+        dispatcher.service(request, response);
+        assertEquals("batch response", "Fiz.addBulletinMessage(" +
+                "\"uncaughtAjax: expected &quot;url.&quot; at position 0 " +
+                "in Fiz batch data\");\n",
+                response.toString());
+    }
     public void test_service_exception_postUserError() {
         ServletResponseFixture response = new ServletResponseFixture();
         ServletRequestFixture request = new ServletRequestFixture(
@@ -0,0 +1,172 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+/**
+ * Junit tests for the FactoryCache class.
+ */
+
+public class FactoryCacheTest extends junit.framework.TestCase {
+    // The following class provides factory methods for the tests.
+    protected static class Factory {
+        public static int calls = 0;
+        public static int sleepMs = 0;
+        public static Dataset data(String name) {
+            calls++;
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                }
+                catch (InterruptedException e) {}
+            }
+            return new Dataset("name", name, "call", calls);
+        }
+        public static Dataset error(String name) {
+            calls++;
+            throw new Error("error in factory");
+        }
+    }
+
+    protected static final String DATA = "org.fiz.FactoryCacheTest$Factory.data";
+
+    public void setUp() {
+        Factory.calls = 0;
+        Factory.sleepMs = 0;
+        FactoryCache.caches.clear();
+        Timer.forgetNamedTimers();
+    }
+
+    public void test_getInstance() {
+        FactoryCache cache = FactoryCache.getInstance("a.b", 1000, 10);
+        FactoryCache cache2 = FactoryCache.getInstance("a.b", 2000, 20);
+        assertEquals("different configuration", false, cache == cache2);
+        assertEquals("lifetime unchanged", 1000, cache.lifetime);
+        assertEquals("size unchanged", 10, cache.maxEntries);
+        assertEquals("same configuration", true,
+                cache == FactoryCache.getInstance("a.b", 1000, 10));
+        assertEquals("different factory", false,
+                cache == FactoryCache.getInstance("a.c", 1000, 10));
+    }
+
+    public void test_clearAll() {
+        FactoryCache cache = FactoryCache.getInstance(DATA, 10000, 10);
+        cache.get("x");
+        FactoryCache.clearAll();
+        assertEquals("cache size", 0, cache.entries.size());
+    }
+
+    public void test_invoke_noCaching() {
+        FactoryCache.invoke(DATA, 0, 10, "x");
+        FactoryCache.invoke(DATA, 0, 10, "x");
+        assertEquals("factory calls", 2, Factory.calls);
+        assertEquals("no cache created", 0, FactoryCache.caches.size());
+    }
+    public void test_invoke_caching() {
+        FactoryCache.invoke(DATA, 10000, 10, "x");
+        Dataset d = (Dataset) FactoryCache.invoke(DATA, 10000, 10, "x");
+        assertEquals("factory calls", 1, Factory.calls);
+        assertEquals("result", "x", d.getString("name"));
+    }
+
+    public void test_get_differentArguments() {
+        FactoryCache cache = new FactoryCache(DATA, 10000, 10);
+        cache.get("x");
+        cache.get("y");
+        Dataset d = (Dataset) cache.get("x");
+        assertEquals("factory calls", 2, Factory.calls);
+        assertEquals("value from first call", "1", d.getString("call"));
+    }
+    public void test_get_expired() {
+        FactoryCache cache = new FactoryCache(DATA, 10000, 10);
+        cache.get("x");
+        cache.entries.values().iterator().next().expires =
+                System.currentTimeMillis() - 1;
+        Dataset d = (Dataset) cache.get("x");
+        assertEquals("factory calls", 2, Factory.calls);
+        assertEquals("value from second call", "2", d.getString("call"));
+    }
+    public void test_get_discardLeastRecentlyUsed() {
+        FactoryCache cache = new FactoryCache(DATA, 10000, 2);
+        cache.get("x");
+        cache.get("y");
+        cache.get("x");
+        cache.get("z");
+        assertEquals("keys in cache", "[[x], [z]]",
+                cache.entries.keySet().toString());
+    }
+    public void test_get_exceptionNotCached() {
+        FactoryCache cache = new FactoryCache(
+                "org.fiz.FactoryCacheTest$Factory.error", 10000, 10);
+        for (int i = 0; i < 2; i++) {
+            boolean gotException = false;
+            try {
+                cache.get("x");
+            }
+            catch (InternalError e) {
+                assertEquals("exception message",
+                        "exception in method \"org.fiz.FactoryCacheTest" +
+                        "$Factory.error\" invoked by Util.invokeStaticMethod: " +
+                        "error in factory", e.getMessage());
+                gotException = true;
+            }
+            assertEquals("exception happened", true, gotException);
+        }
+        assertEquals("factory calls", 2, Factory.calls);
+        assertEquals("cache size", 0, cache.entries.size());
+    }
+    public void test_get_concurrentRequestsShareResult()
+            throws InterruptedException {
+        final FactoryCache cache = new FactoryCache(DATA, 10000, 10);
+        Factory.sleepMs = 100;
+        final Object[] results = new Object[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    results[index] = cache.get("x");
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("factory calls", 1, Factory.calls);
+        for (Object result : results) {
+            assertEquals("shared result", "call: 1\nname: x\n",
+                    result.toString());
+        }
+    }
+    public void test_get_resultsCloned() {
+        FactoryCache cache = new FactoryCache(DATA, 10000, 10);
+        Dataset d = (Dataset) cache.get("x");
+        d.set("name", "modified");
+        Dataset d2 = (Dataset) cache.get("x");
+        assertEquals("cached value unchanged", "x", d2.getString("name"));
+        assertEquals("each caller gets a copy", false, d == d2);
+    }
+    public void test_get_timers() {
+        FactoryCache cache = new FactoryCache(DATA, 10000, 10);
+        cache.get("x");
+        cache.get("x");
+        cache.get("x");
+        assertEquals("hits", 2, Timer.getNamedTimer(
+                "FactoryCache hit: " + DATA).getCount());
+        assertEquals("misses", 1, Timer.getNamedTimer(
+                "FactoryCache miss: " + DATA).getCount());
+    }
+}
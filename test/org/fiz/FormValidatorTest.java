@@ -20,6 +20,112 @@ package org.fiz;
  */
 
 public class FormValidatorTest extends junit.framework.TestCase {
+    public void setUp() {
+        Config.setDataset("main", new Dataset("searchPackages", "org.fiz"));
+    }
+
+    // The following methods are used to test custom validators.
+    public static String validateEcho(String id, Dataset properties,
+            Dataset formData) {
+        return properties.getString("prefix") + formData.getString(id);
+    }
+    public static String validateError(String id, Dataset properties,
+            Dataset formData) {
+        throw new Error("Simulated failure");
+    }
+    public String validateNotStatic(String id, Dataset properties,
+            Dataset formData) {
+        return null;
+    }
+
+    public void test_compile_builtIn() {
+        String[] types = {"duplicate", "in", "integer", "length", "numeric",
+                "range", "regex", "required"};
+        Dataset properties = new Dataset("otherFields", "a", "valid", "x",
+                "pattern", "x");
+        StringBuilder classes = new StringBuilder();
+        for (String type : types) {
+            properties.set("type", type);
+            classes.append(FormValidator.compile(properties).getClass()
+                    .getSimpleName());
+            classes.append(" ");
+        }
+        assertEquals("validator classes", "DuplicateValidator InValidator " +
+                "IntegerValidator LengthValidator NumericValidator " +
+                "RangeValidator RegexValidator RequiredValidator ",
+                classes.toString());
+    }
+    public void test_compile_custom() {
+        FormValidator.CompiledValidator validator = FormValidator.compile(
+                new Dataset("type", "FormValidatorTest.validateEcho",
+                "prefix", "value: "));
+        assertEquals("result", "value: 47",
+                validator.validate("id", new Dataset("id", "47")));
+    }
+    public void test_compile_customNoSuchMethod() {
+        boolean gotException = false;
+        try {
+            FormValidator.compile(new Dataset("type",
+                    "FormValidatorTest.bogus"));
+        }
+        catch (InternalError e) {
+            assertEquals("exception message",
+                    "can't find static validation method " +
+                    "\"FormValidatorTest.bogus\"", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_compile_customNotStatic() {
+        boolean gotException = false;
+        try {
+            FormValidator.compile(new Dataset("type",
+                    "FormValidatorTest.validateNotStatic"));
+        }
+        catch (InternalError e) {
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_compile_unknownBuiltIn() {
+        boolean gotException = false;
+        try {
+            FormValidator.compile(new Dataset("type", "bogus"));
+        }
+        catch (InternalError e) {
+            assertEquals("exception message",
+                    "can't find static validation method " +
+                    "\"FormValidator.validateBogus\"", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_MethodValidator_exception() {
+        FormValidator.CompiledValidator validator = FormValidator.compile(
+                new Dataset("type", "FormValidatorTest.validateError"));
+        boolean gotException = false;
+        try {
+            validator.validate("id", new Dataset("id", "47"));
+        }
+        catch (InternalError e) {
+            assertEquals("exception message",
+                    "exception in validation method " +
+                    "\"FormValidatorTest.validateError\": " +
+                    "simulated failure", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_RegexValidator_patternShared() {
+        FormValidator.RegexValidator v1 = new FormValidator.RegexValidator(
+                new Dataset("pattern", "^[0-9]+x$"));
+        FormValidator.RegexValidator v2 = new FormValidator.RegexValidator(
+                new Dataset("pattern", "^[0-9]+x$"));
+        assertSame("compiled pattern reused", v1.pattern, v2.pattern);
+    }
+
     public void test_errorMessage() {
         assertEquals("Default error message",
                 "Test error: p_value d_value",
@@ -0,0 +1,257 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the FragmentCache class.
+ */
+
+public class FragmentCacheTest extends junit.framework.TestCase {
+    // The following class generates output of every kind that a
+    // FragmentCache records, and counts how many times it is rendered.
+    protected static class CountingSection extends Section {
+        public int renders = 0;
+        public Section inner = null;
+        public CountingSection(String text) {
+            properties = new Dataset("text", text);
+        }
+        @Override
+        public void render(ClientRequest cr) {
+            renders++;
+            Html html = cr.getHtml();
+            html.includeCssFile("test.css");
+            html.includeJsFile("static/fiz/Fiz.js");
+            html.includeCss("/* " + properties.getString("text") + " */");
+            html.getBody().append(properties.getString("text"));
+            cr.evalJavascript("count++;\n");
+            if (inner != null) {
+                cr.showSections(inner);
+            }
+        }
+    }
+
+    protected ClientRequestFixture cr;
+    protected FragmentCache cache;
+    protected boolean oldExternalCss;
+
+    public void setUp() {
+        cr = new ClientRequestFixture();
+        cache = new FragmentCache(10);
+        oldExternalCss = Html.externalCss;
+        Html.externalCss = true;
+    }
+
+    public void tearDown() {
+        Html.externalCss = oldExternalCss;
+        FragmentCache.getInstance().clear();
+    }
+
+    public void test_Fragment_replay() {
+        CountingSection section = new CountingSection("<p>hello</p>");
+        cache.render(cr, section, "key", 60000);
+        ClientRequestFixture cr2 = new ClientRequestFixture();
+        cache.render(cr2, section, "key", 60000);
+        assertEquals("rendered once", 1, section.renders);
+        assertEquals("HTML", "<p>hello</p>",
+                cr2.getHtml().getBody().toString());
+        assertEquals("CSS files", "test.css", cr2.getHtml().getCssFiles());
+        assertEquals("Javascript files", "static/fiz/Fiz.js",
+                cr2.getHtml().getJsFiles());
+        TestUtil.assertSubstring("CSS", "/* <p>hello</p> */",
+                cr2.getHtml().getCss());
+        assertEquals("Javascript", "count++;\n", cr2.getHtml().getJs());
+    }
+
+    public void test_clear() {
+        CountingSection section = new CountingSection("abc");
+        cache.render(cr, section, "key", 60000);
+        cache.clear();
+        assertEquals("entries", "0", cache.getStatistics().get("entries"));
+        assertEquals("misses", "0", cache.getStatistics().get("misses"));
+        cache.render(cr, section, "key", 60000);
+        assertEquals("rendered again", 2, section.renders);
+    }
+
+    public void test_getStatistics() {
+        Dataset stats = cache.getStatistics();
+        assertEquals("hit ratio, no lookups", "0.000", stats.get("hitRatio"));
+        CountingSection section = new CountingSection("abc");
+        for (int i = 0; i < 4; i++) {
+            cache.render(cr, section, "key", 60000);
+        }
+        stats = cache.getStatistics();
+        assertEquals("hits", "3", stats.get("hits"));
+        assertEquals("misses", "1", stats.get("misses"));
+        assertEquals("hit ratio", "0.750", stats.get("hitRatio"));
+        assertEquals("entries", "1", stats.get("entries"));
+    }
+
+    public void test_render_notNormalRequest() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        CountingSection section = new CountingSection("abc");
+        cache.render(cr, section, "key", 60000);
+        cache.render(cr, section, "key", 60000);
+        assertEquals("rendered every time", 2, section.renders);
+        assertEquals("nothing cached", "0",
+                cache.getStatistics().get("entries"));
+    }
+    public void test_render_filesIncludedEarlier() {
+        // Files included before the section renders must still be
+        // recorded, since later requests may not include them.
+        cr.getHtml().includeCssFile("test.css");
+        cr.getHtml().includeJsFile("static/fiz/Fiz.js");
+        CountingSection section = new CountingSection("abc");
+        cache.render(cr, section, "key", 60000);
+        ClientRequestFixture cr2 = new ClientRequestFixture();
+        cache.render(cr2, section, "key", 60000);
+        assertEquals("CSS files", "test.css", cr2.getHtml().getCssFiles());
+        assertEquals("Javascript files", "static/fiz/Fiz.js",
+                cr2.getHtml().getJsFiles());
+    }
+    public void test_render_onlyNewOutputRecorded() {
+        cr.getHtml().getBody().append("before ");
+        cr.evalJavascript("before();\n");
+        CountingSection section = new CountingSection("abc");
+        cache.render(cr, section, "key", 60000);
+        ClientRequestFixture cr2 = new ClientRequestFixture();
+        cache.render(cr2, section, "key", 60000);
+        assertEquals("HTML", "abc", cr2.getHtml().getBody().toString());
+        assertEquals("Javascript", "count++;\n", cr2.getHtml().getJs());
+    }
+    public void test_render_expired() {
+        CountingSection section = new CountingSection("abc");
+        cache.render(cr, section, "key", -1);
+        cache.render(cr, section, "key", -1);
+        assertEquals("rendered twice", 2, section.renders);
+    }
+    public void test_render_nested() {
+        FragmentCache.getInstance().clear();
+        CountingSection inner = new CountingSection("inner");
+        inner.properties.set("cacheKey", "inner");
+        CountingSection outer = new CountingSection("outer ");
+        outer.inner = inner;
+        cache.render(cr, outer, "outer", 60000);
+        assertEquals("inner section cached separately", "1",
+                FragmentCache.getInstance().getStatistics().get("entries"));
+        ClientRequestFixture cr2 = new ClientRequestFixture();
+        cache.render(cr2, outer, "outer", 60000);
+        assertEquals("HTML", "outer inner",
+                cr2.getHtml().getBody().toString());
+        TestUtil.assertSubstring("CSS from inner section", "/* inner */",
+                cr2.getHtml().getCss());
+        assertEquals("outer rendered once", 1, outer.renders);
+        assertEquals("inner rendered once", 1, inner.renders);
+    }
+    public void test_render_exceptionInSection() {
+        Section section = new Section() {
+            @Override
+            public void render(ClientRequest cr) {
+                throw new Error("render failed");
+            }
+        };
+        boolean gotException = false;
+        try {
+            cache.render(cr, section, "key", 60000);
+        } catch (Error e) {
+            gotException = true;
+        }
+        assertTrue("exception thrown", gotException);
+        assertEquals("recording stopped", null, cr.getHtml().recording);
+        assertEquals("nothing cached", "0",
+                cache.getStatistics().get("entries"));
+    }
+    public void test_render_authTokenNotCached() {
+        Section section = new Section() {
+            @Override
+            public void render(ClientRequest cr) {
+                Template.appendHtml(cr.getHtml().getBody(),
+                        "<input name=\"fiz_auth\" value=\"@1\" />",
+                        cr.getAuthToken());
+            }
+        };
+        cache.render(cr, section, "key", 60000);
+        assertEquals("nothing cached", "0",
+                cache.getStatistics().get("entries"));
+    }
+    public void test_render_setAuthTokenNotCached() {
+        cr.setAuthToken();
+        Section section = new Section() {
+            @Override
+            public void render(ClientRequest cr) {
+                cr.setAuthToken();
+            }
+        };
+        cache.render(cr, section, "key", 60000);
+        assertEquals("nothing cached", "0",
+                cache.getStatistics().get("entries"));
+    }
+    public void test_render_pagePropertyNotCached() {
+        Section section = new Section() {
+            @Override
+            public void render(ClientRequest cr) {
+                cr.setPageProperty("name", "value");
+            }
+        };
+        cache.render(cr, section, "key", 60000);
+        assertEquals("nothing cached", "0",
+                cache.getStatistics().get("entries"));
+    }
+    public void test_render_nestedUncacheable() {
+        FragmentCache.getInstance().clear();
+        CountingSection outer = new CountingSection("outer ");
+        outer.inner = new Section() {
+            @Override
+            public void render(ClientRequest cr) {
+                cr.getAuthToken();
+            }
+        };
+        cache.render(cr, outer, "outer", 60000);
+        assertEquals("outer section not cached", "0",
+                cache.getStatistics().get("entries"));
+        assertEquals("recording stopped", null, cr.getHtml().recording);
+    }
+    public void test_render_uniqueIdNotCached() {
+        Section section = new Section() {
+            @Override
+            public void render(ClientRequest cr) {
+                cr.getHtml().getBody().append(cr.uniqueId("x") + " ");
+            }
+        };
+        cache.render(cr, section, "key", 60000);
+        cache.render(cr, section, "key", 60000);
+        cr.getHtml().getBody().append(cr.uniqueId("x"));
+        assertEquals("ids stay unique", "x0 x1 x2",
+                cr.getHtml().getBody().toString());
+        assertEquals("nothing cached", "0",
+                cache.getStatistics().get("entries"));
+    }
+    public void test_render_discardLeastRecentlyUsed() {
+        cache.setMaxEntries(2);
+        CountingSection a = new CountingSection("a");
+        CountingSection b = new CountingSection("b");
+        CountingSection c = new CountingSection("c");
+        cache.render(cr, a, "a", 60000);
+        cache.render(cr, b, "b", 60000);
+        cache.render(cr, a, "a", 60000);
+        cache.render(cr, c, "c", 60000);
+        cache.render(cr, a, "a", 60000);
+        cache.render(cr, b, "b", 60000);
+        assertEquals("a stays cached", 1, a.renders);
+        assertEquals("b discarded", 2, b.renders);
+    }
+}
@@ -61,6 +61,11 @@ public class HtmlTest extends junit.framework.TestCase {
         Config.init("test/testData/WEB-INF/app/config");
     }
 
+    public void tearDown() {
+        Html.externalCss = false;
+        Ajax.batching = false;
+    }
+
     public void test_clear() {
         html.setTitle("sample");
         html.getBody().append("body info\n");
@@ -204,6 +209,16 @@ public class HtmlTest extends junit.framework.TestCase {
         Util.deleteTree("_test_");
     }
 
+    public void test_includeCssFile_externalCss() {
+        Html.externalCss = true;
+        html.includeCssFile("test.css");
+        html.includeCssFile("test.css");
+        assertEquals("CSS not included inline", "", html.css.toString());
+        assertEquals("list of files", "test.css",
+                StringUtil.join(html.cssFileList.toArray(new String[0]),
+                ", "));
+    }
+
     public void test_evalJavascript() {
         html.evalJavascript(
                 "// Javascript comment with special chars <&>\n");
@@ -251,6 +266,8 @@ public class HtmlTest extends junit.framework.TestCase {
                 "<script type=\"text/javascript\" " +
                 "src=\"/servlet/file1.js\"></script>\n",
                 html.jsFileHtml.toString());
+        assertEquals("jsFileList", "[file2.js, file1.js]",
+                html.jsFileList.toString());
         TestUtil.deleteTree("_test_");
     }
 
@@ -347,6 +364,32 @@ public class HtmlTest extends junit.framework.TestCase {
                 html.toString());
         Util.deleteTree("_test_");
     }
+    public void test_print_css_external() {
+        (new File("_test_")).mkdir();
+        TestUtil.writeFile("_test_/first.css", "first.css\n");
+        TestUtil.writeFile("_test_/main.css", "main.css\n");
+        Css.init("_test_");
+        Html.externalCss = true;
+        html.setTitle("sample");
+        html.includeCssFile("first.css");
+        html.includeCss("h1 {color: red}");
+        html.getBody().append("<p>xyz</p>\n");
+        String out = html.toString();
+        Css.Bundle bundle = Css.getBundle(Arrays.asList("main.css",
+                "first.css"));
+        TestUtil.assertSubstring("header section",
+                "<head>\n" +
+                "<title>sample</title>\n" +
+                "<link rel=\"stylesheet\" type=\"text/css\" " +
+                "href=\"/servlet/static/fiz-css/" + bundle.getHash() +
+                ".css\" />\n" +
+                "<style type=\"text/css\">\n" +
+                "h1 {color: red}\n" +
+                "</style>\n" +
+                "</head>\n",
+                out);
+        Util.deleteTree("_test_");
+    }
     public void test_print_css_newlinesMissing() {
         (new File("_test_")).mkdir();
         TestUtil.writeFile("_test_/first.css", "first.css");
@@ -424,6 +467,43 @@ public class HtmlTest extends junit.framework.TestCase {
                 html.toString());
         Util.deleteTree("_test_");
     }
+    public void test_print_bundleJavascript() {
+        (new File("_test_")).mkdir();
+        TestUtil.writeFile("_test_/file1.js", "// Fiz:include file2.js\n" +
+                "x = 1;\n");
+        TestUtil.writeFile("_test_/file2.js", "y = 2;\n");
+        html.getBody().append("<p>Body text.</p>\n");
+        html.jsDirectory = "_test_/";
+        html.includeJsFile("file1.js");
+        Html.bundleJavascript = true;
+        String result = html.toString();
+        Html.bundleJavascript = false;
+        JsBundle bundle = JsBundle.getInstance("_test_/", html.jsFileList);
+        Util.deleteTree("_test_");
+        TestUtil.assertSubstring("body section",
+                "<body>\n" +
+                "<p>Body text.</p>\n" +
+                "<script type=\"text/javascript\" " +
+                "src=\"/servlet/static/fiz-bundle/" + bundle.getHash() +
+                ".js\"></script>\n" +
+                "</body>\n",
+                result);
+    }
+    public void test_print_bundleJavascriptSingleFile() {
+        (new File("_test_")).mkdir();
+        TestUtil.writeFile("_test_/file1.js", "x = 1;\n");
+        html.getBody().append("<p>Body text.</p>\n");
+        html.jsDirectory = "_test_/";
+        html.includeJsFile("file1.js");
+        Html.bundleJavascript = true;
+        String result = html.toString();
+        Html.bundleJavascript = false;
+        Util.deleteTree("_test_");
+        TestUtil.assertSubstring("no bundle for a single file",
+                "<script type=\"text/javascript\" " +
+                "src=\"/servlet/file1.js\"></script>\n",
+                result);
+    }
     public void test_print_javascriptCode() {
         html.getBody().append("<p> First paragraph.</p>\n");
         html.evalJavascript(
@@ -442,6 +522,24 @@ public class HtmlTest extends junit.framework.TestCase {
                 html.toString());
     }
 
+    public void test_print_ajaxBatching() {
+        Ajax.batching = true;
+        html.getBody().append("<p> First paragraph.</p>\n");
+        html.evalJavascript("var i = 444;\n");
+        TestUtil.assertSubstring("Ajax.js not included", "//<![CDATA[\n" +
+                "var i = 444;\n",
+                html.toString());
+        html.includeJsFile("static/fiz/Ajax.js");
+        TestUtil.assertSubstring("batching enabled", "//<![CDATA[\n" +
+                "Fiz.Ajax.batching = true;\n" +
+                "var i = 444;\n",
+                html.toString());
+        Ajax.batching = false;
+        TestUtil.assertSubstring("batching disabled", "//<![CDATA[\n" +
+                "var i = 444;\n",
+                html.toString());
+    }
+
     public void test_toString() {
         html.getBody().append("first line\n");
         html.setTitle("sample title");
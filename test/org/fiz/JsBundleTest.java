@@ -0,0 +1,177 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.*;
+import org.mozilla.javascript.*;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the JsBundle class.
+ */
+
+public class JsBundleTest extends junit.framework.TestCase {
+    public void setUp() {
+        JsBundle.clearCache();
+        Html.clearJsDependencyCache();
+        (new File("_test_")).mkdir();
+        TestUtil.writeFile("_test_/a.js", "// Comment\nvar a = 1;\n");
+        TestUtil.writeFile("_test_/b.js", "var b = a + 1\n");
+    }
+
+    public void tearDown() {
+        TestUtil.deleteTree("_test_");
+    }
+
+    public void test_constructor() throws IOException {
+        JsBundle bundle = new JsBundle("var x = 44;");
+        assertEquals("content", "var x = 44;",
+                new String(bundle.getContent(), "UTF-8"));
+        assertEquals("hash length", 32, bundle.getHash().length());
+        assertEquals("short bundle not compressed", null,
+                bundle.getCompressed());
+        StringBuilder longCode = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longCode.append("x = " + i + ";\n");
+        }
+        bundle = new JsBundle(longCode.toString());
+        assertEquals("compressed contents", longCode.toString(),
+                CompressorTest.gunzip(bundle.getCompressed()));
+    }
+
+    public void test_clearCache() {
+        JsBundle bundle = JsBundle.getInstance("_test_/",
+                Arrays.asList("a.js"));
+        JsBundle.clearCache();
+        assertEquals("bundle no longer in cache", null,
+                JsBundle.getBundle(bundle.getHash()));
+    }
+
+    public void test_getBundle() {
+        JsBundle bundle = JsBundle.getInstance("_test_/",
+                Arrays.asList("a.js"));
+        assertEquals("bundle found", true,
+                bundle == JsBundle.getBundle(bundle.getHash()));
+        assertEquals("nonexistent bundle", null,
+                JsBundle.getBundle("bogus"));
+    }
+
+    public void test_getInstance() throws IOException {
+        JsBundle bundle = JsBundle.getInstance("_test_/",
+                Arrays.asList("a.js", "b.js"));
+        assertEquals("bundle contents", "var a=1;\nvar b=a+1;\n",
+                new String(bundle.getContent(), "UTF-8"));
+        assertEquals("same bundle returned", true,
+                bundle == JsBundle.getInstance("_test_/",
+                Arrays.asList("a.js", "b.js")));
+        assertEquals("different bundle for different order", false,
+                bundle == JsBundle.getInstance("_test_/",
+                Arrays.asList("b.js", "a.js")));
+    }
+    public void test_getInstance_nonexistentFile() {
+        boolean gotException = false;
+        try {
+            JsBundle.getInstance("_test_/", Arrays.asList("a.js", "c.js"));
+        }
+        catch (FileNotFoundError e) {
+            assertEquals("exception message",
+                    "couldn't open javascript file \"_test_/c.js\": " +
+                    "No such file or directory", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_getPath() {
+        JsBundle bundle = new JsBundle("var x = 44;");
+        assertEquals("path", "static/fiz-bundle/" + bundle.getHash() + ".js",
+                bundle.getPath());
+    }
+
+    public void test_main() throws IOException {
+        TestUtil.writeFile("_test_/c.js", "// Fiz:include a.js, b.js\n" +
+                "var c = b;\n");
+        PrintStream oldOut = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        JsBundle.main(new String[] {"_test_", "c.js"});
+        System.setOut(oldOut);
+        JsBundle bundle = JsBundle.getInstance("_test_/",
+                Arrays.asList("a.js", "b.js", "c.js"));
+        assertEquals("bundle file", "var a=1;\nvar b=a+1;\nvar c=b;\n",
+                Util.readFile("_test_/" + bundle.getPath()).toString());
+    }
+
+    public void test_minify_comments() {
+        assertEquals("comments removed", "a=1;\nb=2;\nc=3;",
+                JsBundle.minify("/* Header\n * comment */\n" +
+                "a = 1;   // trailing comment\n" +
+                "b = /* inline */ 2;\n" +
+                "\n\n    c = 3;"));
+        assertEquals("preserved comments", "/*! Copyright */\nx=1;",
+                JsBundle.minify("/*! Copyright */\nx = 1;"));
+    }
+    public void test_minify_whitespace() {
+        assertEquals("spaces between identifiers",
+                "var x=function(a,b){\nreturn a in b;}",
+                JsBundle.minify("var x = function (a, b) {\n" +
+                "    return a in b;   }"));
+        assertEquals("plus and minus", "a=b+ +c-(-d)+e- -f;",
+                JsBundle.minify("a = b + +c - (-d) + e - -f;"));
+        assertEquals("number followed by dot", "x=1 .toString();",
+                JsBundle.minify("x = 1 .toString();"));
+    }
+    public void test_minify_strings() {
+        assertEquals("strings unchanged",
+                "x=\"a  // b\"+'c /* d */ \\' e';",
+                JsBundle.minify("x = \"a  // b\" + 'c /* d */ \\' e';"));
+    }
+    public void test_minify_regularExpressions() {
+        assertEquals("regular expressions",
+                "x=y.replace(/ \\/* [/ ]+/g,\"\");\n" +
+                "return/ a /.test(z);",
+                JsBundle.minify("x = y.replace(/ \\/* [/ ]+/g, \"\");\n" +
+                "return / a /.test(z);"));
+        assertEquals("division", "x=a/b/c;",
+                JsBundle.minify("x = a / b / c;"));
+    }
+    public void test_minify_fizFiles() throws FileNotFoundException {
+        // Minify all of the Fiz Javascript files and make sure that Rhino
+        // generates the same code for the minified version as for the
+        // original.
+        Context context = Context.enter();
+        try {
+            context.setOptimizationLevel(-1);
+            for (File file : new File("web/static/fiz").listFiles()) {
+                if (!file.getName().endsWith(".js")) {
+                    continue;
+                }
+                String source = Util.readFile(file.getPath()).toString();
+                String expected = context.decompileScript(
+                        context.compileString(source, file.getName(), 1,
+                        null), 0);
+                String actual = context.decompileScript(
+                        context.compileString(JsBundle.minify(source),
+                        file.getName(), 1, null), 0);
+                assertEquals("code for " + file.getName(), expected, actual);
+            }
+        }
+        finally {
+            Context.exit();
+        }
+    }
+}
@@ -15,6 +15,9 @@
 
 package org.fiz;
 
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
 import org.fiz.test.*;
 
 public class LazyDatasetTest extends junit.framework.TestCase {
@@ -25,6 +28,29 @@ public class LazyDatasetTest extends junit.framework.TestCase {
         }
     }
 
+    // The following class counts its invocations, optionally sleeping
+    // for a while in each one.
+    protected static class CountingSource implements LazyDataset.DataSource {
+        public AtomicInteger calls = new AtomicInteger();
+        public int sleepMs = 0;
+        public String failure = null;
+        public Object getData(String key, LazyDataset data) {
+            int count = calls.incrementAndGet();
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                }
+                catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            if (failure != null) {
+                throw new InternalError(failure);
+            }
+            return key + count;
+        }
+    }
+
     protected ClientRequest cr;
     protected LazyDataset lds;
     protected DataSourceImp source;
@@ -34,6 +60,10 @@ public class LazyDatasetTest extends junit.framework.TestCase {
         source = new DataSourceImp();
     }
 
+    public void tearDown() {
+        LazyDataset.setPrefetchThreads(0);
+    }
+
     public void test_addDataSource() {
         lds.addDataSource("foo", source);
         LazyDataset.DataSource stored = ((LazyDataset.DataSourceContainer)
@@ -87,4 +117,135 @@ public class LazyDatasetTest extends junit.framework.TestCase {
         lds.add("h", "i");
         assertEquals("lazy value", "h!!", lds.getString("h").toString());
     }
+
+    public void test_lookup_memoized() {
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        assertEquals("first lookup", "a1", lds.getString("a"));
+        assertEquals("second lookup", "a1", lds.getString("a"));
+        assertEquals("list lookup", "[a1]", lds.getStringList("a").toString());
+        assertEquals("number of calls", 1, counter.calls.get());
+    }
+    public void test_lookup_memoizedPerKey() {
+        CountingSource counter = new CountingSource();
+        lds.setDataSource(null, counter);
+        assertEquals("first key", "x1", lds.getString("x"));
+        assertEquals("second key", "y2", lds.getString("y"));
+        assertEquals("first key again", "x1", lds.getString("x"));
+    }
+    public void test_lookup_cachePolicyNever() {
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        lds.setCachePolicy(LazyDataset.CachePolicy.NEVER, 0);
+        assertEquals("first lookup", "a1", lds.getString("a"));
+        assertEquals("second lookup", "a2", lds.getString("a"));
+    }
+    public void test_lookup_cachePolicyTtl() throws InterruptedException {
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        lds.setCachePolicy(LazyDataset.CachePolicy.TTL, 10000);
+        assertEquals("first lookup", "a1", lds.getString("a"));
+        assertEquals("within ttl", "a1", lds.getString("a"));
+        lds.setCachePolicy(LazyDataset.CachePolicy.TTL, 5);
+        Thread.sleep(20);
+        assertEquals("after ttl", "a2", lds.getString("a"));
+    }
+    public void test_lookup_failureNotRemembered() {
+        CountingSource counter = new CountingSource();
+        counter.failure = "backend down";
+        lds.addDataSource("a", counter);
+        boolean gotException = false;
+        try {
+            lds.getString("a");
+        }
+        catch (InternalError e) {
+            assertEquals("exception message", "backend down", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+        counter.failure = null;
+        assertEquals("retried", "a2", lds.getString("a"));
+    }
+    public void test_lookup_getAllNoDataSources() {
+        lds.add("a", "b");
+        lds.add("a", "c");
+        assertEquals("list not copied", true,
+                lds.lookup("a", Dataset.Quantity.ALL) == lds.map.get("a"));
+    }
+    public void test_lookup_getAllDoesntModifyDataset() {
+        lds.add("a", "b");
+        lds.addDataSource("a", source);
+        lds.getStringList("a");
+        assertEquals("data source still in dataset", true,
+                ((ArrayList<?>) lds.map.get("a")).get(1) instanceof
+                LazyDataset.DataSourceContainer);
+    }
+
+    public void test_clearCache() {
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        lds.addDataSource("b", counter);
+        lds.addDataSource("b", counter);
+        lds.setDataSource(null, counter);
+        lds.getString("a");
+        lds.getStringList("b");
+        lds.getString("c");
+        lds.clearCache();
+        assertEquals("value recomputed", "a5", lds.getString("a"));
+        assertEquals("default value recomputed", "c6", lds.getString("c"));
+    }
+
+    public void test_prefetch_disabled() {
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        lds.prefetch("a");
+        assertEquals("nothing prefetched", 0,
+                ((LazyDataset.DataSourceContainer) lds.map.get("a"))
+                .results.size());
+    }
+    public void test_prefetch_concurrent() {
+        LazyDataset.setPrefetchThreads(4);
+        CountingSource slow1 = new CountingSource();
+        slow1.sleepMs = 300;
+        CountingSource slow2 = new CountingSource();
+        slow2.sleepMs = 300;
+        lds.addDataSource("a", slow1);
+        lds.addDataSource("b", slow2);
+        lds.set("c", "plain");
+        long start = System.currentTimeMillis();
+        lds.prefetch("a", "b", "c", "missing");
+        assertEquals("value of a", "a1", lds.getString("a"));
+        assertEquals("value of b", "b1", lds.getString("b"));
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals("fetches overlapped (elapsed " + elapsed + "ms)",
+                true, elapsed < 550);
+        assertEquals("calls to first source", 1, slow1.calls.get());
+        assertEquals("calls to second source", 1, slow2.calls.get());
+    }
+    public void test_prefetch_defaultDataSource() {
+        LazyDataset.setPrefetchThreads(2);
+        CountingSource counter = new CountingSource();
+        lds.setDataSource(null, counter);
+        lds.prefetch("x");
+        assertEquals("value", "x1", lds.getString("x"));
+        assertEquals("calls", 1, counter.calls.get());
+    }
+    public void test_prefetch_alreadyComputed() {
+        LazyDataset.setPrefetchThreads(2);
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        lds.getString("a");
+        lds.prefetch("a");
+        assertEquals("value", "a1", lds.getString("a"));
+        assertEquals("calls", 1, counter.calls.get());
+    }
+    public void test_prefetch_cachePolicyNever() {
+        LazyDataset.setPrefetchThreads(2);
+        CountingSource counter = new CountingSource();
+        lds.addDataSource("a", counter);
+        lds.setCachePolicy(LazyDataset.CachePolicy.NEVER, 0);
+        lds.prefetch("a");
+        assertEquals("prefetched value", "a1", lds.getString("a"));
+        assertEquals("prefetched value used once", "a2", lds.getString("a"));
+    }
 }
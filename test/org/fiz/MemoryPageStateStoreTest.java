@@ -0,0 +1,193 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the MemoryPageStateStore class.
+ */
+
+public class MemoryPageStateStoreTest extends junit.framework.TestCase {
+    protected ClientRequestFixture cr;
+    protected MemoryPageStateStore store;
+
+    public void setUp() {
+        cr = new ClientRequestFixture();
+        ServletRequestFixture.session = null;
+        store = new MemoryPageStateStore(1, "_testSpill_");
+    }
+
+    public void tearDown() {
+        Util.deleteTree("_testSpill_");
+    }
+
+    // Returns two page ids, different from {@code id}, whose state is
+    // kept in the same shard as {@code id}'s.
+    protected String[] sameShard(String id) {
+        String[] result = new String[2];
+        int count = 0;
+        MemoryPageStateStore.Shard shard = store.getShard(
+                MemoryPageStateStore.getKey(
+                cr.getServletRequest().getSession(), id));
+        for (int i = 0; count < 2; i++) {
+            String other = "page" + i;
+            if (!other.equals(id) && (store.getShard(
+                    MemoryPageStateStore.getKey(
+                    cr.getServletRequest().getSession(), other))
+                    == shard)) {
+                result[count] = other;
+                count++;
+            }
+        }
+        return result;
+    }
+
+    public void test_constructor_config() {
+        store = new MemoryPageStateStore(new Dataset(
+                "pageStateCacheSize", "33"));
+        assertEquals("shard capacity", 3, store.shards[0].capacity);
+        assertEquals("spill directory", null, store.spillDirectory);
+    }
+    public void test_constructor_createSpillDirectory() {
+        assertEquals("spill directory exists", true,
+                new File("_testSpill_").isDirectory());
+    }
+
+    public void test_clear() {
+        PageState state = store.get(cr, "id1", true);
+        store.spill("x", state);
+        store.clear();
+        assertEquals("pages in memory", 0, store.size());
+        assertEquals("spill files", 0,
+                new File("_testSpill_").listFiles().length);
+    }
+
+    public void test_flush() {
+        PageState state = store.get(cr, "id1", true);
+        store.clear();
+        store.flush(cr, "id1", state);
+        assertEquals("state back in memory", true,
+                state == store.get(cr, "id1", false));
+    }
+
+    public void test_get_noSession() {
+        assertEquals("no state", null, store.get(cr, "id1", false));
+        assertEquals("session not created", null,
+                ServletRequestFixture.session);
+    }
+    public void test_get_createFalse() {
+        cr.getServletRequest().getSession();
+        assertEquals("no state", null, store.get(cr, "id1", false));
+        assertEquals("pages in memory", 0, store.size());
+    }
+    public void test_get_create() {
+        PageState state = store.get(cr, "id1", true);
+        assertEquals("same state returned", true,
+                state == store.get(cr, "id1", false));
+        assertEquals("pages in memory", 1, store.size());
+    }
+    public void test_get_evictWithoutSpilling() {
+        store = new MemoryPageStateStore(1, null);
+        String[] others = sameShard("id1");
+        store.get(cr, "id1", true);
+        store.get(cr, others[0], true);
+        assertEquals("first page discarded", null,
+                store.get(cr, "id1", false));
+    }
+    public void test_get_spillAndReload() {
+        String[] others = sameShard("id1");
+        PageState state = store.get(cr, "id1", true);
+        state.setPageProperty("first", "123");
+        store.get(cr, others[0], true);
+        assertEquals("spill files", 1,
+                new File("_testSpill_").listFiles().length);
+        PageState state2 = store.get(cr, "id1", false);
+        assertEquals("new object", false, state == state2);
+        assertEquals("property value", "123",
+                state2.getPageProperty("first"));
+        assertEquals("reloaded state is clean", false, state2.dirty);
+        assertEquals("reloaded state in memory", true,
+                state2 == store.get(cr, "id1", false));
+    }
+    public void test_get_spillingPage() {
+        PageState state = new PageState();
+        store.spilling.put(MemoryPageStateStore.getKey(
+                cr.getServletRequest().getSession(), "id1"), state);
+        assertEquals("state found while spilling", true,
+                state == store.get(cr, "id1", false));
+    }
+
+    public void test_getCacheSize() {
+        assertEquals("default", 10000,
+                MemoryPageStateStore.getCacheSize(new Dataset()));
+        assertEquals("configured value", 44,
+                MemoryPageStateStore.getCacheSize(new Dataset(
+                "pageStateCacheSize", "44")));
+        boolean gotException = false;
+        try {
+            MemoryPageStateStore.getCacheSize(new Dataset(
+                    "pageStateCacheSize", "4x"));
+        }
+        catch (InternalError e) {
+            assertEquals("exception message",
+                    "bad value \"4x\" for pageStateCacheSize " +
+                    "configuration option: must be an integer",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_insert_alreadyPresent() {
+        PageState state = store.get(cr, "id1", true);
+        assertEquals("existing object returned", true,
+                state == store.insert(MemoryPageStateStore.getKey(
+                cr.getServletRequest().getSession(), "id1"),
+                new PageState()));
+    }
+
+    public void test_load_corruptFile() {
+        TestUtil.writeFile(store.getSpillFile("x").getPath(), "bogus");
+        assertEquals("no state", null, store.load("x"));
+    }
+
+    public void test_pruneSpillFiles() {
+        store.spill("x", new PageState());
+        store.spillLifetime = 100000;
+        store.pruneSpillFiles();
+        assertEquals("recent file retained", 1,
+                new File("_testSpill_").listFiles().length);
+        store.spillLifetime = -100000;
+        store.pruneSpillFiles();
+        assertEquals("old file deleted", 0,
+                new File("_testSpill_").listFiles().length);
+    }
+
+    public void test_spill_onlyIfDirty() {
+        PageState state = new PageState();
+        store.spill("x", state);
+        assertEquals("first spill writes file", 1, store.spillCount.get());
+        assertEquals("state now clean", false, state.dirty);
+        store.spill("x", state);
+        assertEquals("clean state not rewritten", 1, store.spillCount.get());
+        state.setPageProperty("first", "123");
+        store.spill("x", state);
+        assertEquals("dirty state rewritten", 2, store.spillCount.get());
+    }
+}
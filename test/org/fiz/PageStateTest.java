@@ -15,6 +15,7 @@
 
 package org.fiz;
 
+import java.io.*;
 import java.util.*;
 import javax.servlet.http.*;
 
@@ -25,11 +26,20 @@ import org.fiz.test.*;
  */
 
 public class PageStateTest extends junit.framework.TestCase {
+    // The following class is used to test creating stores by class name.
+    public static class StoreFixture extends SessionPageStateStore {
+    }
+
     protected ClientRequestFixture cr;
 
     public void setUp() {
         cr = new ClientRequestFixture();
         ServletRequestFixture.session = null;
+        PageState.setStore(null);
+    }
+
+    public void tearDown() {
+        PageState.setStore(null);
     }
 
     public String getPageIds(ClientRequest cr) {
@@ -44,6 +54,16 @@ public class PageStateTest extends junit.framework.TestCase {
         return StringUtil.join(keys, ", ");
     }
 
+    // Serialize and deserialize an object.
+    protected Object copy(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())).readObject();
+    }
+
     public String getPropertyNames(PageState state) {
         Object[] keys = state.properties.keySet().toArray();
         Arrays.sort(keys);
@@ -114,6 +134,45 @@ public class PageStateTest extends junit.framework.TestCase {
         assertEquals("defined page ids", "abc, id123", getPageIds(cr));
     }
 
+    public void test_getStore_createOnce() {
+        Config.setDataset("main", new Dataset("pageStateStore", "memory"));
+        PageStateStore store = PageState.getStore();
+        assertEquals("class of store", "MemoryPageStateStore",
+                store.getClass().getSimpleName());
+        Config.setDataset("main", new Dataset());
+        assertEquals("same store returned", true,
+                store == PageState.getStore());
+    }
+    public void test_getStore_memoryStore() {
+        Config.setDataset("main", new Dataset("pageStateStore", "memory",
+                "maxPageStates", "10"));
+        PageState state = PageState.getPageState(cr, "id123", true);
+        assertEquals("state found again", true,
+                state == PageState.getPageState(cr, "id123", false));
+        assertEquals("nothing stored in session", "", getPageIds(cr));
+    }
+
+    public void test_newStore_default() {
+        assertEquals("class of store", "SessionPageStateStore",
+                PageState.newStore(new Dataset()).getClass().getSimpleName());
+    }
+    public void test_newStore_session() {
+        assertEquals("class of store", "SessionPageStateStore",
+                PageState.newStore(new Dataset("pageStateStore", "session"))
+                .getClass().getSimpleName());
+    }
+    public void test_newStore_client() {
+        assertEquals("class of store", "ClientPageStateStore",
+                PageState.newStore(new Dataset("pageStateStore", "client"))
+                .getClass().getSimpleName());
+    }
+    public void test_newStore_className() {
+        assertEquals("class of store", "StoreFixture",
+                PageState.newStore(new Dataset("pageStateStore",
+                "org.fiz.PageStateTest$StoreFixture"))
+                .getClass().getSimpleName());
+    }
+
     public void test_flushPageState() {
         PageState state1 = PageState.getPageState(cr, "id123", true);
         PageState state2 = PageState.getPageState(cr, "abc", true);
@@ -165,4 +224,44 @@ public class PageStateTest extends junit.framework.TestCase {
         assertEquals("properties in second PageState", "third",
                 getPropertyNames(state2));
     }
+    public void test_isDirty() {
+        PageState state = new PageState();
+        state.dirty = false;
+        assertEquals("never serialized", true, state.isDirty());
+        state.serializedProperties = new byte[0];
+        assertEquals("serialized, unchanged", false, state.isDirty());
+        state.dirty = true;
+        assertEquals("changed since serialized", true, state.isDirty());
+    }
+
+    public void test_serialization_roundTrip() throws Exception {
+        PageState state = new PageState();
+        state.setPageProperty("first", "123");
+        PageState copy = (PageState) copy(state);
+        assertEquals("property value", "123", copy.getPageProperty("first"));
+        assertEquals("copy not dirty", false, copy.isDirty());
+        assertEquals("original no longer dirty", false, state.isDirty());
+    }
+    public void test_serialization_reuseBytes() throws Exception {
+        PageState state = new PageState();
+        state.setPageProperty("first", "123");
+        copy(state);
+        byte[] serialized = state.serializedProperties;
+        copy(state);
+        assertEquals("bytes reused when unchanged", true,
+                serialized == state.serializedProperties);
+        state.setPageProperty("first", "456");
+        PageState copy = (PageState) copy(state);
+        assertEquals("bytes regenerated after change", false,
+                serialized == state.serializedProperties);
+        assertEquals("new property value", "456",
+                copy.getPageProperty("first"));
+    }
+
+    public void test_setPageProperty_setsDirty() {
+        PageState state = new PageState();
+        state.dirty = false;
+        state.setPageProperty("first", "123");
+        assertEquals("dirty", true, state.dirty);
+    }
 }
@@ -0,0 +1,76 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+/**
+ * This class measures lookups in a CompoundDataset arranged the way a
+ * TableSection inside a form arranges them: the data for each row is
+ * the first component, followed by a nested CompoundDataset holding form
+ * properties, initial values, and the main dataset.  For each row the
+ * row component is replaced and 10 values are looked up, most of which
+ * come from the later components.  Invoke it with
+ * "ant perf -Dperfname=CompoundDataset".
+ */
+
+public class PerfCompoundDataset {
+    protected static final int ROWS = 100000;
+
+    public static void main(String[] argv) {
+        Dataset main = new Dataset();
+        for (int i = 0; i < 40; i++) {
+            main.set("main" + i, "value" + i);
+        }
+        Dataset properties = new Dataset("id", "form1", "class", "form",
+                "postUrl", "post");
+        Dataset initial = new Dataset("name", "Alice", "age", "32");
+        Dataset[] rows = new Dataset[10];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Dataset("id", Integer.toString(i), "name",
+                    "row" + i, "value", Integer.toString(i*10));
+        }
+        String[] keys = {"id", "name", "value", "class", "postUrl",
+                "main3", "main17", "main39", "age", "missing"};
+
+        for (int pass = 0; pass < 10; pass++) {
+            run("linear", false, rows, keys, properties, initial, main);
+            run("indexed", true, rows, keys, properties, initial, main);
+        }
+        for (Dataset d : Timer.getStatistics(ROWS, "%.0fns")) {
+            System.out.printf("%-8s average %s per row, minimum %s\n",
+                    d.getString("name") + ":", d.getString("average"),
+                    d.getString("minimum"));
+        }
+    }
+
+    // Render ROWS rows, looking up each of {@code keys} for each row.
+    protected static void run(String name, boolean indexed, Dataset[] rows,
+            String[] keys, Dataset properties, Dataset initial,
+            Dataset main) {
+        CompoundDataset formData = new CompoundDataset(properties, initial,
+                main);
+        CompoundDataset dataForRow = new CompoundDataset(null, formData);
+        dataForRow.setIndexed(indexed);
+        Timer timer = Timer.getNamedTimer(name);
+        timer.start();
+        for (int i = 0; i < ROWS; i++) {
+            dataForRow.setComponent(0, rows[i % rows.length]);
+            for (String key : keys) {
+                dataForRow.check(key);
+            }
+        }
+        timer.stop();
+    }
+}
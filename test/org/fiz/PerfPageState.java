@@ -0,0 +1,152 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+import java.util.*;
+
+import org.fiz.test.*;
+
+/**
+ * This class measures how much page state is serialized per request when
+ * page state is kept in the session and flushed at the end of each
+ * request, as in Google AppEngine.  It simulates a session with 10 pages,
+ * each holding a property about the size of a TreeSection's, and a mix
+ * of requests in which 1 in 5 modifies a page property and the rest only
+ * read them.  The "before" run forces every page to be rewritten on every
+ * request, which is what flushPageState used to do; the "after" run uses
+ * the dirty tracking in SessionPageStateStore and PageState.  Invoke it
+ * with "ant perf -Dperfname=PageState".
+ */
+
+public class PerfPageState {
+    // The following class records whether the session was written.
+    protected static class RecordingSession extends SessionFixture {
+        public boolean written = false;
+        public void setAttribute(String name, Object value) {
+            written = true;
+            super.setAttribute(name, value);
+        }
+    }
+
+    protected static final int PAGES = 10;
+    protected static final int REQUESTS = 2000;
+
+    public static void main(String[] argv) throws Exception {
+        Config.setDataset("main", new Dataset("maxPageStates",
+                Integer.toString(PAGES)));
+        run("before", false);
+        run("after", true);
+    }
+
+    // Simulate a series of requests and print statistics about them.
+    // If {@code dirtyTracking} is false, every page in the session is
+    // reserialized on every request.
+    protected static void run(String name, boolean dirtyTracking)
+            throws Exception {
+        SessionPageStateStore store = new SessionPageStateStore();
+        ClientRequestFixture cr = new ClientRequestFixture();
+        RecordingSession session = new RecordingSession();
+        ServletRequestFixture.session = session;
+        Random random = new Random(12345);
+
+        // Render each of the pages once.
+        for (int i = 0; i < PAGES; i++) {
+            store.get(cr, "page" + i, true).setPageProperty("tree",
+                    newProperty(i, 0));
+        }
+        byte[] saved = serialize(session.getAttribute("fiz.PageState"));
+
+        long sessionWrites = 0;
+        long bytesWritten = 0;
+        long bytesSerialized = 0;
+        Timer timer = Timer.getNamedTimer(name);
+        for (int request = 0; request < REQUESTS; request++) {
+            timer.start();
+
+            // Restore the session, as the container does at the start of
+            // each request.
+            session.attributes.put("fiz.PageState", new ObjectInputStream(
+                    new ByteArrayInputStream(saved)).readObject());
+            session.written = false;
+
+            // Issue an Ajax request for one of the pages.
+            String id = "page" + random.nextInt(PAGES);
+            PageState state = store.get(cr, id, false);
+            if (random.nextInt(5) == 0) {
+                state.setPageProperty("tree", newProperty(
+                        random.nextInt(1000), request));
+            }
+
+            // Finish the request.
+            PageState.AllPageInfo info = (PageState.AllPageInfo)
+                    session.getAttribute("fiz.PageState");
+            if (dirtyTracking) {
+                store.flush(cr, id, state);
+            } else {
+                for (PageState page : info.values()) {
+                    page.serializedProperties = null;
+                }
+                info.put(id, state);
+                session.setAttribute("fiz.PageState", info);
+            }
+            if (session.written) {
+                IdentityHashMap<byte[],Object> before =
+                        new IdentityHashMap<byte[],Object>();
+                for (PageState page : info.values()) {
+                    if (page.serializedProperties != null) {
+                        before.put(page.serializedProperties, null);
+                    }
+                }
+                saved = serialize(info);
+                for (PageState page : info.values()) {
+                    if (!before.containsKey(page.serializedProperties)) {
+                        bytesSerialized += page.serializedProperties.length;
+                    }
+                }
+                sessionWrites++;
+                bytesWritten += saved.length;
+            }
+            timer.stop();
+        }
+        System.out.printf("%-7s session writes: %d/%d, bytes written per " +
+                "request: %d, page properties serialized per request: " +
+                "%d bytes, average time %.1fus\n", name + ":", sessionWrites,
+                REQUESTS, bytesWritten/REQUESTS, bytesSerialized/REQUESTS,
+                timer.getAverage()/1000.0);
+    }
+
+    // Returns a page property similar to the one TreeSection stores: a
+    // map from row ids to node names.
+    protected static HashMap<String,String> newProperty(int seed,
+            int version) {
+        HashMap<String,String> result = new HashMap<String,String>();
+        for (int i = 0; i < 100; i++) {
+            result.put("tree" + seed + "_" + i, "node " + i + " version " +
+                    version);
+        }
+        return result;
+    }
+
+    // Returns the serialized form of an object.
+    protected static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import org.fiz.section.*;
+import org.fiz.test.*;
+
+/**
+ * This class measures the time to render a TableLayout with 12 cells,
+ * both when its layout description is already in the compiled-layout
+ * cache (the normal case) and when the cache is flushed before every
+ * render, so that the description must be parsed again.  Invoke it with
+ * "ant perf -Dperfname=TableLayout".
+ */
+
+public class PerfTableLayout {
+    protected static final int RENDERS = 20000;
+
+    protected static final String LAYOUT =
+            "+-----+-----+\n" +
+            "|  1  |  2  |\n" +
+            "+--+--+-----+\n" +
+            "|  |4 |  5  |\n" +
+            "|  |  +--+--+\n" +
+            "|3 +--+6 |7 |\n" +
+            "|  |8 +--+--+\n" +
+            "|  |  |  9  |\n" +
+            "+--+-+++----+\n" +
+            "| 10 |1| 12 |\n" +
+            "|    |1|    |\n" +
+            "+----+-+----+\n";
+
+    public static void main(String[] argv) {
+        Dataset data = new Dataset();
+        for (int i = 1; i <= 12; i++) {
+            data.set(Integer.toString(i), "<p>cell " + i + "</p>\n");
+        }
+        TableLayout layout = new TableLayout(new Dataset("format", LAYOUT,
+                "data", data, "id", "layout1"));
+        ClientRequestFixture cr = new ClientRequestFixture();
+
+        for (int pass = 0; pass < 10; pass++) {
+            run("cached", false, layout, cr);
+            run("uncached", true, layout, cr);
+        }
+        for (Dataset d : Timer.getStatistics(RENDERS, "%.0fns")) {
+            System.out.printf("%-9s average %s per render, minimum %s\n",
+                    d.getString("name") + ":", d.getString("average"),
+                    d.getString("minimum"));
+        }
+    }
+
+    // Render the layout RENDERS times; if {@code flush} is true, flush
+    // the layout cache before each render.
+    protected static void run(String name, boolean flush, TableLayout layout,
+            ClientRequest cr) {
+        StringBuilder body = cr.getHtml().getBody();
+        Timer timer = Timer.getNamedTimer(name);
+        timer.start();
+        for (int i = 0; i < RENDERS; i++) {
+            if (flush) {
+                TableLayout.clearCache();
+            }
+            body.setLength(0);
+            layout.render(cr);
+        }
+        timer.stop();
+    }
+}
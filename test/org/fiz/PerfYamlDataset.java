@@ -0,0 +1,66 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+
+import org.fiz.test.*;
+
+/**
+ * This class measures the cost of loading a large YAML dataset from
+ * a file, both when the file must be parsed ("cold") and when its
+ * parsed form is found in the YamlDataset file cache ("warm").  Invoke
+ * it with "ant perf -Dperfname=YamlDataset".
+ */
+
+public class PerfYamlDataset {
+    public static void main(String[] argv) {
+        // Generate a catalog of about 2 MB.
+        StringBuilder yaml = new StringBuilder(2200000);
+        for (int i = 0; i < 14000; i++) {
+            yaml.append(String.format("item%05d:\n" +
+                    "    id:          %d\n" +
+                    "    name:        Catalog item number %d\n" +
+                    "    description: Some descriptive text for item %d\n" +
+                    "    price:       %d.%02d\n",
+                    i, i, i, i, i/100, i%100));
+        }
+        String fileName = "perfYaml.yml";
+        TestUtil.writeFile(fileName, yaml.toString());
+        new File(fileName).setLastModified(System.currentTimeMillis()
+                - 10000);
+
+        int count = 10;
+        Timer cold = Timer.getNamedTimer("cold load");
+        Timer warm = Timer.getNamedTimer("warm load");
+        for (int i = 0; i < count; i++) {
+            YamlDataset.clearCache();
+            cold.start();
+            YamlDataset.newFileInstance(fileName);
+            cold.stop();
+            warm.start();
+            YamlDataset.newFileInstance(fileName);
+            warm.stop();
+        }
+        TestUtil.deleteTree(fileName);
+        System.out.printf("YAML file size: %d bytes\n", yaml.length());
+        for (Dataset d : Timer.getStatistics(1000000.0, "%.2fms")) {
+            System.out.printf("%-12s average %s, minimum %s\n",
+                    d.getString("name") + ":", d.getString("average"),
+                    d.getString("minimum"));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+/**
+ * Junit tests for the PrefixIndex class.
+ */
+
+public class PrefixIndexTest extends junit.framework.TestCase {
+    protected PrefixIndex index;
+
+    public void setUp() {
+        index = new PrefixIndex();
+        PrefixIndex.indexes.clear();
+    }
+
+    public void test_Match_toString() {
+        assertEquals("highlighted string", "New [Yor]k",
+                new PrefixIndex.Match("New York", 0, 4, 7).toString());
+    }
+
+    public void test_getInstance() {
+        PrefixIndex cities = PrefixIndex.getInstance("cities");
+        assertEquals("same index returned", true,
+                cities == PrefixIndex.getInstance("cities"));
+        assertEquals("different index", false,
+                cities == PrefixIndex.getInstance("states"));
+    }
+
+    public void test_add_wordStarts() {
+        index.add("New York-city 2", 0);
+        assertEquals("keys", "[2, city 2, new york-city 2, york-city 2]",
+                index.words.keySet().toString());
+    }
+    public void test_add_keysTruncated() {
+        index.add("abcdefghijklmnopqrstuvwxyz", 0);
+        assertEquals("keys", "[abcdefghijklmnopqrst]",
+                index.words.keySet().toString());
+    }
+    public void test_add_updateScore() {
+        index.add("abc", 1);
+        index.add("abc", 5);
+        assertEquals("size", 1, index.size());
+        assertEquals("keys", "[abc]", index.words.keySet().toString());
+        assertEquals("score", 5.0, index.find("a", 10).get(0).score);
+    }
+
+    public void test_addAll() {
+        index.addAll(new Dataset(
+                "record", new Dataset("name", "alpha", "rank", "3"),
+                "record", new Dataset("name", "beta"),
+                "record", new Dataset("name", "alps", "rank", "7.5")),
+                "name", "rank");
+        assertEquals("size", 3, index.size());
+        assertEquals("matches", "[[al]ps, [al]pha]",
+                index.find("al", 10).toString());
+        assertEquals("default score", 0.0, index.find("b", 10).get(0).score);
+    }
+    public void test_addAll_noScoreName() {
+        index.addAll(new Dataset(
+                "record", new Dataset("name", "alpha", "rank", "3")),
+                "name", null);
+        assertEquals("score", 0.0, index.find("a", 10).get(0).score);
+    }
+
+    public void test_clear() {
+        index.add("abc", 0);
+        index.clear();
+        assertEquals("size", 0, index.size());
+        assertEquals("words", 0, index.words.size());
+    }
+
+    public void test_find_prefixOnly() {
+        index.add("abc", 0);
+        index.add("xabc", 0);
+        index.add("ab", 0);
+        index.add("b", 0);
+        assertEquals("matches", "[[ab], [ab]c]",
+                index.find("ab", 10).toString());
+    }
+    public void test_find_ignoreCase() {
+        index.add("New York", 0);
+        index.add("Newark", 0);
+        assertEquals("matches", "[[New] York, [New]ark]",
+                index.find("nEW", 10).toString());
+    }
+    public void test_find_laterWord() {
+        index.add("New York", 0);
+        index.add("York", 0);
+        assertEquals("matches", "[New [Yor]k, [Yor]k]",
+                index.find("yor", 10).toString());
+    }
+    public void test_find_firstWordHighlighted() {
+        index.add("ab cd ab", 0);
+        PrefixIndex.Match match = index.find("ab", 10).get(0);
+        assertEquals("only one match", 1, index.find("ab", 10).size());
+        assertEquals("highlightStart", 0, match.highlightStart);
+        assertEquals("highlightEnd", 2, match.highlightEnd);
+        index.add("x cd ab cd", 0);
+        assertEquals("first word that matches", "x [cd] ab cd",
+                index.find("cd", 10).get(1).toString());
+    }
+    public void test_find_scoreOrderAndLimit() {
+        index.add("a1", 1);
+        index.add("a2", 5);
+        index.add("a3", 3);
+        index.add("a4", 5);
+        index.add("a5", 0);
+        assertEquals("matches", "[[a]2, [a]4, [a]3]",
+                index.find("a", 3).toString());
+    }
+    public void test_find_noMatches() {
+        index.add("abc", 0);
+        assertEquals("no matches", 0, index.find("b", 10).size());
+        assertEquals("limit 0", 0, index.find("a", 0).size());
+    }
+    public void test_find_negativeLimit() {
+        index.add("abc", 0);
+        assertEquals("no matches", 0, index.find("a", -1).size());
+    }
+    public void test_find_queryLongerThanKeys() {
+        index.add("abcdefghijklmnopqrstuvwxyz", 0);
+        index.add("x abcdefghijklmnopqrstuvwxzz", 0);
+        assertEquals("matches", "[[abcdefghijklmnopqrstuvwxy]z]",
+                index.find("ABCDEFGHIJKLMNOPQRSTUVWXY", 10).toString());
+        assertEquals("long match in later word",
+                "[x [abcdefghijklmnopqrstuvwxz]z]",
+                index.find("abcdefghijklmnopqrstuvwxz", 10).toString());
+    }
+    public void test_find_emptyQuery() {
+        index.add("abc", 0);
+        index.add("def", 0);
+        assertEquals("matches", "[abc, def]",
+                index.find("", 10).toString());
+    }
+
+    public void test_remove() {
+        index.add("New York", 0);
+        index.add("York", 0);
+        assertEquals("return value", true, index.remove("New York"));
+        assertEquals("keys", "[york]", index.words.keySet().toString());
+        assertEquals("matches", "[[Yor]k]",
+                index.find("yor", 10).toString());
+        assertEquals("string not in index", false, index.remove("New York"));
+    }
+    public void test_remove_duplicateTruncatedKeys() {
+        index.add("abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxyz", 0);
+        assertEquals("return value", true, index.remove(
+                "abcdefghijklmnopqrstuvwxyz abcdefghijklmnopqrstuvwxyz"));
+        assertEquals("no keys", 0, index.words.size());
+    }
+    public void test_remove_sharedKey() {
+        index.add("a-b", 0);
+        index.add("x-b", 0);
+        index.remove("a-b");
+        assertEquals("keys", "[b, x-b]", index.words.keySet().toString());
+        assertEquals("matches", "[x-[b]]", index.find("b", 10).toString());
+    }
+
+    public void test_size() {
+        assertEquals("empty index", 0, index.size());
+        index.add("abc", 0);
+        index.add("def", 0);
+        assertEquals("two strings", 2, index.size());
+    }
+
+    public void test_isWordStart() {
+        assertEquals("first character", true,
+                PrefixIndex.isWordStart("-ab", 0));
+        assertEquals("after separator", true,
+                PrefixIndex.isWordStart("-ab", 1));
+        assertEquals("middle of word", false,
+                PrefixIndex.isWordStart("-ab", 2));
+        assertEquals("separator", false,
+                PrefixIndex.isWordStart("a -", 2));
+    }
+
+    public void test_toLowerCase() {
+        assertEquals("lower case", "abc def",
+                PrefixIndex.toLowerCase("AbC dEF"));
+    }
+}
@@ -0,0 +1,254 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.util.*;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the PushChannel class.
+ */
+
+public class PushChannelTest extends junit.framework.TestCase {
+    protected ClientRequestFixture cr;
+
+    public void setUp() {
+        PushChannel.clearCache();
+        cr = new ClientRequestFixture();
+        cr.pageId = "7";
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+    }
+
+    public void tearDown() {
+        PushChannel.maxWaiters = 100;
+        PushChannel.pollTimeout = 25000;
+        PushChannel.streamDuration = 300000;
+    }
+
+    // Returns the ids of a list of messages, separated by commas.
+    protected String ids(ArrayList<PushChannel.Message> messages) {
+        StringBuilder result = new StringBuilder();
+        for (PushChannel.Message message : messages) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(message.id);
+        }
+        return result.toString();
+    }
+
+    public void test_getInstance() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        assertEquals("same channel for same page", true,
+                channel == PushChannel.getInstance(cr));
+        cr.pageId = "8";
+        assertEquals("different channel for different page", false,
+                channel == PushChannel.getInstance(cr));
+        assertEquals("number of channels", 2, PushChannel.channels.size());
+    }
+    public void test_getInstance_discardIdleChannels() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.lastAccess -= PushChannel.idleTimeout + 1000;
+        cr.pageId = "8";
+        PushChannel.getInstance(cr);
+        assertEquals("idle channel discarded", null,
+                PushChannel.channels.get(channel.key));
+    }
+
+    public void test_ajaxPoll_noChannel() {
+        PushChannel.ajaxPoll(cr);
+        assertEquals("response", "Fiz.PushChannel.stop();\n",
+                cr.getJsCode(false));
+    }
+    public void test_ajaxPoll_messages() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.evalJavascript("alert(\"first\");\n");
+        channel.evalJavascript("second();\n");
+        channel.evalJavascript("third();\n");
+        cr.getMainDataset().set("after", "1");
+        PushChannel.ajaxPoll(cr);
+        assertEquals("response", "Fiz.PushChannel.received(3, 0, " +
+                "[\"second();\\n\", \"third();\\n\"]);\n",
+                cr.getJsCode(false));
+    }
+    public void test_ajaxPoll_timeout() {
+        PushChannel.getInstance(cr);
+        PushChannel.pollTimeout = 1;
+        cr.getMainDataset().set("after", "4");
+        PushChannel.ajaxPoll(cr);
+        assertEquals("response", "Fiz.PushChannel.received(4, 0, []);\n",
+                cr.getJsCode(false));
+    }
+    public void test_ajaxPoll_tooManyWaiters() {
+        PushChannel.getInstance(cr).evalJavascript("first();\n");
+        PushChannel.maxWaiters = 0;
+        PushChannel.ajaxPoll(cr);
+        assertEquals("response", "Fiz.PushChannel.received(1, 5000, " +
+                "[\"first();\\n\"]);\n",
+                cr.getJsCode(false));
+        assertEquals("waiter count restored", 0,
+                PushChannel.waiters.get());
+    }
+    public void test_ajaxPoll_closed() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.evalJavascript("last();\n");
+        PushChannel.channels.put(channel.key, channel);
+        channel.closed = true;
+        PushChannel.ajaxPoll(cr);
+        assertEquals("queued messages still delivered",
+                "Fiz.PushChannel.received(1, 0, [\"last();\\n\"]);\n",
+                cr.getJsCode(false));
+        cr.jsCode = null;
+        cr.getMainDataset().set("after", "1");
+        PushChannel.ajaxPoll(cr);
+        assertEquals("then the browser is told to stop",
+                "Fiz.PushChannel.stop();\n", cr.getJsCode(false));
+    }
+
+    public void test_ajaxEvents_noChannel() {
+        PushChannel.ajaxEvents(cr);
+        assertEquals("response log", "setStatus(204)",
+                ((ServletResponseFixture) cr.getServletResponse()).getLog());
+    }
+    public void test_ajaxEvents_messages() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.evalJavascript("first();\n");
+        channel.evalJavascript("a();\nb();\n");
+        PushChannel.streamDuration = 50;
+        PushChannel.ajaxEvents(cr);
+        ServletResponseFixture response =
+                (ServletResponseFixture) cr.getServletResponse();
+        assertEquals("content type", "text/event-stream",
+                response.contentType);
+        assertEquals("event stream", "retry: 5000\n\n" +
+                "id: 1\n" +
+                "data: first();\n" +
+                "\n" +
+                "id: 2\n" +
+                "data: a();\n" +
+                "data: b();\n" +
+                "\n" +
+                ": keepalive\n\n",
+                response.toString().replaceAll("(: keepalive\n\n)+",
+                ": keepalive\n\n"));
+    }
+    public void test_ajaxEvents_lastEventId() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.evalJavascript("first();\n");
+        channel.evalJavascript("second();\n");
+        channel.close();
+        PushChannel.channels.put(channel.key, channel);
+        ((ServletRequestFixture) cr.getServletRequest()).headerMap.put(
+                "Last-Event-ID", "1");
+        PushChannel.ajaxEvents(cr);
+        assertEquals("event stream", "retry: 5000\n\n" +
+                "id: 2\n" +
+                "data: second();\n" +
+                "\n" +
+                "event: close\n" +
+                "data: \n\n",
+                cr.getServletResponse().toString());
+    }
+    public void test_ajaxEvents_tooManyWaiters() {
+        PushChannel.getInstance(cr).evalJavascript("first();\n");
+        PushChannel.maxWaiters = 0;
+        PushChannel.ajaxEvents(cr);
+        assertEquals("event stream", "retry: 5000\n\n",
+                cr.getServletResponse().toString());
+        assertEquals("waiter count restored", 0,
+                PushChannel.waiters.get());
+    }
+
+    public void test_close() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.close();
+        assertEquals("channel discarded", 0, PushChannel.channels.size());
+        channel.evalJavascript("ignored();\n");
+        assertEquals("messages ignored after close", 0,
+                channel.messages.size());
+    }
+
+    public void test_evalJavascript_tooManyMessages() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        int oldMax = PushChannel.maxMessages;
+        PushChannel.maxMessages = 2;
+        channel.evalJavascript("first();\n");
+        channel.evalJavascript("second();\n");
+        channel.evalJavascript("third();\n");
+        PushChannel.maxMessages = oldMax;
+        assertEquals("oldest message discarded", "2, 3",
+                ids(channel.waitForMessages(0, 0)));
+    }
+    public void test_evalJavascript_template() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.evalJavascript("alert(\"@1\");\n", "a\"b");
+        assertEquals("message", "alert(\"a\\\"b\");\n",
+                channel.messages.getFirst().javascript);
+    }
+
+    public void test_updateElement() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.updateElement("table1", "<p>new</p>");
+        assertEquals("message", "document.getElementById(\"table1\")" +
+                ".innerHTML = \"<p>new</p>\";\n",
+                channel.messages.getFirst().javascript);
+    }
+
+    public void test_parseId() {
+        assertEquals("null", 0, PushChannel.parseId(null));
+        assertEquals("valid id", 44, PushChannel.parseId(" 44 "));
+        assertEquals("invalid id", 0, PushChannel.parseId("x"));
+    }
+
+    public void test_waitForMessages_discardAcknowledged() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        channel.evalJavascript("first();\n");
+        channel.evalJavascript("second();\n");
+        channel.evalJavascript("third();\n");
+        assertEquals("all messages", "1, 2, 3",
+                ids(channel.waitForMessages(0, 0)));
+        assertEquals("acknowledged messages discarded", "3",
+                ids(channel.waitForMessages(2, 0)));
+        assertEquals("remaining messages", 1, channel.messages.size());
+    }
+    public void test_waitForMessages_wakeup() throws Exception {
+        final PushChannel channel = PushChannel.getInstance(cr);
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    // Ignore.
+                }
+                channel.evalJavascript("late();\n");
+            }
+        };
+        sender.start();
+        long start = System.currentTimeMillis();
+        ArrayList<PushChannel.Message> messages =
+                channel.waitForMessages(0, 10000);
+        sender.join();
+        assertEquals("message received", "1", ids(messages));
+        assertEquals("didn't wait for timeout", true,
+                (System.currentTimeMillis() - start) < 5000);
+    }
+    public void test_waitForMessages_timeout() {
+        PushChannel channel = PushChannel.getInstance(cr);
+        assertEquals("no messages", "", ids(channel.waitForMessages(0, 10)));
+    }
+}
@@ -15,6 +15,8 @@
 
 package org.fiz;
 
+import org.fiz.test.*;
+
 /**
  * Junit tests for the Section class.
  */
@@ -38,6 +40,40 @@ public class SectionTest extends junit.framework.TestCase {
         assertEquals("id value exists", "id44", section.checkId());
     }
 
+    public void test_getCacheKey() {
+        ClientRequest cr = new ClientRequestFixture();
+        cr.getMainDataset().set("name", "Alice");
+        Section section = new SectionFixture(null);
+        assertEquals("properties null", null, section.getCacheKey(cr));
+        section.properties = new Dataset();
+        assertEquals("no cacheKey property", null, section.getCacheKey(cr));
+        section.properties.set("cacheKey", "user-@name");
+        assertEquals("template expanded",
+                "org.fiz.SectionTest$SectionFixture:user-Alice",
+                section.getCacheKey(cr));
+    }
+
+    public void test_getCacheTtl() {
+        Section section = new SectionFixture(null);
+        assertEquals("properties null", Section.DEFAULT_CACHE_TTL,
+                section.getCacheTtl());
+        section.properties = new Dataset("cacheTtl", " 5 ");
+        assertEquals("property value, in seconds", 5000,
+                section.getCacheTtl());
+        section.properties.set("cacheTtl", "5s");
+        boolean gotException = false;
+        try {
+            section.getCacheTtl();
+        }
+        catch (InternalError e) {
+            assertEquals("exception message",
+                    "SectionFixture has bad cacheTtl value \"5s\"",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
     public void test_getId_noProperties() {
         Section section = new SectionFixture(null);
         boolean gotException = false;
@@ -0,0 +1,132 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz;
+
+import java.io.*;
+
+import org.fiz.test.*;
+
+/**
+ * Junit tests for the SessionPageStateStore class.
+ */
+
+public class SessionPageStateStoreTest extends junit.framework.TestCase {
+    // The following class counts calls to setAttribute for the page
+    // state.
+    protected static class CountingSession extends SessionFixture {
+        public int setCount = 0;
+        public void setAttribute(String name, Object value) {
+            if (name.equals("fiz.PageState")) {
+                setCount++;
+            }
+            super.setAttribute(name, value);
+        }
+    }
+
+    protected ClientRequestFixture cr;
+    protected SessionPageStateStore store = new SessionPageStateStore();
+    protected CountingSession session;
+
+    public void setUp() {
+        cr = new ClientRequestFixture();
+        session = new CountingSession();
+        ServletRequestFixture.session = session;
+    }
+
+    // Serialize and deserialize an object, as a container does when it
+    // saves and restores a session.
+    protected Object copy(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())).readObject();
+    }
+
+    // Simulate the start of a new request by replacing the page state in
+    // the session with a freshly deserialized copy.
+    protected void newRequest() throws Exception {
+        session.attributes.put("fiz.PageState",
+                copy(session.getAttribute("fiz.PageState")));
+        session.setCount = 0;
+    }
+
+    public void test_get_createFalse() {
+        assertEquals("no page state", null, store.get(cr, "id1", false));
+        assertEquals("nothing stored in session", 0, session.setCount);
+    }
+    public void test_get_create() {
+        PageState state = store.get(cr, "id1", true);
+        assertEquals("same state returned", true,
+                state == store.get(cr, "id1", false));
+        assertEquals("AllPageInfo stored in session", 1, session.setCount);
+    }
+    public void test_get_reordered() throws Exception {
+        store.get(cr, "id1", true);
+        store.get(cr, "id2", true);
+        newRequest();
+        store.get(cr, "id2", false);
+        PageState.AllPageInfo info = (PageState.AllPageInfo)
+                session.getAttribute("fiz.PageState");
+        assertEquals("most recent page: not reordered", false,
+                info.reordered);
+        store.get(cr, "id1", false);
+        assertEquals("older page: reordered", true, info.reordered);
+    }
+
+    public void test_getLock() {
+        Object lock = SessionPageStateStore.getLock(session);
+        assertEquals("lock stored in session", true,
+                lock == session.getAttribute("fiz.PageStateLock"));
+        SessionFixture session2 = new SessionFixture();
+        session2.attributes = session.attributes;
+        assertEquals("same lock for different session object", true,
+                lock == SessionPageStateStore.getLock(session2));
+    }
+
+    public void test_flush_unchanged() throws Exception {
+        store.get(cr, "id1", true).setPageProperty("a", "1");
+        newRequest();
+        store.flush(cr, "id1", store.get(cr, "id1", false));
+        assertEquals("session not rewritten", 0, session.setCount);
+    }
+    public void test_flush_propertyChanged() throws Exception {
+        store.get(cr, "id1", true).setPageProperty("a", "1");
+        newRequest();
+        PageState state = store.get(cr, "id1", false);
+        state.setPageProperty("a", "2");
+        store.flush(cr, "id1", state);
+        assertEquals("session rewritten", 1, session.setCount);
+    }
+    public void test_flush_reordered() throws Exception {
+        store.get(cr, "id1", true);
+        store.get(cr, "id2", true);
+        newRequest();
+        store.flush(cr, "id1", store.get(cr, "id1", false));
+        assertEquals("session rewritten", 1, session.setCount);
+        PageState.AllPageInfo info = (PageState.AllPageInfo)
+                session.getAttribute("fiz.PageState");
+        assertEquals("reordered flag cleared", false, info.reordered);
+    }
+    public void test_flush_noPageInfo() {
+        PageState state = new PageState();
+        store.flush(cr, "id1", state);
+        assertEquals("session written", 1, session.setCount);
+        assertEquals("state stored", true,
+                state == store.get(cr, "id1", false));
+    }
+}
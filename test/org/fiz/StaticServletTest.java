@@ -31,6 +31,15 @@ public class StaticServletTest extends junit.framework.TestCase {
     protected ServletResponseFixture response;
     protected StringAppender log4jLog;
 
+    // Returns a string long enough to be worth compressing.
+    protected static String longText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("Line " + i + " of a static file.\n");
+        }
+        return text.toString();
+    }
+
     public void setUp() throws ServletException {
         // Set up a StaticServlet, along with its context and config.
         context = new ServletContextFixture();
@@ -38,6 +47,7 @@ public class StaticServletTest extends junit.framework.TestCase {
         servlet = new StaticServlet();
         servlet.init(config);
         response = new ServletResponseFixture();
+        StaticServlet.compressedFiles.clear();
 
         // Redirect the servlet's log so we can read any output
         // generated.
@@ -86,15 +96,95 @@ public class StaticServletTest extends junit.framework.TestCase {
                 response.toString());
     }
 
+    public void test_doGet_bundle() throws IOException {
+        JsBundle bundle = new JsBundle(longText());
+        JsBundle.hashes.put(bundle.getHash(), bundle);
+        ServletRequestFixture request = new ServletRequestFixture(
+                "/fiz-bundle/" + bundle.getHash() + ".js");
+        request.headerMap.put("Accept-Encoding", "gzip");
+        servlet.doGet(request, response);
+        JsBundle.clearCache();
+        assertEquals("headers", "public, max-age=31536000 gzip " +
+                "Accept-Encoding", response.headers);
+        assertEquals("content type", "text/javascript",
+                response.contentType);
+        assertEquals("uncompressed response", longText(),
+                CompressorTest.gunzip(response.getBytes()));
+    }
+    public void test_doGet_bundleNotInCache() {
+        (new File("_test_/fiz-bundle")).mkdirs();
+        TestUtil.writeFile("_test_/fiz-bundle/abc.js", "prebuilt bundle");
+        servlet.prefix = "_test_";
+        servlet.doGet(new ServletRequestFixture("/fiz-bundle/abc.js"),
+                response);
+        TestUtil.deleteTree("_test_");
+        assertEquals("information returned", "prebuilt bundle",
+                response.toString());
+        TestUtil.assertSubstring("caching header",
+                "setHeader(\"Cache-Control\", \"public, max-age=31536000\")",
+                response.getLog());
+    }
+    public void test_doGet_bundleNotFound() {
+        servlet.prefix = "_test_";
+        servlet.doGet(new ServletRequestFixture("/fiz-bundle/abc.js"),
+                response);
+        assertEquals("no caching header", -1,
+                response.getLog().indexOf("Cache-Control"));
+        TestUtil.assertSubstring("error response", "sendError(404",
+                response.getLog());
+    }
+
+    public void test_doGet_cssBundle() throws IOException {
+        Css.Bundle bundle = new Css.Bundle(longText());
+        Css.hashes.put(bundle.getHash(), bundle);
+        ServletRequestFixture request = new ServletRequestFixture(
+                "/fiz-css/" + bundle.getHash() + ".css");
+        servlet.doGet(request, response);
+        Css.clearCache();
+        assertEquals("headers", "public, max-age=31536000",
+                response.headers);
+        assertEquals("content type", "text/css", response.contentType);
+        assertEquals("response", longText(), response.toString());
+    }
+
+    public void test_doGet_cssBundleNotFound() {
+        servlet.doGet(new ServletRequestFixture("/fiz-css/abc.css"),
+                response);
+        assertEquals("no caching header", -1,
+                response.getLog().indexOf("Cache-Control"));
+        TestUtil.assertSubstring("error response", "sendError(404",
+                response.getLog());
+    }
+
+    public void test_returnBundle_uncompressed() throws IOException {
+        JsBundle bundle = new JsBundle(longText());
+        StaticServlet.returnBundle("text/javascript", bundle.getContent(),
+                bundle.getCompressed(), new ServletRequestFixture(),
+                response);
+        assertEquals("response log", "setContentType(\"text/javascript\"); " +
+                "setContentLength(" + longText().length() + "); " +
+                "getOutputStream", response.getLog());
+        assertEquals("response", longText(), response.toString());
+    }
+    public void test_returnBundle_ioError() {
+        response.getOutputStreamException = true;
+        StaticServlet.returnBundle("text/javascript", new byte[] {1, 2},
+                null, new ServletRequestFixture(), response);
+        assertEquals("log4j log output",
+                "I/O error sending response in StaticServlet.returnBundle: " +
+                "getOutputStream failed",
+                log4jLog.log.toString());
+    }
+
     public void test_returnFile_badFileName() throws ServletException {
-        StaticServlet.returnFile("bogus/x/y/z", context, response);
+        StaticServlet.returnFile("bogus/x/y/z", context, null, response);
         assertEquals("response log", "sendError(404)",
                 response.log.toString());
     }
     public void test_returnFile_cantOpenOutputStream() throws ServletException {
         TestUtil.writeFile("_test_", "Sample file to return.");
         response.getOutputStreamException = true;
-        StaticServlet.returnFile("_test_", context, response);
+        StaticServlet.returnFile("_test_", context, null, response);
         assertEquals("log4j log output",
                 "I/O error retrieving response output stream in " +
                 "StaticServlet.returnFile: getOutputStream failed",
@@ -103,21 +193,21 @@ public class StaticServletTest extends junit.framework.TestCase {
     }
     public void test_returnFile_setMimeType() {
         TestUtil.writeFile("_test_.xls", "Sample file to return.");
-        StaticServlet.returnFile("_test_.xls", context, response);
+        StaticServlet.returnFile("_test_.xls", context, null, response);
         assertEquals("content type for response", "application/vnd.ms-excel",
                 response.contentType);
         TestUtil.deleteTree("_test_.xls");
     }
     public void test_returnFile_defaultMimeType() {
         TestUtil.writeFile("_test_.xxx", "Sample file to return.");
-        StaticServlet.returnFile("_test_.xxx", context, response);
+        StaticServlet.returnFile("_test_.xxx", context, null, response);
         assertEquals("content type for response", "application/octet-stream",
                 response.contentType);
         TestUtil.deleteTree("_test_.xxx");
     }
     public void test_returnFile_contentDispositionHeader() {
         TestUtil.writeFile("_test_", "Sample file to return.");
-        StaticServlet.returnFile("_test_", context, response);
+        StaticServlet.returnFile("_test_", context, null, response);
         assertEquals("log info about headers",
                 "getOutputStream; setContentType(\"application/octet-" +
                 "stream\"); setHeader(\"Content-Disposition\", " +
@@ -127,7 +217,7 @@ public class StaticServletTest extends junit.framework.TestCase {
     }
     public void test_returnFile_sendFileData() {
         TestUtil.writeFile("_test_", "Sample file to return.");
-        StaticServlet.returnFile("_test_", context, response);
+        StaticServlet.returnFile("_test_", context, null, response);
         assertEquals("information returned", "Sample file to return.",
                 response.toString());
         TestUtil.deleteTree("_test_");
@@ -135,7 +225,7 @@ public class StaticServletTest extends junit.framework.TestCase {
     public void test_returnFile_errorSendingFileData() {
         TestUtil.writeFile("_test_", "Sample file to return.");
         response.stream.setWriteError();
-        StaticServlet.returnFile("_test_", context, response);
+        StaticServlet.returnFile("_test_", context, null, response);
         assertEquals("log4j log output",
                 "I/O error sending response in StaticServlet.returnFile: " +
                 "error during write",
@@ -145,7 +235,7 @@ public class StaticServletTest extends junit.framework.TestCase {
     public void test_returnFile_errorFlushingOutputStream() {
         TestUtil.writeFile("_test_", "Sample file to return.");
         response.stream.setFlushError();
-        StaticServlet.returnFile("_test_", context, response);
+        StaticServlet.returnFile("_test_", context, null, response);
         assertEquals("log4j log output",
                 "I/O error flushing output stream in StaticServlet." +
                 "returnFile: error during flush",
@@ -153,6 +243,79 @@ public class StaticServletTest extends junit.framework.TestCase {
         TestUtil.deleteTree("_test_");
     }
 
+    public void test_returnFile_compressed() throws IOException {
+        TestUtil.writeFile("_test_.html", longText());
+        ServletRequestFixture request = new ServletRequestFixture();
+        request.headerMap.put("Accept-Encoding", "gzip");
+        StaticServlet.returnFile("_test_.html", context, request, response);
+        TestUtil.deleteTree("_test_.html");
+        assertEquals("headers", "filename=\"_test_.html\" gzip " +
+                "Accept-Encoding", response.headers);
+        assertEquals("uncompressed response", longText(),
+                CompressorTest.gunzip(response.getBytes()));
+    }
+    public void test_returnFile_browserDoesntAcceptGzip() {
+        TestUtil.writeFile("_test_.html", longText());
+        ServletRequestFixture request = new ServletRequestFixture();
+        StaticServlet.returnFile("_test_.html", context, request, response);
+        TestUtil.deleteTree("_test_.html");
+        assertEquals("response", longText(), response.toString());
+    }
+    public void test_returnFile_notCompressibleType() {
+        TestUtil.writeFile("_test_.xls", longText());
+        ServletRequestFixture request = new ServletRequestFixture();
+        request.headerMap.put("Accept-Encoding", "gzip");
+        StaticServlet.returnFile("_test_.xls", context, request, response);
+        TestUtil.deleteTree("_test_.xls");
+        assertEquals("response", longText(), response.toString());
+    }
+
+    public void test_getCompressed_usePrecompressedFile() throws IOException {
+        TestUtil.writeFile("_test_.html", longText());
+        (new File("_test_.html")).setLastModified(
+                System.currentTimeMillis() - 10000);
+        TestUtil.writeFile("_test_.html.gz", "precompressed");
+        byte[] data = StaticServlet.getCompressed("_test_.html");
+        TestUtil.deleteTree("_test_.html");
+        TestUtil.deleteTree("_test_.html.gz");
+        assertEquals("compressed data", "precompressed", new String(data));
+    }
+    public void test_getCompressed_ignoreOutOfDateCopy() throws IOException {
+        TestUtil.writeFile("_test_.html.gz", "precompressed");
+        (new File("_test_.html.gz")).setLastModified(
+                System.currentTimeMillis() - 10000);
+        TestUtil.writeFile("_test_.html", longText());
+        byte[] data = StaticServlet.getCompressed("_test_.html");
+        TestUtil.deleteTree("_test_.html");
+        TestUtil.deleteTree("_test_.html.gz");
+        assertEquals("compressed data", longText(),
+                CompressorTest.gunzip(data));
+    }
+    public void test_getCompressed_fileTooShort() throws IOException {
+        TestUtil.writeFile("_test_.html", "short file");
+        byte[] data = StaticServlet.getCompressed("_test_.html");
+        TestUtil.deleteTree("_test_.html");
+        assertEquals("compressed data", null, data);
+    }
+    public void test_getCompressed_useCachedData() throws IOException {
+        TestUtil.writeFile("_test_.html", longText());
+        byte[] data = StaticServlet.getCompressed("_test_.html");
+        byte[] data2 = StaticServlet.getCompressed("_test_.html");
+        TestUtil.deleteTree("_test_.html");
+        assertEquals("same data returned", true, data == data2);
+    }
+    public void test_getCompressed_fileModified() throws IOException {
+        TestUtil.writeFile("_test_.html", longText());
+        (new File("_test_.html")).setLastModified(
+                System.currentTimeMillis() - 10000);
+        StaticServlet.getCompressed("_test_.html");
+        TestUtil.writeFile("_test_.html", longText() + "extra");
+        byte[] data = StaticServlet.getCompressed("_test_.html");
+        TestUtil.deleteTree("_test_.html");
+        assertEquals("compressed data", longText() + "extra",
+                CompressorTest.gunzip(data));
+    }
+
     public void test_return404() {
         StaticServlet.return404(response);
         assertEquals("log output", "sendError(404)", response.log.toString());
@@ -88,6 +88,69 @@ public class YamlDatasetTest extends junit.framework.TestCase {
         TestUtil.deleteTree("test.yml");
     }
 
+    public void test_clearCache() {
+        YamlDataset.fileCache.put("xyz", null);
+        YamlDataset.cacheBytes = 100;
+        YamlDataset.clearCache();
+        assertEquals("cache size", 0, YamlDataset.fileCache.size());
+        assertEquals("cacheBytes", 0, YamlDataset.cacheBytes);
+    }
+
+    public void test_setCacheLimit() {
+        YamlDataset.clearCache();
+        YamlDataset.cacheFile("a", new YamlDataset.CacheEntry(null, 1, 40));
+        YamlDataset.cacheFile("b", new YamlDataset.CacheEntry(null, 1, 40));
+        YamlDataset.setCacheLimit(50);
+        assertEquals("remaining entries", "[b]",
+                YamlDataset.fileCache.keySet().toString());
+        YamlDataset.setCacheLimit(16*1024*1024);
+        YamlDataset.clearCache();
+    }
+
+    public void test_newFileInstance_useCache() {
+        YamlDataset.clearCache();
+        TestUtil.writeFile("test.yml", "first: abc\nsecond:\n  x: 111\n");
+        new File("test.yml").setLastModified(
+                System.currentTimeMillis() - 10000);
+        int oldHits = YamlDataset.cacheHits;
+        Dataset d = YamlDataset.newFileInstance("test.yml");
+        assertEquals("file cached", 1, YamlDataset.fileCache.size());
+        d.set("first", "modified");
+        d.getDataset("second").set("x", "222");
+        Dataset d2 = YamlDataset.newFileInstance("test.yml");
+        assertEquals("cache hits", 1, YamlDataset.cacheHits - oldHits);
+        assertEquals("unmodified contents", "first: abc\n" +
+                "second:\n" +
+                "    x: 111\n", d2.toString());
+        assertEquals("class of nested dataset", "YamlDataset",
+                d2.getDataset("second").getClass().getSimpleName());
+        assertEquals("file name", "test.yml", d2.getFileName());
+        TestUtil.deleteTree("test.yml");
+        YamlDataset.clearCache();
+    }
+    public void test_newFileInstance_fileChanged() {
+        YamlDataset.clearCache();
+        TestUtil.writeFile("test.yml", "first: abc\n");
+        File f = new File("test.yml");
+        f.setLastModified(System.currentTimeMillis() - 10000);
+        YamlDataset.newFileInstance("test.yml");
+        TestUtil.writeFile("test.yml", "first: def\n");
+        f.setLastModified(System.currentTimeMillis() - 5000);
+        int oldHits = YamlDataset.cacheHits;
+        Dataset d = YamlDataset.newFileInstance("test.yml");
+        assertEquals("value from new file", "def", d.get("first"));
+        assertEquals("cache hits", 0, YamlDataset.cacheHits - oldHits);
+        TestUtil.deleteTree("test.yml");
+        YamlDataset.clearCache();
+    }
+    public void test_newFileInstance_recentlyModified() {
+        YamlDataset.clearCache();
+        TestUtil.writeFile("test.yml", "first: abc\n");
+        YamlDataset.newFileInstance("test.yml");
+        assertEquals("file not cached", 0, YamlDataset.fileCache.size());
+        TestUtil.deleteTree("test.yml");
+    }
+
     public void test_writeString() {
         Dataset d = new Dataset("first", "332", "second", " ab\tcd ");
         assertEquals("generated YAML",
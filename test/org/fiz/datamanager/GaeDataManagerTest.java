@@ -28,6 +28,7 @@ import com.google.apphosting.api.ApiProxy;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * Junit tests for the GaeDataManager class.
@@ -392,7 +393,87 @@ public class GaeDataManagerTest extends junit.framework.TestCase {
                      data8.getErrorMessage());
     }
 
+    public void test_findByKey_cached() {
+        manager.setCache(new GaeEntityCache(100, 60000));
+        Key[] keys = getKeys(manager.insert("president", sampleData));
+        checkRecordIntegrity(manager.findByKey(keys[3]), sampleData[3]);
+
+        // Modify the Entity behind the data manager's back; the cached
+        // copy should still be returned.
+        Entity entity = new Entity(keys[3]);
+        entity.setProperty(FIRSTN, "Tom");
+        manager.datastore.put(entity);
+        assertEquals("cached value", "Thomas",
+                manager.findByKey(keys[3]).get(FIRSTN));
+        Dataset stats = manager.getCache().getStatistics();
+        assertEquals("local hits", "1", stats.get("localHits"));
+        assertEquals("misses", "1", stats.get("misses"));
+
+        // Multiple Keys, some cached and some not.
+        checkRecordsIntegrity(manager.findByKey(keys[0], keys[1]),
+                Arrays.copyOfRange(sampleData, 0, 2), sampleDataComp);
+        Dataset mapped = manager.findMappingByKey(keys[0], keys[2]);
+        assertEquals("mapped record", "John",
+                mapped.getDataset(GaeDataManager.keyToString(keys[2])).get(
+                FIRSTN));
+        assertEquals("misses after multiple finds", "4",
+                manager.getCache().getStatistics().get("misses"));
+
+        // Key matching no Entity.
+        Key[] notInserted = manager.allocateKeys("president", 1);
+        assertTrue("no record for missing Key", isEmptyDataset(
+                manager.findByKey(notInserted[0])));
+    }
+
+    public void test_findByKey_cacheBypassedInTransaction() {
+        manager.setCache(new GaeEntityCache(100, 60000));
+        Key key = getKeys(manager.insert("president", sampleData[5]))[0];
+        manager.findByKey(key);
+        Entity entity = new Entity(key);
+        entity.setProperty(FIRSTN, "Jim");
+        manager.datastore.put(entity);
+
+        Transaction txn = manager.getNewTransaction();
+        assertEquals("explicit Transaction", "Jim",
+                manager.findByKey(txn, key).get(FIRSTN));
+        assertEquals("implicit current Transaction", "Jim",
+                manager.findByKey(key).get(FIRSTN));
+        txn.commit();
+        assertEquals("no Transaction", "James",
+                manager.findByKey(key).get(FIRSTN));
+    }
+
     /* TEST INSERT */
+    public void test_insert_invalidatesCache() {
+        manager.setCache(new GaeEntityCache(100, 60000));
+        Key key = getKeys(manager.insert("president", sampleData[7]))[0];
+        manager.findByKey(key);
+        Dataset modified = sampleData[7].clone();
+        modified.set(FIRSTN, "Andy");
+        modified.set(GaeDataManager.KEY_PROPERTY, key);
+        manager.insert(modified);
+        assertEquals("new value", "Andy", manager.findByKey(key).get(FIRSTN));
+    }
+
+    public void test_insert_transactionKeepsRecordUncached() {
+        manager.setCache(new GaeEntityCache(100, 60000));
+        Key key = getKeys(manager.insert("president", sampleData[7]))[0];
+        Dataset modified = sampleData[7].clone();
+        modified.set(FIRSTN, "Andy");
+        modified.set(GaeDataManager.KEY_PROPERTY, key);
+        Transaction txn = manager.getNewTransaction();
+        manager.insert(txn, modified);
+
+        // A find outside the Transaction (such as one from another
+        // request) reads the old value, which must not be cached.
+        Entity old = new Entity(key);
+        old.setProperty(FIRSTN, "Andrew");
+        manager.getCache().put(key, old, manager.getCache().getGeneration());
+        txn.commit();
+        assertEquals("committed value", "Andy",
+                manager.findByKey(key).get(FIRSTN));
+    }
+
     public void test_insert() {
         // No Transaction, no pre-allocated Keys.
         Key k1 = getKeys(manager.insert("president", sampleData[0]))[0];
@@ -522,6 +603,16 @@ public class GaeDataManagerTest extends junit.framework.TestCase {
         assertTrue("All deleted", isEmptyDataset(manager.findByKey(keys)));
     }
 
+    public void test_delete_invalidatesCache() {
+        manager.setCache(new GaeEntityCache(100, 60000));
+        Key[] keys = getKeys(manager.insert("president", sampleData));
+        checkRecordsIntegrity(manager.findByKey(keys), sampleData,
+                sampleDataComp);
+        manager.delete(keys[0], keys[1]);
+        assertTrue("deleted records not returned", isEmptyDataset(
+                manager.findByKey(keys[0], keys[1])));
+    }
+
     public void test_handleDelete() {
         Key[] rootKeys = getKeys(manager.insert("president",
                 Arrays.copyOfRange(sampleData, 0, 20)));
@@ -574,7 +665,250 @@ public class GaeDataManagerTest extends junit.framework.TestCase {
                      null, data6);
     }
 
+    /* TEST ASYNCHRONOUS INSERT AND DELETE */
+    public void test_flushWrites() {
+        manager.setWriteBatching(60000, 100);
+        Future<Dataset> future = manager.insertAsync("president",
+                sampleData[0]);
+        assertFalse("not done before flush", future.isDone());
+        manager.flushWrites();
+        assertTrue("done after flush", future.isDone());
+    }
+
+    public void test_setWriteBatching() {
+        manager.setWriteBatching(50, 1000);
+        assertEquals("window", 50, manager.writeCoalescer.window);
+        assertEquals("batch size limited", GaeDataManager.MAX_WRITE_BATCH,
+                manager.writeCoalescer.maxBatchSize);
+    }
+
+    public void test_insertAsync() throws Exception {
+        manager.setWriteBatching(60000, 100);
+        Future<Dataset> f1 = manager.insertAsync("president",
+                Arrays.copyOfRange(sampleData, 0, 10));
+        Future<Dataset> f2 = manager.insertAsync("president",
+                sampleData[10]);
+        Key[] keys = getKeys(f1.get());
+        assertEquals("number of keys", 10, keys.length);
+        checkRecordsIntegrity(manager.findByKey(keys),
+                Arrays.copyOfRange(sampleData, 0, 10), sampleDataComp);
+        assertTrue("second insert done too", f2.isDone());
+        checkRecordIntegrity(manager.findByKey(getKeys(f2.get())[0]),
+                sampleData[10]);
+        assertEquals("one batch", "1",
+                manager.writeCoalescer.getStatistics().get("batches"));
+    }
+    public void test_insertAsync_keyInDataset() throws Exception {
+        Key key = manager.allocateKeys("president", 1)[0];
+        sampleData[3].add(GaeDataManager.KEY_PROPERTY, key);
+        assertEquals("Key of inserted record", key,
+                getKeys(manager.insertAsync(sampleData[3]).get())[0]);
+    }
+    public void test_insertAsync_transaction() throws Exception {
+        manager.setWriteBatching(60000, 100);
+        Transaction txn = manager.getNewTransaction();
+        Future<Dataset> future = manager.insertAsync(txn, "president",
+                sampleData[2]);
+        assertTrue("performed immediately", future.isDone());
+        txn.rollback();
+        assertTrue("rolled back with the Transaction", isEmptyDataset(
+                manager.findByKey(getKeys(future.get())[0])));
+    }
+
+    public void test_deleteAsync() throws Exception {
+        Key[] keys = getKeys(manager.insert("president", sampleData));
+        assertEquals("result", null, manager.deleteAsync(keys[0],
+                keys[1]).get());
+        assertTrue("records deleted", isEmptyDataset(
+                manager.findByKey(keys[0], keys[1])));
+        checkRecordIntegrity(manager.findByKey(keys[2]), sampleData[2]);
+    }
+    public void test_deleteAsync_transaction() {
+        Key[] keys = getKeys(manager.insert("president", sampleData));
+        Transaction txn = manager.getNewTransaction();
+        assertTrue("performed immediately",
+                manager.deleteAsync(txn, keys[4]).isDone());
+        txn.commit();
+        assertTrue("record deleted", isEmptyDataset(
+                manager.findByKey(keys[4])));
+    }
+    public void test_deleteAsync_currentTransaction() {
+        manager.setWriteBatching(60000, 100);
+        Key[] keys = getKeys(manager.insert("president", sampleData));
+        Transaction txn = manager.getNewTransaction();
+        assertTrue("performed immediately",
+                manager.deleteAsync(keys[4]).isDone());
+        txn.rollback();
+        checkRecordIntegrity(manager.findByKey(keys[4]), sampleData[4]);
+    }
+
     /* TEST FIND BY QUERY */
+    public void test_QueryOptions_setChunkSize() {
+        boolean gotError = false;
+        try {
+            new GaeDataManager.QueryOptions().setChunkSize(0);
+        } catch (GaeDataManager.InvalidQueryError e) {
+            assertEquals("Error message",
+                    "Chunk size (0) must be greater than zero.",
+                    e.getMessage());
+            gotError = true;
+        }
+        assertTrue("Zero chunk size is rejected", gotError);
+    }
+
+    public void test_QueryOptions_setCursor() {
+        GaeDataManager.QueryOptions options =
+            new GaeDataManager.QueryOptions().setOffset(5);
+        assertEquals("Offset from cursor", 20,
+                options.setCursor("20").offset);
+        assertEquals("Null cursor", 0, options.setCursor(null).offset);
+        boolean gotError = false;
+        try {
+            options.setCursor("-1");
+        } catch (GaeDataManager.InvalidQueryError e) {
+            assertEquals("Error message", "Cursor (-1) is not valid.",
+                    e.getMessage());
+            gotError = true;
+        }
+        assertTrue("Negative cursor is rejected", gotError);
+        gotError = false;
+        try {
+            options.setCursor("bogus");
+        } catch (GaeDataManager.InvalidQueryError e) {
+            gotError = true;
+        }
+        assertTrue("Malformed cursor is rejected", gotError);
+    }
+
+    public void test_QueryOptions_setLimit() {
+        boolean gotError = false;
+        try {
+            new GaeDataManager.QueryOptions().setLimit(-2);
+        } catch (GaeDataManager.InvalidQueryError e) {
+            assertEquals("Error message",
+                    "Limit (-2) must be greater than zero.", e.getMessage());
+            gotError = true;
+        }
+        assertTrue("Negative limit is rejected", gotError);
+    }
+
+    public void test_QueryOptions_setLimit_zero() {
+        boolean gotError = false;
+        try {
+            new GaeDataManager.QueryOptions().setLimit(0);
+        } catch (GaeDataManager.InvalidQueryError e) {
+            assertEquals("Error message",
+                    "Limit (0) must be greater than zero.", e.getMessage());
+            gotError = true;
+        }
+        assertTrue("Zero limit is rejected", gotError);
+    }
+
+    public void test_QueryOptions_setOffset() {
+        boolean gotError = false;
+        try {
+            new GaeDataManager.QueryOptions().setOffset(-3);
+        } catch (GaeDataManager.InvalidQueryError e) {
+            assertEquals("Error message", "Offset (-3) must not be negative.",
+                    e.getMessage());
+            gotError = true;
+        }
+        assertTrue("Negative offset is rejected", gotError);
+    }
+
+    public void test_QueryOptions_getNextCursor() {
+        GaeDataManager.QueryOptions options =
+            new GaeDataManager.QueryOptions().setCursor("40");
+        assertEquals("Next cursor", "50", options.getNextCursor(10));
+    }
+
+    public void test_findPageByQuery() {
+        manager.insert("president", sampleData);
+        GaeDataManager.QueryOptions options =
+            new GaeDataManager.QueryOptions().setLimit(20);
+
+        // First page.
+        Dataset page1 = manager.findPageByQuery("president", options,
+                new GaeDataManager.QuerySort(ID));
+        checkOrderedRecordsIntegrity(page1, Arrays.copyOfRange(sampleData,
+                0, 20));
+        String cursor = page1.getString(GaeDataManager.CURSOR_PROPERTY);
+
+        // Middle page.
+        Dataset page2 = manager.findPageByQuery("president",
+                options.setCursor(cursor), new GaeDataManager.QuerySort(ID));
+        checkOrderedRecordsIntegrity(page2, Arrays.copyOfRange(sampleData,
+                20, 40));
+        cursor = page2.getString(GaeDataManager.CURSOR_PROPERTY);
+
+        // Last page: no cursor.
+        Dataset page3 = manager.findPageByQuery("president",
+                options.setCursor(cursor), new GaeDataManager.QuerySort(ID));
+        checkOrderedRecordsIntegrity(page3, Arrays.copyOfRange(sampleData,
+                40, sampleData.length));
+        assertEquals("No cursor after last page", null,
+                page3.check(GaeDataManager.CURSOR_PROPERTY));
+    }
+
+    public void test_findPageByQuery_exactlyOnePage() {
+        manager.insert("president", Arrays.copyOfRange(sampleData, 0, 10));
+        Dataset page = manager.findPageByQuery("president",
+                new GaeDataManager.QueryOptions().setLimit(10));
+        assertEquals("Record count", 10, page.getList("record").size());
+        assertEquals("No cursor when there are no more records", null,
+                page.check(GaeDataManager.CURSOR_PROPERTY));
+    }
+
+    public void test_findPageByQuery_properties() {
+        manager.insert("president", sampleData);
+        Dataset page = manager.findPageByQuery("president",
+                new GaeDataManager.QueryOptions().setLimit(5).setProperties(
+                LASTN, MI), new GaeDataManager.QueryTerm(ID, "=", 41));
+        Dataset record = page.getDataset("record");
+        assertEquals("Selected property", "Bush", record.getString(LASTN));
+        assertEquals("Selected property with multiple values",
+                Arrays.asList("H", "W"), record.getStringList(MI));
+        assertEquals("Unselected property", null, record.check(FIRSTN));
+        assertTrue("Key is always included",
+                record.check(GaeDataManager.KEY_PROPERTY) instanceof Key);
+    }
+
+    public void test_iterateByQuery() {
+        manager.insert("president", sampleData);
+        Iterator<Dataset> iterator = manager.iterateByQuery("president",
+                new GaeDataManager.QueryOptions().setChunkSize(7),
+                new GaeDataManager.QuerySort(ID));
+        int count = 0;
+        while (iterator.hasNext()) {
+            checkRecordIntegrity(iterator.next(), sampleData[count]);
+            count++;
+        }
+        assertEquals("Record count", sampleData.length, count);
+    }
+
+    public void test_iterateByQuery_limitAndOffset() {
+        manager.insert("president", sampleData);
+        Iterator<Dataset> iterator = manager.iterateByQuery("president",
+                new GaeDataManager.QueryOptions().setOffset(10).setLimit(3),
+                new GaeDataManager.QuerySort(ID));
+        assertEquals("First record", 10, iterator.next().getInt(ID));
+        assertEquals("Second record", 11, iterator.next().getInt(ID));
+        assertEquals("Third record", 12, iterator.next().getInt(ID));
+        assertFalse("No more records", iterator.hasNext());
+    }
+
+    public void test_iterateByQuery_error() {
+        Transaction txn = manager.getNewTransaction();
+        txn.commit();
+        Iterator<Dataset> iterator = manager.iterateByQuery(txn, null,
+                "president", null);
+        assertTrue("Error is returned", iterator.hasNext());
+        assertEquals("Error message",
+                "Invalid, incomplete, or malformed argument of type: " +
+                "QueryArgument", iterator.next().getErrorMessage());
+        assertFalse("Iteration stops after error", iterator.hasNext());
+    }
+
     public void test_findByQuery_equality() {
         manager.insert("president", sampleData);
 
@@ -894,6 +1228,22 @@ public class GaeDataManagerTest extends junit.framework.TestCase {
                 dataset.getStringList("c"));
     }
 
+    public void test_entityToDataset_properties() {
+        Entity entity = new Entity("president");
+        entity.setProperty("a", "1");
+        entity.setProperty("b", 2);
+        entity.setProperty("c", Arrays.asList("x", "y", "z"));
+
+        Dataset dataset = GaeDataManager.entityToDataset(entity,
+                new String[] {"c", "a", "missing"});
+        assertEquals("Converted attribute a", "1", dataset.getString("a"));
+        assertEquals("Attribute b omitted", null, dataset.check("b"));
+        assertEquals("Converted attribute c", Arrays.asList("x", "y", "z"),
+                dataset.getStringList("c"));
+        assertEquals("Missing attribute omitted", null,
+                dataset.check("missing"));
+    }
+
     public void test_datasetToEntity_noKeyInDataset() {
         Entity entity1 = GaeDataManager.datasetToEntity("prez", sampleData[41]);
         assertEquals("Converted attribute " + ID, 41, entity1.getProperty(ID));
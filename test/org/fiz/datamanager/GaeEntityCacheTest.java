@@ -0,0 +1,211 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz.datamanager;
+
+import org.fiz.*;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Junit tests for the GaeEntityCache class.
+ */
+public class GaeEntityCacheTest extends junit.framework.TestCase {
+    // Keys must be created in an AppEngine environment; borrow the one
+    // that GaeDataManagerTest sets up.
+    protected GaeDataManagerTest environment = new GaeDataManagerTest();
+    protected Key key1, key2, key3;
+
+    public void setUp() {
+        environment.setUp();
+        key1 = KeyFactory.createKey("president", 1);
+        key2 = KeyFactory.createKey("president", 2);
+        key3 = KeyFactory.createKey("president", 3);
+    }
+
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    public void test_LocalSharedTier_basics() {
+        GaeEntityCache.LocalSharedTier tier =
+                new GaeEntityCache.LocalSharedTier();
+        Entity entity = new Entity(key1);
+        tier.put(key1, entity, 60000);
+        assertSame("entity found", entity, tier.get(key1));
+        assertEquals("no entity", null, tier.get(key2));
+        tier.remove(key1);
+        assertEquals("entity removed", null, tier.get(key1));
+    }
+    public void test_LocalSharedTier_expired() {
+        GaeEntityCache.LocalSharedTier tier =
+                new GaeEntityCache.LocalSharedTier();
+        tier.put(key1, new Entity(key1), -1);
+        assertEquals("entity expired", null, tier.get(key1));
+        assertEquals("entry discarded", 0, tier.entries.size());
+    }
+
+    public void test_clear() {
+        GaeEntityCache cache = new GaeEntityCache(10, 60000);
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        cache.get(key1);
+        long generation = cache.getGeneration();
+        cache.clear();
+        assertEquals("entity discarded", null, cache.get(key1));
+        assertEquals("statistics reset", "0",
+                cache.getStatistics().get("localHits"));
+        assertEquals("generation changed", true,
+                cache.getGeneration() != generation);
+    }
+
+    public void test_get_localHit() {
+        GaeEntityCache cache = new GaeEntityCache(10, 60000);
+        Entity entity = new Entity(key1);
+        cache.put(key1, entity, cache.getGeneration());
+        assertSame("entity found", entity, cache.get(key1));
+        assertEquals("local hits", 1, cache.localHits.get());
+    }
+    public void test_get_expired() {
+        GaeEntityCache cache = new GaeEntityCache(10, -1);
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        assertEquals("entity expired", null, cache.get(key1));
+        assertEquals("entry discarded", 0, cache.local.size());
+        assertEquals("misses", 1, cache.misses.get());
+    }
+    public void test_get_sharedHit() {
+        GaeEntityCache.LocalSharedTier tier =
+                new GaeEntityCache.LocalSharedTier();
+        GaeEntityCache cache = new GaeEntityCache(10, 60000, tier);
+        Entity entity = new Entity(key1);
+        tier.put(key1, entity, 60000);
+        assertSame("entity from shared tier", entity, cache.get(key1));
+        assertEquals("shared hits", 1, cache.sharedHits.get());
+        assertSame("entity now in local tier", entity,
+                cache.local.get(key1).entity);
+    }
+    public void test_get_leastRecentlyUsedDiscarded() {
+        GaeEntityCache cache = new GaeEntityCache(2, 60000);
+        long generation = cache.getGeneration();
+        cache.put(key1, new Entity(key1), generation);
+        cache.put(key2, new Entity(key2), generation);
+        cache.get(key1);
+        cache.put(key3, new Entity(key3), generation);
+        assertEquals("key1 kept", true, cache.get(key1) != null);
+        assertEquals("key2 discarded", null, cache.get(key2));
+        assertEquals("key3 kept", true, cache.get(key3) != null);
+    }
+
+    public void test_getStatistics() {
+        GaeEntityCache cache = new GaeEntityCache(10, 60000);
+        Dataset stats = cache.getStatistics();
+        assertEquals("hit ratio, no lookups", "0.000",
+                stats.get("hitRatio"));
+        assertEquals("latency saved, no lookups", "0.0",
+                stats.get("latencySaved"));
+        cache.get(key1);
+        cache.recordLoad(1, 2000000);
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        for (int i = 0; i < 3; i++) {
+            cache.get(key1);
+        }
+        stats = cache.getStatistics();
+        assertEquals("local hits", "3", stats.get("localHits"));
+        assertEquals("shared hits", "0", stats.get("sharedHits"));
+        assertEquals("misses", "1", stats.get("misses"));
+        assertEquals("hit ratio", "0.750", stats.get("hitRatio"));
+        assertEquals("average load time", "2000.0",
+                stats.get("averageLoadTime"));
+        assertEquals("latency saved", "6.0", stats.get("latencySaved"));
+    }
+
+    public void test_put_sharedTier() {
+        GaeEntityCache.LocalSharedTier tier =
+                new GaeEntityCache.LocalSharedTier();
+        GaeEntityCache cache = new GaeEntityCache(10, 60000, tier);
+        Entity entity = new Entity(key1);
+        cache.put(key1, entity, cache.getGeneration());
+        assertSame("entity in shared tier", entity, tier.get(key1));
+    }
+    public void test_put_invalidatedDuringLoad() {
+        GaeEntityCache cache = new GaeEntityCache(10, 60000);
+        long generation = cache.getGeneration();
+        cache.remove(key2);
+        cache.put(key1, new Entity(key1), generation);
+        assertEquals("entity not cached", null, cache.get(key1));
+    }
+
+    public void test_put_writtenInTransaction() {
+        GaeEntityCache cache = new GaeEntityCache(10, 60000);
+        Transaction txn = environment.manager.getNewTransaction();
+        cache.removeInTransaction(key1, txn);
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        assertEquals("not cached while Transaction active", null,
+                cache.get(key1));
+        cache.put(key2, new Entity(key2), cache.getGeneration());
+        assertEquals("other Key cached", true, cache.get(key2) != null);
+
+        // A load that started before the commit may have read the old
+        // value.
+        long generation = cache.getGeneration();
+        txn.commit();
+        cache.put(key1, new Entity(key1), generation);
+        assertEquals("not cached after commit", null, cache.get(key1));
+        assertEquals("pending write discarded", 0,
+                cache.pendingWrites.size());
+        cache.put(key1, new Entity(key1), generation);
+        assertEquals("load from before commit not cached", null,
+                cache.get(key1));
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        assertEquals("cached after commit", true, cache.get(key1) != null);
+    }
+
+    public void test_remove() {
+        GaeEntityCache.LocalSharedTier tier =
+                new GaeEntityCache.LocalSharedTier();
+        GaeEntityCache cache = new GaeEntityCache(10, 60000, tier);
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        cache.remove(key1);
+        assertEquals("removed from local tier", null, cache.local.get(key1));
+        assertEquals("removed from shared tier", null, tier.get(key1));
+    }
+
+    public void test_removeInTransaction() {
+        GaeEntityCache cache = new GaeEntityCache(10, 60000);
+        cache.put(key1, new Entity(key1), cache.getGeneration());
+        Transaction txn = environment.manager.getNewTransaction();
+        cache.removeInTransaction(key1, txn);
+        assertEquals("removed from local tier", null, cache.local.get(key1));
+        assertEquals("Transaction recorded", 1,
+                cache.pendingWrites.get(key1).size());
+        txn.rollback();
+    }
+    public void test_removeInTransaction_discardCompleted() {
+        GaeEntityCache cache = new GaeEntityCache(2, 60000);
+        Transaction txn1 = environment.manager.getNewTransaction();
+        Transaction txn2 = environment.manager.getNewTransaction();
+        cache.removeInTransaction(key1, txn1);
+        cache.removeInTransaction(key2, txn2);
+        txn1.commit();
+        cache.removeInTransaction(key3, txn2);
+        assertEquals("completed Transaction discarded", null,
+                cache.pendingWrites.get(key1));
+        assertEquals("active Transactions kept", 2,
+                cache.pendingWrites.size());
+        txn2.rollback();
+    }
+}
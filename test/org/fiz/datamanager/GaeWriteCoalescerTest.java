@@ -0,0 +1,230 @@
+/* Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package org.fiz.datamanager;
+
+import org.fiz.*;
+import org.fiz.test.*;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Junit tests for the GaeWriteCoalescer class.
+ */
+public class GaeWriteCoalescerTest extends junit.framework.TestCase {
+    // Borrow the AppEngine environment that GaeDataManagerTest sets up.
+    protected GaeDataManagerTest environment = new GaeDataManagerTest();
+    protected GaeDataManager manager;
+    protected GaeWriteCoalescer coalescer;
+
+    public void setUp() {
+        environment.setUp();
+        manager = environment.manager;
+        coalescer = new GaeWriteCoalescer(manager, 60000, 10);
+        GaeWriteCoalescer.threadWrites.get().clear();
+    }
+
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    // Returns an Entity with a complete Key and a single property.
+    protected Entity newEntity(long id, String value) {
+        Entity entity = new Entity(KeyFactory.createKey("president", id));
+        entity.setProperty("name", value);
+        return entity;
+    }
+
+    public void test_WriteFuture_completed() {
+        Dataset result = new Dataset("record", "x");
+        GaeWriteCoalescer.WriteFuture future =
+                new GaeWriteCoalescer.WriteFuture(result);
+        assertTrue("done", future.isDone());
+        assertSame("result", result, future.get());
+        assertFalse("can't cancel", future.cancel(true));
+    }
+
+    public void test_delete() {
+        manager.insert(new Dataset(GaeDataManager.KEY_PROPERTY,
+                KeyFactory.createKey("president", 1), "name", "Alice"));
+        GaeWriteCoalescer.WriteFuture future = coalescer.delete(
+                KeyFactory.createKey("president", 1));
+        assertFalse("not done yet", future.isDone());
+        coalescer.flush();
+        assertEquals("result", null, future.get());
+        assertTrue("record deleted", manager.findByKey(
+                KeyFactory.createKey("president", 1)).keySet().isEmpty());
+    }
+
+    public void test_execute_failedPutsRetriedSeparately() {
+        // This data manager fails any put that includes "bad".
+        manager = new GaeDataManager() {
+            protected Dataset handleInsert(Transaction txn,
+                    Entity ... entities) {
+                for (Entity entity : entities) {
+                    if ("bad".equals(entity.getProperty("name"))) {
+                        return new Dataset(new RuntimeException(
+                                "bad entity"));
+                    }
+                }
+                return super.handleInsert(txn, entities);
+            }
+        };
+        coalescer = new GaeWriteCoalescer(manager, 60000, 10);
+        GaeWriteCoalescer.WriteFuture f1 = coalescer.put(
+                newEntity(1, "Alice"), newEntity(2, "Bob"));
+        GaeWriteCoalescer.WriteFuture f2 = coalescer.put(
+                newEntity(3, "bad"));
+        GaeWriteCoalescer.WriteFuture f3 = coalescer.put(
+                newEntity(4, "Carol"));
+        coalescer.flush();
+        assertEquals("first write succeeded", 2,
+                f1.get().getList("record").size());
+        assertEquals("second write failed", "bad entity",
+                f2.get().getErrorMessage());
+        assertEquals("third write succeeded", 1,
+                f3.get().getList("record").size());
+        assertEquals("record written", "Carol", manager.findByKey(
+                KeyFactory.createKey("president", 4)).get("name"));
+    }
+    public void test_execute_singleFailedPutNotRetried() {
+        final int[] calls = new int[1];
+        manager = new GaeDataManager() {
+            protected Dataset handleInsert(Transaction txn,
+                    Entity ... entities) {
+                calls[0]++;
+                return new Dataset(new RuntimeException("failure"));
+            }
+        };
+        coalescer = new GaeWriteCoalescer(manager, 60000, 10);
+        GaeWriteCoalescer.WriteFuture future = coalescer.put(
+                newEntity(1, "Alice"), newEntity(2, "Bob"));
+        coalescer.flush();
+        assertEquals("result", "failure", future.get().getErrorMessage());
+        assertEquals("Datastore calls", 1, calls[0]);
+    }
+
+    public void test_fail() {
+        GaeWriteCoalescer.WriteFuture f1 = coalescer.put(
+                newEntity(1, "Alice"));
+        GaeWriteCoalescer.WriteFuture f2 = coalescer.delete(
+                KeyFactory.createKey("president", 2));
+        coalescer.fail(coalescer.pending.getFirst(),
+                new RuntimeException("simulated failure"));
+        assertEquals("put result", "simulated failure",
+                f1.result.getErrorMessage());
+        assertSame("same result for delete", f1.result, f2.result);
+    }
+
+    public void test_flush_noWrites() {
+        coalescer.flush();
+        assertEquals("no batches", "0",
+                coalescer.getStatistics().get("batches"));
+    }
+    public void test_flush_inTransaction() {
+        coalescer.put(newEntity(1, "Alice"));
+        Transaction txn = manager.getNewTransaction();
+        boolean gotException = false;
+        try {
+            coalescer.flush();
+        } catch (org.fiz.InternalError e) {
+            assertEquals("exception message", "can't issue batched writes " +
+                    "while a Transaction is active; flush them before " +
+                    "beginning the Transaction", e.getMessage());
+            gotException = true;
+        }
+        txn.rollback();
+        assertTrue("exception thrown", gotException);
+    }
+
+    public void test_flushThread() {
+        GaeWriteCoalescer other = new GaeWriteCoalescer(manager, 60000, 10);
+        GaeWriteCoalescer.WriteFuture f1 = coalescer.put(
+                newEntity(1, "Alice"));
+        GaeWriteCoalescer.WriteFuture f2 = other.delete(
+                KeyFactory.createKey("president", 2));
+        GaeWriteCoalescer.flushThread();
+        assertTrue("first coalescer flushed", f1.isDone());
+        assertTrue("second coalescer flushed", f2.isDone());
+        assertEquals("nothing left for this thread", 0,
+                GaeWriteCoalescer.threadWrites.get().size());
+    }
+    public void test_flushThread_endOfRequest() {
+        GaeWriteCoalescer.WriteFuture future = coalescer.put(
+                newEntity(1, "Alice"));
+        new ClientRequestFixture().finish();
+        assertTrue("write issued at end of request", future.isDone());
+    }
+
+    public void test_getStatistics() {
+        coalescer.put(newEntity(1, "Alice"));
+        coalescer.put(newEntity(2, "Bob"));
+        coalescer.delete(KeyFactory.createKey("president", 3));
+        coalescer.flush();
+        Dataset stats = coalescer.getStatistics();
+        assertEquals("batches", "1", stats.get("batches"));
+        assertEquals("writes", "3", stats.get("writes"));
+        assertEquals("average batch", "3.0", stats.get("averageBatch"));
+    }
+
+    public void test_put_batched() {
+        GaeWriteCoalescer.WriteFuture f1 = coalescer.put(
+                newEntity(1, "Alice"), newEntity(2, "Bob"));
+        GaeWriteCoalescer.WriteFuture f2 = coalescer.put(
+                new Entity("president"));
+        assertEquals("one batch", 1, coalescer.pending.size());
+        assertEquals("keys for first write", 2,
+                f1.get().getList("record").size());
+        assertTrue("second write done", f2.isDone());
+        assertEquals("second write has complete key", true,
+                GaeWriteCoalescer.isComplete(
+                (Key) f2.get().get("record")));
+    }
+    public void test_put_sameKeyStartsNewBatch() {
+        coalescer.put(newEntity(1, "Alice"));
+        coalescer.put(newEntity(1, "Carol"));
+        assertEquals("two batches", 2, coalescer.pending.size());
+    }
+    public void test_put_batchFull() {
+        for (int i = 1; i <= 10; i++) {
+            coalescer.put(newEntity(i, "name" + i));
+        }
+        assertEquals("one batch", 1, coalescer.pending.size());
+        coalescer.put(newEntity(11, "name11"));
+        assertEquals("full batch issued by next writer", 1,
+                coalescer.pending.size());
+        assertEquals("batches issued", "1",
+                coalescer.getStatistics().get("batches"));
+    }
+    public void test_put_overdueBatchIssued() {
+        coalescer = new GaeWriteCoalescer(manager, 0, 10);
+        GaeWriteCoalescer.WriteFuture future = coalescer.put(
+                newEntity(1, "Alice"));
+        coalescer.put(newEntity(2, "Bob"));
+        assertTrue("overdue batch issued by next writer", future.isDone());
+    }
+
+    public void test_isComplete() {
+        assertTrue("id", GaeWriteCoalescer.isComplete(
+                KeyFactory.createKey("president", 1)));
+        assertTrue("name", GaeWriteCoalescer.isComplete(
+                KeyFactory.createKey("president", "abc")));
+        assertFalse("incomplete", GaeWriteCoalescer.isComplete(
+                new Entity("president").getKey()));
+    }
+}
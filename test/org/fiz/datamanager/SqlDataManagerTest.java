@@ -631,6 +631,58 @@ public class SqlDataManagerTest extends junit.framework.TestCase {
                 StringUtil.join(names, ", "));
     }
 
+    public void test_findPage() {
+        Dataset result = manager.findPage("SELECT first FROM people;",
+                "first", true, 1, 2);
+        assertEquals("query result", "record:\n" +
+                "  - first: Bob\n" +
+                "  - first: Alice\n", result.toString());
+    }
+
+    public void test_pageQuery_noSort() {
+        assertEquals("query", "SELECT * FROM people LIMIT 10 OFFSET 20;",
+                SqlDataManager.pageQuery("SELECT * FROM people; ", "",
+                false, 20, 10));
+    }
+    public void test_pageQuery_sort() {
+        assertEquals("ascending",
+                "SELECT * FROM people ORDER BY last ASC LIMIT 5 OFFSET 0;",
+                SqlDataManager.pageQuery("SELECT * FROM people", "last",
+                false, 0, 5));
+        assertEquals("descending",
+                "SELECT * FROM people ORDER BY people.age DESC " +
+                "LIMIT 5 OFFSET 0;",
+                SqlDataManager.pageQuery("SELECT * FROM people",
+                "people.age", true, 0, 5));
+    }
+    public void test_pageQuery_emptyQuery() {
+        boolean gotException = false;
+        try {
+            SqlDataManager.pageQuery(" ; ", "", false, 0, 5);
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "SqlDataManager.findPage received empty SQL query",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_pageQuery_badSortField() {
+        boolean gotException = false;
+        try {
+            SqlDataManager.pageQuery("SELECT * FROM people", "age; DROP",
+                    false, 0, 5);
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "SqlDataManager.findPage received invalid sort field " +
+                    "\"age; DROP\"", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
     public void test_handleError_reopenConnection() throws SQLException {
         // Close the connection, then try to reopen it twice: the first
         // time will fail because we changed the user name to something
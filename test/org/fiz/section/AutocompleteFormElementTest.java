@@ -15,6 +15,7 @@
 
 package org.fiz.section;
 
+import java.io.*;
 import org.fiz.*;
 import org.fiz.test.*;
 
@@ -61,6 +62,53 @@ public class AutocompleteFormElementTest extends junit.framework.TestCase {
         assertEquals("dataFactory property", "getResults",
                 element.pageProperty.dataFactory);
     }
+    public void test_constructor_cacheProperties() {
+        AutocompleteFormElement element = new AutocompleteFormElement(
+                new Dataset("id", "1234", "dataFactory", "getResults"));
+        assertEquals("default cacheLifetime", 0,
+                element.pageProperty.cacheLifetime);
+        element = new AutocompleteFormElement(new Dataset("id", "1234",
+                "dataFactory", "getResults", "cacheTtl", "30",
+                "cacheSize", "500"));
+        assertEquals("cacheLifetime", 30000,
+                element.pageProperty.cacheLifetime);
+        assertEquals("cacheSize", 500, element.pageProperty.cacheSize);
+    }
+
+    public void test_constructor_delay() {
+        AutocompleteFormElement element = new AutocompleteFormElement(
+                new Dataset("id", "1234", "dataFactory", "getResults"));
+        assertEquals("default delay", -1, element.delay);
+        element = new AutocompleteFormElement(new Dataset("id", "1234",
+                "dataFactory", "getResults", "delay", " 250 "));
+        assertEquals("delay", 250, element.delay);
+    }
+    public void test_constructor_badDelay() {
+        boolean gotException = false;
+        try {
+            new AutocompleteFormElement(new Dataset("id", "1234",
+                    "dataFactory", "getResults", "delay", "alert(1)"));
+        } catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "AutocompleteFormElement: bad delay value \"alert(1)\"",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_constructor_negativeDelay() {
+        boolean gotException = false;
+        try {
+            new AutocompleteFormElement(new Dataset("id", "1234",
+                    "dataFactory", "getResults", "delay", "-5"));
+        } catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "AutocompleteFormElement: bad delay value \"-5\"",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
 
     public void test_ajaxQuery_unmatchedQuery() {
         cr.setClientRequestType(ClientRequest.Type.AJAX);
@@ -157,6 +205,178 @@ public class AutocompleteFormElementTest extends junit.framework.TestCase {
                 cr.getJs());
     }
 
+    public void test_constructor_index() {
+        AutocompleteFormElement element = new AutocompleteFormElement(
+                new Dataset("id", "1234", "index", "cities",
+                "maxChoices", "5"));
+        assertEquals("index", "cities", element.pageProperty.index);
+        assertEquals("maxChoices", 5, element.pageProperty.maxChoices);
+        assertEquals("dataFactory", null, element.pageProperty.dataFactory);
+    }
+    public void test_constructor_noDataFactoryOrIndex() {
+        boolean gotException = false;
+        try {
+            new AutocompleteFormElement(new Dataset("id", "1234"));
+        }
+        catch (Dataset.MissingValueError e) {
+            assertEquals("exception message",
+                    "couldn't find dataset element \"dataFactory\"",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_ajaxQuery_highlightInMiddle() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto",
+                    "section.AutocompleteFormElementTest$DataFactory.dataMany",
+                    "choice");
+        cr.setPageProperty("auto", p);
+        main.set("id", "auto");
+        main.set("userInput", "ST2");
+        AutocompleteFormElement.ajaxQuery(cr);
+        TestUtil.assertSubstring("highlighted choice",
+                "te<strong>st2</strong></li>", cr.getJs());
+    }
+    public void test_ajaxQuery_index() {
+        PrefixIndex index = PrefixIndex.getInstance("cities");
+        index.clear();
+        index.add("New York", 10);
+        index.add("Yonkers", 5);
+        index.add("York", 1);
+        index.add("Boston", 100);
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto", null,
+                    "choice");
+        p.index = "cities";
+        p.maxChoices = 2;
+        cr.setPageProperty("auto", p);
+        main.set("id", "auto");
+        main.set("userInput", "yo");
+        AutocompleteFormElement.ajaxQuery(cr);
+        TestUtil.assertSubstring("Ajax javascript",
+                "document.getElementById(\"auto_dropdown\").innerHTML = \"" +
+                "<ul id=\\\"auto_choices\\\">" +
+                "<li onclick=\\\"Fiz.ids.auto.selectChoice(this, true)\\\" " +
+                "onmouseover=\\\"Fiz.ids.auto.highlightChoice(this)\\\">" +
+                "New <strong>Yo</strong>rk</li>" +
+                "<li onclick=\\\"Fiz.ids.auto.selectChoice(this, true)\\\" " +
+                "onmouseover=\\\"Fiz.ids.auto.highlightChoice(this)\\\">" +
+                "<strong>Yo</strong>nkers</li></ul>\";\n" +
+                "Fiz.ids.auto.showDropdown();\n",
+                cr.getJs());
+    }
+
+    public void test_PageProperty_startQuery() {
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto", "a.b",
+                "choice");
+        assertEquals("first request", true, p.startQuery(3));
+        assertEquals("same sequence", true, p.startQuery(3));
+        assertEquals("older request", false, p.startQuery(2));
+        assertEquals("latestSequence", 3, p.latestSequence);
+    }
+    public void test_PageProperty_isSuperseded() {
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto", "a.b",
+                "choice");
+        p.startQuery(5);
+        assertEquals("older request", true, p.isSuperseded(4));
+        assertEquals("current request", false, p.isSuperseded(5));
+    }
+
+    public void test_ajaxQuery_sequence() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto",
+                    "section.AutocompleteFormElementTest$DataFactory.dataMany",
+                    "choice");
+        cr.setPageProperty("auto", p);
+        main.set("id", "auto");
+        main.set("userInput", "test3");
+        main.set("sequence", "4");
+        AutocompleteFormElement.ajaxQuery(cr);
+        assertEquals("Ajax javascript",
+                "Fiz.pageId = \"1\";\n" +
+                "Fiz.ids.auto.setChoices(4, \"test3\", \"" +
+                "<ul id=\\\"auto_choices\\\">" +
+                "<li onclick=\\\"Fiz.ids.auto.selectChoice(this, true)\\\" " +
+                "onmouseover=\\\"Fiz.ids.auto.highlightChoice(this)\\\">" +
+                "test1</li>" +
+                "<li onclick=\\\"Fiz.ids.auto.selectChoice(this, true)\\\" " +
+                "onmouseover=\\\"Fiz.ids.auto.highlightChoice(this)\\\">" +
+                "test2</li>" +
+                "<li onclick=\\\"Fiz.ids.auto.selectChoice(this, true)\\\" " +
+                "onmouseover=\\\"Fiz.ids.auto.highlightChoice(this)\\\">" +
+                "<strong>test3</strong></li></ul>\");\n",
+                cr.getJs());
+        assertEquals("latestSequence", 4, p.latestSequence);
+    }
+    public void test_ajaxQuery_sequencePagePropertyMarkedDirty()
+            throws IOException {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto",
+                    "section.AutocompleteFormElementTest$DataFactory.dataNone",
+                    "choice");
+        cr.setPageProperty("auto", p);
+        // Serializing the page state makes it clean.
+        new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(
+                cr.pageState);
+        assertEquals("page state clean", false, cr.pageState.isDirty());
+        main.set("id", "auto");
+        main.set("userInput", "xyz");
+        main.set("sequence", "7");
+        AutocompleteFormElement.ajaxQuery(cr);
+        assertEquals("page state dirty", true, cr.pageState.isDirty());
+    }
+    public void test_ajaxQuery_sequenceNoResults() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto",
+                    "section.AutocompleteFormElementTest$DataFactory.dataNone",
+                    "choice");
+        cr.setPageProperty("auto", p);
+        main.set("id", "auto");
+        main.set("userInput", "xyz");
+        main.set("sequence", "1");
+        AutocompleteFormElement.ajaxQuery(cr);
+        assertEquals("Ajax javascript",
+                "Fiz.pageId = \"1\";\n" +
+                "Fiz.ids.auto.setChoices(1, \"xyz\", \"\");\n",
+                cr.getJs());
+    }
+    public void test_ajaxQuery_supersededRequest() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        AutocompleteFormElement.PageProperty p =
+                new AutocompleteFormElement.PageProperty("auto",
+                    "section.AutocompleteFormElementTest$DataFactory.dataMany",
+                    "choice");
+        p.latestSequence = 6;
+        cr.setPageProperty("auto", p);
+        main.set("id", "auto");
+        main.set("userInput", "test");
+        main.set("sequence", "5");
+        AutocompleteFormElement.ajaxQuery(cr);
+        assertEquals("Ajax javascript", "Fiz.pageId = \"1\";\n",
+                cr.getJs());
+    }
+
+    public void test_render_delay() {
+        AutocompleteFormElement element = new AutocompleteFormElement(
+                new Dataset("id", "auto", "dataFactory", "getQuery",
+                "delay", "300"));
+        ClientRequest cr = new ClientRequestFixture();
+        element.render(cr, new Dataset());
+        TestUtil.assertSubstring("accumulated Javascript",
+                "Fiz.ids.auto = new Fiz.AutocompleteFormElement(\"auto\", " +
+                "300);\n",
+                cr.getHtml().getJs());
+    }
+
     public void test_render_basics() {
         AutocompleteFormElement element = new AutocompleteFormElement(
                 new Dataset(
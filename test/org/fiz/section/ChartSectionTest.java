@@ -17,6 +17,8 @@ package org.fiz.section;
 
 import org.fiz.*;
 import org.fiz.test.*;
+import java.nio.*;
+import java.util.*;
 
 /**
  * Junit tests for the ChartSection class
@@ -38,6 +40,15 @@ public class ChartSectionTest extends junit.framework.TestCase {
         cs.js = new StringBuilder();
         cr = new ClientRequestFixture();
         cs.cr = cr;
+        ChartSection.pendingData.clear();
+        ChartSection.pendingBytes = 0;
+        ChartSection.sessionBytes.clear();
+    }
+
+    public void tearDown() {
+        ChartSection.pendingLifetime = 60000;
+        ChartSection.maxSessionBytes = 16*1024*1024;
+        ChartSection.maxPendingBytes = 64*1024*1024;
     }
 
     public void test_constructor() {
@@ -255,6 +266,340 @@ public class ChartSectionTest extends junit.framework.TestCase {
         assertEquals("chart0.chart0_data = [[\"Mon\", 2], [\"Tue\", 4]];\n", cs.js.toString());
     }
 
+    public void test_addData_selectedRecords() {
+        cs.addData(new Dataset("data", cats, "xId", "day", "yId", "cats",
+                "id", "chart0"), new int[] {1, 5});
+        assertEquals("chart0.chart0_data = [[\"Tue\", 4]];\n",
+                cs.js.toString());
+    }
+
+    // Returns a Dataset suitable for the "data" property of a series, with
+    // records {x: 0, y: values[0]}, {x: 1, y: values[1]}, etc.
+    protected Dataset points(double... values) {
+        Dataset data = new Dataset();
+        for (int i = 0; i < values.length; i++) {
+            data.add("record", new Dataset("x", Integer.toString(i),
+                    "y", Double.toString(values[i])));
+        }
+        return data;
+    }
+
+    public void test_selectPoints_noDownsampling() {
+        Dataset plot = new Dataset("data", points(1, 2, 3, 4, 5, 6),
+                "xId", "x", "yId", "y", "maxPoints", "3");
+        assertEquals("downsample not set", null,
+                cs.selectPoints(plot, plot.getDatasetList("series")));
+        plot.set("downsample", "none");
+        ArrayList<Dataset> single = new ArrayList<Dataset>();
+        single.add(plot);
+        assertEquals("downsample none", null, cs.selectPoints(plot, single));
+        plot.set("downsample", "minmax");
+        plot.set("maxPoints", "6");
+        assertEquals("few enough points", null, cs.selectPoints(plot, single));
+    }
+    public void test_selectPoints_chartDefaults() {
+        cs = new ChartSection(new Dataset("downsample", "minmax",
+                "width", "4"));
+        Dataset plot = new Dataset("data", points(1, 9, 2, 3, 0, 5),
+                "xId", "x", "yId", "y");
+        ArrayList<Dataset> single = new ArrayList<Dataset>();
+        single.add(plot);
+        assertEquals("points kept", "0, 1, 4, 5",
+                StringUtil.join(toStrings(cs.selectPoints(plot, single)),
+                ", "));
+    }
+    public void test_selectPoints_seriesSummed() {
+        Dataset plot = new Dataset("downsample", "minmax", "maxPoints", "4",
+                "series", new Dataset("data", points(0, 5, 0, 0, 0, 0),
+                "xId", "x", "yId", "y"),
+                "series", new Dataset("data", points(0, 0, 0, 9, 0, 0),
+                "xId", "x", "yId", "y"));
+        assertEquals("points kept", "0, 2, 3, 5",
+                StringUtil.join(toStrings(cs.selectPoints(plot,
+                plot.getDatasetList("series"))), ", "));
+    }
+    public void test_selectPoints_badMaxPoints() {
+        Dataset plot = new Dataset("data", points(1, 2, 3),
+                "xId", "x", "yId", "y", "downsample", "lttb",
+                "maxPoints", "many");
+        ArrayList<Dataset> single = new ArrayList<Dataset>();
+        single.add(plot);
+        boolean gotException = false;
+        try {
+            cs.selectPoints(plot, single);
+        } catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "ChartSection: bad maxPoints value \"many\"",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertTrue("exception thrown", gotException);
+    }
+    public void test_selectPoints_unknownMethod() {
+        Dataset plot = new Dataset("data", points(1, 2, 3),
+                "xId", "x", "yId", "y", "downsample", "bogus",
+                "maxPoints", "2");
+        ArrayList<Dataset> single = new ArrayList<Dataset>();
+        single.add(plot);
+        boolean gotException = false;
+        try {
+            cs.selectPoints(plot, single);
+        } catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "ChartSection: unknown downsample method \"bogus\"",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertTrue("exception thrown", gotException);
+    }
+
+    public void test_render_downsampled() {
+        double[] values = new double[20000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.sin(i/100.0);
+        }
+        cs = new ChartSection(new Dataset("data", points(values),
+                "xId", "x", "yId", "y", "type", "Line",
+                "downsample", "lttb", "maxPoints", "100"));
+        cs.render(cr);
+        String js = cs.js.toString();
+        int start = js.indexOf("_data = [");
+        String array = js.substring(start, js.indexOf("];", start));
+        assertEquals("number of points", 100, array.split("\\], \\[").length);
+        assertEquals("reserved properties not set in Javascript", -1,
+                js.indexOf("maxPoints"));
+    }
+
+    // Converts an array of ints to strings, for use with StringUtil.join.
+    protected String[] toStrings(int[] values) {
+        String[] result = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.toString(values[i]);
+        }
+        return result;
+    }
+
+    public void test_downsampleLttb() {
+        double[] x = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        double[] y = {0, 0, 10, 0, 0, 0, 0, -10, 0, 0};
+        assertEquals("peaks kept", "0, 2, 7, 9", StringUtil.join(
+                toStrings(ChartSection.downsampleLttb(x, y, 4)), ", "));
+        assertEquals("threshold not reached", 10,
+                ChartSection.downsampleLttb(x, y, 10).length);
+        assertEquals("threshold too small", 10,
+                ChartSection.downsampleLttb(x, y, 2).length);
+    }
+    public void test_downsampleLttb_unevenX() {
+        double[] x = {0, 1, 2, 100, 101, 102};
+        double[] y = {0, 1, 0, 0, 1, 0};
+        assertEquals("peaks kept", "0, 1, 4, 5", StringUtil.join(
+                toStrings(ChartSection.downsampleLttb(x, y, 4)), ", "));
+    }
+
+    public void test_downsampleMinMax() {
+        double[] y = {5, 1, 9, 4, 4, 4, 3, 8, 2, 5};
+        assertEquals("min and max of each bucket", "0, 1, 2, 7, 8, 9",
+                StringUtil.join(toStrings(
+                ChartSection.downsampleMinMax(y, 6)), ", "));
+        assertEquals("flat bucket keeps one point", "0, 1, 3, 5, 9",
+                StringUtil.join(toStrings(ChartSection.downsampleMinMax(
+                new double[] {0, 1, 2, 3, 3, 3, 3, 3, 3, 0}, 6)), ", "));
+        assertEquals("threshold too small", 10,
+                ChartSection.downsampleMinMax(y, 3).length);
+    }
+
+    public void test_render_binaryTransport() {
+        cs = new ChartSection(new Dataset("transport", "binary",
+                "plot", new Dataset("data", cats, "xId", "day",
+                "yId", "cats"),
+                "plot", new Dataset("series", new Dataset("data", cats,
+                "xId", "day", "yId", "cats"))));
+        cs.render(cr);
+        assertEquals("data saved", 1, ChartSection.pendingData.size());
+        String key = ChartSection.pendingData.keySet().iterator().next()
+                .substring("null/".length());
+        assertEquals("try {\n" +
+                "Fiz.ids.chart0 = {};\n" +
+                "Fiz.ids.chart0.chart = new Fiz.Chart(\"chart0\");\n" +
+                "Fiz.ids.chart0.plot0_data = [];\n" +
+                "Fiz.ids.chart0.plot0 = new Fiz.Chart.Bar(" +
+                "Fiz.ids.chart0.plot0_data);\n" +
+                "Fiz.ids.chart0.chart.addPlot(Fiz.ids.chart0.plot0);\n" +
+                "Fiz.ids.chart0.plot1 = new Fiz.Chart.Bar();\n" +
+                "Fiz.ids.chart0.series0_data = [];\n" +
+                "Fiz.ids.chart0.series0 = new Fiz.Chart.Series(" +
+                "Fiz.ids.chart0.series0_data);\n" +
+                "Fiz.ids.chart0.plot1.addSeries(Fiz.ids.chart0.series0);\n" +
+                "Fiz.ids.chart0.chart.addPlot(Fiz.ids.chart0.plot1);\n" +
+                "Fiz.Chart.Series.load(\"/ChartSection/ajaxData?key=" + key +
+                "\", " +
+                "[Fiz.ids.chart0.plot0.series[0], Fiz.ids.chart0.series0], " +
+                "function() {Fiz.ids.chart0.chart.draw();});\n" +
+                "} catch (e) {\nFiz.addBulletinMessage(" +
+                "\"<div class=\\\"bulletinError\\\">\" + e + \"</div>\");\n}\n",
+                cs.js.toString());
+        assertEquals("no page properties", null, cr.pageState);
+        byte[] data = ChartSection.pendingData.get("null/" + key).data;
+        assertEquals("saved data holds both series", 2,
+                ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+                .getInt(0));
+        TestUtil.assertSubstring("Ajax.js included", "static/fiz/Ajax.js",
+                cr.getHtml().getJsFiles());
+    }
+
+    public void test_ajaxData() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        byte[] data = {1, 2, 3};
+        ChartSection.savePendingData(null, "key4", data);
+        cr.getMainDataset().set("key", "key4");
+        ChartSection.ajaxData(cr);
+        cr.finish();
+        ServletResponseFixture response =
+                ((ServletResponseFixture)cr.getServletResponse());
+        assertEquals("MIME type", "application/octet-stream",
+                response.contentType);
+        assertTrue("response", Arrays.equals(data, response.getBytes()));
+        assertEquals("data discarded", 0, ChartSection.pendingData.size());
+    }
+    public void test_ajaxData_noData() {
+        cr.getMainDataset().set("key", "bogus");
+        boolean gotError = false;
+        try {
+            ChartSection.ajaxData(cr);
+        } catch (UserError e) {
+            assertEquals("error message", "the data for this chart is no " +
+                    "longer available; reload the page to see the chart",
+                    e.getMessage());
+            gotError = true;
+        }
+        assertTrue("error thrown", gotError);
+    }
+
+    public void test_savePendingData_expiredDataDiscarded() {
+        ChartSection.pendingLifetime = -1;
+        ChartSection.savePendingData("s1", "a", new byte[10]);
+        ChartSection.pendingLifetime = 60000;
+        ChartSection.savePendingData("s2", "b", new byte[5]);
+        assertEquals("entries", "[s2/b]",
+                ChartSection.pendingData.keySet().toString());
+        assertEquals("total bytes", 5, ChartSection.pendingBytes);
+        assertEquals("session bytes", null,
+                ChartSection.sessionBytes.get("s1"));
+    }
+    public void test_savePendingData_sessionLimit() {
+        ChartSection.maxSessionBytes = 20;
+        ChartSection.savePendingData("s1", "a", new byte[10]);
+        ChartSection.savePendingData("s2", "b", new byte[10]);
+        ChartSection.savePendingData("s1", "c", new byte[10]);
+        ChartSection.savePendingData("s1", "d", new byte[10]);
+        assertEquals("entries", "[s2/b, s1/c, s1/d]",
+                ChartSection.pendingData.keySet().toString());
+        assertEquals("session bytes", 20,
+                (long) ChartSection.sessionBytes.get("s1"));
+        ChartSection.savePendingData("s1", "e", new byte[30]);
+        assertEquals("data larger than limit discarded", "[s2/b]",
+                ChartSection.pendingData.keySet().toString());
+        assertEquals("total bytes", 10, ChartSection.pendingBytes);
+    }
+    public void test_savePendingData_totalLimit() {
+        ChartSection.maxPendingBytes = 35;
+        ChartSection.savePendingData("s1", "a", new byte[10]);
+        ChartSection.savePendingData("s2", "b", new byte[5]);
+        ChartSection.savePendingData("s1", "c", new byte[10]);
+        ChartSection.savePendingData("s3", "d", new byte[15]);
+        assertEquals("largest session's oldest data discarded",
+                "[s2/b, s1/c, s3/d]",
+                ChartSection.pendingData.keySet().toString());
+        assertEquals("total bytes", 30, ChartSection.pendingBytes);
+    }
+
+    public void test_takePendingData() {
+        byte[] data = {1, 2};
+        ChartSection.savePendingData("s1", "a", data);
+        assertEquals("other session", null,
+                ChartSection.takePendingData("s2", "a"));
+        assertSame("same session", data,
+                ChartSection.takePendingData("s1", "a"));
+        assertEquals("only fetched once", null,
+                ChartSection.takePendingData("s1", "a"));
+        assertEquals("bytes released", 0, ChartSection.pendingBytes);
+    }
+    public void test_takePendingData_expired() {
+        ChartSection.pendingLifetime = -1;
+        ChartSection.savePendingData("s1", "a", new byte[] {1});
+        assertEquals("expired", null,
+                ChartSection.takePendingData("s1", "a"));
+        assertEquals("bytes released", 0, ChartSection.pendingBytes);
+    }
+
+    public void test_encodeSeries() {
+        Dataset floats = new Dataset(
+                "record", new Dataset("t", "1", "v", "2.5"),
+                "record", new Dataset("t", "2", "v", "x"),
+                "record", new Dataset("t", "3", "v", "-1"));
+        ArrayList<Dataset> series = new ArrayList<Dataset>();
+        series.add(new Dataset("data", cats, "xId", "day", "yId", "cats"));
+        series.add(new Dataset("data", floats, "xId", "t", "yId", "v"));
+        ArrayList<int[]> keep = new ArrayList<int[]>();
+        keep.add(null);
+        keep.add(new int[] {0, 1, 2, 7});
+        ByteBuffer buffer = ByteBuffer.wrap(ChartSection.encodeSeries(
+                series, keep)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("number of series", 2, buffer.getInt());
+        assertEquals("padding", 0, buffer.getInt());
+
+        // First series: text labels and integer values.
+        assertEquals("points", 2, buffer.getInt());
+        assertEquals("x type", ChartSection.TEXT, buffer.getInt());
+        assertEquals("y type", ChartSection.INT32, buffer.getInt());
+        assertEquals("x length", 7, buffer.getInt());
+        byte[] text = new byte[7];
+        buffer.get(text);
+        assertEquals("labels", "Mon\nTue", new String(text));
+        assertEquals("labels padded", 0, buffer.get());
+        buffer.position(32);
+        assertEquals("first y", 2, buffer.getInt());
+        assertEquals("second y", 4, buffer.getInt());
+
+        // Second series: integer X values and floating-point values.
+        assertEquals("points", 3, buffer.getInt());
+        assertEquals("x type", ChartSection.INT32, buffer.getInt());
+        assertEquals("y type", ChartSection.FLOAT64, buffer.getInt());
+        assertEquals("x length", 12, buffer.getInt());
+        assertEquals("first x", 1, buffer.getInt());
+        assertEquals("third x", 3, buffer.getInt(buffer.position() + 4));
+        buffer.position(buffer.position() + 12);
+        assertEquals("first y", 2.5, buffer.getDouble());
+        assertTrue("non-numeric y", Double.isNaN(buffer.getDouble()));
+        assertEquals("third y", -1.0, buffer.getDouble());
+        assertEquals("end of data", 0, buffer.remaining());
+    }
+
+    public void test_joinLabels() {
+        assertEquals("no values", "",
+                ChartSection.joinLabels(new String[0]));
+        assertEquals("escapes", "a\\nb\nc\\\\d\n",
+                ChartSection.joinLabels(new String[] {"a\nb", "c\\d", ""}));
+    }
+
+    public void test_columnType() {
+        assertEquals("integers", ChartSection.INT32,
+                ChartSection.columnType(new String[] {"1", "-20"}, true));
+        assertEquals("non-canonical integer", ChartSection.FLOAT64,
+                ChartSection.columnType(new String[] {"1", "007"}, true));
+        assertEquals("text", ChartSection.TEXT,
+                ChartSection.columnType(new String[] {"1", "1.5"}, false));
+        assertEquals("empty column", ChartSection.INT32,
+                ChartSection.columnType(new String[0], false));
+    }
+
+    public void test_padded() {
+        assertEquals("0", 0, ChartSection.padded(0));
+        assertEquals("1", 8, ChartSection.padded(1));
+        assertEquals("8", 8, ChartSection.padded(8));
+        assertEquals("9", 16, ChartSection.padded(9));
+    }
+
     public void test_setProperties_subobject() {
         cs.setProperties(new Dataset("xAxis", new Dataset("title", "foo")), "chart");
         assertEquals("chart0.chart.set(\"xAxisTitle\", \"foo\");\n", cs.js.toString());
@@ -37,6 +37,19 @@ public class ColumnTest extends junit.framework.TestCase {
         assertEquals("section value", link, c.section);
     }
 
+    public void test_getSortField() {
+        Column c = new Column ("label111", "@name");
+        assertEquals("no sort field", null, c.getSortField());
+        c.sortField = "age";
+        assertEquals("sort field", "age", c.getSortField());
+    }
+
+    public void test_setSortField() {
+        Column c = new Column ("label111", "@name");
+        assertEquals("return value", c, c.setSortField("name"));
+        assertEquals("sort field", "name", c.sortField);
+    }
+
     public void test_render_section() {
         Link link = new Link(new Dataset("text", "click here",
                 "url", "/a/b/@name"));
@@ -242,6 +242,20 @@ public class FormElementTest extends junit.framework.TestCase {
         assertEquals("form parent", section, element.parentForm);
     }
 
+    public void test_ValidatorData_getCompiled() {
+        FormElement.ValidatorData v = new FormElement.ValidatorData("elem");
+        v.validators.add(new Dataset("type", "range", "min", "98"));
+        FormValidator.CompiledValidator[] compiled = v.getCompiled();
+        assertEquals("number of validators", 1, compiled.length);
+        assertSame("compiled only once", compiled, v.getCompiled());
+        v.validators.add(new Dataset("type", "required"));
+        assertEquals("recompiled after adding a validator", 2,
+                v.getCompiled().length);
+        v.validators = new ArrayList<Dataset>();
+        assertEquals("recompiled after replacing the list", 0,
+                v.getCompiled().length);
+    }
+
     public void test_validate_basic() throws FormSection.FormDataException {
         FormElement element = new FormElementFixture(
                 new Dataset("id", "elem",
@@ -126,6 +126,13 @@ public class FormSectionTest extends junit.framework.TestCase {
         assertEquals("buttonStyle", "explicit", form.buttonStyle);
     }
 
+    public void test_getCacheKey() {
+        FormSection form = new FormSection(
+                new Dataset("id", "form1", "cacheKey", "form1"));
+        assertEquals("cacheKey property ignored", null,
+                form.getCacheKey(cr));
+    }
+
     public void test_collectFormData_noErrors() {
         FormSection form = new FormSection(
                 new Dataset("id", "form1", "data", person),
@@ -480,6 +487,20 @@ public class FormSectionTest extends junit.framework.TestCase {
                 "  <table",
                 cr.getHtml().getBody().toString(), ".*<table");
     }
+    public void test_render_clientPageState() {
+        PageState.setStore(new ClientPageStateStore());
+        FormSection form = new FormSection(
+                new Dataset("id", "form1"));
+        cr.showSections(form);
+        PageState.setStore(null);
+        TestUtil.assertMatchingSubstring("form HTML",
+                "  <input id=\"form1_fizPageId\" type=\"hidden\" " +
+                "name=\"fiz_pageId\" />\n" +
+                "  <input id=\"form1_fizPageState\" type=\"hidden\" " +
+                "name=\"fiz_pageState\" />\n" +
+                "  <table",
+                cr.getHtml().getBody().toString(), "  <input id=.*<table");
+    }
     public void test_render_javascript() {
         FormSection form = new FormSection(
                 new Dataset("id", "form1", "data", person,
@@ -92,7 +92,7 @@ public class TableLayoutTest extends junit.framework.TestCase {
     public void test_clearCache() {
         TableLayout.layoutCache.clear();
         TableLayout.layoutCache.put("123",
-                new ArrayList<TableLayout.HtmlFragment>());
+                new TableLayout.CompiledLayout());
         assertEquals("layoutCache size before clearCache",
                 1, TableLayout.layoutCache.size());
         TableLayout.clearCache();
@@ -128,10 +128,56 @@ public class TableLayoutTest extends junit.framework.TestCase {
         TableLayout.clearCache();
         tableLayout = new TableLayout(new Dataset("format", layout, "data", data));
         tableLayout.render(cr);
-        int cacheUseCountBefore = TableLayout.cacheUseCount;
+        int cacheUseCountBefore = TableLayout.cacheUseCount.get();
         tableLayout.render(cr);
         assertEquals("Cache use count", cacheUseCountBefore + 1,
-                TableLayout.cacheUseCount);
+                TableLayout.cacheUseCount.get());
+    }
+
+    public void test_render_cacheFull() {
+        int oldMax = TableLayout.maxCachedLayouts;
+        TableLayout.maxCachedLayouts = 2;
+        TableLayout.clearCache();
+        for (int i = 1; i <= 3; i++) {
+            new TableLayout(new Dataset("format", "+---+\n| " + i +
+                    " |\n+---+\n", "data", data)).render(cr);
+        }
+        TableLayout.maxCachedLayouts = oldMax;
+        assertEquals("layoutCache size", 2, TableLayout.layoutCache.size());
+        assertEquals("newest layout cached", true,
+                TableLayout.layoutCache.containsKey("+---+\n| 3 |\n+---+\n"));
+    }
+
+    public void test_render_concurrent() throws InterruptedException {
+        final String layout = "+---+---+\n" +
+                              "| 1 | 2 |\n" +
+                              "+---+---+\n";
+        TableLayout.clearCache();
+        final String[] results = new String[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    ClientRequestFixture request = new ClientRequestFixture();
+                    new TableLayout(new Dataset("format", layout, "data",
+                            data)).render(request);
+                    results[index] = request.getHtml().getBody().toString();
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (String result : results) {
+            assertEquals("generated HTML", results[0], result);
+        }
+        TestUtil.assertSubstring("generated HTML", "<h1>section 2</h1>",
+                results[0]);
+        assertEquals("layoutCache size", 1, TableLayout.layoutCache.size());
     }
 
     public void test_render_useIdAndClass() {
@@ -193,6 +239,25 @@ public class TableLayoutTest extends junit.framework.TestCase {
                 html);
     }
 
+    public void test_compile() {
+        TableLayout.CompiledLayout layout = TableLayout.compile(
+                "+---+---+\n" +
+                "| a | b |\n" +
+                "+---+---+\n");
+        assertEquals("header", "<table {{id=\"@id\"}} {{class=\"@class\"}} " +
+                "cellspacing=\"0\" >\n", layout.header);
+        assertEquals("ids", "a, b", StringUtil.join(layout.ids, ", "));
+        assertEquals("number of HTML strings", 3, layout.html.length);
+        assertEquals("HTML before first cell",
+                "  <tr>\n    <td colspan=\"1\" rowspan=\"1\">\n",
+                layout.html[0]);
+        assertEquals("HTML between cells",
+                "    </td>\n    <td colspan=\"1\" rowspan=\"1\">\n",
+                layout.html[1]);
+        assertEquals("HTML after last cell",
+                "    </td>\n  </tr>\n</table>\n", layout.html[2]);
+    }
+
     /**
      * Tests all paths in parse and preprocessLayout using one complex layout.
      */
@@ -39,8 +39,41 @@ public class TableSectionTest extends junit.framework.TestCase {
     protected Dataset errorData = new Dataset("message", "sample <error>",
             "value", "47");
 
+    // The following class provides a data factory for paged tables.
+    protected static class DataFactory {
+        public static String log;
+        public static Dataset page(Integer offset, Integer count,
+                String sortField, Boolean descending) {
+            log = "offset " + offset + ", count " + count + ", sortField \"" +
+                    sortField + "\", descending " + descending;
+            Dataset result = new Dataset();
+            for (int i = offset; (i < 5) && (i < offset + count); i++) {
+                result.add("record", new Dataset("name", "row" + i));
+            }
+            return result;
+        }
+        public static Dataset data;
+        public static Dataset fromData(Integer offset, Integer count,
+                String sortField, Boolean descending) {
+            return TableSection.pageData(data, offset, count, sortField,
+                    descending);
+        }
+    }
+    protected static final String PAGE =
+            "section.TableSectionTest$DataFactory.page";
+    protected static final String FROM_DATA =
+            "section.TableSectionTest$DataFactory.fromData";
+
+    // The following class is a column that can't be saved in the page
+    // state.
+    protected static class NonSerializableColumn extends Section {
+        public void render(ClientRequest cr) {}
+    }
+
     public void setUp() {
         cr = new ClientRequestFixture();
+        ServletRequestFixture.session = null;
+        DataFactory.data = people;
     }
 
     public void test_constructor_noData() {
@@ -58,6 +91,183 @@ public class TableSectionTest extends junit.framework.TestCase {
         assertEquals("exception happened", true, gotException);
     }
 
+    public void test_constructor_paged() {
+        TableSection table = new TableSection(new Dataset("id", "t",
+                "dataFactory", PAGE, "pageSize", "10"));
+        assertEquals("pageSize", 10, table.pageSize);
+        assertEquals("default prefetch", 10, table.prefetch);
+        table = new TableSection(new Dataset("id", "t",
+                "dataFactory", PAGE, "pageSize", "10", "prefetch", "4"));
+        assertEquals("prefetch", 4, table.prefetch);
+    }
+    public void test_constructor_pagedNoId() {
+        boolean gotException = false;
+        try {
+            new TableSection(new Dataset("dataFactory", PAGE,
+                    "pageSize", "10"));
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "TableSection constructor invoked with a \"pageSize\" " +
+                    "property but no \"id\" property",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_constructor_pagedNoData() {
+        boolean gotException = false;
+        try {
+            new TableSection(new Dataset("id", "t", "data", people,
+                    "pageSize", "10"));
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "TableSection constructor invoked with a \"pageSize\" " +
+                    "property but no \"dataFactory\" property",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_constructor_pagedNonSerializableColumn() {
+        boolean gotException = false;
+        try {
+            new TableSection(new Dataset("id", "t", "dataFactory", PAGE,
+                    "pageSize", "10"), new Column("Name", "@name"),
+                    new NonSerializableColumn());
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "paged TableSection has non-serializable " +
+                    "NonSerializableColumn column",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
+    public void test_getCacheKey() {
+        TableSection table = new TableSection(new Dataset("id", "t",
+                "data", new Dataset(), "cacheKey", "t"));
+        assertEquals("cacheKey property ignored", null,
+                table.getCacheKey(cr));
+    }
+
+    public void test_ajaxRows() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.setPageProperty("t", new TableSection.PageProperty("t", PAGE, 2,
+                new Section[] {new Column("Name", "@name")
+                .setSortField("name")}));
+        cr.getMainDataset().set("id", "t");
+        cr.getMainDataset().set("offset", "3");
+        cr.getMainDataset().set("count", "2");
+        cr.getMainDataset().set("sortField", "name");
+        cr.getMainDataset().set("descending", "true");
+        TableSection.ajaxRows(cr);
+        assertEquals("factory arguments", "offset 3, count 2, " +
+                "sortField \"name\", descending true", DataFactory.log);
+        assertEquals("Javascript response",
+                "Fiz.pageId = \"1\";\n" +
+                "Fiz.ids.t.addRows(3, -1, [\"  <tr class=\\\"odd\\\">\\n" +
+                "    <td class=\\\"left\\\">row3</td>\\n  </tr>\\n\", " +
+                "\"  <tr class=\\\"even\\\">\\n" +
+                "    <td class=\\\"left\\\">row4</td>\\n  </tr>\\n\"], " +
+                "\"name\", true);\n",
+                cr.getJs());
+        assertEquals("HTML body unchanged", "",
+                cr.getHtml().getBody().toString());
+    }
+    public void test_ajaxRows_lastRow() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.setPageProperty("t", new TableSection.PageProperty("t", PAGE, 3,
+                new Section[] {new Column("Name", "@name")}));
+        cr.getMainDataset().set("id", "t");
+        cr.getMainDataset().set("offset", "3");
+        cr.getMainDataset().set("count", "3");
+        cr.getMainDataset().set("sortField", "");
+        cr.getMainDataset().set("descending", "false");
+        TableSection.ajaxRows(cr);
+        TestUtil.assertSubstring("total rows", "addRows(3, 5, [",
+                cr.getJs());
+        TestUtil.assertSubstring("last row",
+                "<tr class=\\\"last even\\\">\\n" +
+                "    <td class=\\\"left\\\">row4",
+                cr.getJs());
+    }
+    public void test_ajaxRows_error() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        DataFactory.data = new Dataset();
+        DataFactory.data.setError(new Dataset("message", "sample <error>"));
+        cr.setPageProperty("t", new TableSection.PageProperty("t",
+                FROM_DATA, 3, new Section[] {new Column("Name", "@name")}));
+        cr.getMainDataset().set("id", "t");
+        cr.getMainDataset().set("offset", "0");
+        cr.getMainDataset().set("count", "3");
+        cr.getMainDataset().set("sortField", "");
+        cr.getMainDataset().set("descending", "false");
+        TableSection.ajaxRows(cr);
+        TestUtil.assertSubstring("bulletin message", "sample &lt;error&gt;",
+                cr.getJs());
+    }
+    public void test_ajaxRows_unknownSortField() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.setPageProperty("t", new TableSection.PageProperty("t", PAGE, 3,
+                new Section[] {new Column("Name", "@name")
+                .setSortField("name")}));
+        cr.getMainDataset().set("id", "t");
+        cr.getMainDataset().set("offset", "0");
+        cr.getMainDataset().set("count", "3");
+        cr.getMainDataset().set("sortField", "ssn");
+        cr.getMainDataset().set("descending", "false");
+        boolean gotException = false;
+        try {
+            TableSection.ajaxRows(cr);
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "TableSection.ajaxRows received unknown sort field " +
+                    "\"ssn\"", e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+    public void test_ajaxRows_countLimitedToPageSize() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.setPageProperty("t", new TableSection.PageProperty("t", PAGE, 2,
+                new Section[] {new Column("Name", "@name")}));
+        cr.getMainDataset().set("id", "t");
+        cr.getMainDataset().set("offset", "0");
+        cr.getMainDataset().set("count", "100000000");
+        cr.getMainDataset().set("sortField", "");
+        cr.getMainDataset().set("descending", "false");
+        TableSection.ajaxRows(cr);
+        TestUtil.assertSubstring("factory arguments", "offset 0, count 2,",
+                DataFactory.log);
+    }
+    public void test_ajaxRows_negativeOffset() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        cr.setPageProperty("t", new TableSection.PageProperty("t", PAGE, 2,
+                new Section[] {new Column("Name", "@name")}));
+        cr.getMainDataset().set("id", "t");
+        cr.getMainDataset().set("offset", "-5");
+        cr.getMainDataset().set("count", "2");
+        cr.getMainDataset().set("sortField", "");
+        cr.getMainDataset().set("descending", "false");
+        boolean gotException = false;
+        try {
+            TableSection.ajaxRows(cr);
+        }
+        catch (org.fiz.InternalError e) {
+            assertEquals("exception message",
+                    "TableSection.ajaxRows received negative offset -5",
+                    e.getMessage());
+            gotException = true;
+        }
+        assertEquals("exception happened", true, gotException);
+    }
+
     public void test_render_basics() {
         TableSection table = new TableSection(
                 new Dataset("data", people),
@@ -270,6 +480,201 @@ public class TableSectionTest extends junit.framework.TestCase {
         TestUtil.assertXHTML(cr.getHtml().toString());
     }
 
+    public void test_render_paged() {
+        TableSection table = new TableSection(
+                new Dataset("id", "t", "dataFactory", PAGE, "pageSize", "2",
+                "prefetch", "5"),
+                new Column("Name", "@name").setSortField("name"),
+                new Column("Age", "@name!"));
+        cr.showSections(table);
+        assertEquals("generated HTML", "\n" +
+                "<!-- Start TableSection t -->\n" +
+                "<div id=\"t_scroll\" class=\"TableSectionScroll\" " +
+                "onscroll=\"Fiz.ids.t.scrolled();\">\n" +
+                "<table id=\"t\" class=\"TableSection\" cellspacing=\"0\">\n" +
+                "  <tr class=\"header\">\n" +
+                "    <td id=\"t_header0\" class=\"left sortable\" " +
+                "onclick=\"Fiz.ids.t.sort(0, &quot;name&quot;);\">Name</td>\n" +
+                "    <td class=\"right\">Age</td>\n" +
+                "  </tr>\n" +
+                "  <tr id=\"t_above\" class=\"spacer\">" +
+                "<td colspan=\"2\"></td></tr>\n" +
+                "  <tr class=\"even\">\n" +
+                "    <td class=\"left\">row0</td>\n" +
+                "    <td class=\"right\">row0!</td>\n" +
+                "  </tr>\n" +
+                "  <tr class=\"odd\">\n" +
+                "    <td class=\"left\">row1</td>\n" +
+                "    <td class=\"right\">row1!</td>\n" +
+                "  </tr>\n" +
+                "  <tr id=\"t_below\" class=\"spacer\">" +
+                "<td colspan=\"2\"></td></tr>\n" +
+                "</table>\n" +
+                "</div>\n" +
+                "<!-- End TableSection t -->\n",
+                cr.getHtml().getBody().toString());
+        assertEquals("factory arguments", "offset 0, count 2, " +
+                "sortField \"\", descending false", DataFactory.log);
+        TestUtil.assertSubstring("Javascript",
+                "Fiz.ids.t = new Fiz.TableSection(\"t\", 2, 5, -1);\n",
+                cr.getHtml().getJs());
+        assertEquals("Javascript files",
+                "static/fiz/Ajax.js, static/fiz/Fiz.js, " +
+                "static/fiz/TableSection.js",
+                cr.getHtml().getJsFiles());
+        TableSection.PageProperty pageProperty =
+                (TableSection.PageProperty) cr.getPageProperty("t");
+        assertEquals("page property factory", PAGE,
+                pageProperty.dataFactory);
+        assertEquals("page property sort fields", "[name]",
+                pageProperty.sortFields.toString());
+    }
+    public void test_render_pagedAllRowsFit() {
+        TableSection table = new TableSection(
+                new Dataset("id", "t", "dataFactory", FROM_DATA,
+                "pageSize", "10"),
+                new Column("Name", "@name"));
+        cr.showSections(table);
+        TestUtil.assertSubstring("last row",
+                "  <tr class=\"last odd\">\n" +
+                "    <td class=\"left\">David</td>\n",
+                cr.getHtml().getBody().toString());
+        TestUtil.assertSubstring("Javascript",
+                "new Fiz.TableSection(\"t\", 10, 10, 4);\n",
+                cr.getHtml().getJs());
+    }
+    public void test_render_pagedEmpty() {
+        DataFactory.data = new Dataset();
+        TableSection table = new TableSection(
+                new Dataset("id", "t", "dataFactory", FROM_DATA,
+                "pageSize", "10"),
+                new Column("Name", "@name"));
+        cr.showSections(table);
+        TestUtil.assertSubstring("empty row and spacers",
+                "  <tr class=\"empty\">\n" +
+                "    <td colspan=\"1\">There are no records to display" +
+                "</td>\n  </tr>\n" +
+                "  <tr id=\"t_above\" class=\"spacer\">" +
+                "<td colspan=\"1\"></td></tr>\n" +
+                "  <tr id=\"t_below\" class=\"spacer\">" +
+                "<td colspan=\"1\"></td></tr>\n",
+                cr.getHtml().getBody().toString());
+    }
+
+    public void test_getRows_factory() {
+        TableSection table = new TableSection(new Dataset("id", "t",
+                "dataFactory", PAGE, "pageSize", "2"));
+        Dataset rows = table.getRows(1, 2, "name", true);
+        assertEquals("factory arguments", "offset 1, count 2, " +
+                "sortField \"name\", descending true", DataFactory.log);
+        assertEquals("rows", "record:\n" +
+                "  - name: row1\n" +
+                "  - name: row2\n", rows.toString());
+    }
+    public void test_pageData() {
+        Dataset rows = TableSection.pageData(people, 1, 2, "", false);
+        assertEquals("unsorted", "Bill, Carol, total 4",
+                rows.getDatasetList("record").get(0).getString("name") +
+                ", " +
+                rows.getDatasetList("record").get(1).getString("name") +
+                ", total " + rows.getString("totalRows"));
+        rows = TableSection.pageData(people, 0, 3, "name", true);
+        assertEquals("sorted descending", "David, Carol, Bill",
+                rows.getDatasetList("record").get(0).getString("name") +
+                ", " +
+                rows.getDatasetList("record").get(1).getString("name") +
+                ", " +
+                rows.getDatasetList("record").get(2).getString("name"));
+        rows = TableSection.pageData(people, 3, 3, "", false);
+        assertEquals("past end of data", 1,
+                rows.getDatasetList("record").size());
+        assertEquals("original data not reordered", "Alice",
+                people.getDatasetList("record").get(0).getString("name"));
+    }
+    public void test_pageData_numeric() {
+        Dataset rows = TableSection.pageData(people, 0, 4, "weight", false);
+        assertEquals("sorted numerically", "Carol, Alice, Bill, David",
+                rows.getDatasetList("record").get(0).getString("name") +
+                ", " +
+                rows.getDatasetList("record").get(1).getString("name") +
+                ", " +
+                rows.getDatasetList("record").get(2).getString("name") +
+                ", " +
+                rows.getDatasetList("record").get(3).getString("name"));
+        rows = TableSection.pageData(people, 0, 1, "ssn", false);
+        assertEquals("missing values: sorted as strings", 1,
+                rows.getDatasetList("record").size());
+    }
+    public void test_pageData_error() {
+        Dataset data = new Dataset();
+        data.setError(new Dataset("message", "sample <error>"));
+        assertEquals("error returned", data,
+                TableSection.pageData(data, 0, 3, "", false));
+    }
+
+    public void test_isNumber() {
+        assertEquals("integer", true, TableSection.isNumber("12"));
+        assertEquals("floating-point", true, TableSection.isNumber("-1.5e3"));
+        assertEquals("not a number", false, TableSection.isNumber("12a"));
+    }
+
+    public void test_getTotalRows() {
+        assertEquals("totalRows in data", 44, TableSection.getTotalRows(
+                new Dataset("totalRows", "44"), 0, 10));
+        assertEquals("fewer rows than requested", 13,
+                TableSection.getTotalRows(new Dataset(
+                "record", new Dataset("a", "1"),
+                "record", new Dataset("a", "2"),
+                "record", new Dataset("a", "3")), 10, 5));
+        assertEquals("unknown", -1, TableSection.getTotalRows(new Dataset(
+                "record", new Dataset("a", "1"),
+                "record", new Dataset("a", "2")), 10, 2));
+    }
+
+    public void test_printHeaderTd_notPaged() {
+        TableSection table = new TableSection(new Dataset("data", people),
+                new Column("Name", "@name").setSortField("name"));
+        StringBuilder out = new StringBuilder();
+        table.printHeaderTd(0, out);
+        assertEquals("header", "    <td class=\"left\">", out.toString());
+    }
+    public void test_printHeaderTd_sortable() {
+        TableSection table = new TableSection(new Dataset("id", "t",
+                "dataFactory", PAGE, "pageSize", "5"),
+                new Column("Name", "@name"),
+                new Column("Age", "@age").setSortField("age"),
+                new Column("Weight", "@weight").setSortField("weight"));
+        StringBuilder out = new StringBuilder();
+        table.printHeaderTd(0, out);
+        assertEquals("not sortable", "    <td class=\"left\">",
+                out.toString());
+        out.setLength(0);
+        table.printHeaderTd(1, out);
+        assertEquals("middle column", "    <td id=\"t_header1\" " +
+                "class=\"sortable\" " +
+                "onclick=\"Fiz.ids.t.sort(1, &quot;age&quot;);\">",
+                out.toString());
+        out.setLength(0);
+        table.printHeaderTd(2, out);
+        assertEquals("right column", "    <td id=\"t_header2\" " +
+                "class=\"right sortable\" " +
+                "onclick=\"Fiz.ids.t.sort(2, &quot;weight&quot;);\">",
+                out.toString());
+    }
+
+    public void test_renderRow() {
+        TableSection table = new TableSection(new Dataset("data", people),
+                new Column("Name", "@name"), new Column("Age", "@age"));
+        table.renderRow(cr, new Dataset("name", "Alice", "age", "24"), 3,
+                true);
+        assertEquals("generated HTML",
+                "  <tr class=\"last odd\">\n" +
+                "    <td class=\"left\">Alice</td>\n" +
+                "    <td class=\"right\">24</td>\n" +
+                "  </tr>\n",
+                cr.getHtml().getBody().toString());
+    }
+
     public void test_printTd() {
         StringBuilder out = new StringBuilder();
         TableSection table = new TableSection(
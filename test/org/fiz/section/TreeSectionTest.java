@@ -15,6 +15,7 @@
 
 package org.fiz.section;
 
+import java.io.*;
 import java.util.*;
 
 import org.fiz.*;
@@ -30,6 +31,15 @@ public class TreeSectionTest extends junit.framework.TestCase {
             return new Dataset("parent", nodeName, "record", new Dataset(
                        "name", "child1", "text", "Child #1"));
         }
+        public static Dataset paged(String nodeName, Integer offset,
+                Integer limit) {
+            Dataset result = new Dataset();
+            for (int i = offset; (i < 5) && (i < offset + limit); i++) {
+                result.add("record", new Dataset("name", nodeName + i,
+                        "expandable", (i == 0) ? "1" : "0"));
+            }
+            return result;
+        }
     }
 
     public void setUp() {
@@ -42,7 +52,8 @@ public class TreeSectionTest extends junit.framework.TestCase {
                 "  node-expanded: \"node-expanded: @name\"\n" +
                 "  leaf2: \"leaf2: @name\"\n" +
                 "  node2: \"node2: @name\"\n" +
-                "  node2-expanded: \"node-expanded: @name\"\n"));
+                "  node2-expanded: \"node-expanded: @name\"\n" +
+                "  more: \"more after @offset\"\n"));
     }
 
     public void test_constructor_defaultProperties() {
@@ -61,6 +72,18 @@ public class TreeSectionTest extends junit.framework.TestCase {
         assertEquals("dataFactory property", "getInfo",
                 tree.pageProperty.dataFactory);
     }
+    public void test_constructor_pageSize() {
+        TreeSection tree = new TreeSection(new Dataset("id", "1234",
+                "dataFactory", "getInfo", "pageSize", "50"));
+        assertEquals("pageSize property", 50, tree.pageProperty.pageSize);
+    }
+    public void test_constructor_cacheProperties() {
+        TreeSection tree = new TreeSection(new Dataset("id", "1234",
+                "dataFactory", "getInfo", "cacheTtl", "5",
+                "cacheSize", "20"));
+        assertEquals("cacheLifetime", 5000, tree.pageProperty.cacheLifetime);
+        assertEquals("cacheSize", 20, tree.pageProperty.cacheSize);
+    }
     public void test_constructor_explicitProperties() {
         TreeSection tree = new TreeSection(new Dataset("class", "class10",
                 "edgeFamily", "family44.gif","id", "1234",
@@ -93,15 +116,76 @@ public class TreeSectionTest extends junit.framework.TestCase {
         main.set("nodeId", "tree1_2");
         TreeSection.ajaxExpand(cr);
         assertEquals("Ajax javascript",
-                "Fiz.ids[\"tree1_2\"].expand(\"<table cellspacing=\\\"0\\\" " +
-                "class=\\\"TreeSection\\\" id=\\\"tree1_2\\\">\\n  " +
-                "<tr id=\\\"tree1_2_0\\\">\\n    <td class=\\\"left\\\" " +
-                "style=\\\"background-image: url(/static/fiz/images/" +
-                "treeSolid-line.gif); background-repeat: " +
-                "no-repeat;\\\"><img src=\\\"/static/fiz/images/" +
-                "treeSolid-leaf.gif\\\"></td>\\n    <td " +
-                "class=\\\"right\\\">leaf: child1</td>\\n  " +
-                "</tr>\\n</table>\\n\");\n",
+                "Fiz.ids[\"tree1_2\"].expandRows({sectionId: \"tree1\", " +
+                "baseId: \"tree1_2\", first: 0, className: \"TreeSection\", " +
+                "edgeFamily: \"treeSolid.gif\", " +
+                "rows: [{html: \"leaf: child1\"}]});\n",
+                cr.getJs());
+    }
+    public void test_ajaxExpand_pagePropertyMarkedDirty() throws IOException {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        TreeSection.PageProperty p = new TreeSection.PageProperty("TreeSection",
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "section.TreeSectionTest$DataFactory.data");
+        p.names.put("tree1_2", "node16");
+        cr.setPageProperty("tree1",  p);
+        // Serializing the page state makes it clean.
+        new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(
+                cr.pageState);
+        assertEquals("page state clean", false, cr.pageState.isDirty());
+        Dataset main = cr.getMainDataset();
+        main.clear();
+        main.set("sectionId", "tree1");
+        main.set("nodeId", "tree1_2");
+        TreeSection.ajaxExpand(cr);
+        assertEquals("page state dirty", true, cr.pageState.isDirty());
+    }
+    public void test_ajaxExpand_paged() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        TreeSection.PageProperty p = new TreeSection.PageProperty(null,
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "section.TreeSectionTest$DataFactory.paged");
+        p.pageSize = 2;
+        p.names.put("tree1_2", "node");
+        cr.setPageProperty("tree1",  p);
+        cr.jsCode = null;
+        Dataset main = cr.getMainDataset();
+        main.clear();
+        main.set("sectionId", "tree1");
+        main.set("nodeId", "tree1_2");
+        TreeSection.ajaxExpand(cr);
+        assertEquals("Ajax javascript",
+                "Fiz.ids[\"tree1_2\"].expandRows({sectionId: \"tree1\", " +
+                "baseId: \"tree1_2\", first: 0, className: \"TreeSection\", " +
+                "edgeFamily: \"treeSolid.gif\", " +
+                "rows: [{html: \"node: node0\", " +
+                "expanded: \"node-expanded: node0\"}, " +
+                "{html: \"leaf: node1\"}], more: \"more after 2\"});\n",
+                cr.getJs());
+        assertEquals("name for expandable child", "node0",
+                p.names.get("tree1_2_0"));
+    }
+
+    public void test_ajaxMore() {
+        cr.setClientRequestType(ClientRequest.Type.AJAX);
+        TreeSection.PageProperty p = new TreeSection.PageProperty(null,
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "section.TreeSectionTest$DataFactory.paged");
+        p.pageSize = 2;
+        p.names.put("tree1", "root");
+        cr.setPageProperty("tree1",  p);
+        cr.jsCode = null;
+        Dataset main = cr.getMainDataset();
+        main.clear();
+        main.set("sectionId", "tree1");
+        main.set("nodeId", "tree1");
+        main.set("offset", "4");
+        TreeSection.ajaxMore(cr);
+        assertEquals("Ajax javascript",
+                "Fiz.TreeRow.addRows({sectionId: \"tree1\", " +
+                "baseId: \"tree1\", first: 4, className: \"TreeSection\", " +
+                "edgeFamily: \"treeSolid.gif\", " +
+                "rows: [{html: \"leaf: root4\"}]});\n",
                 cr.getJs());
     }
 
@@ -183,6 +267,78 @@ public class TreeSectionTest extends junit.framework.TestCase {
                 cr.getHtml().getBody().toString());
     }
 
+    public void test_render_paged() {
+        TreeSection tree = new TreeSection(new Dataset("id", "tree14",
+                "dataFactory", "section.TreeSectionTest$DataFactory.paged",
+                "pageSize", "1", "rootName", "top"));
+        tree.render(cr);
+        TestUtil.assertSubstring("more row",
+                "  <tr id=\"tree14_more\">\n" +
+                "    <td class=\"left\" style=\"background-image: " +
+                "url(/static/fiz/images/treeSolid-line.gif); " +
+                "background-repeat: no-repeat;\"><img src=\"/static/fiz/" +
+                "images/treeSolid-leaf.gif\"></td>\n" +
+                "    <td class=\"right\" onclick=\"void new Fiz.Ajax(" +
+                "{url: &quot;/TreeSection/ajaxMore?sectionId=tree14&amp;" +
+                "nodeId=tree14&amp;offset=1&quot;});\">more after 1</td>\n" +
+                "  </tr>\n" +
+                "</table>\n",
+                cr.getHtml().getBody().toString());
+        assertEquals("name for root", "top",
+                tree.pageProperty.names.get("tree14"));
+    }
+
+    public void test_getChildren_notPaged() {
+        TreeSection.PageProperty p = new TreeSection.PageProperty(null,
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "section.TreeSectionTest$DataFactory.data");
+        ArrayList<Dataset> children = TreeSection.getChildren(p, "x", 10);
+        assertEquals("number of children", 1, children.size());
+        assertEquals("first child", "child1",
+                children.get(0).getString("name"));
+    }
+    public void test_getChildren_cached() {
+        TreeSection.PageProperty p = new TreeSection.PageProperty(null,
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "section.TreeSectionTest$DataFactory.data");
+        p.cacheLifetime = 10000;
+        FactoryCache.clearAll();
+        org.fiz.Timer hits = org.fiz.Timer.getNamedTimer(
+                "FactoryCache hit: section.TreeSectionTest$DataFactory.data");
+        long oldHits = hits.getCount();
+        TreeSection.getChildren(p, "x", 0);
+        ArrayList<Dataset> children = TreeSection.getChildren(p, "x", 0);
+        assertEquals("result from cache", 1, hits.getCount() - oldHits);
+        assertEquals("cached child", "child1",
+                children.get(0).getString("name"));
+        FactoryCache.clearAll();
+    }
+    public void test_getChildren_paged() {
+        TreeSection.PageProperty p = new TreeSection.PageProperty(null,
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "section.TreeSectionTest$DataFactory.paged");
+        p.pageSize = 2;
+        ArrayList<Dataset> children = TreeSection.getChildren(p, "x", 1);
+        assertEquals("number of children (includes one extra)", 3,
+                children.size());
+        assertEquals("first child", "x1", children.get(0).getString("name"));
+    }
+
+    public void test_appendRowInfo_explicitClass() {
+        TreeSection.PageProperty p = new TreeSection.PageProperty("xyzzy",
+                "treeDotted.gif", "tree1", "TreeSection.leaf",
+                "TreeSection.node", "none");
+        ArrayList<Dataset> children = new ArrayList<Dataset>();
+        children.add(new Dataset("name", "<Alice>"));
+        StringBuilder out = new StringBuilder();
+        TreeSection.appendRowInfo(p, children, "tree1_3", 6, out);
+        assertEquals("generated Javascript",
+                "{sectionId: \"tree1\", baseId: \"tree1_3\", first: 6, " +
+                "className: \"xyzzy\", edgeFamily: \"treeDotted.gif\", " +
+                "rows: [{html: \"leaf: &lt;Alice&gt;\"}]}",
+                out.toString());
+    }
+
     public void test_renderChildren_basics() {
         StringBuilder out = new StringBuilder();
         ArrayList<Dataset> children = new ArrayList<Dataset>();
@@ -192,7 +348,7 @@ public class TreeSectionTest extends junit.framework.TestCase {
         TreeSection.PageProperty p = new TreeSection.PageProperty("TreeSection",
                 "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
                 "TreeSectionTest$DataFactory.data");
-        TreeSection.renderChildren(cr, p, children, "tree1_3", out);
+        TreeSection.renderChildren(cr, p, children, "tree1_3", 0, out);
         assertEquals("generated HTML", "  <tr id=\"tree1_3_0\">\n" +
                 "    <td class=\"left\" style=\"background-image: url(" +
                 "/static/fiz/images/treeSolid-line.gif); background-repeat: " +
@@ -235,7 +391,7 @@ public class TreeSectionTest extends junit.framework.TestCase {
         TreeSection.PageProperty p = new TreeSection.PageProperty("TreeSection",
                 "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
                 "none");
-        TreeSection.renderChildren(cr, p, children, "tree1_3", out);
+        TreeSection.renderChildren(cr, p, children, "tree1_3", 0, out);
         assertEquals("generated HTML", "  <tr id=\"tree1_3_0\">\n" +
                 "    <td class=\"left\" style=\"background-image: url" +
                 "(/static/fiz/images/treeSolid-line.gif); " +
@@ -254,7 +410,7 @@ public class TreeSectionTest extends junit.framework.TestCase {
         TreeSection.PageProperty p = new TreeSection.PageProperty("TreeSection",
                 "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
                 "none");
-        TreeSection.renderChildren(cr, p, children, "tree1_3", out);
+        TreeSection.renderChildren(cr, p, children, "tree1_3", 0, out);
         String javascript = cr.getHtml().getJs();
         assertEquals("accumulated Javascript",
                 "Fiz.ids[\"tree1_3_0\"] = new Fiz.TreeRow(\"tree1_3_0\", " +
@@ -283,6 +439,34 @@ public class TreeSectionTest extends junit.framework.TestCase {
                 "right\\\">node-expanded: Alice</td>\\n  </tr>\\n\");\n",
                  javascript.substring(javascript.indexOf("Fiz.ids")));
     }
+    public void test_renderChildren_moreChildren() {
+        StringBuilder out = new StringBuilder();
+        ArrayList<Dataset> children = new ArrayList<Dataset>();
+        children.add(new Dataset("name", "Alice"));
+        children.add(new Dataset("name", "Bob"));
+        TreeSection.PageProperty p = new TreeSection.PageProperty("TreeSection",
+                "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
+                "none");
+        p.pageSize = 1;
+        TreeSection.renderChildren(cr, p, children, "tree1_3", 4, out);
+        assertEquals("generated HTML", "  <tr id=\"tree1_3_4\">\n" +
+                "    <td class=\"left\" style=\"background-image: url(" +
+                "/static/fiz/images/treeSolid-line.gif); background-repeat: " +
+                "repeat-y;\"><img src=\"/static/fiz/images/treeSolid-leaf.gif\">" +
+                "</td>\n" +
+                "    <td class=\"right\">leaf: Alice</td>\n" +
+                "  </tr>\n" +
+                "  <tr id=\"tree1_3_more\">\n" +
+                "    <td class=\"left\" style=\"background-image: url(" +
+                "/static/fiz/images/treeSolid-line.gif); background-repeat: " +
+                "no-repeat;\"><img src=\"/static/fiz/images/treeSolid-leaf.gif\">" +
+                "</td>\n" +
+                "    <td class=\"right\" onclick=\"void new Fiz.Ajax({url: " +
+                "&quot;/TreeSection/ajaxMore?sectionId=tree1&amp;" +
+                "nodeId=tree1%5f3&amp;offset=5&quot;});\">more after 5</td>\n" +
+                "  </tr>\n",
+                out.toString());
+    }
     public void test_renderChildren_lastRowExpandable() {
         StringBuilder out = new StringBuilder();
         ArrayList<Dataset> children = new ArrayList<Dataset>();
@@ -291,7 +475,7 @@ public class TreeSectionTest extends junit.framework.TestCase {
         TreeSection.PageProperty p = new TreeSection.PageProperty("TreeSection",
                 "treeSolid.gif", "tree1", "TreeSection.leaf", "TreeSection.node",
                 "none");
-        TreeSection.renderChildren(cr, p, children, "tree1_3", out);
+        TreeSection.renderChildren(cr, p, children, "tree1_3", 0, out);
         TestUtil.assertSubstring("generated HTML",
                 "<tr id=\"tree1_3_0_childRow\" style=\"display:none\">\n" +
                 "    <td></td>\n" +
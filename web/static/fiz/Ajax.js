@@ -20,6 +20,11 @@
  *     response.
  *   * If unexpected errors occurred while handling an Ajax request,
  *     error information is displayed in the bulletin.
+ *   * If {@code Fiz.Ajax.batching} is true, requests issued during the
+ *     same pass through the browser's event loop are combined into a
+ *     single HTTP request (see {@code Fiz.Ajax.Batch}); the server
+ *     processes the requests in order and returns all of the responses
+ *     together.
  *
  * Copyright (c) 2009 Stanford University
  *
@@ -52,6 +57,10 @@
  *                                 objects in addition to string values.
  *                                 Each top-level value becomes an entry
  *                                 in the main dataset on the server.
+ *   batch:                        (optional) False means never include
+ *                                 this request in a batch (e.g., because
+ *                                 the server may take a long time to
+ *                                 respond).
  * @param properties               Object whose properties describe the
  *                                 request.  See above for supported values.
  *                                 Or, this parameter can be a string
@@ -60,48 +69,62 @@
  *                                 default values.
  */
 Fiz.Ajax = function(properties) {
+    var batch = true;
     if ((typeof properties) == "string") {
         this.url = properties;
     } else {
         this.url = properties.url;
         this.data = properties.data;
+        batch = (properties.batch != false);
     }
     this.xmlhttp = null;           // XMLHTTP object for controlling the
                                    // request.
+    this.batch = null;             // If this request was sent as part of
+                                   // a Fiz.Ajax.Batch, refers to the batch.
+    this.aborted = false;          // True means abort has been invoked.
 
-    // Create the XMLHTTP object that will be used for transport; try
-    // several different ways, since different browsers implement it
-    // differently.
-    if (window.XMLHttpRequest) {
-        this.xmlhttp = new XMLHttpRequest();
-    } else {
-        try {
-            this.xmlhttp = new ActiveXObject("Msxml2.XMLHTTP");
-        } catch(e) {
-            try {
-                this.xmlhttp = new ActiveXObject("Microsoft.XMLHTTP");
-            } catch(e) {
-                this.error("couldn't create XMLHttpRequest object");
-                return;
-            }
+    if (Fiz.Ajax.batching && batch) {
+        // Queue the request; it will be sent along with any other requests
+        // issued before control returns to the event loop.
+        Fiz.Ajax.pending.push(this);
+        if (Fiz.Ajax.pending.length == 1) {
+            setTimeout(Fiz.Ajax.flush, 0);
         }
+        return;
     }
+    this.send();
+}
 
-    // The code below creates a function that, when invoked, will call
-    // stateChange on this object.
-    var _targetObject = this;
-    this.xmlhttp.onreadystatechange = function() {
-        _targetObject.stateChange();
-    }
+// If the following variable is true, requests are batched (see the
+// documentation at the top of this file).  The server sets this variable
+// in pages for which batching is enabled.
+Fiz.Ajax.batching = false;
 
-    // Send out the request.
-    this.xmlhttp.open("POST", this.url);
-    this.xmlhttp.setRequestHeader("Content-type", "text/fiz; charset=utf-8");
-    var postData = "";
-    postData += "main.";
-    postData += Fiz.Ajax.serialize(this.data);
-    this.xmlhttp.send(postData);
-    Fiz.clearBulletinBeforeNextAdd();
+// The following variable holds requests that have been issued but not
+// yet sent, when batching is enabled.
+Fiz.Ajax.pending = [];
+
+/**
+ * Cancel a request that has not yet completed.  Any response that
+ * arrives later is ignored.
+ */
+Fiz.Ajax.prototype.abort = function() {
+    this.aborted = true;
+    for (var i = 0; i < Fiz.Ajax.pending.length; i++) {
+        if (Fiz.Ajax.pending[i] == this) {
+            // The request hasn't been sent yet; just forget about it.
+            Fiz.Ajax.pending.splice(i, 1);
+            return;
+        }
+    }
+    if (this.xmlhttp == null) {
+        // Either the request is complete or it was sent as part of a
+        // batch, in which case its response will be ignored.
+        return;
+    }
+    this.xmlhttp.onreadystatechange = function() {};
+    this.xmlhttp.abort();
+    this.xmlhttp = null;
 }
 
 /**
@@ -127,10 +150,18 @@ Fiz.Ajax.prototype.stateChange = function() {
         return;
     }
 
+    this.evalResponse(this.xmlhttp.responseText);
+}
+
+/**
+ * Private: carry out the actions in the response to this request.
+ * @param response                 Javascript code returned by the server.
+ */
+Fiz.Ajax.prototype.evalResponse = function(response) {
     // The response consists of Javascript code that will carry out the
     // server's wishes.
     try {
-        eval(this.xmlhttp.responseText);
+        eval(response);
     } catch (e) {
         var where = "";
         if (e.fileName && e.lineNumber) {
@@ -140,6 +171,26 @@ Fiz.Ajax.prototype.stateChange = function() {
     }
 }
 
+/**
+ * Private: create the XMLHTTP object for this request and transmit the
+ * request to the server.
+ */
+Fiz.Ajax.prototype.send = function() {
+    this.xmlhttp = Fiz.Ajax.newXmlHttp(this);
+    if (this.xmlhttp == null) {
+        return;
+    }
+
+    // Send out the request.
+    this.xmlhttp.open("POST", this.url);
+    this.xmlhttp.setRequestHeader("Content-type", "text/fiz; charset=utf-8");
+    var postData = "";
+    postData += "main.";
+    postData += Fiz.Ajax.serialize(this.data);
+    this.xmlhttp.send(postData);
+    Fiz.clearBulletinBeforeNextAdd();
+}
+
 /**
  * Private: this function is invoked when an error occurs during an Ajax
  * request.  It reports the error to the user, using the bulletin.
@@ -151,6 +202,131 @@ Fiz.Ajax.prototype.error = function(message) {
             "Ajax request for " + this.url + ": " + message + "</div>");
 }
 
+/**
+ * Private: this function is invoked (via setTimeout) to send all of
+ * the requests in {@code Fiz.Ajax.pending}.  A single request is sent
+ * in the normal way; multiple requests are combined into a batch.
+ */
+Fiz.Ajax.flush = function() {
+    var requests = Fiz.Ajax.pending;
+    Fiz.Ajax.pending = [];
+    if (requests.length == 1) {
+        requests[0].send();
+    } else if (requests.length > 1) {
+        new Fiz.Ajax.Batch(requests);
+    }
+}
+
+/**
+ * Private: create an XMLHTTP object, trying several different ways,
+ * since different browsers implement it differently.  When the state
+ * of the object changes, the {@code stateChange} method of
+ * {@code target} is invoked.
+ * @param target                   Object that will handle the response:
+ *                                 either a Fiz.Ajax or a Fiz.Ajax.Batch.
+ * @return                         The new object, or null if it couldn't
+ *                                 be created (in which case an error has
+ *                                 been reported).
+ */
+Fiz.Ajax.newXmlHttp = function(target) {
+    var xmlhttp = null;
+    if (window.XMLHttpRequest) {
+        xmlhttp = new XMLHttpRequest();
+    } else {
+        try {
+            xmlhttp = new ActiveXObject("Msxml2.XMLHTTP");
+        } catch(e) {
+            try {
+                xmlhttp = new ActiveXObject("Microsoft.XMLHTTP");
+            } catch(e) {
+                target.error("couldn't create XMLHttpRequest object");
+                return null;
+            }
+        }
+    }
+    xmlhttp.onreadystatechange = function() {
+        target.stateChange();
+    }
+    return xmlhttp;
+}
+
+/**
+ * Private: a Batch object sends several Ajax requests to the server in a
+ * single HTTP request.  The POST data consists of one
+ * {@code url.<length>.<url>main.<dataset>} sequence for each request, and
+ * the HTTP request is addressed to the URL of the first request (relative
+ * URLs in the other requests are interpreted relative to that URL).  The
+ * response contains the Javascript for each request, in order, with each
+ * preceded by {@code <length>.}.
+ * @param requests                 Array of Fiz.Ajax objects that have not
+ *                                 been sent.
+ */
+Fiz.Ajax.Batch = function(requests) {
+    this.requests = requests;
+    var urls = [];
+    var postData = "";
+    for (var i = 0; i < requests.length; i++) {
+        var request = requests[i];
+        request.batch = this;
+        urls.push(request.url);
+        postData += "url." + request.url.length + "." + request.url +
+                "main." + Fiz.Ajax.serialize(request.data);
+    }
+    this.url = urls.join(", ");    // Used in error messages.
+    this.xmlhttp = Fiz.Ajax.newXmlHttp(this);
+    if (this.xmlhttp == null) {
+        return;
+    }
+    this.xmlhttp.open("POST", requests[0].url);
+    this.xmlhttp.setRequestHeader("Content-type",
+            "text/fiz-batch; charset=utf-8");
+    this.xmlhttp.send(postData);
+    Fiz.clearBulletinBeforeNextAdd();
+}
+
+/**
+ * Private: this function is invoked by the browser's XMLHTTP object when
+ * the state of a batch has changed.  Once the response has been received,
+ * it is split up and the response for each request is evaluated in order
+ * (responses for aborted requests are ignored).
+ */
+Fiz.Ajax.Batch.prototype.stateChange = function() {
+    if (this.xmlhttp.readyState != 4) {
+        return;
+    }
+    this.xmlhttp.onreadystatechange = null;
+    if (this.xmlhttp.status != 200) {
+        this.error( "HTTP error " + this.xmlhttp.status + ": "
+                + this.xmlhttp.statusText);
+        return;
+    }
+    var text = this.xmlhttp.responseText;
+    if (!/^\d+\./.test(text)) {
+        // The server couldn't process the batch at all; the response
+        // contains Javascript to report the problem.
+        this.requests[0].evalResponse(text);
+        return;
+    }
+    var current = 0;
+    for (var i = 0; i < this.requests.length; i++) {
+        var dot = text.indexOf(".", current);
+        var length = parseInt(text.substring(current, dot), 10);
+        if ((dot < 0) || isNaN(length)) {
+            this.error("malformed response for batched requests");
+            return;
+        }
+        var response = text.substr(dot + 1, length);
+        current = dot + 1 + length;
+        if (!this.requests[i].aborted) {
+            this.requests[i].evalResponse(response);
+        }
+    }
+}
+
+// Errors in a batch are reported in the same way as for individual
+// requests.
+Fiz.Ajax.Batch.prototype.error = Fiz.Ajax.prototype.error;
+
 /**
  * Private: translate a dataset-like object into the form of a serialized
  * dataset, which can then be sent to Fiz.  See the {@code serialize}
@@ -204,6 +380,11 @@ Fiz.Ajax.serialize = function(object, hideHeader) {
             result += prefix + "10.fiz_pageId" + Fiz.pageId.length + "." +
                       Fiz.pageId;
         }
+        // If the page's state is kept in the browser, include that too.
+        if (Fiz.pageState) {
+            result += prefix + "13.fiz_pageState" + Fiz.pageState.length +
+                      "." + Fiz.pageState;
+        }
     }
     result += ")";
     return result;
@@ -35,8 +35,13 @@ Fiz.Key = {
  * Create a AutocompleteFormElement object.
  * @param id                       Id for the {@code <div>} element
  *                                 that represents the autcomplete form.
+ * @param delay                    (optional) Number of milliseconds to wait
+ *                                 after a keystroke before asking the
+ *                                 server for choices; if another keystroke
+ *                                 arrives during this time the wait starts
+ *                                 over.  Defaults to 150.
  */
-Fiz.AutocompleteFormElement = function(id) {
+Fiz.AutocompleteFormElement = function(id, delay) {
     // Set the id identifying the <input> element for this form
     // element and from which all related ids are derived
     this.id = id;
@@ -76,8 +81,38 @@ Fiz.AutocompleteFormElement = function(id) {
 
     // Dropdown menu of autocomplete choices
     this.dropdown = document.getElementById(id + '_dropdown');
+
+    // Milliseconds to wait for typing to pause before issuing a request.
+    this.delay = (delay == undefined) ? 150 : delay;
+
+    // Identifier for the timer that will issue the next request, or null
+    // if there is no request waiting to be issued.
+    this.timer = null;
+
+    // Fiz.Ajax object for the request currently in progress, or null if
+    // none.
+    this.request = null;
+
+    // Sequence number of the most recent request; included in each
+    // request and returned in the response, so that responses to
+    // superseded requests can be ignored.
+    this.sequence = 0;
+
+    // HTML for the dropdown, indexed by the user input that produced it;
+    // used to avoid asking the server again for input that has already
+    // been seen (e.g., after a backspace).  {@code cacheSize} counts the
+    // entries; the cache is flushed when it reaches
+    // {@code Fiz.AutocompleteFormElement.maxCacheSize}.  Because the keys
+    // are arbitrary user input (which might be "constructor", for
+    // example), entries must be checked with {@code hasOwnProperty}
+    // rather than by looking them up directly.
+    this.cache = {};
+    this.cacheSize = 0;
 }
 
+// Maximum number of entries in the cache for each element.
+Fiz.AutocompleteFormElement.maxCacheSize = 100;
+
 /**
  * This method is invoked when a keydown event occurs while the <input> element
  * is in focus. Overrides the default key behavior of the tab, enter, esc,
@@ -243,14 +278,17 @@ Fiz.AutocompleteFormElement.prototype.nextResult = function() {
 }
 
 /**
- * This method generates an Ajax call that retrieves the autocomplete
- * results from the server.
+ * This method is invoked whenever the user types a key; if the input
+ * has changed it arranges for the dropdown to be refreshed.  Choices that
+ * have been seen before are displayed immediately from the cache;
+ * otherwise an Ajax request is issued once the user pauses typing.
  */
 Fiz.AutocompleteFormElement.prototype.refreshMenu = function() {
     if (this.input.value == '') {
+        this.cancelRequest();
         this.hideDropdown(true);
     } else {
-        // We launch a new Ajax request if the form value has changed.
+        // We refresh the menu if the form value has changed.
         if (this.input.value != this.lastInputValue) {
             // Reset the state of the dropdown since we are clearing all its
             // contents
@@ -258,10 +296,90 @@ Fiz.AutocompleteFormElement.prototype.refreshMenu = function() {
             this.highlighted = null;
             this.lastInputValue = this.input.value;
             this.lastUserInput = this.input.value;
-            new Fiz.Ajax({
-                    url: '/AutocompleteFormElement/ajaxQuery',
-                    data: { id: this.id, userInput: this.input.value }
-            });
+            this.cancelRequest();
+            if (Object.prototype.hasOwnProperty.call(this.cache,
+                    this.input.value)) {
+                this.showChoices(this.cache[this.input.value]);
+                return;
+            }
+            var _this = this;
+            this.timer = setTimeout(function() {
+                    _this.timer = null;
+                    _this.sendRequest();
+                }, this.delay);
         }
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Cancel any request for choices that has been scheduled or is in
+ * progress, so that its results will not be displayed.
+ */
+Fiz.AutocompleteFormElement.prototype.cancelRequest = function() {
+    if (this.timer != null) {
+        clearTimeout(this.timer);
+        this.timer = null;
+    }
+    if (this.request != null) {
+        this.request.abort();
+        this.request = null;
+    }
+}
+
+/**
+ * This method generates an Ajax call that retrieves the autocomplete
+ * results for the current input from the server.  The server's response
+ * will invoke {@code setChoices}.
+ */
+Fiz.AutocompleteFormElement.prototype.sendRequest = function() {
+    this.sequence++;
+    this.request = new Fiz.Ajax({
+            url: '/AutocompleteFormElement/ajaxQuery',
+            data: { id: this.id, userInput: this.input.value,
+                    sequence: this.sequence }
+    });
+}
+
+/**
+ * This method is invoked by the server's response to an Ajax request
+ * for choices; it saves the choices in the cache and displays them,
+ * unless the response is for an out-of-date request.
+ * @param sequence                 Sequence number from the request.
+ * @param userInput                User input from the request.
+ * @param html                     HTML for the contents of the dropdown,
+ *                                 or an empty string if there are no
+ *                                 choices.
+ */
+Fiz.AutocompleteFormElement.prototype.setChoices = function(sequence,
+        userInput, html) {
+    if (this.cacheSize >= Fiz.AutocompleteFormElement.maxCacheSize) {
+        this.cache = {};
+        this.cacheSize = 0;
+    }
+    if (!Object.prototype.hasOwnProperty.call(this.cache, userInput)) {
+        this.cacheSize++;
+    }
+    this.cache[userInput] = html;
+    if (sequence != this.sequence) {
+        // A newer request has been issued since this one; ignore it.
+        return;
+    }
+    this.request = null;
+    this.showChoices(html);
+}
+
+/**
+ * Fill in the dropdown with a new set of choices and display it (or hide
+ * it if there are no choices).
+ * @param html                     HTML for the contents of the dropdown,
+ *                                 or an empty string if there are no
+ *                                 choices.
+ */
+Fiz.AutocompleteFormElement.prototype.showChoices = function(html) {
+    this.dropdown.innerHTML = html;
+    if (html == '') {
+        this.hideDropdown(true);
+    } else {
+        this.showDropdown();
+    }
+}
@@ -43,3 +43,188 @@ Fiz.Chart.Series.prototype.set = function(name, value) {
 Fiz.Chart.Series.prototype.get = function(name) {
     return this.config[name];
 };
+
+/*
+ * Replaces the data for the series with columns of X and Y values. The
+ * columns are kept (as the {@code x} and {@code y} properties), and
+ * {@code data} is rebuilt as [x, y] pairs for the plotting code; X values
+ * become strings, just as in data included in the page.
+ *
+ * @param x         Array (or typed array) of X values
+ * @param y         Array (or typed array) of Y values; must be the same
+ *                  length as {@code x}
+ */
+Fiz.Chart.Series.prototype.setColumns = function(x, y) {
+    this.x = x;
+    this.y = y;
+    this.data = new Array(y.length);
+    for (var i = 0; i < y.length; i++) {
+        this.data[i] = [String(x[i]), y[i]];
+    }
+};
+
+// Codes used in the binary data format to describe a column of values.
+// These must match the values in ChartSection.java.
+Fiz.Chart.Series.INT32 = 1;
+Fiz.Chart.Series.FLOAT64 = 2;
+Fiz.Chart.Series.TEXT = 3;
+
+/*
+ * Fetches the data for one or more series from the server in binary form
+ * (as generated by ChartSection.encodeSeries) and stores it in the series.
+ * Requires Ajax.js and a browser with typed arrays.
+ *
+ * @param url       (String) URL from which to fetch the data
+ * @param series    Array of Fiz.Chart.Series objects that will receive the
+ *                  data, in the same order as the series in the response
+ * @param done      Function to invoke once the data has been stored
+ */
+Fiz.Chart.Series.load = function(url, series, done) {
+    var request = {
+        url: url,
+        error: Fiz.Ajax.prototype.error,
+        stateChange: function() {
+            var xmlhttp = request.xmlhttp;
+            if (xmlhttp.readyState != 4) {
+                return;
+            }
+            xmlhttp.onreadystatechange = null;
+            if (xmlhttp.status != 200) {
+                request.error("HTTP error " + xmlhttp.status + ": "
+                        + xmlhttp.statusText);
+                return;
+            }
+            var type = xmlhttp.getResponseHeader("Content-Type");
+            if (!type || (type.indexOf("application/octet-stream") != 0)) {
+                // The server couldn't return the data; the response
+                // contains Javascript to report the problem.
+                Fiz.Ajax.prototype.evalResponse.call(request,
+                        Fiz.Chart.Series.decodeText(
+                        new Uint8Array(xmlhttp.response)));
+                return;
+            }
+            try {
+                Fiz.Chart.Series.decode(xmlhttp.response, series);
+                done();
+            } catch (e) {
+                request.error(e);
+            }
+        }
+    };
+    request.xmlhttp = Fiz.Ajax.newXmlHttp(request);
+    if (request.xmlhttp == null) {
+        return;
+    }
+    request.xmlhttp.open("POST", url);
+    request.xmlhttp.responseType = "arraybuffer";
+    request.xmlhttp.setRequestHeader("Content-type",
+            "text/fiz; charset=utf-8");
+    request.xmlhttp.send("main." + Fiz.Ajax.serialize({}));
+};
+
+/*
+ * Decodes binary series data (see ChartSection.encodeSeries) and stores it
+ * in series objects.
+ *
+ * @param buffer    (ArrayBuffer) The encoded data
+ * @param series    Array of Fiz.Chart.Series objects that will receive the
+ *                  data, in order
+ */
+Fiz.Chart.Series.decode = function(buffer, series) {
+    var view = new DataView(buffer);
+    var count = view.getInt32(0, true);
+    var offset = 8;
+    for (var i = 0; i < count; i++) {
+        var points = view.getInt32(offset, true);
+        var xType = view.getInt32(offset + 4, true);
+        var yType = view.getInt32(offset + 8, true);
+        var xLength = view.getInt32(offset + 12, true);
+        offset += 16;
+        var x = Fiz.Chart.Series.readColumn(buffer, offset, xType, points,
+                xLength);
+        offset += (xLength + 7) & ~7;
+        var yLength = points * ((yType == Fiz.Chart.Series.INT32) ? 4 : 8);
+        var y = Fiz.Chart.Series.readColumn(buffer, offset, yType, points,
+                yLength);
+        offset += (yLength + 7) & ~7;
+        if (series[i]) {
+            series[i].setColumns(x, y);
+        }
+    }
+};
+
+/*
+ * Private: converts UTF-8 bytes to a string.
+ *
+ * @param bytes     (Uint8Array) The bytes to convert
+ * @return          The decoded string
+ */
+Fiz.Chart.Series.decodeText = function(bytes) {
+    if (typeof TextDecoder != "undefined") {
+        return new TextDecoder("utf-8").decode(bytes);
+    }
+    var chars = [];
+    for (var i = 0; i < bytes.length; i++) {
+        chars.push(String.fromCharCode(bytes[i]));
+    }
+    return decodeURIComponent(escape(chars.join("")));
+};
+
+/*
+ * Private: splits the text of a TEXT column (see ChartSection.joinLabels)
+ * into its values.
+ *
+ * @param text      (String) Values separated by newlines, with backslashes
+ *                  and newlines in the values escaped
+ * @param count     Number of values in the column
+ * @return          Array of strings
+ */
+Fiz.Chart.Series.splitLabels = function(text, count) {
+    if (count == 0) {
+        return [];
+    }
+    var labels = text.split("\n");
+    if (text.indexOf("\\") >= 0) {
+        for (var i = 0; i < labels.length; i++) {
+            labels[i] = labels[i].replace(/\\(.)/g, function(match, c) {
+                return (c == "n") ? "\n" : c;
+            });
+        }
+    }
+    return labels;
+};
+
+// True means this machine stores numbers in little-endian order, so typed
+// arrays can be used directly on the data from the server.
+Fiz.Chart.Series.littleEndian = (typeof Uint8Array != "undefined") &&
+        (new Uint8Array(new Uint32Array([1]).buffer)[0] == 1);
+
+/*
+ * Private: returns one column of values from binary series data.
+ *
+ * @param buffer    (ArrayBuffer) The encoded data
+ * @param offset    Byte offset of the column within {@code buffer}
+ * @param type      Type code for the column (INT32, FLOAT64, or TEXT)
+ * @param count     Number of values in the column
+ * @param length    Length of the column, in bytes
+ * @return          An Int32Array, Float64Array, or Array of strings
+ */
+Fiz.Chart.Series.readColumn = function(buffer, offset, type, count, length) {
+    var i;
+    if (type == Fiz.Chart.Series.TEXT) {
+        return Fiz.Chart.Series.splitLabels(Fiz.Chart.Series.decodeText(
+                new Uint8Array(buffer, offset, length)), count);
+    }
+    var isInt = (type == Fiz.Chart.Series.INT32);
+    if (Fiz.Chart.Series.littleEndian) {
+        return isInt ? new Int32Array(buffer, offset, count)
+                : new Float64Array(buffer, offset, count);
+    }
+    var view = new DataView(buffer, offset, length);
+    var result = isInt ? new Int32Array(count) : new Float64Array(count);
+    for (i = 0; i < count; i++) {
+        result[i] = isInt ? view.getInt32(4*i, true)
+                : view.getFloat64(8*i, true);
+    }
+    return result;
+};
@@ -40,6 +40,12 @@ Fiz.ids = Object();
 // the regional rendering later on during an Ajax request or form post.
 Fiz.pageId = null;
 
+// If page state is kept in the browser (see ClientPageStateStore.java),
+// the following variable holds the signed state for this page, which is
+// returned to the server in form posts and Ajax requests.  Null means the
+// page has no state in the browser.
+Fiz.pageState = null;
+
 // The following variable holds an authentication token used to prevent
 // CSRF attacks during form posts and Ajax requests.  The value is set
 // by the Java method ClientRequest.setAuthToken; null means that
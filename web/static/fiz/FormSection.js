@@ -142,6 +142,15 @@ Fiz.FormSection.prototype.submit = function() {
             element.value = Fiz.pageId;
         }
     }
+
+    // Similarly, if the page's state is kept in the browser, return it
+    // with the form.
+    if (Fiz.pageState) {
+        var element = document.getElementById(this.id + "_fizPageState");
+        if (element != null) {
+            element.value = Fiz.pageState;
+        }
+    }
     return true;
 }
 
@@ -0,0 +1,164 @@
+/* PushChannel.js --
+ *
+ * This file implements the browser side of push channels, which allow
+ * the server to update a page at any time (see PushChannel.java).  The
+ * server queues Javascript for the page; this code retrieves it using
+ * Server-Sent Events if the browser supports them, or long polling with
+ * Fiz.Ajax otherwise, and evaluates it.
+ *
+ * Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+// The following line is used by Fiz to manage Javascript dependencies.
+// Fiz:include static/fiz/Fiz.js, static/fiz/Ajax.js
+
+Fiz.PushChannel = {
+    // True means start has been invoked and stop hasn't.
+    running: false,
+
+    // Id of the last message received from the server.
+    lastId: 0,
+
+    // EventSource object for the channel, if Server-Sent Events are
+    // being used; null means long polling is being used.
+    source: null,
+
+    // Fiz.Ajax object for the outstanding long-poll request, if any.
+    request: null,
+
+    // Number of consecutive long-poll requests that have failed.
+    failures: 0,
+
+    // After this many consecutive failures, give up.
+    maxFailures: 5
+};
+
+/**
+ * Start listening for messages from the server.  This function is
+ * invoked by code generated by {@code ClientRequest.getPushChannel}.
+ */
+Fiz.PushChannel.start = function() {
+    if (Fiz.PushChannel.running) {
+        return;
+    }
+    Fiz.PushChannel.running = true;
+    if (window.EventSource) {
+        var source = new window.EventSource("/PushChannel/ajaxEvents?fiz_auth=" +
+                encodeURIComponent(Fiz.auth) + "&fiz_pageId=" +
+                encodeURIComponent(Fiz.pageId));
+        source.onmessage = function(event) {
+            Fiz.PushChannel.lastId = event.lastEventId;
+            Fiz.PushChannel.evaluate(event.data);
+        };
+        source.addEventListener("close", function() {
+            Fiz.PushChannel.stop();
+        }, false);
+        Fiz.PushChannel.source = source;
+    } else {
+        Fiz.PushChannel.poll();
+    }
+}
+
+/**
+ * Stop listening for messages.  This function is invoked by the server
+ * when the channel is closed.
+ */
+Fiz.PushChannel.stop = function() {
+    Fiz.PushChannel.running = false;
+    if (Fiz.PushChannel.source != null) {
+        Fiz.PushChannel.source.close();
+        Fiz.PushChannel.source = null;
+    }
+    if (Fiz.PushChannel.request != null) {
+        Fiz.PushChannel.request.abort();
+        Fiz.PushChannel.request = null;
+    }
+}
+
+/**
+ * Private: evaluate the Javascript in a message from the server.  Errors
+ * are reported in the bulletin but don't stop the channel.
+ * @param javascript               Code to evaluate.
+ */
+Fiz.PushChannel.evaluate = function(javascript) {
+    try {
+        eval(javascript);
+    } catch (e) {
+        Fiz.addBulletinMessage("<div class=\"bulletinError\">Error in " +
+                "pushed update: " + e + "</div>");
+    }
+}
+
+/**
+ * Private: issue a long-poll request to the server.
+ */
+Fiz.PushChannel.poll = function() {
+    if (!Fiz.PushChannel.running) {
+        return;
+    }
+
+    // The request may not complete for a long time, so it must not be
+    // batched with other requests.
+    var request = new Fiz.Ajax({url: "/PushChannel/ajaxPoll",
+            data: {after: Fiz.PushChannel.lastId}, batch: false});
+    request.error = function(message) {
+        Fiz.PushChannel.failed(message);
+    };
+    Fiz.PushChannel.request = request;
+}
+
+/**
+ * Private: this function is invoked when a long-poll request fails.  The
+ * request is retried after a delay that increases with each consecutive
+ * failure; after too many failures the error is reported and polling
+ * stops.
+ * @param message                  Human-readable HTML describing the
+ *                                 problem.
+ */
+Fiz.PushChannel.failed = function(message) {
+    Fiz.PushChannel.request = null;
+    Fiz.PushChannel.failures++;
+    if (Fiz.PushChannel.failures >= Fiz.PushChannel.maxFailures) {
+        Fiz.PushChannel.stop();
+        Fiz.addBulletinMessage("<div class=\"bulletinError\">Lost " +
+                "connection to server for updates: " + message + "</div>");
+        return;
+    }
+    setTimeout(Fiz.PushChannel.poll,
+            1000 * Math.pow(2, Fiz.PushChannel.failures));
+}
+
+/**
+ * Private: this function is invoked by the response to a long-poll request.
+ * It evaluates any messages and issues the next request.
+ * @param lastId                   Id of the last message included in the
+ *                                 response.
+ * @param delay                    Milliseconds to wait before polling again.
+ * @param messages                 Array of Javascript strings, one for
+ *                                 each message.
+ */
+Fiz.PushChannel.received = function(lastId, delay, messages) {
+    Fiz.PushChannel.request = null;
+    Fiz.PushChannel.failures = 0;
+    Fiz.PushChannel.lastId = lastId;
+    for (var i = 0; i < messages.length; i++) {
+        Fiz.PushChannel.evaluate(messages[i]);
+    }
+    if (delay > 0) {
+        setTimeout(Fiz.PushChannel.poll, delay);
+    } else {
+        Fiz.PushChannel.poll();
+    }
+}
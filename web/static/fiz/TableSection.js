@@ -0,0 +1,253 @@
+/* TableSection.js --
+ *
+ * This file implements the TableSection class, which manages paged
+ * TableSections in the browser: it fetches additional rows from the
+ * server as the user scrolls, keeps only the rows near the visible
+ * region in the document, and re-sorts the table when the user clicks
+ * on a column header.
+ *
+ * Copyright (c) 2009 Stanford University
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+// The following lines are used by Fiz to manage Javascript dependencies.
+// Fiz:include static/fiz/Fiz.js
+// Fiz:include static/fiz/Ajax.js
+
+/**
+ * Create a TableSection object, which manages a paged table.  When this
+ * method is invoked the first page of rows has already been rendered
+ * in the document, between two "spacer" rows with ids {@code id_above}
+ * and {@code id_below}.
+ * @param id                       Id for the {@code <table>} element.
+ * @param pageSize                 Number of rows to request from the
+ *                                 server at once.
+ * @param prefetch                 Number of rows beyond the visible
+ *                                 region to keep in the document.
+ * @param totalRows                Total number of rows in the table, or
+ *                                 -1 if not known yet.
+ */
+Fiz.TableSection = function(id, pageSize, prefetch, totalRows) {
+    this.id = id;
+    this.pageSize = pageSize;
+    this.prefetch = prefetch;
+    this.totalRows = totalRows;
+    this.scroller = document.getElementById(id + "_scroll");
+    this.above = document.getElementById(id + "_above");
+    this.below = document.getElementById(id + "_below");
+
+    // The following array holds the {@code <tr>} elements for all of the
+    // rows received so far (rows 0 through rows.length-1), whether or not
+    // they are currently in the document.
+    this.rows = [];
+    for (var row = this.above.nextSibling; row != this.below;
+            row = row.nextSibling) {
+        if (row.nodeName == "TR") {
+            this.rows.push(row);
+        }
+    }
+
+    // Rows {@code first} through {@code last-1} are currently in the
+    // document.
+    this.first = 0;
+    this.last = this.rows.length;
+
+    // Height of each row, in pixels; 0 means it hasn't been measured yet.
+    this.rowHeight = 0;
+
+    // Current sort order: {@code sortField} is an empty string if the
+    // table is unsorted; {@code sortColumn} is the index of the column
+    // whose header was clicked to sort the table, or -1.
+    this.sortField = "";
+    this.descending = false;
+    this.sortColumn = -1;
+
+    // Fiz.Ajax object for the request currently in progress, or null.
+    this.request = null;
+
+    // Request more rows right away if the first page doesn't fill the
+    // visible region plus the prefetch distance.
+    this.scrolled();
+}
+
+/**
+ * This method is invoked by the server's response to a request for rows
+ * (see {@code ajaxRows} in TableSection.java).  It saves the new rows and
+ * displays them if they are visible.
+ * @param offset                   Index of the first row in {@code rows}.
+ * @param totalRows                Total number of rows in the table, or
+ *                                 -1 if not known yet.
+ * @param rows                     Array containing HTML for each of the
+ *                                 new rows (each a {@code <tr>} element).
+ * @param sortField                Sort field from the request.
+ * @param descending               Sort order from the request.
+ */
+Fiz.TableSection.prototype.addRows = function(offset, totalRows, rows,
+        sortField, descending) {
+    if ((sortField != this.sortField) || (descending != this.descending)) {
+        // The table has been re-sorted since this request was made.
+        return;
+    }
+    this.request = null;
+    if (offset != this.rows.length) {
+        return;
+    }
+    var elements = Fiz.TableSection.createRows(rows.join(""));
+    for (var i = 0; i < elements.length; i++) {
+        this.rows.push(elements[i]);
+    }
+    this.totalRows = totalRows;
+    this.scrolled();
+}
+
+/**
+ * Request more rows from the server, unless a request is already in
+ * progress.
+ * @param offset                   Index of the first row desired.
+ */
+Fiz.TableSection.prototype.fetch = function(offset) {
+    if (this.request != null) {
+        return;
+    }
+    this.request = new Fiz.Ajax({url: "/TableSection/ajaxRows",
+            data: {id: this.id, offset: offset, count: this.pageSize,
+            sortField: this.sortField, descending: this.descending}});
+}
+
+/**
+ * This method is invoked whenever the table is scrolled.  It updates
+ * the set of rows in the document to match the visible region and
+ * requests more rows from the server if the user is getting close to
+ * the last row received.
+ */
+Fiz.TableSection.prototype.scrolled = function() {
+    if (this.rowHeight == 0) {
+        if (this.rows.length == 0) {
+            this.fetchIfNeeded(0);
+            return;
+        }
+        this.rowHeight = this.rows[0].offsetHeight || 20;
+    }
+    var top = Math.floor(this.scroller.scrollTop / this.rowHeight);
+    var visible = Math.ceil(this.scroller.clientHeight / this.rowHeight);
+    var start = Math.max(0, top - this.prefetch);
+    var end = Math.min(this.rows.length, top + visible + this.prefetch);
+    if (start > end) {
+        start = end;
+    }
+    if ((start != this.first) || (end != this.last)) {
+        this.showRows(start, end);
+    }
+    this.fetchIfNeeded(top + visible + this.prefetch);
+}
+
+/**
+ * Request more rows if rows are needed beyond the ones received so far.
+ * @param needed                   Number of rows that should be available
+ *                                 (i.e., rows 0 through needed-1).
+ */
+Fiz.TableSection.prototype.fetchIfNeeded = function(needed) {
+    if ((needed >= this.rows.length) && ((this.totalRows < 0)
+            || (this.rows.length < this.totalRows))) {
+        this.fetch(this.rows.length);
+    }
+}
+
+/**
+ * Change the set of rows in the document, and adjust the heights of the
+ * spacer rows to stand in for the rows that aren't in the document.
+ * @param start                    Index of the first row to display.
+ * @param end                      Index just after the last row to display.
+ */
+Fiz.TableSection.prototype.showRows = function(start, end) {
+    var body = this.below.parentNode;
+    for (var i = this.first; i < this.last; i++) {
+        body.removeChild(this.rows[i]);
+    }
+    for (i = start; i < end; i++) {
+        body.insertBefore(this.rows[i], this.below);
+    }
+    this.first = start;
+    this.last = end;
+    var total = Math.max(this.totalRows, this.rows.length);
+    this.above.firstChild.style.height = (start * this.rowHeight) + "px";
+    this.below.firstChild.style.height = ((total - end) * this.rowHeight)
+            + "px";
+}
+
+/**
+ * This method is invoked when the user clicks on the header for a
+ * sortable column.  It discards all of the rows and fetches new rows
+ * from the server in the new order.  Clicking a second time on the same
+ * column reverses the order.
+ * @param column                   Index of the column whose header was
+ *                                 clicked.
+ * @param sortField                Field by which to sort the table.
+ */
+Fiz.TableSection.prototype.sort = function(column, sortField) {
+    if (sortField == this.sortField) {
+        this.descending = !this.descending;
+    } else {
+        this.sortField = sortField;
+        this.descending = false;
+    }
+    if (this.sortColumn >= 0) {
+        var oldHeader = document.getElementById(this.id + "_header" +
+                this.sortColumn);
+        Fiz.removeClass(oldHeader, "sortedUp");
+        Fiz.removeClass(oldHeader, "sortedDown");
+    }
+    this.sortColumn = column;
+    Fiz.addClass(document.getElementById(this.id + "_header" + column),
+            this.descending ? "sortedDown" : "sortedUp");
+
+    if (this.request != null) {
+        this.request.abort();
+        this.request = null;
+    }
+    this.showRows(0, 0);
+    this.rows = [];
+    this.totalRows = -1;
+    this.scroller.scrollTop = 0;
+    this.fetch(0);
+}
+
+/**
+ * Create DOM elements for a collection of table rows.
+ * @param html                     HTML for zero or more {@code <tr>}
+ *                                 elements.
+ * @return                         Array containing the {@code <tr>}
+ *                                 elements, which are not in the document.
+ */
+Fiz.TableSection.createRows = function(html) {
+    // Browsers don't allow innerHTML to be set for table elements, so
+    // create the rows in a temporary table inside a paragraph.
+    var temp = document.createElement("p");
+    temp.innerHTML = "<table>" + html + "</table>";
+    var body = temp.firstChild;
+    while (body.nodeName != "TABLE") {
+        body = body.nextSibling;
+    }
+    if ((body.firstChild != null) && (body.firstChild.nodeName == "TBODY")) {
+        body = body.firstChild;
+    }
+    var result = [];
+    for (var row = body.firstChild; row != null; row = body.firstChild) {
+        body.removeChild(row);
+        if (row.nodeName == "TR") {
+            result.push(row);
+        }
+    }
+    return result;
+}
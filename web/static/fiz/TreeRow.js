@@ -99,3 +99,163 @@ Fiz.TreeRow.prototype.replace = function(html) {
         }
     }
 }
+
+/**
+ * Display the children of this element, given a compact description of
+ * the children.  This method is invoked by the response to a
+ * TreeSection.ajaxExpand request.
+ * @param info                     Object describing the children; see
+ *                                 {@code appendRowInfo} in TreeSection.java
+ *                                 for details.
+ */
+Fiz.TreeRow.prototype.expandRows = function(info) {
+    this.expand("<table cellspacing=\"0\" class=\"" + info.className +
+            "\" id=\"" + this.id + "\">\n" + Fiz.TreeRow.renderRows(info) +
+            "</table>\n");
+}
+
+/**
+ * Display an additional batch of children for a node, replacing the
+ * "more" row that was previously displayed after the last child.  This
+ * method is invoked by the response to a TreeSection.ajaxMore request.
+ * @param info                     Object describing the new children; see
+ *                                 {@code appendRowInfo} in TreeSection.java
+ *                                 for details.
+ */
+Fiz.TreeRow.addRows = function(info) {
+    var moreRow = document.getElementById(info.baseId + "_more");
+    var parent = moreRow.parentNode;
+
+    // See the comments in the "replace" method for why we have to
+    // create the rows inside a temporary table.
+    var temp = document.createElement("p");
+    temp.innerHTML = "<table>" + Fiz.TreeRow.renderRows(info) + "</table>";
+    var body = temp.firstChild;
+    while (body.nodeName != "TABLE") {
+        body = body.nextSibling;
+    }
+    if (body.firstChild.nodeName == "TBODY") {
+        body = body.firstChild;
+    }
+    for (var row = body.firstChild; row != null; row = body.firstChild) {
+        body.removeChild(row);
+        if (row.nodeName == "TR") {
+            parent.insertBefore(row, moreRow);
+        }
+    }
+    parent.removeChild(moreRow);
+}
+
+/**
+ * Generate the HTML for a collection of table rows displaying children
+ * of a node, and create TreeRow objects for the children that can be
+ * expanded.  The HTML is the same as that generated by
+ * {@code renderChildren} in TreeSection.java.
+ * @param info                     Object describing the children; see
+ *                                 {@code appendRowInfo} in TreeSection.java
+ *                                 for details.
+ * @return                         HTML for the rows (a sequence of
+ *                                 {@code <tr>} elements).
+ */
+Fiz.TreeRow.renderRows = function(info) {
+    var family = info.edgeFamily;
+    var images = "/static/fiz/images/";
+    var line = Fiz.TreeRow.addSuffix(family, "-line");
+    var html = "";
+    var count = info.rows.length;
+    for (var i = 0; i < count; i++) {
+        var row = info.rows[i];
+        var id = info.baseId + "_" + (info.first + i);
+        var last = (i == (count-1)) && !info.more;
+        var start = "  <tr id=\"" + id + "\">\n    <td class=\"left\" " +
+                "style=\"background-image: url(" + images + line +
+                "); background-repeat: " + (last ? "no-repeat" : "repeat-y") +
+                ";\"";
+        if (row.expanded == undefined) {
+            html += start + "><img src=\"" + images +
+                    Fiz.TreeRow.addSuffix(family, "-leaf") + "\"></td>\n" +
+                    "    <td class=\"right\">" + row.html + "</td>\n  </tr>\n";
+            continue;
+        }
+
+        // This child is expandable: generate the unexpanded and expanded
+        // forms of its row, plus an invisible row to hold its children.
+        var plus = Fiz.TreeRow.addSuffix(family, "-plus");
+        var minus = Fiz.TreeRow.addSuffix(family, "-minus");
+        var unexpanded = start + " onclick=\"" +
+                Fiz.TreeRow.ajaxHandler("ajaxExpand", info.sectionId, id) +
+                "\" onmouseover=\"Fiz.changeImage('" + id + "_plus', '" +
+                Fiz.TreeRow.addSuffix(family, "-plus-active") + "');\"" +
+                " onmouseout=\"Fiz.changeImage('" + id + "_plus', '" + plus +
+                "');\"><img id=\"" + id + "_plus\" src=\"" + images + plus +
+                "\"></td>\n    <td class=\"right\">" + row.html +
+                "</td>\n  </tr>\n";
+        var expanded = start + " onclick=\"Fiz.ids['" + id +
+                "'].unexpand();\" onmouseover=\"Fiz.changeImage('" + id +
+                "_minus', '" + Fiz.TreeRow.addSuffix(family, "-minus-active") +
+                "');\" onmouseout=\"Fiz.changeImage('" + id + "_minus', '" +
+                minus + "');\"><img id=\"" + id + "_minus\" src=\"" + images +
+                minus + "\"></td>\n    <td class=\"right\">" + row.expanded +
+                "</td>\n  </tr>\n";
+        Fiz.ids[id] = new Fiz.TreeRow(id, unexpanded, expanded);
+        html += unexpanded + "  <tr id=\"" + id + "_childRow\" " +
+                "style=\"display:none\">\n    <td" +
+                (last ? "" : (" style=\"background-image: url(" + images +
+                line + "); background-repeat: repeat-y;\"")) +
+                "></td>\n    <td><div class=\"nested\" id=\"" + id +
+                "_childDiv\"></div></td>\n  </tr>\n";
+    }
+    if (info.more) {
+        html += "  <tr id=\"" + info.baseId + "_more\">\n" +
+                "    <td class=\"left\" style=\"background-image: url(" +
+                images + line + "); background-repeat: no-repeat;\">" +
+                "<img src=\"" + images +
+                Fiz.TreeRow.addSuffix(family, "-leaf") + "\"></td>\n" +
+                "    <td class=\"right\" onclick=\"" +
+                Fiz.TreeRow.ajaxHandler("ajaxMore", info.sectionId,
+                info.baseId, info.first + count) + "\">" + info.more +
+                "</td>\n  </tr>\n";
+    }
+    return html;
+}
+
+/**
+ * Generate the value of an HTML event handler attribute that will
+ * invoke a TreeSection Ajax request.
+ * @param method                   Name of the Ajax method in TreeSection,
+ *                                 such as {@code ajaxExpand}.
+ * @param sectionId                Id for the TreeSection.
+ * @param nodeId                   Id for the node that the request
+ *                                 refers to.
+ * @param offset                   (optional) If present, included in the
+ *                                 request as the {@code offset} value.
+ * @return                         Javascript code suitable for use as
+ *                                 an HTML attribute value.
+ */
+Fiz.TreeRow.ajaxHandler = function(method, sectionId, nodeId, offset) {
+    var url = "/TreeSection/" + method + "?sectionId=" +
+            encodeURIComponent(sectionId) + "&amp;nodeId=" +
+            encodeURIComponent(nodeId);
+    if (offset != undefined) {
+        url += "&amp;offset=" + offset;
+    }
+    return "void new Fiz.Ajax({url: &quot;" + url + "&quot;});";
+}
+
+/**
+ * Adds a suffix to the end of a file name, before the extension (same
+ * as StringUtil.addSuffix in Java).
+ * @param fileName                 Name of an image file, such as
+ *                                 {@code treeSolid.gif}.
+ * @param suffix                   Suffix to add, such as {@code -line}.
+ * @return                         The modified name, such as
+ *                                 {@code treeSolid-line.gif}.
+ */
+Fiz.TreeRow.addSuffix = function(fileName, suffix) {
+    var lastDot = fileName.lastIndexOf(".");
+    if (lastDot < 0) {
+        return fileName + suffix;
+    }
+    return fileName.substring(0, lastDot) + suffix +
+            fileName.substring(lastDot);
+}